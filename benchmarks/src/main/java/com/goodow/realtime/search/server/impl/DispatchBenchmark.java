@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.client.Client;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of {@link ElasticSearchHandler#handle}: action dispatch, request validation and
+ * construction, and reply encoding, against a client answering synchronously.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+  @Param({"get", "index", "search"})
+  public String action;
+
+  private Vertx vertx;
+  private Client transport;
+  private ElasticSearchHandler handler;
+  private Fixtures.CapturedMessage message;
+
+  @Setup
+  public void setUp() throws Exception {
+    vertx = VertxFactory.newVertx();
+    transport = Fixtures.offlineClient();
+    handler =
+        Fixtures.injector(vertx, Fixtures.container(new JsonObject()),
+            new Fixtures.CannedClient(transport, 10)).getInstance(ElasticSearchHandler.class);
+    JsonObject body =
+        new JsonObject().putString("action", action).putString(ElasticSearchHandler.INDEX,
+            Fixtures.INDEX).putString(ElasticSearchHandler.TYPE, Fixtures.TYPE).putString(
+            ElasticSearchHandler.ID, "1");
+    if ("index".equals(action)) {
+      body.putObject("source", Fixtures.document(5));
+    } else if ("search".equals(action)) {
+      body.putObject("source", new JsonObject().putObject("query", new JsonObject().putObject(
+          "match_all", new JsonObject())));
+    }
+    message = new Fixtures.CapturedMessage(body);
+  }
+
+  @TearDown
+  public void tearDown() {
+    transport.close();
+    vertx.stop();
+  }
+
+  @Benchmark
+  public Object handle() {
+    message.reply = null;
+    handler.handle(message.message);
+    return message.reply;
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+import org.vertx.java.platform.Container;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Canned Elasticsearch responses and minimal vert.x stand-ins, so that the benchmarks run without a
+ * cluster or a vert.x platform.
+ */
+final class Fixtures {
+  static final String INDEX = "twitter";
+  static final String TYPE = "tweet";
+
+  /**
+   * A message which records its reply.
+   */
+  static class CapturedMessage implements InvocationHandler {
+    final Message<JsonObject> message;
+    final JsonObject body;
+    Object reply;
+
+    @SuppressWarnings("unchecked")
+    CapturedMessage(JsonObject body) {
+      this.body = body;
+      message =
+          (Message<JsonObject>) Proxy.newProxyInstance(Message.class.getClassLoader(),
+              new Class<?>[] {Message.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if ("body".equals(name)) {
+        return body;
+      } else if ("fail".equals(name)) {
+        reply = args[1];
+      } else if (name.startsWith("reply")) {
+        reply = args == null ? null : args[0];
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Completes every get, search and index request synchronously with a canned response.
+   */
+  static class CannedClient extends FilterClient {
+    private final Map<String, ActionResponse> responses = new HashMap<>();
+
+    CannedClient(Client in, int hits) throws IOException {
+      super(in);
+      responses.put(GetAction.NAME, getResponse());
+      responses.put(SearchAction.NAME, searchResponse(hits));
+      responses.put(IndexAction.NAME, new IndexResponse(INDEX, TYPE, "1", 1, true));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void execute(
+        Action<Request, Response, RequestBuilder, Client> action, Request request,
+        ActionListener<Response> listener) {
+      ActionResponse response = responses.get(action.name());
+      if (response == null) {
+        listener.onFailure(new UnsupportedOperationException(action.name()));
+        return;
+      }
+      listener.onResponse((Response) response);
+    }
+  }
+
+  static Container container(final JsonObject config) {
+    final Logger logger = LoggerFactory.getLogger(Fixtures.class);
+    return (Container) Proxy.newProxyInstance(Container.class.getClassLoader(),
+        new Class<?>[] {Container.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+              case "config":
+                return config;
+              case "logger":
+                return logger;
+              default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+          }
+        });
+  }
+
+  /**
+   * Returns a client without any connection, used for its settings and thread pool only. Unlike an
+   * unconnected transport client, it starts on any JVM version.
+   */
+  static Client offlineClient() {
+    final ThreadPool threadPool = new ThreadPool("benchmarks");
+    return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(),
+        new Class<?>[] {Client.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+              case "threadPool":
+                return threadPool;
+              case "settings":
+                return ImmutableSettings.EMPTY;
+              case "close":
+                threadPool.shutdownNow();
+                return null;
+              default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+          }
+        });
+  }
+
+  static Injector injector(Vertx vertx, Container container, final Client client) {
+    return injector(vertx, container, PooledClient.acquire("benchmark-"
+        + System.identityHashCode(client), 1, PooledClient.ROUND_ROBIN,
+        new PooledClient.Factory() {
+          @Override
+          public Client create() {
+            return client;
+          }
+        }));
+  }
+
+  static Injector injector(final Vertx vertx, final Container container,
+      final PooledClient client) {
+    return Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(Vertx.class).toInstance(vertx);
+        bind(Container.class).toInstance(container);
+        bind(Client.class).toInstance(client);
+        bind(PooledClient.class).toInstance(client);
+      }
+    });
+  }
+
+  static JsonObject document(int fields) {
+    JsonObject doc =
+        new JsonObject().putString("user", "larry").putString("message", "hello world").putNumber(
+            "post_date", 1420070400000L);
+    for (int i = 0; i < fields; i++) {
+      doc.putObject("field_" + i, new JsonObject().putString("name", "value " + i).putNumber(
+          "count", i).putArray("tags", new org.vertx.java.core.json.JsonArray().addString("a")
+          .addString("b")));
+    }
+    return doc;
+  }
+
+  static BytesReference source(int id) throws IOException {
+    XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+    builder.field("user", "user" + id).field("message", "中华人民共和国 message number " + id).field(
+        "post_date", 1420070400000L + id).array("tags", "realtime", "search", "tag" + id % 10);
+    builder.startObject("author").field("name", "author" + id % 100).startObject("location")
+        .field("lat", 31.2 + id % 10).field("lon", 121.5 - id % 10).endObject().endObject();
+    builder.startArray("comments");
+    for (int i = 0; i < 3; i++) {
+      builder.startObject().field("user", "commenter" + i).field("text",
+          "comment " + i + " on document " + id).endObject();
+    }
+    builder.endArray();
+    return builder.endObject().bytes();
+  }
+
+  static SearchResponse searchResponse(int hits) throws IOException {
+    InternalSearchHit[] array = new InternalSearchHit[hits];
+    for (int i = 0; i < hits; i++) {
+      InternalSearchHit hit =
+          new InternalSearchHit(i, String.valueOf(i), new StringText(TYPE), Collections
+              .<String, SearchHitField> emptyMap());
+      hit.sourceRef(source(i));
+      hit.score(1.0f / (i + 1));
+      hit.shard(new SearchShardTarget("node", INDEX, i % 5));
+      array[i] = hit;
+    }
+    InternalSearchResponse internal =
+        new InternalSearchResponse(new InternalSearchHits(array, hits * 10, 1.0f), null, null,
+            null, false, null);
+    return new SearchResponse(internal, null, 5, 5, 3, ShardSearchFailure.EMPTY_ARRAY);
+  }
+
+  static GetResponse getResponse() throws IOException {
+    return new GetResponse(new GetResult(INDEX, TYPE, "1", 1, true, source(1), Collections
+        .<String, GetField> emptyMap()));
+  }
+
+  private Fixtures() {
+  }
+}
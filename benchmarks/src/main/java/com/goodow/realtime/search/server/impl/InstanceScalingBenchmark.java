@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.client.Client;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search throughput through the event bus as handler instances are added, each with its own
+ * event loop like a verticle instance, all sharing one {@link PooledClient} pool.
+ * <p>
+ * The canned client replies on the calling thread, so an instance is bound by its event loop alone
+ * and throughput can only grow while there are spare cores: with fewer cores than instances plus
+ * the driver loop, the added loops just contend for the same cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class InstanceScalingBenchmark {
+  private static final String ADDRESS = "benchmark/search";
+  private static final String DRIVER = "benchmark/driver";
+  private static final int BATCH = 1000;
+  private static final String EVENT_LOOP_SIZE = "vertx.pool.eventloop.size";
+
+  @Param({"1", "2", "4", "8"})
+  public int instances;
+
+  @Param({"2"})
+  public int poolSize;
+
+  @Param({PooledClient.ROUND_ROBIN, PooledClient.LEAST_OUTSTANDING})
+  public String selection;
+
+  private Vertx vertx;
+  private final List<PooledClient> clients = new ArrayList<>();
+  private volatile CountDownLatch done;
+
+  @Setup
+  public void setUp() throws Exception {
+    // vert.x defaults to two event loops per core, which would make instances share loops on small
+    // machines; each fork of this benchmark creates a single Vertx
+    System.setProperty(EVENT_LOOP_SIZE, String.valueOf(instances + 1));
+    vertx = VertxFactory.newVertx();
+    // Registered outside of any verticle, every handler gets an event loop of its own
+    final CountDownLatch registered = new CountDownLatch(instances + 1);
+    Handler<AsyncResult<Void>> onRegistered = new Handler<AsyncResult<Void>>() {
+      @Override
+      public void handle(AsyncResult<Void> ar) {
+        registered.countDown();
+      }
+    };
+    for (int i = 0; i < instances; i++) {
+      PooledClient client =
+          PooledClient.acquire("scaling", poolSize, selection, new PooledClient.Factory() {
+            @Override
+            public Client create() {
+              try {
+                return new Fixtures.CannedClient(Fixtures.offlineClient(), 10);
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            }
+          });
+      clients.add(client);
+      ElasticSearchHandler handler =
+          Fixtures.injector(vertx, Fixtures.container(new JsonObject()), client).getInstance(
+              ElasticSearchHandler.class);
+      vertx.eventBus().registerHandler(ADDRESS, handler, onRegistered);
+    }
+
+    // Sends a batch of searches from a single event loop and counts the replies
+    final JsonObject search =
+        new JsonObject().putString("action", "search").putString(ElasticSearchHandler.INDEX,
+            Fixtures.INDEX).putObject("source", new JsonObject().putObject("query",
+            new JsonObject().putObject("match_all", new JsonObject())));
+    final Handler<Message<JsonObject>> onReply = new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> reply) {
+        done.countDown();
+      }
+    };
+    vertx.eventBus().registerHandler(DRIVER, new Handler<Message<String>>() {
+      @Override
+      public void handle(Message<String> start) {
+        for (int i = 0; i < BATCH; i++) {
+          vertx.eventBus().send(ADDRESS, search, onReply);
+        }
+      }
+    }, onRegistered);
+    registered.await();
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (PooledClient client : clients) {
+      client.close();
+    }
+    vertx.stop();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void search() throws InterruptedException {
+    done = new CountDownLatch(BATCH);
+    vertx.eventBus().send(DRIVER, (String) null);
+    done.await();
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of a search reply crossing a clustered event bus in each {@code format}:
+ * serializing the response, encoding the reply, copying it through the wire form the event bus
+ * uses (the encoded String of a JsonObject, the bytes of a Buffer), and decoding it with
+ * {@link ReplyEncoding#decode}. {@link #wire} measures the encoding side in replies per second,
+ * and its {@code wireBytes} secondary result in bytes per second: their ratio is the size of one
+ * reply on the wire.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ReplyEncodingBenchmark {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReplyEncodingBenchmark.class);
+
+  @Param({"100", "1000"})
+  public int hits;
+
+  @Param({"json", "raw", ReplyEncoding.SMILE, ReplyEncoding.CBOR, ReplyEncoding.DEFLATE})
+  public String format;
+
+  /**
+   * Counts the bytes put on the wire, which JMH reports per second.
+   */
+  @AuxCounters
+  @State(Scope.Thread)
+  public static class Wire {
+    public long wireBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      wireBytes = 0;
+    }
+  }
+
+  private SearchResponse response;
+  private JsonObject body;
+
+  @Setup
+  public void setUp() throws IOException {
+    response = Fixtures.searchResponse(hits);
+    body = new JsonObject().putString(ElasticSearchHandler.FORMAT, format);
+  }
+
+  @Benchmark
+  public JsonObject endToEnd() throws IOException {
+    byte[] wire = wire(reply());
+    Object received =
+        "json".equals(format) ? new JsonObject(new String(wire, StandardCharsets.UTF_8))
+            : new Buffer(wire);
+    return ReplyEncoding.decode(received);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public byte[] wire(Wire counters) throws IOException {
+    byte[] wire = wire(reply());
+    counters.wireBytes += wire.length;
+    return wire;
+  }
+
+  private Object reply() throws IOException {
+    Fixtures.CapturedMessage captured = new Fixtures.CapturedMessage(body);
+    BytesReference bytes = ElasticSearchHandler.toBytes(response);
+    ElasticSearchHandler.reply(LOGGER, captured.message, bytes);
+    return captured.reply;
+  }
+
+  private static byte[] wire(Object reply) {
+    return reply instanceof Buffer ? ((Buffer) reply).getBytes() : ((JsonObject) reply).encode()
+        .getBytes(StandardCharsets.UTF_8);
+  }
+}
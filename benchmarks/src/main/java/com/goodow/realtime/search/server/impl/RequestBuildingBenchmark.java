@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Injector;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Client;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning index and search messages of growing size into Elasticsearch requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RequestBuildingBenchmark {
+  @Param({"1", "10", "100"})
+  public int fields;
+
+  private Vertx vertx;
+  private Client transport;
+  private WriteRequests writes;
+  private SearchActioin search;
+  private Fixtures.CapturedMessage indexMessage;
+  private Fixtures.CapturedMessage searchMessage;
+
+  @Setup
+  public void setUp() throws Exception {
+    vertx = VertxFactory.newVertx();
+    transport = Fixtures.offlineClient();
+    Injector injector =
+        Fixtures.injector(vertx, Fixtures.container(new JsonObject()), new Fixtures.CannedClient(
+            transport, 0));
+    writes = injector.getInstance(WriteRequests.class);
+    search = injector.getInstance(SearchActioin.class);
+
+    indexMessage =
+        new Fixtures.CapturedMessage(new JsonObject().putString("action", "index").putString(
+            ElasticSearchHandler.INDEX, Fixtures.INDEX).putString(ElasticSearchHandler.TYPE,
+            Fixtures.TYPE).putObject("source", Fixtures.document(fields)));
+    JsonArray should = new JsonArray();
+    for (int i = 0; i < fields; i++) {
+      should.addObject(new JsonObject().putObject("match", new JsonObject().putString(
+          "field_" + i + ".name", "value " + i)));
+    }
+    searchMessage =
+        new Fixtures.CapturedMessage(new JsonObject().putString("action", "search").putArray(
+            "_indices", new JsonArray().addString(Fixtures.INDEX)).putString(
+            ElasticSearchHandler.TYPE, Fixtures.TYPE).putObject("source",
+            new JsonObject().putNumber("size", 10).putObject("query", new JsonObject().putObject(
+                "bool", new JsonObject().putArray("should", should)))));
+  }
+
+  @TearDown
+  public void tearDown() {
+    transport.close();
+    vertx.stop();
+  }
+
+  @Benchmark
+  public IndexRequest index() {
+    return writes.index(indexMessage.body, indexMessage.message);
+  }
+
+  @Benchmark
+  public SearchRequest search() {
+    JsonObject body = searchMessage.body;
+    return search.prepareSearch(body, SearchActioin.getIndices(body)).request();
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of converting search responses with nested sources into event bus replies. Run with
+ * {@code -prof gc} to compare the allocation rate of each reply format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class XContentBenchmark {
+  @Param({"10", "100", "1000"})
+  public int hits;
+
+  private SearchResponse response;
+
+  @Setup
+  public void setUp() throws IOException {
+    response = Fixtures.searchResponse(hits);
+  }
+
+  /**
+   * The conversion used before replies skipped the intermediate String.
+   */
+  @Benchmark
+  public JsonObject stringRoundTrip() throws IOException {
+    XContentBuilder builder = XContentFactory.jsonBuilder();
+    builder.startObject();
+    response.toXContent(builder, ToXContent.EMPTY_PARAMS);
+    builder.endObject();
+    return new JsonObject(builder.string());
+  }
+
+  /**
+   * {@link XContentHelper#convertToMap}, the first candidate for decoding the bytes directly.
+   */
+  @Benchmark
+  public JsonObject convertToMap() throws IOException {
+    return new JsonObject(XContentHelper.convertToMap(ElasticSearchHandler.toBytes(response), true)
+        .v2());
+  }
+
+  @Benchmark
+  public JsonObject json() throws IOException {
+    return ElasticSearchHandler.toJsonObject(ElasticSearchHandler.toBytes(response));
+  }
+
+  @Benchmark
+  public Buffer raw() throws IOException {
+    return ElasticSearchHandler.toBuffer(ElasticSearchHandler.toBytes(response));
+  }
+}
@@ -13,6 +13,17 @@
  */
 package com.goodow.realtime.search.server;
 
+import com.goodow.realtime.search.server.impl.AdmissionControl;
+import com.goodow.realtime.search.server.impl.AdmissionControlClient;
+import com.goodow.realtime.search.server.impl.CircuitBreaker;
+import com.goodow.realtime.search.server.impl.CircuitBreakerClient;
+import com.goodow.realtime.search.server.impl.EmbeddedNodeClient;
+import com.goodow.realtime.search.server.impl.Hedging;
+import com.goodow.realtime.search.server.impl.HedgingClient;
+import com.goodow.realtime.search.server.impl.Metrics;
+import com.goodow.realtime.search.server.impl.MetricsClient;
+import com.goodow.realtime.search.server.impl.PooledClient;
+
 import com.alienos.guice.VertxModule;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
@@ -48,12 +59,47 @@ public class SearchModule extends AbstractModule implements VertxModule {
 
   @Provides
   @Singleton
-  Client provideElasticSearchClient() {
-    JsonObject config = container.config();
+  PooledClient providePooledClient() {
+    final JsonObject config = container.config();
+    final String clusterName = config.getString("cluster_name", "elasticsearch");
+    final JsonObject embedded = config.getObject("embedded", new JsonObject());
+    JsonObject pool = config.getObject("client_pool", new JsonObject());
+    final boolean isEmbedded = embedded.getBoolean("enabled", false);
+    // Verticle instances connecting the same way share their clients
+    String key =
+        new JsonObject().putString("cluster_name", clusterName).putObject("embedded", embedded)
+            .putArray("transportAddresses", config.getArray("transportAddresses")).putBoolean(
+                "client_transport_sniff", config.getBoolean("client_transport_sniff", true))
+            .encode();
+    return PooledClient.acquire(key, isEmbedded ? 1 : pool.getInteger("size", 1), pool.getString(
+        "selection", PooledClient.ROUND_ROBIN), new PooledClient.Factory() {
+      @Override
+      public Client create() {
+        return isEmbedded ? EmbeddedNodeClient.start(clusterName, embedded)
+            : createTransportClient(clusterName, config);
+      }
+    });
+  }
+
+  /**
+   * Chains admission control, then the circuit breaker, hedging and metrics in front of the pooled
+   * client. Admission control bounds every request, including the fast failures of an open
+   * circuit. The circuit breaker sees a hedged request as one call, and metrics time each attempt.
+   */
+  @Provides
+  @Singleton
+  Client provideElasticSearchClient(PooledClient client, AdmissionControl admission,
+      Metrics metrics, Hedging hedging, CircuitBreaker breaker) {
+    Client filtered = metrics.isEnabled() ? new MetricsClient(client, metrics) : client;
+    filtered = hedging.isEnabled() ? new HedgingClient(filtered, hedging) : filtered;
+    filtered = breaker.isEnabled() ? new CircuitBreakerClient(filtered, breaker) : filtered;
+    return admission.isEnabled() ? new AdmissionControlClient(filtered, admission) : filtered;
+  }
+
+  private TransportClient createTransportClient(String clusterName, JsonObject config) {
     Settings settings =
-        ImmutableSettings.settingsBuilder().put("cluster.name",
-            config.getString("cluster_name", "elasticsearch")).put("client.transport.sniff",
-            config.getBoolean("client_transport_sniff", true)).build();
+        ImmutableSettings.settingsBuilder().put("cluster.name", clusterName).put(
+            "client.transport.sniff", config.getBoolean("client_transport_sniff", true)).build();
     TransportClient client = new TransportClient(settings);
     JsonArray transportAddresses =
         config.getArray("transportAddresses", new JsonArray().add(new JsonObject().putString(
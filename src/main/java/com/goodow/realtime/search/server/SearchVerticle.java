@@ -14,17 +14,31 @@
 package com.goodow.realtime.search.server;
 
 import com.goodow.realtime.search.server.impl.AdminActioin;
+import com.goodow.realtime.search.server.impl.ChangeFeedIndexer;
 import com.goodow.realtime.search.server.impl.ElasticSearchHandler;
+import com.goodow.realtime.search.server.impl.EmbeddedNodeClient;
+import com.goodow.realtime.search.server.impl.Metrics;
+import com.goodow.realtime.search.server.impl.NearCache;
+import com.goodow.realtime.search.server.impl.Reindexer;
+import com.goodow.realtime.search.server.impl.RollingIndices;
+import com.goodow.realtime.search.server.impl.Subscriptions;
+import com.goodow.realtime.search.server.impl.WriteAheadQueue;
 
 import com.alienos.guice.GuiceVerticleHelper;
 import com.alienos.guice.GuiceVertxBinding;
 
+import org.elasticsearch.client.Client;
 import org.vertx.java.busmods.BusModBase;
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.Future;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.VertxException;
+import org.vertx.java.core.impl.BlockingAction;
 import org.vertx.java.core.impl.CountingCompletionHandler;
 import org.vertx.java.core.impl.VertxInternal;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
 
 import javax.inject.Inject;
 
@@ -33,6 +47,14 @@ public class SearchVerticle extends BusModBase {
   public static final String DEFAULT_ADDRESS = "realtime/search";
   @Inject ElasticSearchHandler searchHandler;
   @Inject AdminActioin admin;
+  @Inject ChangeFeedIndexer indexer;
+  @Inject Metrics metrics;
+  @Inject NearCache nearCache;
+  @Inject RollingIndices rolling;
+  @Inject Subscriptions subscriptions;
+  @Inject Reindexer reindexer;
+  @Inject WriteAheadQueue writeQueue;
+  @Inject Client client;
   private String address;
 
   @Override
@@ -54,16 +76,68 @@ public class SearchVerticle extends BusModBase {
     });
 
     address = getOptionalStringConfig("address", DEFAULT_ADDRESS);
+    final boolean embedded =
+        config.getObject("embedded", new JsonObject()).getBoolean("enabled", false);
+    if (!writeQueue.isEnabled() && !embedded) {
+      register(countDownLatch);
+      return;
+    }
+    // Recovering the write queue and waiting for the embedded node both block
+    new BlockingAction<Void>((VertxInternal) vertx, new Handler<AsyncResult<Void>>() {
+      @Override
+      public void handle(AsyncResult<Void> ar) {
+        if (ar.failed()) {
+          countDownLatch.failed(ar.cause());
+        } else {
+          register(countDownLatch);
+        }
+      }
+    }) {
+      @Override
+      public Void action() {
+        try {
+          writeQueue.start();
+        } catch (IOException e) {
+          throw new VertxException("Can't start the write queue", e);
+        }
+        if (embedded) {
+          EmbeddedNodeClient.awaitReady(client);
+        }
+        return null;
+      }
+    }.run();
+  }
+
+  @Override
+  public void stop() {
+    if (indexer != null) {
+      indexer.stop();
+    }
+    if (writeQueue != null) {
+      writeQueue.stop();
+    }
+    if (client != null) {
+      client.close();
+    }
+  }
+
+  private void register(final CountingCompletionHandler<Void> countDownLatch) {
     eb.registerHandler(address, searchHandler, new Handler<AsyncResult<Void>>() {
       @Override
       public void handle(AsyncResult<Void> ar) {
         if (ar.failed()) {
           countDownLatch.failed(ar.cause());
         } else {
+          metrics.start();
+          nearCache.start();
           admin.start(countDownLatch);
+          indexer.start(countDownLatch);
+          rolling.start();
+          subscriptions.start();
+          reindexer.start();
           countDownLatch.complete();
         }
       }
     });
   }
-}
\ No newline at end of file
+}
@@ -16,13 +16,14 @@ package com.goodow.realtime.search.server.impl;
 import com.goodow.realtime.json.JsonObject.MapIterator;
 import com.goodow.realtime.json.impl.JreJsonObject;
 import com.goodow.realtime.json.util.Yaml;
-import com.goodow.realtime.search.server.SearchVerticle;
 
 import com.google.inject.Provider;
 
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.template.get.GetIndexTemplatesResponse;
 import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexTemplateMetaData;
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
@@ -33,20 +34,54 @@ import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.platform.Container;
 
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import javax.inject.Inject;
 
 public class AdminActioin implements Handler<Message<JsonObject>> {
-  private static final long REPLY_TIMEOUT = 10000;
+  private static final String TEMPLATES_DIR = "elasticsearch/templates";
+  /**
+   * Index setting of the templates holding the hash of their content.
+   */
+  static final String HASH_SETTING = "index.realtime_search.template_hash";
+  /**
+   * Latest put of each template by the instances of this JVM. A put stays here once acknowledged,
+   * so that the other instances skip the same content.
+   */
+  static final ConcurrentMap<String, Put> PUTS = new ConcurrentHashMap<>();
   private final Logger logger;
   @Inject private Provider<Client> client;
+  @Inject private RollingIndices rolling;
   private final Vertx vertx;
-  private final String address;
+  private final int parallelism;
+  private final boolean background;
+  private long applied;
+  private long skipped;
+  private long failed;
+  private long durationMs = -1;
 
   @Inject
   AdminActioin(Vertx vertx, Container container) {
     this.vertx = vertx;
     logger = container.logger();
-    address = container.config().getString("address", SearchVerticle.DEFAULT_ADDRESS);
+    JsonObject config = container.config().getObject("templates", new JsonObject());
+    parallelism = Math.max(1, config.getInteger("parallelism", 4));
+    background = config.getBoolean("background", false);
   }
 
   @Override
@@ -68,53 +103,297 @@ public class AdminActioin implements Handler<Message<JsonObject>> {
         });
   }
 
+  /**
+   * Puts the index templates of {@code elasticsearch/templates/*.yaml} and of
+   * {@link RollingIndices}, at most {@code templates.parallelism} at a time. Templates whose
+   * content hash matches the one the cluster holds, or which another instance of this JVM already
+   * put, are skipped. An instance finding the same put in progress waits for it, and puts the
+   * template itself if that put fails. With {@code templates.background}, the verticle starts
+   * without waiting for them.
+   */
   public void start(final CountingCompletionHandler<Void> countDownLatch) {
-    countDownLatch.incRequired();
-    vertx.fileSystem().readDir("elasticsearch/templates", ".*\\.yaml",
-        new Handler<AsyncResult<String[]>>() {
-          @Override
-          public void handle(AsyncResult<String[]> ar) {
-            if (ar.succeeded()) {
-              for (final String file : ar.result()) {
-                countDownLatch.incRequired();
-                vertx.fileSystem().readFile(file, new Handler<AsyncResult<Buffer>>() {
+    final long start = System.nanoTime();
+    if (!background) {
+      countDownLatch.incRequired();
+    }
+    final Map<String, JsonObject> templates = new TreeMap<>();
+    final Handler<Void> onRead = new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        templates.putAll(rolling.templates());
+        if (templates.isEmpty()) {
+          started(countDownLatch, start, null);
+          return;
+        }
+        client.get().admin().indices().prepareGetTemplates(
+            templates.keySet().toArray(new String[templates.size()])).execute(
+            new ActionListener<GetIndexTemplatesResponse>() {
+              @Override
+              public void onFailure(Throwable e) {
+                put(templates, new HashMap<String, String>(), countDownLatch, start);
+              }
+
+              @Override
+              public void onResponse(GetIndexTemplatesResponse resp) {
+                Map<String, String> hashes = new HashMap<>();
+                for (IndexTemplateMetaData template : resp.getIndexTemplates()) {
+                  hashes.put(template.name(), template.settings().get(HASH_SETTING));
+                }
+                put(templates, hashes, countDownLatch, start);
+              }
+            });
+      }
+    };
+    vertx.fileSystem().readDir(TEMPLATES_DIR, ".*\\.yaml", new Handler<AsyncResult<String[]>>() {
+      @Override
+      public void handle(AsyncResult<String[]> ar) {
+        if (ar.failed() || ar.result().length == 0) {
+          onRead.handle(null);
+          return;
+        }
+        final AtomicInteger files = new AtomicInteger(ar.result().length);
+        for (final String file : ar.result()) {
+          vertx.fileSystem().readFile(file, new Handler<AsyncResult<Buffer>>() {
+            @Override
+            public void handle(AsyncResult<Buffer> ar) {
+              if (ar.failed()) {
+                logger.debug("Can't read file " + file, ar.cause());
+              } else {
+                JreJsonObject parsed = Yaml.parse(ar.result().toString());
+                parsed.forEach(new MapIterator<JreJsonObject>() {
                   @Override
-                  public void handle(AsyncResult<Buffer> ar) {
-                    if (ar.failed()) {
-                      logger.debug("Can't read file " + file, ar.cause());
-                    } else {
-                      JreJsonObject templates = Yaml.parse(ar.result().toString());
-                      templates.forEach(new MapIterator<JreJsonObject>() {
-                        @Override
-                        public void call(String name, JreJsonObject template) {
-                          countDownLatch.incRequired();
-                          JsonObject message =
-                              new JsonObject().putString("action",
-                                  ElasticSearchHandler.PUT_INDEX_TEMPLATE).putString("_name", name)
-                                  .putObject("source", new JsonObject(template.toNative()));
-                          client.get();
-                          vertx.eventBus().sendWithTimeout(address, message, REPLY_TIMEOUT,
-                              new Handler<AsyncResult<Message<JsonObject>>>() {
-                                @Override
-                                public void handle(AsyncResult<Message<JsonObject>> ar) {
-                                  if (ar.failed()) {
-                                    logger.error("Put index template failed", ar.cause());
-                                    countDownLatch.failed(ar.cause());
-                                  } else {
-                                    countDownLatch.complete();
-                                  }
-                                }
-                              });
-                        }
-                      });
-                    }
-                    countDownLatch.complete();
+                  public void call(String name, JreJsonObject template) {
+                    templates.put(name, new JsonObject(template.toNative()));
                   }
                 });
               }
+              if (files.decrementAndGet() == 0) {
+                onRead.handle(null);
+              }
+            }
+          });
+        }
+      }
+    });
+  }
+
+  synchronized JsonObject stats() {
+    return new JsonObject().putNumber("applied", applied).putNumber("skipped", skipped).putNumber(
+        "failed", failed).putNumber("duration_ms", durationMs);
+  }
+
+  private void put(Map<String, JsonObject> templates, Map<String, String> clusterHashes,
+      final CountingCompletionHandler<Void> countDownLatch, final long start) {
+    final AtomicInteger remaining = new AtomicInteger(templates.size());
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final Handler<Throwable> done = new Handler<Throwable>() {
+      @Override
+      public void handle(Throwable e) {
+        if (e != null) {
+          failure.compareAndSet(null, e);
+        }
+        if (remaining.decrementAndGet() == 0) {
+          started(countDownLatch, start, failure.get());
+        }
+      }
+    };
+    final Deque<Template> queue = new ArrayDeque<>();
+    for (Map.Entry<String, JsonObject> entry : templates.entrySet()) {
+      String name = entry.getKey();
+      JsonObject source = entry.getValue();
+      String hash = hash(source);
+      if (hash.equals(clusterHashes.get(name))) {
+        skipped(done);
+        continue;
+      }
+      JsonObject settings = source.getObject("settings");
+      if (settings == null) {
+        settings = new JsonObject();
+        source.putObject("settings", settings);
+      }
+      settings.putString(HASH_SETTING, hash);
+      claim(new Template(name, source.encode(), hash), queue, done);
+    }
+    for (int i = 0, n = Math.min(parallelism, queue.size()); i < n; i++) {
+      putNext(queue, done);
+    }
+  }
+
+  /**
+   * Queues {@code template} unless another instance of this JVM has put or is putting the same
+   * content. Once a queued put fails, waiting instances claim the template again and put it
+   * directly, as their own startup has already drained {@code queue}.
+   */
+  private void claim(final Template template, Deque<Template> queue,
+      final Handler<Throwable> done) {
+    Put current;
+    while (true) {
+      current = PUTS.get(template.name);
+      boolean claimed;
+      if (current == null) {
+        claimed = PUTS.putIfAbsent(template.name, template.put) == null;
+      } else if (current.isSucceeded() && !current.hash.equals(template.put.hash)) {
+        claimed = PUTS.replace(template.name, current, template.put);
+      } else {
+        break;
+      }
+      if (claimed) {
+        if (queue == null) {
+          put(template, done);
+        } else {
+          queue.add(template);
+        }
+        return;
+      }
+    }
+    current.whenDone(new Handler<Throwable>() {
+      @Override
+      public void handle(Throwable e) {
+        Put latest = PUTS.get(template.name);
+        if (e == null && latest != null && latest.hash.equals(template.put.hash)) {
+          skipped(done);
+        } else {
+          claim(template, null, done);
+        }
+      }
+    });
+  }
+
+  private void skipped(Handler<Throwable> done) {
+    synchronized (this) {
+      skipped++;
+    }
+    done.handle(null);
+  }
+
+  private void putNext(final Deque<Template> queue, final Handler<Throwable> done) {
+    final Template template;
+    synchronized (queue) {
+      template = queue.pollFirst();
+    }
+    if (template == null) {
+      return;
+    }
+    put(template, new Handler<Throwable>() {
+      @Override
+      public void handle(Throwable e) {
+        done.handle(e);
+        putNext(queue, done);
+      }
+    });
+  }
+
+  private void put(final Template template, final Handler<Throwable> done) {
+    client.get().admin().indices().preparePutTemplate(template.name).setSource(template.source)
+        .execute(new ActionListener<PutIndexTemplateResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            logger.error("Put index template " + template.name + " failed", e);
+            PUTS.remove(template.name, template.put);
+            synchronized (AdminActioin.this) {
+              failed++;
+            }
+            template.put.complete(e);
+            done.handle(e);
+          }
+
+          @Override
+          public void onResponse(PutIndexTemplateResponse response) {
+            if (!response.isAcknowledged()) {
+              // Applied, but not yet on every node: put it again on the next start
+              logger.warn("Put index template " + template.name + " was not acknowledged");
+              PUTS.remove(template.name, template.put);
+            }
+            synchronized (AdminActioin.this) {
+              applied++;
             }
-            countDownLatch.complete();
+            template.put.complete(null);
+            done.handle(null);
           }
         });
   }
-}
\ No newline at end of file
+
+  private void started(CountingCompletionHandler<Void> countDownLatch, long start,
+      Throwable failure) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    synchronized (this) {
+      durationMs = millis;
+      logger.info("Index templates applied: " + applied + ", skipped: " + skipped + ", failed: "
+          + failed + " in " + millis + "ms" + (background ? " in the background" : ""));
+    }
+    if (background) {
+      return;
+    }
+    if (failure == null) {
+      countDownLatch.complete();
+    } else {
+      countDownLatch.failed(failure);
+    }
+  }
+
+  private static String hash(JsonObject source) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] bytes = digest.digest(RequestKey.of(source).getBytes(StandardCharsets.UTF_8));
+      return new BigInteger(1, bytes).toString(16);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class Template {
+    final String name;
+    final String source;
+    final Put put;
+
+    Template(String name, String source, String hash) {
+      this.name = name;
+      this.source = source;
+      put = new Put(hash);
+    }
+  }
+
+  /**
+   * A put of a template by one instance, which the other instances of this JVM wait for.
+   */
+  static class Put {
+    final String hash;
+    private boolean done;
+    private Throwable failure;
+    private List<Handler<Throwable>> waiters = new ArrayList<>();
+
+    Put(String hash) {
+      this.hash = hash;
+    }
+
+    synchronized boolean isSucceeded() {
+      return done && failure == null;
+    }
+
+    /**
+     * Calls {@code handler} with the failure of the put, or null, once it completes.
+     */
+    void whenDone(Handler<Throwable> handler) {
+      synchronized (this) {
+        if (!done) {
+          waiters.add(handler);
+          return;
+        }
+      }
+      handler.handle(failure);
+    }
+
+    void complete(Throwable e) {
+      List<Handler<Throwable>> toNotify;
+      synchronized (this) {
+        done = true;
+        failure = e;
+        toNotify = waiters;
+        waiters = null;
+      }
+      for (Handler<Throwable> waiter : toNotify) {
+        waiter.handle(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Singleton;
+
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.MultiGetAction;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+/**
+ * Limits the number of concurrent Elasticsearch requests of each class (get, write and search), and
+ * queues the excess in a bounded wait queue shared by all classes.
+ * <p>
+ * When the queue is full, a request evicts the most recently queued request of a lower priority
+ * class, or is rejected itself with an {@link EsRejectedExecutionException}. A request that waited
+ * in the queue longer than {@code queue_timeout_ms} is rejected the same way. Clearing a scroll is
+ * always admitted, since it only frees resources on the cluster.
+ * <p>
+ * The limits apply to each verticle instance, not to the JVM.
+ */
+@Singleton
+public class AdmissionControl {
+  public static final String GET = "get";
+  public static final String WRITE = "write";
+  public static final String SEARCH = "search";
+
+  interface Task {
+    void run();
+
+    void reject(EsRejectedExecutionException e);
+  }
+
+  private static class Lane {
+    final String name;
+    final int priority;
+    final int limit;
+    final ArrayDeque<Task> queue = new ArrayDeque<>();
+    int active;
+    long admitted;
+    long rejected;
+    long expired;
+
+    Lane(String name, int priority, int limit) {
+      this.name = name;
+      this.priority = priority;
+      this.limit = limit;
+    }
+  }
+
+  static String classify(String actionName) {
+    if (GetAction.NAME.equals(actionName) || MultiGetAction.NAME.equals(actionName)) {
+      return GET;
+    }
+    return actionName.startsWith("indices:data/write/") ? WRITE : SEARCH;
+  }
+
+  static boolean isExempt(String actionName) {
+    return ClearScrollAction.NAME.equals(actionName);
+  }
+
+  private final Map<String, Lane> lanes = new LinkedHashMap<>();
+  private final boolean enabled;
+  private final int maxQueue;
+  private final long queueTimeoutMs;
+  private int queued;
+
+  @Inject
+  public AdmissionControl(Container container) {
+    JsonObject config = container.config().getObject("admission", new JsonObject());
+    enabled = config.getBoolean("enabled", false);
+    maxQueue = config.getInteger("max_queue", 1000);
+    queueTimeoutMs = config.getLong("queue_timeout_ms", 10000);
+    JsonObject limits = config.getObject("max_concurrent", new JsonObject());
+    JsonArray priorities =
+        config.getArray("priority", new JsonArray().addString(GET).addString(WRITE).addString(
+            SEARCH));
+    int priority = priorities.size();
+    for (Object name : priorities) {
+      lanes.put((String) name, new Lane((String) name, priority--, limits.getInteger(
+          (String) name, 64)));
+    }
+    for (String name : new String[] {GET, WRITE, SEARCH}) {
+      if (!lanes.containsKey(name)) {
+        lanes.put(name, new Lane(name, 0, limits.getInteger(name, 64)));
+      }
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns how long a request may wait in the queue, or 0 if it may wait until admitted.
+   */
+  long queueTimeoutMillis() {
+    return queueTimeoutMs;
+  }
+
+  /**
+   * Runs {@code task} now if its class is below its limit, or queues it. Returns whether it was
+   * queued.
+   */
+  boolean submit(String actionName, Task task) {
+    Lane lane = lanes.get(classify(actionName));
+    Task evicted = null;
+    String rejection = null;
+    synchronized (this) {
+      if (lane.active < lane.limit) {
+        lane.active++;
+        lane.admitted++;
+      } else {
+        if (queued >= maxQueue) {
+          Lane victim = lowestQueued(lane.priority);
+          if (victim == null) {
+            lane.rejected++;
+            rejection = "Too many pending " + lane.name + " requests";
+          } else {
+            evicted = victim.queue.pollLast();
+            victim.rejected++;
+            queued--;
+          }
+        }
+        if (rejection == null) {
+          lane.queue.addLast(task);
+          queued++;
+          task = null;
+        }
+      }
+    }
+    if (rejection != null) {
+      task.reject(new EsRejectedExecutionException(rejection));
+      return false;
+    }
+    if (evicted != null) {
+      evicted.reject(new EsRejectedExecutionException("Evicted by a higher priority request"));
+    }
+    if (task == null) {
+      return true;
+    }
+    task.run();
+    return false;
+  }
+
+  /**
+   * Rejects {@code task} if it is still queued after {@link #queueTimeoutMillis()}.
+   */
+  void expire(String actionName, Task task) {
+    Lane lane = lanes.get(classify(actionName));
+    synchronized (this) {
+      if (!lane.queue.remove(task)) {
+        return;
+      }
+      queued--;
+      lane.expired++;
+    }
+    task.reject(new EsRejectedExecutionException("Queued for more than " + queueTimeoutMs
+        + " ms"));
+  }
+
+  void release(String actionName) {
+    Lane lane = lanes.get(classify(actionName));
+    Task next;
+    synchronized (this) {
+      next = lane.queue.pollFirst();
+      if (next == null) {
+        lane.active--;
+        return;
+      }
+      queued--;
+      lane.admitted++;
+    }
+    next.run();
+  }
+
+  public synchronized JsonObject stats() {
+    JsonObject stats = new JsonObject().putBoolean("enabled", enabled).putNumber("queued", queued);
+    for (Lane lane : lanes.values()) {
+      stats.putObject(lane.name, new JsonObject().putNumber("active", lane.active).putNumber(
+          "queued", lane.queue.size()).putNumber("admitted", lane.admitted).putNumber("rejected",
+          lane.rejected).putNumber("expired", lane.expired));
+    }
+    return stats;
+  }
+
+  private Lane lowestQueued(int priority) {
+    Lane lowest = null;
+    for (Lane lane : lanes.values()) {
+      if (lane.priority < priority && !lane.queue.isEmpty()
+          && (lowest == null || lane.priority < lowest.priority)) {
+        lowest = lane;
+      }
+    }
+    return lowest;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Runs every request through {@link AdmissionControl} before handing it to the wrapped client.
+ */
+public class AdmissionControlClient extends FilterClient {
+  private final AdmissionControl admission;
+
+  public AdmissionControlClient(Client in, AdmissionControl admission) {
+    super(in);
+    this.admission = admission;
+  }
+
+  @Override
+  public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void execute(
+      final Action<Request, Response, RequestBuilder, Client> action, final Request request,
+      final ActionListener<Response> listener) {
+    if (AdmissionControl.isExempt(action.name())) {
+      in().execute(action, request, listener);
+      return;
+    }
+    final Pending<Request, Response> task = new Pending<>(action, request, listener);
+    long timeout = admission.queueTimeoutMillis();
+    if (admission.submit(action.name(), task) && timeout > 0) {
+      task.timer = in().threadPool().schedule(TimeValue.timeValueMillis(timeout),
+          ThreadPool.Names.SAME, new Runnable() {
+            @Override
+            public void run() {
+              admission.expire(action.name(), task);
+            }
+          });
+    }
+  }
+
+  /**
+   * A request waiting for admission, rejected by {@link AdmissionControl#expire} when its timer
+   * fires first.
+   */
+  private class Pending<Request extends ActionRequest, Response extends ActionResponse> implements
+      AdmissionControl.Task {
+    final Action<Request, Response, ?, Client> action;
+    final Request request;
+    final ActionListener<Response> listener;
+    volatile ScheduledFuture<?> timer;
+
+    Pending(Action<Request, Response, ?, Client> action, Request request,
+        ActionListener<Response> listener) {
+      this.action = action;
+      this.request = request;
+      this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+      cancelTimer();
+      ActionListener<Response> releasing = new ActionListener<Response>() {
+        @Override
+        public void onFailure(Throwable e) {
+          admission.release(action.name());
+          listener.onFailure(e);
+        }
+
+        @Override
+        public void onResponse(Response response) {
+          admission.release(action.name());
+          listener.onResponse(response);
+        }
+      };
+      try {
+        in().execute(action, request, releasing);
+      } catch (RuntimeException e) {
+        releasing.onFailure(e);
+      }
+    }
+
+    @Override
+    public void reject(EsRejectedExecutionException e) {
+      cancelTimer();
+      listener.onFailure(e);
+    }
+
+    private void cancelTimer() {
+      ScheduledFuture<?> future = timer;
+      if (future != null) {
+        future.cancel(false);
+      }
+    }
+  }
+}
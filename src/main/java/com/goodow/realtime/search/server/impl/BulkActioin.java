@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+
+public class BulkActioin implements Handler<Message<JsonObject>> {
+  private final Logger logger;
+  @Inject private Provider<Client> client;
+  @Inject private WriteTracker writeTracker;
+  @Inject private WriteRequests writes;
+  @Inject private WriteAheadQueue writeQueue;
+
+  @Inject
+  BulkActioin(Container container) {
+    logger = container.logger();
+  }
+
+  @Override
+  public void handle(final Message<JsonObject> message) {
+    JsonObject body = message.body();
+    JsonArray requests = body.getArray("requests");
+    if (requests == null || requests.size() == 0) {
+      ElasticSearchHandler.replyFail(logger, message, "requests is required", null);
+      return;
+    }
+    BulkRequest bulk = new BulkRequest();
+    final List<JsonObject> bodies = new ArrayList<>();
+    final List<ActionRequest<?>> parsed = new ArrayList<>();
+    for (Object req : requests) {
+      ActionRequest<?> request = writes.parse((JsonObject) req, message);
+      if (request == null) {
+        return;
+      }
+      bulk.add(request);
+      bodies.add((JsonObject) req);
+      parsed.add(request);
+    }
+    if (writeQueue.isQueuing()) {
+      writeQueue.append(bodies, parsed, message);
+      return;
+    }
+    if (body.containsField("refresh")) {
+      bulk.refresh(body.getBoolean("refresh"));
+    }
+
+    client.get().bulk(bulk, new ActionListener<BulkResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        if (writeQueue.accepts(e)) {
+          writeQueue.append(bodies, parsed, message);
+          return;
+        }
+        ElasticSearchHandler.replyFail(logger, message, "Bulk error: " + e.getMessage(), e);
+      }
+
+      @Override
+      public void onResponse(BulkResponse resp) {
+        JsonArray items = new JsonArray();
+        for (BulkItemResponse item : resp.getItems()) {
+          if (!item.isFailed()) {
+            writeTracker.written(parsed.get(item.getItemId()), item);
+          }
+          JsonObject result;
+          if (item.isFailed()) {
+            result =
+                new JsonObject().putString(ElasticSearchHandler.INDEX, item.getIndex()).putString(
+                    ElasticSearchHandler.TYPE, item.getType()).putString(ElasticSearchHandler.ID,
+                    item.getId()).putString("error", item.getFailureMessage());
+          } else {
+            result = WriteRequests.toReply(item.getResponse());
+          }
+          items.addObject(new JsonObject().putObject(item.getOpType(), result));
+        }
+        message.reply(new JsonObject().putNumber("took", resp.getTookInMillis()).putBoolean(
+            "errors", resp.hasFailures()).putArray("items", items));
+      }
+    });
+  }
+}
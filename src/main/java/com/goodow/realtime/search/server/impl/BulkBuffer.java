@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.util.List;
+
+import javax.inject.Inject;
+
+/**
+ * Buffers single write messages into {@link BulkRequest}s when {@code bulk.buffered} is enabled.
+ * Every buffered message still receives its own reply.
+ */
+class BulkBuffer extends MicroBatcher<BulkBuffer.Entry> {
+  static class Entry {
+    final ActionRequest<?> request;
+    final Message<JsonObject> message;
+
+    Entry(ActionRequest<?> request, Message<JsonObject> message) {
+      this.request = request;
+      this.message = message;
+    }
+  }
+
+  private static final int REQUEST_OVERHEAD = 50;
+
+  static long estimatedSize(ActionRequest<?> request) {
+    long size = REQUEST_OVERHEAD;
+    if (request instanceof IndexRequest) {
+      size += ((IndexRequest) request).source().length();
+    } else if (request instanceof UpdateRequest) {
+      UpdateRequest update = (UpdateRequest) request;
+      if (update.doc() != null) {
+        size += update.doc().source().length();
+      }
+      if (update.upsertRequest() != null) {
+        size += update.upsertRequest().source().length();
+      }
+    }
+    return size;
+  }
+
+  @Inject private Provider<Client> client;
+  @Inject private WriteTracker writeTracker;
+  @Inject private WriteAheadQueue writeQueue;
+  private final Logger logger;
+  private final boolean enabled;
+
+  @Inject
+  BulkBuffer(Vertx vertx, Container container) {
+    this(vertx, container.logger(), container.config().getObject("bulk", new JsonObject()));
+  }
+
+  private BulkBuffer(Vertx vertx, Logger logger, JsonObject config) {
+    super(vertx, config.getInteger("max_actions", 1000), config.getLong("max_size_in_bytes",
+        5 * 1024 * 1024), config.getLong("linger_ms", 5));
+    this.logger = logger;
+    enabled = config.getBoolean("buffered", false);
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  void add(ActionRequest<?> request, Message<JsonObject> message) {
+    add(new Entry(request, message), estimatedSize(request));
+  }
+
+  @Override
+  protected void doFlush(final List<Entry> batch) {
+    if (writeQueue.isQueuing()) {
+      // Buffered before earlier writes were queued, so they must not overtake them
+      for (Entry entry : batch) {
+        writeQueue.append(entry.message.body(), entry.request, entry.message);
+      }
+      return;
+    }
+    BulkRequest bulk = new BulkRequest();
+    for (Entry entry : batch) {
+      bulk.add(entry.request);
+    }
+    client.get().bulk(bulk, new ActionListener<BulkResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        boolean queue = writeQueue.accepts(e);
+        for (Entry entry : batch) {
+          if (queue) {
+            writeQueue.append(entry.message.body(), entry.request, entry.message);
+          } else {
+            ElasticSearchHandler.replyFail(logger, entry.message, "Bulk error: " + e.getMessage(),
+                e);
+          }
+        }
+      }
+
+      @Override
+      public void onResponse(BulkResponse resp) {
+        for (BulkItemResponse item : resp.getItems()) {
+          Entry entry = batch.get(item.getItemId());
+          Message<JsonObject> message = entry.message;
+          if (item.isFailed() && writeQueue.accepts(item.getFailure().getStatus())) {
+            writeQueue.append(message.body(), entry.request, message);
+          } else if (item.isFailed()) {
+            ElasticSearchHandler.replyFail(logger, message, "Bulk item error: "
+                + item.getFailureMessage(), null);
+          } else {
+            writeTracker.written(entry.request, item);
+            message.reply(WriteRequests.toReply(item.getResponse()));
+          }
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.indices.IndexMissingException;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.impl.CountingCompletionHandler;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.inject.Inject;
+
+/**
+ * Keeps the indices up to date with the change events of realtime documents published to
+ * {@code indexer.address}, when {@code indexer.enabled} is set.
+ * <p>
+ * The changes of a document are merged until the next flush, every {@code interval_ms}, which
+ * writes a single partial update, reindex or delete per document in one bulk request. Failed items
+ * are retried with the next flush, up to {@code max_retries} times. Once a flush is acknowledged,
+ * the sequence number of the last event it contains is saved as a checkpoint, unless an earlier
+ * event is still waiting to be retried, in which case the checkpoint stops right before it. After a
+ * restart, events up to the checkpoint are ignored, and the feed is asked to replay from it on
+ * {@code resume_address}.
+ * <p>
+ * Only one verticle instance of the JVM consumes a given {@code address}, since the events would
+ * otherwise be spread over instances saving the same checkpoint.
+ */
+public class ChangeFeedIndexer {
+  /**
+   * The merged changes of a document since the last flush.
+   */
+  static class Change {
+    final String index;
+    final String type;
+    final String id;
+    JsonObject doc;
+    JsonObject source;
+    boolean delete;
+    /**
+     * The sequence number of the earliest event merged, or -1.
+     */
+    long seq = -1;
+    int attempts;
+
+    Change(String index, String type, String id) {
+      this.index = index;
+      this.type = type;
+      this.id = id;
+    }
+
+    /**
+     * Applies the event {@code body} on top of this change.
+     */
+    void merge(JsonObject body) {
+      if (body.getBoolean("delete", false)) {
+        delete = true;
+        doc = null;
+        source = null;
+      } else if (body.containsField("source")) {
+        delete = false;
+        doc = null;
+        source = body.getObject("source").copy();
+      } else if (body.containsField("doc")) {
+        mergeDoc(body.getObject("doc"));
+      }
+    }
+
+    /**
+     * Applies {@code newer}, a change which followed this one, on top of it.
+     */
+    void merge(Change newer) {
+      if (seq < 0) {
+        seq = newer.seq;
+      }
+      if (newer.delete || newer.source != null) {
+        delete = newer.delete;
+        doc = null;
+        source = newer.source;
+      } else if (newer.doc != null) {
+        mergeDoc(newer.doc);
+      }
+    }
+
+    ActionRequest<?> toRequest() {
+      if (delete) {
+        return new DeleteRequest(index, type, id);
+      } else if (source != null) {
+        return new IndexRequest(index, type, id).source(source.encode());
+      }
+      UpdateRequest update = new UpdateRequest(index, type, id).doc(doc.encode());
+      update.docAsUpsert(true);
+      return update;
+    }
+
+    private void mergeDoc(JsonObject partial) {
+      if (delete) {
+        // Recreates the deleted document from the partial one
+        delete = false;
+        source = partial.copy();
+      } else if (source != null) {
+        UpdateCoalescer.merge(source, partial);
+      } else if (doc == null) {
+        doc = partial.copy();
+      } else {
+        UpdateCoalescer.merge(doc, partial);
+      }
+    }
+  }
+
+  private static final String CONSUMERS = ChangeFeedIndexer.class.getName();
+
+  @Inject private Provider<Client> client;
+  @Inject private WriteTracker writeTracker;
+  private final Vertx vertx;
+  private final Logger logger;
+  private final boolean enabled;
+  private final String address;
+  private final String resumeAddress;
+  private final long intervalMs;
+  private final int maxRetries;
+  private final String checkpointIndex;
+  private final String checkpointType;
+  private final String checkpointId;
+  private final String instance = UUID.randomUUID().toString();
+  private boolean consuming;
+  private Map<String, Change> pending = new LinkedHashMap<>();
+  private long seq = -1;
+  private long checkpoint = -1;
+  private boolean flushing;
+  private long received;
+  private long merged;
+  private long flushed;
+  private long errors;
+  private long dropped;
+
+  @Inject
+  ChangeFeedIndexer(Vertx vertx, Container container) {
+    this.vertx = vertx;
+    logger = container.logger();
+    JsonObject config = container.config().getObject("indexer", new JsonObject());
+    enabled = config.getBoolean("enabled", false);
+    address = config.getString("address", "realtime/search/changes");
+    resumeAddress = config.getString("resume_address");
+    intervalMs = config.getLong("interval_ms", 1000);
+    maxRetries = config.getInteger("max_retries", 5);
+    JsonObject location = config.getObject("checkpoint", new JsonObject());
+    checkpointIndex = location.getString(ElasticSearchHandler.INDEX, "realtime_indexer");
+    checkpointType = location.getString(ElasticSearchHandler.TYPE, "checkpoint");
+    checkpointId = location.getString(ElasticSearchHandler.ID, address);
+  }
+
+  /**
+   * Loads the checkpoint, then subscribes to the change events, unless another verticle instance
+   * consumes them already.
+   */
+  public void start(final CountingCompletionHandler<Void> countDownLatch) {
+    if (!enabled) {
+      return;
+    }
+    Map<String, String> consumers = vertx.sharedData().getMap(CONSUMERS);
+    String consumer = consumers.putIfAbsent(address, instance);
+    if (consumer != null) {
+      logger.info("Change events of " + address + " are indexed by another instance");
+      return;
+    }
+    synchronized (this) {
+      consuming = true;
+    }
+    countDownLatch.incRequired();
+    final Handler<Message<JsonObject>> onChange = new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> message) {
+        add(message.body());
+      }
+    };
+    final Handler<AsyncResult<Void>> onRegistered = new Handler<AsyncResult<Void>>() {
+      @Override
+      public void handle(AsyncResult<Void> ar) {
+        if (ar.failed()) {
+          countDownLatch.failed(ar.cause());
+          return;
+        }
+        vertx.setPeriodic(intervalMs, new Handler<Long>() {
+          @Override
+          public void handle(Long event) {
+            flush();
+          }
+        });
+        if (resumeAddress != null) {
+          vertx.eventBus().send(resumeAddress, new JsonObject().putString("address", address)
+              .putNumber("seq", checkpoint));
+        }
+        countDownLatch.complete();
+      }
+    };
+    client.get().prepareGet(checkpointIndex, checkpointType, checkpointId).execute(
+        new ActionListener<GetResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            if (e.getCause() instanceof IndexMissingException) {
+              onResponse(null);
+              return;
+            }
+            logger.error("Can't read the indexer checkpoint", e);
+            countDownLatch.failed(e);
+          }
+
+          @Override
+          public void onResponse(GetResponse resp) {
+            synchronized (ChangeFeedIndexer.this) {
+              if (resp != null && resp.isExists()) {
+                checkpoint = ((Number) resp.getSource().get("seq")).longValue();
+                seq = checkpoint;
+              }
+            }
+            vertx.eventBus().registerHandler(address, onChange, onRegistered);
+          }
+        });
+  }
+
+  /**
+   * Lets another verticle instance which starts later consume the change events.
+   */
+  public synchronized void stop() {
+    if (consuming) {
+      vertx.sharedData().getMap(CONSUMERS).remove(address, instance);
+    }
+  }
+
+  synchronized JsonObject stats() {
+    return new JsonObject().putBoolean("enabled", enabled).putBoolean("consuming", consuming)
+        .putNumber("pending", pending.size()).putNumber("received", received).putNumber("merged",
+            merged).putNumber("flushed", flushed).putNumber("errors", errors).putNumber(
+            "dropped", dropped).putNumber("seq", seq).putNumber("checkpoint", checkpoint);
+  }
+
+  synchronized void add(JsonObject body) {
+    String index = body.getString(ElasticSearchHandler.INDEX);
+    String type = body.getString(ElasticSearchHandler.TYPE);
+    String id = body.getString(ElasticSearchHandler.ID);
+    if (index == null || type == null || id == null) {
+      logger.warn("Ignored change event without " + ElasticSearchHandler.INDEX + ", "
+          + ElasticSearchHandler.TYPE + " or " + ElasticSearchHandler.ID + ": " + body.encode());
+      return;
+    }
+    Long eventSeq = body.getLong("seq");
+    if (eventSeq != null) {
+      if (eventSeq <= checkpoint) {
+        return;
+      }
+      seq = Math.max(seq, eventSeq);
+    }
+    received++;
+    String key = NearCache.key(index, type, id);
+    Change change = pending.get(key);
+    if (change == null) {
+      change = new Change(index, type, id);
+      pending.put(key, change);
+    } else {
+      merged++;
+    }
+    if (change.seq < 0 && eventSeq != null) {
+      change.seq = eventSeq;
+    }
+    change.merge(body);
+  }
+
+  void flush() {
+    final Map<String, Change> batch;
+    final long batchSeq;
+    synchronized (this) {
+      if (flushing || pending.isEmpty()) {
+        return;
+      }
+      flushing = true;
+      batch = pending;
+      batchSeq = seq;
+      pending = new LinkedHashMap<>();
+    }
+    final List<Change> changes = new ArrayList<>(batch.values());
+    final List<ActionRequest<?>> requests = new ArrayList<>(batch.size());
+    BulkRequest bulk = new BulkRequest();
+    for (Change change : changes) {
+      ActionRequest<?> request = change.toRequest();
+      requests.add(request);
+      bulk.add(request);
+    }
+    client.get().bulk(bulk, new ActionListener<BulkResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        logger.error("Indexing " + batch.size() + " changed documents failed, will retry", e);
+        requeue(batch);
+      }
+
+      @Override
+      public void onResponse(BulkResponse resp) {
+        Map<String, Change> retries = new LinkedHashMap<>();
+        int failed = 0;
+        int lost = 0;
+        for (BulkItemResponse item : resp.getItems()) {
+          if (!item.isFailed()) {
+            writeTracker.written(requests.get(item.getItemId()), item);
+            continue;
+          }
+          failed++;
+          Change change = changes.get(item.getItemId());
+          String key = NearCache.key(change.index, change.type, change.id);
+          if (++change.attempts > maxRetries) {
+            lost++;
+            logger.error("Dropped the changes of " + key + " after " + maxRetries
+                + " retries: " + item.getFailureMessage());
+          } else {
+            retries.put(key, change);
+            logger.warn("Indexing changes of " + key + " failed, will retry: "
+                + item.getFailureMessage());
+          }
+        }
+        long safeSeq;
+        synchronized (ChangeFeedIndexer.this) {
+          flushed += batch.size() - failed;
+          errors += failed;
+          dropped += lost;
+          requeue(retries);
+          safeSeq = Math.min(batchSeq, lowestPendingSeq() - 1);
+        }
+        saveCheckpoint(safeSeq);
+      }
+    });
+  }
+
+  /**
+   * Returns the sequence number of the earliest event not written yet.
+   */
+  private long lowestPendingSeq() {
+    long lowest = Long.MAX_VALUE;
+    for (Change change : pending.values()) {
+      if (change.seq >= 0) {
+        lowest = Math.min(lowest, change.seq);
+      }
+    }
+    return lowest;
+  }
+
+  /**
+   * Puts back the changes of a failed flush, under the changes received since.
+   */
+  private synchronized void requeue(Map<String, Change> batch) {
+    for (Map.Entry<String, Change> entry : pending.entrySet()) {
+      Change older = batch.get(entry.getKey());
+      if (older == null) {
+        batch.put(entry.getKey(), entry.getValue());
+      } else {
+        older.merge(entry.getValue());
+      }
+    }
+    pending = batch;
+    flushing = false;
+  }
+
+  private void saveCheckpoint(final long batchSeq) {
+    synchronized (this) {
+      if (batchSeq <= checkpoint) {
+        return;
+      }
+    }
+    client.get().prepareIndex(checkpointIndex, checkpointType, checkpointId).setSource(
+        new JsonObject().putNumber("seq", batchSeq).encode()).execute(
+        new ActionListener<IndexResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            logger.warn("Can't save the indexer checkpoint " + batchSeq, e);
+          }
+
+          @Override
+          public void onResponse(IndexResponse resp) {
+            synchronized (ChangeFeedIndexer.this) {
+              checkpoint = Math.max(checkpoint, batchSeq);
+            }
+          }
+        });
+  }
+}
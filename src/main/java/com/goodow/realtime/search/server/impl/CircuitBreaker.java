@@ -0,0 +1,252 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Singleton;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.rest.RestStatus;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+/**
+ * Per-action circuit breakers, keyed by Elasticsearch action name.
+ * <p>
+ * A closed circuit tracks the outcome of the last {@code window} calls, and opens when at least
+ * {@code min_calls} of them were made and the share of errors reaches {@code error_rate}, or the
+ * share of calls slower than {@code slow_call_ms} reaches {@code slow_call_rate}. Only server side
+ * errors count. A call still in flight after {@code slow_call_ms} counts as slow without waiting
+ * for its outcome. An open circuit fails every call fast for {@code open_ms}, then lets
+ * {@code half_open_calls} probes through: it closes if they all succeed in time, or opens again.
+ */
+@Singleton
+public class CircuitBreaker {
+  /**
+   * Fails a call to an action whose circuit is open.
+   */
+  public static class OpenException extends ElasticsearchException {
+    OpenException(String action) {
+      super("Circuit breaker open for " + action);
+    }
+
+    @Override
+    public RestStatus status() {
+      return RestStatus.SERVICE_UNAVAILABLE;
+    }
+  }
+
+  private enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  /**
+   * A call let through by {@link #allow}, tagged with the state of its circuit at the time.
+   */
+  static final class Call {
+    final String action;
+    private final State state;
+    private final long epoch;
+
+    private Call(String action, State state, long epoch) {
+      this.action = action;
+      this.state = state;
+      this.epoch = epoch;
+    }
+  }
+
+  private class Circuit {
+    final byte[] outcomes = new byte[window];
+    int calls;
+    int next;
+    int errors;
+    int slow;
+    State state = State.CLOSED;
+    // Incremented on every change of state
+    long epoch;
+    long openedAt;
+    int probes;
+    int probesSucceeded;
+    long rejected;
+    long opened;
+    int inFlight;
+    long stalled;
+
+    void reset() {
+      calls = next = errors = slow = 0;
+    }
+
+    void add(byte outcome) {
+      if (calls == outcomes.length) {
+        byte evicted = outcomes[next];
+        errors -= evicted & ERROR;
+        slow -= (evicted & SLOW) >> 1;
+      } else {
+        calls++;
+      }
+      outcomes[next] = outcome;
+      next = (next + 1) % outcomes.length;
+      errors += outcome & ERROR;
+      slow += (outcome & SLOW) >> 1;
+    }
+
+    void open(long now) {
+      transition(State.OPEN);
+      openedAt = now;
+      opened++;
+    }
+
+    void transition(State to) {
+      state = to;
+      epoch++;
+    }
+  }
+
+  private static final byte ERROR = 1;
+  private static final byte SLOW = 2;
+
+  private final Map<String, Circuit> circuits = new HashMap<>();
+  private final boolean enabled;
+  private final int window;
+  private final int minCalls;
+  private final double errorRate;
+  private final long slowCallNanos;
+  private final double slowCallRate;
+  private final long openNanos;
+  private final int halfOpenCalls;
+
+  @Inject
+  CircuitBreaker(Container container) {
+    JsonObject config = container.config().getObject("circuit_breaker", new JsonObject());
+    enabled = config.getBoolean("enabled", false);
+    window = Math.max(1, config.getInteger("window", 100));
+    minCalls = Math.min(window, config.getInteger("min_calls", 20));
+    errorRate = rate(config, "error_rate");
+    slowCallNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("slow_call_ms", 5000));
+    slowCallRate = rate(config, "slow_call_rate");
+    openNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("open_ms", 10000));
+    halfOpenCalls = Math.max(1, config.getInteger("half_open_calls", 3));
+  }
+
+  private static double rate(JsonObject config, String field) {
+    Number rate = config.getNumber(field);
+    return rate == null ? 0.5 : rate.doubleValue();
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  long slowCallMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(slowCallNanos);
+  }
+
+  /**
+   * Returns the call to {@code action} if it may proceed, in which case its outcome must be
+   * reported once, to {@link #record} or to {@link #stalled}, or null if it is rejected.
+   */
+  synchronized Call allow(String action) {
+    Circuit circuit = circuit(action);
+    if (circuit.state == State.OPEN) {
+      if (System.nanoTime() - circuit.openedAt < openNanos) {
+        circuit.rejected++;
+        return null;
+      }
+      circuit.transition(State.HALF_OPEN);
+      circuit.probes = circuit.probesSucceeded = 0;
+    }
+    if (circuit.state == State.HALF_OPEN) {
+      if (circuit.probes >= halfOpenCalls) {
+        circuit.rejected++;
+        return null;
+      }
+      circuit.probes++;
+    }
+    circuit.inFlight++;
+    return new Call(action, circuit.state, circuit.epoch);
+  }
+
+  /**
+   * Reports a call still in flight after {@code slow_call_ms}, whose outcome will not be reported.
+   */
+  synchronized void stalled(Call call, long nanos) {
+    circuit(call.action).stalled++;
+    record(call, nanos, null);
+  }
+
+  /**
+   * Reports the outcome of a call. It only counts in the state it was let through in: a call made
+   * while closed is ignored if the circuit opened meanwhile, and so is a probe of an earlier
+   * half-open period.
+   */
+  synchronized void record(Call call, long nanos, Throwable failure) {
+    Circuit circuit = circuit(call.action);
+    circuit.inFlight--;
+    if (call.state != circuit.state || call.epoch != circuit.epoch) {
+      return;
+    }
+    boolean error = failure != null && ExceptionsHelper.status(failure).getStatus() >= 500;
+    boolean slowCall = nanos >= slowCallNanos;
+    long now = System.nanoTime();
+    switch (circuit.state) {
+      case CLOSED:
+        circuit.add((byte) ((error ? ERROR : 0) | (slowCall ? SLOW : 0)));
+        if (circuit.calls >= minCalls
+            && (circuit.errors >= errorRate * circuit.calls || circuit.slow >= slowCallRate
+                * circuit.calls)) {
+          circuit.open(now);
+        }
+        break;
+      case HALF_OPEN:
+        if (error || slowCall) {
+          circuit.open(now);
+        } else if (++circuit.probesSucceeded >= halfOpenCalls) {
+          circuit.transition(State.CLOSED);
+          circuit.reset();
+        }
+        break;
+      default:
+        // Calls are never let through while open
+        break;
+    }
+  }
+
+  synchronized JsonObject stats() {
+    JsonObject stats = new JsonObject().putBoolean("enabled", enabled);
+    for (Map.Entry<String, Circuit> entry : circuits.entrySet()) {
+      Circuit circuit = entry.getValue();
+      stats.putObject(entry.getKey(), new JsonObject().putString("state",
+          circuit.state.name().toLowerCase()).putNumber("calls", circuit.calls).putNumber("errors",
+          circuit.errors).putNumber("slow", circuit.slow).putNumber("opened", circuit.opened)
+          .putNumber("rejected", circuit.rejected).putNumber("in_flight", circuit.inFlight)
+          .putNumber("stalled", circuit.stalled));
+    }
+    return stats;
+  }
+
+  private Circuit circuit(String action) {
+    Circuit circuit = circuits.get(action);
+    if (circuit == null) {
+      circuit = new Circuit();
+      circuits.put(action, circuit);
+    }
+    return circuit;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fails requests fast while the {@link CircuitBreaker} of their action is open, and reports the
+ * outcome of the others to it. A request still in flight after {@code slow_call_ms} is reported as
+ * a slow call right away, so that a stalled node trips the circuit before its requests time out.
+ */
+public class CircuitBreakerClient extends FilterClient {
+  private final CircuitBreaker breaker;
+
+  public CircuitBreakerClient(Client in, CircuitBreaker breaker) {
+    super(in);
+    this.breaker = breaker;
+  }
+
+  @Override
+  public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void execute(
+      Action<Request, Response, RequestBuilder, Client> action, Request request,
+      final ActionListener<Response> listener) {
+    final CircuitBreaker.Call call = breaker.allow(action.name());
+    if (call == null) {
+      listener.onFailure(new CircuitBreaker.OpenException(action.name()));
+      return;
+    }
+    final long start = System.nanoTime();
+    final AtomicBoolean recorded = new AtomicBoolean();
+    final ScheduledFuture<?> deadline =
+        in().threadPool().schedule(TimeValue.timeValueMillis(breaker.slowCallMillis()),
+            ThreadPool.Names.SAME, new Runnable() {
+              @Override
+              public void run() {
+                if (recorded.compareAndSet(false, true)) {
+                  breaker.stalled(call, System.nanoTime() - start);
+                }
+              }
+            });
+    ActionListener<Response> recording = new ActionListener<Response>() {
+      @Override
+      public void onFailure(Throwable e) {
+        record(e);
+        listener.onFailure(e);
+      }
+
+      @Override
+      public void onResponse(Response response) {
+        record(null);
+        listener.onResponse(response);
+      }
+
+      private void record(Throwable failure) {
+        deadline.cancel(false);
+        if (recorded.compareAndSet(false, true)) {
+          breaker.record(call, System.nanoTime() - start, failure);
+        }
+      }
+    };
+    try {
+      in().execute(action, request, recording);
+    } catch (RuntimeException e) {
+      recording.onFailure(e);
+    }
+  }
+}
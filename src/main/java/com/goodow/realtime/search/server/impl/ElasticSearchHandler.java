@@ -13,26 +13,43 @@
  */
 package com.goodow.realtime.search.server.impl;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Provider;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryRequest;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryResponse;
+import org.elasticsearch.action.deletebyquery.IndexDeleteByQueryResponse;
+import org.elasticsearch.action.get.GetRequestBuilder;
 import org.elasticsearch.action.get.GetResponse;
-import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
-import org.elasticsearch.index.VersionType;
 import org.elasticsearch.indices.IndexMissingException;
 import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.eventbus.Message;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.platform.Container;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 
@@ -43,28 +60,180 @@ public class ElasticSearchHandler implements Handler<Message<JsonObject>> {
   public static final String VERSION = "_version";
   public static final String SOURCE = "_source";
   public static final String PUT_INDEX_TEMPLATE = "putIndexTemplate";
+  public static final String FORMAT = "format";
+  public static final String FORMAT_RAW = "raw";
+  /**
+   * Failure code of requests rejected by admission control because the cluster is overloaded.
+   */
+  public static final int REJECTED = 429;
+  /**
+   * Failure code of requests failed fast because the circuit breaker of their action is open.
+   */
+  public static final int UNAVAILABLE = 503;
+  private static final ObjectMapper MAPPER = new ObjectMapper();
 
   public static void replyFail(Logger logger, Message<JsonObject> message, String error, Throwable e) {
+    if (e instanceof EsRejectedExecutionException) {
+      logger.warn(error);
+      message.fail(REJECTED, error);
+      return;
+    }
+    if (e instanceof CircuitBreaker.OpenException) {
+      logger.warn(error);
+      message.fail(UNAVAILABLE, error);
+      return;
+    }
     logger.error(error, e);
     message.fail(-1, error);
   }
 
-  static void parseXContent(Logger logger, ToXContent toXContent, Message<JsonObject> message) {
+  /**
+   * Replies {@code toXContent} to {@code message}, and returns the bytes replied, or {@code null}
+   * if it couldn't be serialized.
+   */
+  static BytesReference parseXContent(Logger logger, ToXContent toXContent,
+      Message<JsonObject> message) {
+    try {
+      long start = System.nanoTime();
+      BytesReference bytes = toBytes(toXContent);
+      reply(logger, message, bytes, System.nanoTime() - start);
+      return bytes;
+    } catch (IOException e) {
+      replyFail(logger, message, "Error reading search response: " + e.getMessage(), e);
+      return null;
+    }
+  }
+
+  static BytesReference replyAll(Logger logger, ToXContent toXContent,
+      List<Message<JsonObject>> messages) {
+    if (messages.size() == 1) {
+      return parseXContent(logger, toXContent, messages.get(0));
+    }
+    BytesReference bytes;
+    long start = System.nanoTime();
+    try {
+      bytes = toBytes(toXContent);
+    } catch (IOException e) {
+      for (Message<JsonObject> message : messages) {
+        replyFail(logger, message, "Error reading search response: " + e.getMessage(), e);
+      }
+      return null;
+    }
+    long nanos = System.nanoTime() - start;
+    for (Message<JsonObject> message : messages) {
+      reply(logger, message, bytes, nanos);
+    }
+    return bytes;
+  }
+
+  static BytesReference toBytes(ToXContent toXContent) throws IOException {
+    XContentBuilder builder = XContentFactory.jsonBuilder();
+    builder.startObject();
+    toXContent.toXContent(builder, SearchResponse.EMPTY_PARAMS);
+    builder.endObject();
+    return builder.bytes();
+  }
+
+  /**
+   * Replies the JSON encoded {@code bytes} in the format requested by the {@code format} field of
+   * the message: {@link #FORMAT_RAW} sends them as a {@link Buffer} without decoding them at all,
+   * the formats of {@link ReplyEncoding} encode large replies into a Buffer, otherwise they are
+   * decoded straight into a {@link JsonObject}, skipping the intermediate String. Fails the
+   * message, and logs to {@code logger}, if they can't be encoded or decoded.
+   */
+  static void reply(Logger logger, Message<JsonObject> message, BytesReference bytes) {
+    reply(logger, message, bytes, 0);
+  }
+
+  /**
+   * Replies {@code bytes} like {@link #reply(Logger, Message, BytesReference)}, and records that
+   * they took {@code serializationNanos} to build.
+   */
+  static void reply(Logger logger, Message<JsonObject> message, BytesReference bytes,
+      long serializationNanos) {
+    String format = message.body().getString(FORMAT);
+    if (ReplyEncoding.isEncoding(format)
+        && bytes.length() >= message.body().getInteger(ReplyEncoding.ENCODE_ABOVE,
+            ReplyEncoding.DEFAULT_ENCODE_ABOVE)) {
+      Buffer encoded;
+      long start = System.nanoTime();
+      try {
+        encoded = ReplyEncoding.encode(bytes, format);
+      } catch (IOException e) {
+        replyFail(logger, message, "Error encoding reply: " + e.getMessage(), e);
+        return;
+      }
+      long nanos = serializationNanos + System.nanoTime() - start;
+      MeteredMessage.serialized(message, nanos, encoded.length());
+      message.reply(encoded);
+      return;
+    }
+    MeteredMessage.serialized(message, serializationNanos, bytes.length());
+    if (FORMAT_RAW.equals(format)) {
+      message.reply(toBuffer(bytes));
+      return;
+    }
     try {
-      XContentBuilder builder = XContentFactory.jsonBuilder();
-      builder.startObject();
-      toXContent.toXContent(builder, SearchResponse.EMPTY_PARAMS);
-      builder.endObject();
-      JsonObject response = new JsonObject(builder.string());
-      message.reply(response);
+      message.reply(toJsonObject(bytes));
     } catch (IOException e) {
       replyFail(logger, message, "Error reading search response: " + e.getMessage(), e);
     }
   }
 
+  /**
+   * Wraps {@code bytes} into a Buffer without copying them, even when they span several pages.
+   */
+  static Buffer toBuffer(BytesReference bytes) {
+    ByteBuf buf =
+        bytes.hasArray() ? Unpooled.wrappedBuffer(bytes.array(), bytes.arrayOffset(), bytes
+            .length()) : Unpooled.wrappedBuffer(bytes.toChannelBuffer().toByteBuffers());
+    return new Buffer(buf);
+  }
+
+  @SuppressWarnings("unchecked")
+  static JsonObject toJsonObject(BytesReference bytes) throws IOException {
+    Map<String, Object> map =
+        bytes.hasArray() ? MAPPER.readValue(bytes.array(), bytes.arrayOffset(), bytes.length(),
+            Map.class) : MAPPER.readValue(bytes.streamInput(), Map.class);
+    return new DecodedJsonObject(map);
+  }
+
+  /**
+   * Takes ownership of a freshly decoded map instead of deep copying it like
+   * {@link JsonObject#JsonObject(Map)} does.
+   */
+  private static class DecodedJsonObject extends JsonObject {
+    DecodedJsonObject(Map<String, Object> map) {
+      super(map, false);
+    }
+  }
+
   @Inject private Provider<Client> client;
   @Inject private SearchActioin search;
   @Inject private AdminActioin admin;
+  @Inject private BulkActioin bulk;
+  @Inject private BulkBuffer bulkBuffer;
+  @Inject private WriteAheadQueue writeQueue;
+  @Inject private UpdateCoalescer updateCoalescer;
+  @Inject private ChangeFeedIndexer indexer;
+  @Inject private WriteRequests writes;
+  @Inject private SearchCache searchCache;
+  @Inject private WriteTracker writeTracker;
+  @Inject private InFlightRequests inFlight;
+  @Inject private MultiGetActioin multiGet;
+  @Inject private MultiSearchActioin multiSearch;
+  @Inject private SuggestActioin suggest;
+  @Inject private GetBatcher getBatcher;
+  @Inject private NearCache nearCache;
+  @Inject private StreamActioin stream;
+  @Inject private AdmissionControl admission;
+  @Inject private CircuitBreaker circuitBreaker;
+  @Inject private Hedging hedging;
+  @Inject private RollingIndices rolling;
+  @Inject private Subscriptions subscriptions;
+  @Inject private Reindexer reindexer;
+  @Inject private Metrics metrics;
+  @Inject private PooledClient pooledClient;
   private final Logger logger;
 
   @Inject
@@ -80,19 +249,64 @@ public class ElasticSearchHandler implements Handler<Message<JsonObject>> {
         replyFail(logger, message, "action must be specified", null);
         return;
       }
+      if (metrics.isEnabled()) {
+        message = metrics.meter(message);
+      }
       switch (action) {
         case "index":
           doIndex(message);
           break;
+        case "update":
+          doUpdate(message);
+          break;
+        case "delete":
+          doDelete(message);
+          break;
+        case "deleteByQuery":
+          doDeleteByQuery(message);
+          break;
+        case "bulk":
+          bulk.handle(message);
+          break;
         case "get":
           doGet(message);
           break;
+        case "mget":
+          multiGet.handle(message);
+          break;
         case "search":
           search.handle(message);
           break;
+        case "msearch":
+          multiSearch.handle(message);
+          break;
         case "scroll":
           doScroll(message);
           break;
+        case "suggest":
+          suggest.handle(message);
+          break;
+        case "stats":
+          doStats(message);
+          break;
+        case "stream":
+          stream.handle(message);
+          break;
+        case "subscribe":
+          subscriptions.subscribe(message);
+          break;
+        case "unsubscribe":
+          subscriptions.unsubscribe(message);
+          break;
+        case "reindex":
+          reindexer.reindex(message);
+          break;
+        case "reindexStatus":
+          reindexer.status(message);
+          break;
+        case "reindexCancel":
+          reindexer.cancel(message);
+          break;
         case PUT_INDEX_TEMPLATE:
           admin.handle(message);
           break;
@@ -105,7 +319,28 @@ public class ElasticSearchHandler implements Handler<Message<JsonObject>> {
     }
   }
 
-  String getRequiredIndex(JsonObject json, Message<JsonObject> message) {
+  private void doStats(Message<JsonObject> message) {
+    JsonObject stats = new JsonObject();
+    stats.putObject("search_cache", searchCache.stats());
+    stats.putObject("near_cache", nearCache.stats());
+    stats.putObject("suggest", suggest.stats());
+    stats.putObject("in_flight", inFlight.stats());
+    stats.putObject("update_coalesce", updateCoalescer.stats());
+    stats.putObject("admission", admission.stats());
+    stats.putObject("circuit_breaker", circuitBreaker.stats());
+    stats.putObject("hedge", hedging.stats());
+    stats.putObject("client_pool", pooledClient.stats());
+    stats.putObject("indexer", indexer.stats());
+    stats.putObject("templates", admin.stats());
+    stats.putObject("rolling", rolling.stats());
+    stats.putObject("write_queue", writeQueue.stats());
+    stats.putObject("subscriptions", subscriptions.stats());
+    stats.putObject("reindex", reindexer.stats());
+    stats.putObject("metrics", metrics.toJson());
+    message.reply(stats);
+  }
+
+  static String getRequiredIndex(Logger logger, JsonObject json, Message<JsonObject> message) {
     String index = json.getString(INDEX);
     if (index == null || index.isEmpty()) {
       replyFail(logger, message, INDEX + " is required", null);
@@ -114,7 +349,7 @@ public class ElasticSearchHandler implements Handler<Message<JsonObject>> {
     return index;
   }
 
-  String getRequiredType(JsonObject json, Message<JsonObject> message) {
+  static String getRequiredType(Logger logger, JsonObject json, Message<JsonObject> message) {
     String type = json.getString(TYPE);
     if (type == null || type.isEmpty()) {
       replyFail(logger, message, TYPE + " is required", null);
@@ -125,81 +360,280 @@ public class ElasticSearchHandler implements Handler<Message<JsonObject>> {
 
   private void doGet(final Message<JsonObject> message) {
     JsonObject body = message.body();
-    final String index = getRequiredIndex(body, message);
+    final String index = getRequiredIndex(logger, body, message);
     if (index == null) {
       return;
     }
-    String type = getRequiredType(body, message);
+    final String type = getRequiredType(logger, body, message);
     if (type == null) {
       return;
     }
-    String id = body.getString(ID);
+    final String id = body.getString(ID);
     if (id == null) {
       replyFail(logger, message, ID + " is required", null);
       return;
     }
-    client.get().prepareGet(index, type, id).execute(new ActionListener<GetResponse>() {
+    if (rolling.rejectLogicalName("get", index, message)) {
+      return;
+    }
+    // Stored fields are not part of the cached replies
+    final Projection projection = Projection.of(body);
+    final String cacheKey =
+        nearCache.covers(index) && (projection == null || projection.isSourceOnly()) ? NearCache
+            .key(index, type, id) : null;
+    final NearCache.Entry cached = cacheKey == null ? null : nearCache.get(cacheKey);
+    if (cached != null && !nearCache.isValidating()) {
+      replyCached(message, cached, projection);
+      return;
+    }
+    final long generation = nearCache.generation();
+    final InFlightRequests.Call call =
+        inFlight.join(inFlight.isEnabled() ? RequestKey.of(body) : null, new String[] {index},
+            message);
+    if (call == null) {
+      return;
+    }
+    if (cached != null) {
+      validate(index, type, id, projection, cacheKey, cached, call);
+      return;
+    }
+    // Only whole documents are cached
+    final String putKey = projection == null ? cacheKey : null;
+    if (getBatcher.isEnabled()) {
+      getBatcher.add(index, type, id, projection, call, putKey, generation);
+      return;
+    }
+    prepareGet(index, type, id, projection).execute(new ActionListener<GetResponse>() {
       @Override
       public void onFailure(Throwable e) {
-        if (e.getCause() instanceof IndexMissingException) {
-          message.reply(new JsonObject().putBoolean("found", false));
-          return;
-        }
-        replyFail(logger, message, "Get error: " + e.getMessage(), e);
+        failGet(call, e);
       }
 
       @Override
       public void onResponse(GetResponse response) {
-        parseXContent(logger, response, message);
+        BytesReference bytes = replyAll(logger, response, inFlight.complete(call));
+        if (putKey != null && bytes != null && response.isExists()) {
+          nearCache.put(putKey, generation, response.getVersion(), bytes);
+        }
       }
     });
   }
 
+  private GetRequestBuilder prepareGet(String index, String type, String id,
+      Projection projection) {
+    GetRequestBuilder builder = client.get().prepareGet(index, type, id);
+    if (projection != null) {
+      projection.apply(builder);
+    }
+    return builder;
+  }
+
+  private void replyCached(Message<JsonObject> message, NearCache.Entry cached,
+      Projection projection) {
+    if (projection == null) {
+      reply(logger, message, cached.bytes);
+      return;
+    }
+    try {
+      reply(logger, message, projection.filter(cached.bytes));
+    } catch (IOException e) {
+      replyFail(logger, message, "Error reading cached document: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Replies the cached document of {@code call} if a get without source confirms its version, or
+   * the fetched document otherwise.
+   */
+  private void validate(final String index, final String type, final String id,
+      final Projection projection, final String cacheKey, final NearCache.Entry cached,
+      final InFlightRequests.Call call) {
+    final long generation = nearCache.generation();
+    client.get().prepareGet(index, type, id).setFetchSource(false).execute(
+        new ActionListener<GetResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            nearCache.validated(cacheKey, cached, false);
+            failGet(call, e);
+          }
+
+          @Override
+          public void onResponse(GetResponse response) {
+            boolean current = response.isExists() && response.getVersion() == cached.version;
+            nearCache.validated(cacheKey, cached, current);
+            if (current || !response.isExists()) {
+              List<Message<JsonObject>> messages = inFlight.complete(call);
+              if (current) {
+                for (Message<JsonObject> msg : messages) {
+                  replyCached(msg, cached, projection);
+                }
+              } else {
+                replyAll(logger, response, messages);
+              }
+              return;
+            }
+            prepareGet(index, type, id, projection).execute(new ActionListener<GetResponse>() {
+              @Override
+              public void onFailure(Throwable e) {
+                failGet(call, e);
+              }
+
+              @Override
+              public void onResponse(GetResponse response) {
+                BytesReference bytes = replyAll(logger, response, inFlight.complete(call));
+                if (projection == null && bytes != null && response.isExists()) {
+                  nearCache.put(cacheKey, generation, response.getVersion(), bytes);
+                }
+              }
+            });
+          }
+        });
+  }
+
+  private void failGet(InFlightRequests.Call call, Throwable e) {
+    for (Message<JsonObject> msg : inFlight.complete(call)) {
+      if (ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException) {
+        msg.reply(new JsonObject().putBoolean("found", false));
+      } else {
+        replyFail(logger, msg, "Get error: " + e.getMessage(), e);
+      }
+    }
+  }
+
   private void doIndex(final Message<JsonObject> message) {
-    JsonObject body = message.body();
-    final String index = getRequiredIndex(body, message);
-    if (index == null) {
+    final IndexRequest request = writes.index(message.body(), message);
+    if (request == null) {
       return;
     }
-    String type = getRequiredType(body, message);
-    if (type == null) {
+    if (writeQueue.isQueuing()) {
+      writeQueue.append(message.body(), request, message);
       return;
     }
-    JsonObject source = body.getObject("source");
-    if (source == null) {
-      replyFail(logger, message, "source is required", null);
+    if (bulkBuffer.isEnabled() && !request.refresh()) {
+      bulkBuffer.add(request, message);
       return;
     }
 
-    IndexRequestBuilder builder =
-        client.get().prepareIndex(index, type, body.getString(ID)).setSource(source.encode());
+    client.get().index(request, new ActionListener<IndexResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        if (writeQueue.accepts(e)) {
+          writeQueue.append(message.body(), request, message);
+          return;
+        }
+        replyFail(logger, message, "Index error: " + e.getMessage(), e);
+      }
 
-    if (body.containsField("version")) {
-      builder.setVersion(body.getLong("version"));
+      @Override
+      public void onResponse(IndexResponse resp) {
+        writeTracker.indexed(request, resp);
+        message.reply(WriteRequests.toReply(resp));
+      }
+    });
+  }
+
+  private void doUpdate(final Message<JsonObject> message) {
+    final UpdateRequest request = writes.update(message.body(), message);
+    if (request == null) {
+      return;
     }
-    if (body.containsField("version_type")) {
-      builder.setVersionType(VersionType.fromString(body.getString("version_type")));
+    if (writeQueue.isQueuing()) {
+      writeQueue.append(message.body(), request, message);
+      return;
     }
-    if (body.containsField("op_type")) {
-      builder.setOpType(body.getString("op_type"));
+    if (updateCoalescer.isEnabled()) {
+      updateCoalescer.add(request, message);
+      return;
     }
-    if (body.containsField("refresh")) {
-      builder.setRefresh(body.getBoolean("refresh"));
+    if (bulkBuffer.isEnabled() && !request.refresh()) {
+      bulkBuffer.add(request, message);
+      return;
     }
 
-    builder.execute(new ActionListener<IndexResponse>() {
+    client.get().update(request, new ActionListener<UpdateResponse>() {
       @Override
       public void onFailure(Throwable e) {
-        replyFail(logger, message, "Index error: " + e.getMessage(), e);
+        if (writeQueue.accepts(e)) {
+          writeQueue.append(message.body(), request, message);
+          return;
+        }
+        replyFail(logger, message, "Update error: " + e.getMessage(), e);
       }
 
       @Override
-      public void onResponse(IndexResponse resp) {
-        JsonObject reply =
-            new JsonObject().putString(INDEX, resp.getIndex()).putString(TYPE, resp.getType())
-                .putString(ID, resp.getId()).putNumber(VERSION, resp.getVersion()).putBoolean(
-                    "created", resp.isCreated());
-        message.reply(reply);
+      public void onResponse(UpdateResponse resp) {
+        writeTracker.updated(resp);
+        message.reply(WriteRequests.toReply(resp));
+      }
+    });
+  }
+
+  private void doDelete(final Message<JsonObject> message) {
+    final DeleteRequest request = writes.delete(message.body(), message);
+    if (request == null) {
+      return;
+    }
+    if (writeQueue.isQueuing()) {
+      writeQueue.append(message.body(), request, message);
+      return;
+    }
+    if (bulkBuffer.isEnabled() && !request.refresh()) {
+      bulkBuffer.add(request, message);
+      return;
+    }
+
+    client.get().delete(request, new ActionListener<DeleteResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        if (writeQueue.accepts(e)) {
+          writeQueue.append(message.body(), request, message);
+          return;
+        }
+        replyFail(logger, message, "Delete error: " + e.getMessage(), e);
+      }
+
+      @Override
+      public void onResponse(DeleteResponse resp) {
+        writeTracker.written(resp.getIndex(), resp.getType(), resp.getId());
+        message.reply(WriteRequests.toReply(resp));
+      }
+    });
+  }
+
+  private void doDeleteByQuery(final Message<JsonObject> message) {
+    JsonObject body = message.body();
+    String[] indices = SearchActioin.getIndices(body);
+    if (indices.length == 0) {
+      replyFail(logger, message, INDEX + " or _indices is required", null);
+      return;
+    }
+    JsonObject source = body.getObject("source");
+    if (source == null || !source.containsField("query")) {
+      replyFail(logger, message, "source.query is required", null);
+      return;
+    }
+
+    DeleteByQueryRequest request = new DeleteByQueryRequest(indices).source(source.encode());
+    String[] types = SearchActioin.getTypes(body);
+    if (types.length > 0) {
+      request.types(types);
+    }
+    client.get().deleteByQuery(request, new ActionListener<DeleteByQueryResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        replyFail(logger, message, "Delete by query error: " + e.getMessage(), e);
+      }
+
+      @Override
+      public void onResponse(DeleteByQueryResponse resp) {
+        JsonObject reply = new JsonObject();
+        for (IndexDeleteByQueryResponse index : resp) {
+          writeTracker.written(index.getIndex());
+          reply.putObject(index.getIndex(), new JsonObject().putObject("_shards",
+              new JsonObject().putNumber("total", index.getTotalShards()).putNumber("successful",
+                  index.getSuccessfulShards()).putNumber("failed", index.getFailedShards())));
+        }
+        message.reply(new JsonObject().putObject("_indices", reply));
       }
     });
   }
@@ -226,7 +660,7 @@ public class ElasticSearchHandler implements Handler<Message<JsonObject>> {
 
           @Override
           public void onResponse(SearchResponse resp) {
-            parseXContent(logger, resp, message);
+            parseXContent(logger, Projection.view(message.body(), resp), message);
           }
         });
   }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * A client of a local-only Elasticsearch node running inside this JVM, so the module can be loaded
+ * and tested without any external cluster. Closing the client also shuts the node down.
+ */
+public class EmbeddedNodeClient extends FilterClient {
+  /**
+   * Starts a node configured by the {@code embedded} block of the module configuration. It can
+   * serve requests once {@link #awaitReady(Client)} returns.
+   */
+  public static EmbeddedNodeClient start(String clusterName, JsonObject config) {
+    ImmutableSettings.Builder settings =
+        ImmutableSettings.settingsBuilder().put("http.enabled", false).put(
+            "index.number_of_shards", 1).put("index.number_of_replicas", 0);
+    String pathData = config.getString("path_data");
+    if (pathData == null) {
+      settings.put("index.store.type", "memory").put("gateway.type", "none");
+    } else {
+      settings.put("path.data", pathData);
+    }
+    JsonObject overrides = config.getObject("settings", new JsonObject());
+    for (String key : overrides.getFieldNames()) {
+      settings.put(key, String.valueOf(overrides.getValue(key)));
+    }
+
+    Node node =
+        NodeBuilder.nodeBuilder().local(true).clusterName(clusterName).settings(settings).node();
+    return new EmbeddedNodeClient(node);
+  }
+
+  /**
+   * Blocks until the embedded node behind {@code client} has allocated its primary shards, which
+   * must not be waited for on an event loop.
+   */
+  public static void awaitReady(Client client) {
+    client.admin().cluster().prepareHealth().setWaitForYellowStatus().get();
+  }
+
+  private final Node node;
+
+  private EmbeddedNodeClient(Node node) {
+    super(node.client());
+    this.node = node;
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    node.close();
+  }
+}
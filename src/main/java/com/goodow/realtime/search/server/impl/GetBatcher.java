@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.util.List;
+
+import javax.inject.Inject;
+
+/**
+ * Gathers concurrent single gets into {@link MultiGetRequest}s when {@code get_batch.enabled} is
+ * set, and fans the documents back to each caller.
+ */
+class GetBatcher extends MicroBatcher<GetBatcher.Entry> {
+  static class Entry {
+    final String index;
+    final String type;
+    final String id;
+    final Projection projection;
+    final InFlightRequests.Call call;
+    final String cacheKey;
+    final long generation;
+
+    Entry(String index, String type, String id, Projection projection,
+        InFlightRequests.Call call, String cacheKey, long generation) {
+      this.index = index;
+      this.type = type;
+      this.id = id;
+      this.projection = projection;
+      this.call = call;
+      this.cacheKey = cacheKey;
+      this.generation = generation;
+    }
+  }
+
+  @Inject private Provider<Client> client;
+  @Inject private InFlightRequests inFlight;
+  @Inject private NearCache nearCache;
+  private final Logger logger;
+  private final boolean enabled;
+
+  @Inject
+  GetBatcher(Vertx vertx, Container container) {
+    this(vertx, container.logger(), container.config().getObject("get_batch", new JsonObject()));
+  }
+
+  private GetBatcher(Vertx vertx, Logger logger, JsonObject config) {
+    super(vertx, config.getInteger("max_actions", 100), 0, config.getLong("linger_ms", 2));
+    this.logger = logger;
+    enabled = config.getBoolean("enabled", false);
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Adds a get whose document is put in the near cache under {@code cacheKey} if it is not null.
+   * {@code projection} may be null.
+   */
+  void add(String index, String type, String id, Projection projection,
+      InFlightRequests.Call call, String cacheKey, long generation) {
+    add(new Entry(index, type, id, projection, call, cacheKey, generation), 0);
+  }
+
+  @Override
+  protected void doFlush(final List<Entry> batch) {
+    MultiGetRequest request = new MultiGetRequest();
+    for (Entry entry : batch) {
+      MultiGetRequest.Item item = new MultiGetRequest.Item(entry.index, entry.type, entry.id);
+      if (entry.projection != null) {
+        entry.projection.apply(item);
+      }
+      request.add(item);
+    }
+    client.get().multiGet(request, new ActionListener<MultiGetResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        for (Entry entry : batch) {
+          for (Message<JsonObject> message : inFlight.complete(entry.call)) {
+            ElasticSearchHandler.replyFail(logger, message, "Get error: " + e.getMessage(), e);
+          }
+        }
+      }
+
+      @Override
+      public void onResponse(MultiGetResponse resp) {
+        MultiGetItemResponse[] items = resp.getResponses();
+        for (int i = 0; i < items.length; i++) {
+          MultiGetItemResponse item = items[i];
+          Entry entry = batch.get(i);
+          List<Message<JsonObject>> messages = inFlight.complete(entry.call);
+          if (item.isFailed()) {
+            boolean indexMissing = MultiGetActioin.isIndexMissing(item.getFailure());
+            for (Message<JsonObject> message : messages) {
+              // Same reply as a single get on a missing index
+              if (indexMissing) {
+                message.reply(new JsonObject().putBoolean("found", false));
+              } else {
+                ElasticSearchHandler.replyFail(logger, message, "Get error: "
+                    + item.getFailure().getMessage(), null);
+              }
+            }
+            continue;
+          }
+          BytesReference bytes =
+              ElasticSearchHandler.replyAll(logger, item.getResponse(), messages);
+          if (entry.cacheKey != null && bytes != null && item.getResponse().isExists()) {
+            nearCache.put(entry.cacheKey, entry.generation, item.getResponse().getVersion(), bytes);
+          }
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Singleton;
+
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.search.SearchAction;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+/**
+ * Decides when {@link HedgingClient} sends a second copy of a get or search request.
+ * <p>
+ * The latency of every get and search is recorded per action in a histogram which is rotated each
+ * {@code window_ms}. A request still unanswered after the {@code percentile} latency of the last
+ * window (at least {@code min_delay_ms}) is hedged, as long as hedges stay below
+ * {@code max_ratio} of the requests of the action.
+ */
+@Singleton
+public class Hedging {
+  private static final int MIN_SAMPLES = 20;
+
+  private class Window {
+    volatile LatencyHistogram current = new LatencyHistogram();
+    volatile LatencyHistogram previous = new LatencyHistogram();
+    volatile long start = System.nanoTime();
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong hedged = new AtomicLong();
+    final AtomicLong won = new AtomicLong();
+
+    void rotate(long now) {
+      if (now - start < windowNanos) {
+        return;
+      }
+      synchronized (this) {
+        if (now - start >= windowNanos) {
+          previous = current;
+          current = new LatencyHistogram();
+          start = now;
+        }
+      }
+    }
+  }
+
+  static boolean isHedgeable(String actionName) {
+    return GetAction.NAME.equals(actionName) || SearchAction.NAME.equals(actionName);
+  }
+
+  private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<>();
+  private final boolean enabled;
+  private final double percentile;
+  private final long minDelayMillis;
+  private final double maxRatio;
+  private final long windowNanos;
+
+  @Inject
+  Hedging(Container container) {
+    JsonObject config = container.config().getObject("hedge", new JsonObject());
+    enabled = config.getBoolean("enabled", false);
+    Number number = config.getNumber("percentile");
+    percentile = number == null ? 95 : number.doubleValue();
+    minDelayMillis = config.getLong("min_delay_ms", 10);
+    number = config.getNumber("max_ratio");
+    maxRatio = number == null ? 0.1 : number.doubleValue();
+    windowNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("window_ms", 60000));
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Counts a request of {@code actionName} and returns after how many milliseconds it should be
+   * hedged, or -1 while too few latencies were recorded.
+   */
+  long delayMillis(String actionName) {
+    Window window = window(actionName);
+    window.requests.incrementAndGet();
+    window.rotate(System.nanoTime());
+    LatencyHistogram histogram = window.previous;
+    if (histogram.count() < MIN_SAMPLES) {
+      histogram = window.current;
+      if (histogram.count() < MIN_SAMPLES) {
+        return -1;
+      }
+    }
+    return Math.max(minDelayMillis, TimeUnit.MICROSECONDS.toMillis(histogram
+        .percentile(percentile)));
+  }
+
+  /**
+   * Returns whether one more hedge of {@code actionName} stays within {@code max_ratio}, and counts
+   * it if so.
+   */
+  boolean tryHedge(String actionName) {
+    Window window = window(actionName);
+    long hedged;
+    do {
+      hedged = window.hedged.get();
+      if (hedged + 1 > maxRatio * window.requests.get()) {
+        return false;
+      }
+    } while (!window.hedged.compareAndSet(hedged, hedged + 1));
+    return true;
+  }
+
+  void record(String actionName, long nanos) {
+    window(actionName).current.recordNanos(nanos);
+  }
+
+  void hedgeWon(String actionName) {
+    window(actionName).won.incrementAndGet();
+  }
+
+  JsonObject stats() {
+    JsonObject stats = new JsonObject().putBoolean("enabled", enabled);
+    for (Map.Entry<String, Window> entry : windows.entrySet()) {
+      Window window = entry.getValue();
+      LatencyHistogram histogram =
+          window.previous.count() >= MIN_SAMPLES ? window.previous : window.current;
+      stats.putObject(entry.getKey(), new JsonObject().putNumber("requests",
+          window.requests.get()).putNumber("hedged", window.hedged.get()).putNumber("won",
+          window.won.get()).putNumber("delay_ms",
+          TimeUnit.MICROSECONDS.toMillis(histogram.percentile(percentile))));
+    }
+    return stats;
+  }
+
+  private Window window(String actionName) {
+    Window window = windows.get(actionName);
+    if (window == null) {
+      Window created = new Window();
+      window = windows.putIfAbsent(actionName, created);
+      if (window == null) {
+        window = created;
+      }
+    }
+    return window;
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Sends a second copy of a slow get or search request, as decided by {@link Hedging}, with a
+ * different custom preference so that it is likely served by another shard copy. The first
+ * response wins; a failure is only reported once both copies failed.
+ * <p>
+ * Requests with an explicit preference, scroll and scan searches are never hedged.
+ */
+public class HedgingClient extends FilterClient {
+  private static final String PREFERENCE_PREFIX = "hedge-";
+
+  private final Hedging hedging;
+
+  public HedgingClient(Client in, Hedging hedging) {
+    super(in);
+    this.hedging = hedging;
+  }
+
+  @Override
+  public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void execute(
+      final Action<Request, Response, RequestBuilder, Client> action, final Request request,
+      ActionListener<Response> listener) {
+    if (!hedging.isEnabled() || !isHedgeable(action.name(), request)) {
+      in().execute(action, request, listener);
+      return;
+    }
+    final String name = action.name();
+    long delay = hedging.delayMillis(name);
+    final Race<Response> race = new Race<>(name, listener);
+    if (delay >= 0) {
+      race.timer = in().threadPool().schedule(TimeValue.timeValueMillis(delay),
+          ThreadPool.Names.SAME, new Runnable() {
+            @Override
+            public void run() {
+              Request copy;
+              if (!race.startHedge() || (copy = copy(action, request)) == null) {
+                return;
+              }
+              try {
+                in().execute(action, copy, race.listener(true));
+              } catch (RuntimeException e) {
+                race.listener(true).onFailure(e);
+              }
+            }
+          });
+    }
+    in().execute(action, request, race.listener(false));
+  }
+
+  private boolean isHedgeable(String actionName, ActionRequest<?> request) {
+    if (!Hedging.isHedgeable(actionName)) {
+      return false;
+    }
+    if (request instanceof GetRequest) {
+      return ((GetRequest) request).preference() == null;
+    }
+    SearchRequest search = (SearchRequest) request;
+    return search.preference() == null && search.scroll() == null
+        && search.searchType() != SearchType.SCAN;
+  }
+
+  private <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> Request copy(
+      Action<Request, Response, RequestBuilder, Client> action, Request request) {
+    Request copy = action.newRequestBuilder(this).request();
+    try {
+      BytesStreamOutput out = new BytesStreamOutput();
+      request.writeTo(out);
+      copy.readFrom(new BytesStreamInput(out.bytes()));
+    } catch (IOException e) {
+      return null;
+    }
+    String preference = PREFERENCE_PREFIX + UUID.randomUUID();
+    if (copy instanceof GetRequest) {
+      ((GetRequest) copy).preference(preference);
+    } else {
+      ((SearchRequest) copy).preference(preference);
+    }
+    return copy;
+  }
+
+  /**
+   * The original request and its hedge racing for the listener.
+   */
+  private class Race<Response> {
+    final String name;
+    final ActionListener<Response> listener;
+    final long start = System.nanoTime();
+    volatile ScheduledFuture<?> timer;
+    boolean done;
+    int pending = 1;
+    boolean hedged;
+
+    Race(String name, ActionListener<Response> listener) {
+      this.name = name;
+      this.listener = listener;
+    }
+
+    synchronized boolean startHedge() {
+      if (done || !hedging.tryHedge(name)) {
+        return false;
+      }
+      hedged = true;
+      pending++;
+      return true;
+    }
+
+    ActionListener<Response> listener(final boolean hedge) {
+      return new ActionListener<Response>() {
+        @Override
+        public void onFailure(Throwable e) {
+          synchronized (Race.this) {
+            if (done || --pending > 0) {
+              return;
+            }
+            done = true;
+          }
+          cancelTimer();
+          listener.onFailure(e);
+        }
+
+        @Override
+        public void onResponse(Response response) {
+          if (!hedge) {
+            // Even when the hedge won, so that the latencies are not biased by hedging
+            hedging.record(name, System.nanoTime() - start);
+          }
+          synchronized (Race.this) {
+            if (done) {
+              return;
+            }
+            done = true;
+          }
+          cancelTimer();
+          if (hedge) {
+            hedging.hedgeWon(name);
+          }
+          listener.onResponse(response);
+        }
+      };
+    }
+
+    private void cancelTimer() {
+      ScheduledFuture<?> future = timer;
+      if (future != null) {
+        future.cancel(false);
+      }
+    }
+  }
+}
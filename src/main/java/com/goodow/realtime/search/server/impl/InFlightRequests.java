@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Singleton;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+/**
+ * Coalesces identical read requests: while a request is pending, later messages with the same
+ * {@link RequestKey} are attached to it and all receive its response.
+ * <p>
+ * A write to an index detaches the pending calls covering it, so that reads sent after a write was
+ * acknowledged never share a response fetched before it.
+ * <p>
+ * Only the requests of the same verticle instance are coalesced.
+ */
+@Singleton
+class InFlightRequests {
+  static class Call {
+    private final String key;
+    private final String[] indices;
+    private final List<Message<JsonObject>> messages = new ArrayList<>(2);
+
+    private Call(String key, String[] indices, Message<JsonObject> message) {
+      this.key = key;
+      this.indices = indices;
+      messages.add(message);
+    }
+  }
+
+  private final Map<String, Call> calls = new HashMap<>();
+  private final boolean enabled;
+  private long coalesced;
+
+  @Inject
+  InFlightRequests(Container container) {
+    enabled = container.config().getBoolean("coalesce_reads", false);
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the call the caller must execute, or null if {@code message} was attached to an
+   * identical pending call.
+   */
+  synchronized Call join(String key, String[] indices, Message<JsonObject> message) {
+    if (!enabled || key == null) {
+      return new Call(null, indices, message);
+    }
+    Call call = calls.get(key);
+    if (call != null) {
+      call.messages.add(message);
+      coalesced++;
+      return null;
+    }
+    call = new Call(key, indices, message);
+    calls.put(key, call);
+    return call;
+  }
+
+  /**
+   * Ends the call and returns every message waiting for its response.
+   */
+  synchronized List<Message<JsonObject>> complete(Call call) {
+    if (call.key != null && calls.get(call.key) == call) {
+      calls.remove(call.key);
+    }
+    return call.messages;
+  }
+
+  synchronized void detach(String index) {
+    Iterator<Call> iterator = calls.values().iterator();
+    while (iterator.hasNext()) {
+      if (SearchCache.covers(iterator.next().indices, index)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  synchronized JsonObject stats() {
+    return new JsonObject().putBoolean("enabled", enabled).putNumber("pending", calls.size())
+        .putNumber("coalesced", coalesced);
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Delegates to the received message, and records the action statistics when it is replied to or
+ * failed.
+ */
+class MeteredMessage implements Message<JsonObject> {
+  /**
+   * Records the time spent encoding the reply of {@code message}, if it is metered.
+   */
+  static void serialized(Message<JsonObject> message, long nanos, int bytes) {
+    if (message instanceof MeteredMessage) {
+      MeteredMessage metered = (MeteredMessage) message;
+      metered.serializationNanos = nanos;
+      metered.replyBytes = bytes;
+    }
+  }
+
+  private final Message<JsonObject> delegate;
+  private final Metrics.Stats action;
+  private final Metrics.Stats index;
+  private final long start = System.nanoTime();
+  private long serializationNanos;
+  private int replyBytes;
+  private boolean done;
+
+  MeteredMessage(Message<JsonObject> delegate, Metrics.Stats action, Metrics.Stats index) {
+    this.delegate = delegate;
+    this.action = action;
+    this.index = index;
+  }
+
+  @Override
+  public String address() {
+    return delegate.address();
+  }
+
+  @Override
+  public JsonObject body() {
+    return delegate.body();
+  }
+
+  @Override
+  public String replyAddress() {
+    return delegate.replyAddress();
+  }
+
+  @Override
+  public void fail(int failureCode, String message) {
+    done(true).fail(failureCode, message);
+  }
+
+  @Override
+  public void reply() {
+    done(false).reply();
+  }
+
+  @Override
+  public <T> void reply(Handler<Message<T>> replyHandler) {
+    done(false).reply(replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(long timeout, Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(Object message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(Object message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(Object message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(JsonObject message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(JsonObject message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(JsonObject message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(JsonArray message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(JsonArray message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(JsonArray message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(String message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(String message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(String message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(Buffer message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(Buffer message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(Buffer message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(byte[] message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(byte[] message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(byte[] message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(Integer message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(Integer message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(Integer message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(Long message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(Long message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(Long message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(Short message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(Short message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(Short message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(Character message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(Character message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(Character message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(Boolean message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(Boolean message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(Boolean message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(Float message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(Float message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(Float message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  @Override
+  public void reply(Double message) {
+    done(false).reply(message);
+  }
+
+  @Override
+  public <T> void reply(Double message, Handler<Message<T>> replyHandler) {
+    done(false).reply(message, replyHandler);
+  }
+
+  @Override
+  public <T> void replyWithTimeout(Double message, long timeout,
+      Handler<AsyncResult<Message<T>>> replyHandler) {
+    done(false).replyWithTimeout(message, timeout, replyHandler);
+  }
+
+  /**
+   * Records the statistics, the first time only, and returns the message it delegates to.
+   */
+  private Message<JsonObject> done(boolean failed) {
+    if (done) {
+      return delegate;
+    }
+    done = true;
+    long latency = System.nanoTime() - start;
+    if (action != null) {
+      action.record(latency, failed);
+      action.recordReply(serializationNanos, replyBytes);
+    }
+    if (index != null) {
+      index.record(latency, failed);
+      index.recordReply(serializationNanos, replyBytes);
+    }
+    return delegate;
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Singleton;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+/**
+ * Latency, throughput and reply size statistics of the event bus actions, of the indices they
+ * target, and of the Elasticsearch requests they send. Latencies are reported in microseconds.
+ */
+@Singleton
+public class Metrics {
+  static class Stats {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LatencyHistogram serialization = new LatencyHistogram();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong replyBytes = new AtomicLong();
+    final AtomicLong maxReplyBytes = new AtomicLong();
+    private long lastCount;
+    private long lastErrors;
+    private double rate;
+    private double errorRate;
+
+    void record(long latencyNanos, boolean failed) {
+      latency.recordNanos(latencyNanos);
+      if (failed) {
+        errors.incrementAndGet();
+      }
+    }
+
+    void recordReply(long serializationNanos, int bytes) {
+      if (serializationNanos > 0) {
+        serialization.recordNanos(serializationNanos);
+      }
+      replyBytes.addAndGet(bytes);
+      long current;
+      while (bytes > (current = maxReplyBytes.get())
+          && !maxReplyBytes.compareAndSet(current, bytes)) {
+        // Retry until maxReplyBytes is at least bytes
+      }
+    }
+
+    synchronized void tick(double seconds) {
+      long count = latency.count();
+      long errs = errors.get();
+      rate = (count - lastCount) / seconds;
+      errorRate = (errs - lastErrors) / seconds;
+      lastCount = count;
+      lastErrors = errs;
+    }
+
+    synchronized JsonObject toJson() {
+      JsonObject json =
+          new JsonObject().putNumber("count", latency.count()).putNumber("errors", errors.get())
+              .putNumber("rate", rate).putNumber("error_rate", errorRate).putObject("latency",
+                  latency.toJson());
+      if (serialization.count() > 0) {
+        json.putObject("serialization", serialization.toJson());
+      }
+      if (replyBytes.get() > 0) {
+        json.putObject("reply_bytes", new JsonObject().putNumber("total", replyBytes.get())
+            .putNumber("max", maxReplyBytes.get()));
+      }
+      return json;
+    }
+  }
+
+  private static final int MAX_ACTIONS = 100;
+  private static final int MAX_INDICES = 1000;
+
+  private final ConcurrentMap<String, Stats> actions = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Stats> indices = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Stats> requests = new ConcurrentHashMap<>();
+  private final Vertx vertx;
+  private final boolean enabled;
+  private final long tickInterval;
+  private final String publishAddress;
+  private final long publishInterval;
+
+  @Inject
+  public Metrics(Vertx vertx, Container container) {
+    this.vertx = vertx;
+    JsonObject config = container.config().getObject("metrics", new JsonObject());
+    enabled = config.getBoolean("enabled", false);
+    tickInterval = config.getLong("rate_interval_ms", 5000);
+    publishAddress = config.getString("publish_address");
+    publishInterval = config.getLong("publish_interval_ms", 10000);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts computing rates and, if {@code metrics.publish_address} is set, publishing the
+   * statistics to it periodically.
+   */
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    vertx.setPeriodic(tickInterval, new Handler<Long>() {
+      @Override
+      public void handle(Long event) {
+        double seconds = tickInterval / 1000.0;
+        tick(actions, seconds);
+        tick(indices, seconds);
+        tick(requests, seconds);
+      }
+    });
+    if (publishAddress != null) {
+      vertx.setPeriodic(publishInterval, new Handler<Long>() {
+        @Override
+        public void handle(Long event) {
+          vertx.eventBus().publish(publishAddress, toJson());
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns {@code message} wrapped to record the latency, outcome and reply size of its action.
+   */
+  Message<JsonObject> meter(Message<JsonObject> message) {
+    JsonObject body = message.body();
+    String index = body.getString(ElasticSearchHandler.INDEX);
+    return new MeteredMessage(message, stats(actions, body.getString("action"), MAX_ACTIONS),
+        index == null ? null : stats(indices, index, MAX_INDICES));
+  }
+
+  /**
+   * Returns the statistics of the Elasticsearch requests of {@code actionName}.
+   */
+  Stats request(String actionName) {
+    return stats(requests, actionName, Integer.MAX_VALUE);
+  }
+
+  public JsonObject toJson() {
+    return new JsonObject().putObject("actions", toJson(actions)).putObject("indices",
+        toJson(indices)).putObject("elasticsearch", toJson(requests));
+  }
+
+  private Stats stats(ConcurrentMap<String, Stats> map, String name, int maxSize) {
+    Stats stats = map.get(name);
+    if (stats == null) {
+      if (map.size() >= maxSize) {
+        return null;
+      }
+      Stats created = new Stats();
+      stats = map.putIfAbsent(name, created);
+      if (stats == null) {
+        stats = created;
+      }
+    }
+    return stats;
+  }
+
+  private void tick(Map<String, Stats> map, double seconds) {
+    for (Stats stats : map.values()) {
+      stats.tick(seconds);
+    }
+  }
+
+  private JsonObject toJson(Map<String, Stats> map) {
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, Stats> entry : map.entrySet()) {
+      json.putObject(entry.getKey(), entry.getValue().toJson());
+    }
+    return json;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+
+/**
+ * Records how long every request waits on the wrapped client.
+ */
+public class MetricsClient extends FilterClient {
+  private static class Timed implements ActionListener<ActionResponse> {
+    private final Metrics.Stats stats;
+    private final ActionListener<ActionResponse> listener;
+    private final long start = System.nanoTime();
+
+    Timed(Metrics.Stats stats, ActionListener<ActionResponse> listener) {
+      this.stats = stats;
+      this.listener = listener;
+    }
+
+    @Override
+    public void onFailure(Throwable e) {
+      stats.record(System.nanoTime() - start, true);
+      listener.onFailure(e);
+    }
+
+    @Override
+    public void onResponse(ActionResponse response) {
+      stats.record(System.nanoTime() - start, false);
+      listener.onResponse(response);
+    }
+  }
+
+  private final Metrics metrics;
+
+  public MetricsClient(Client in, Metrics metrics) {
+    super(in);
+    this.metrics = metrics;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void execute(
+      Action<Request, Response, RequestBuilder, Client> action, Request request,
+      ActionListener<Response> listener) {
+    Timed timed =
+        new Timed(metrics.request(action.name()), (ActionListener<ActionResponse>) listener);
+    in().execute(action, request, (ActionListener<Response>) (ActionListener<?>) timed);
+  }
+}
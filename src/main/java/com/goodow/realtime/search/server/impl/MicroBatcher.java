@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Groups entries added from the event loop into batches, flushed when {@code maxActions} entries or
+ * {@code maxBytes} bytes are pending, or {@code lingerMs} milliseconds after the first entry of a
+ * batch arrived, whichever comes first.
+ */
+abstract class MicroBatcher<E> {
+  private final Vertx vertx;
+  private final int maxActions;
+  private final long maxBytes;
+  private final long lingerMs;
+  private List<E> pending = new ArrayList<>();
+  private long pendingBytes;
+  private long timerId = -1;
+
+  MicroBatcher(Vertx vertx, int maxActions, long maxBytes, long lingerMs) {
+    this.vertx = vertx;
+    this.maxActions = maxActions;
+    this.maxBytes = maxBytes;
+    this.lingerMs = lingerMs;
+  }
+
+  void add(E entry, long bytes) {
+    pending.add(entry);
+    pendingBytes += bytes;
+    if (pending.size() >= maxActions || (maxBytes > 0 && pendingBytes >= maxBytes)) {
+      flush();
+    } else if (timerId == -1) {
+      timerId = vertx.setTimer(Math.max(1, lingerMs), new Handler<Long>() {
+        @Override
+        public void handle(Long event) {
+          timerId = -1;
+          flush();
+        }
+      });
+    }
+  }
+
+  void flush() {
+    if (timerId != -1) {
+      vertx.cancelTimer(timerId);
+      timerId = -1;
+    }
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<E> batch = pending;
+    pending = new ArrayList<>();
+    pendingBytes = 0;
+    doFlush(batch);
+  }
+
+  protected abstract void doFlush(List<E> batch);
+}
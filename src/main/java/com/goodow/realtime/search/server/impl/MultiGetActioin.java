@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.indices.IndexMissingException;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+
+public class MultiGetActioin implements Handler<Message<JsonObject>> {
+  private static final String INDEX_MISSING = IndexMissingException.class.getSimpleName() + "[";
+
+  /**
+   * Returns whether the item failed because its index doesn't exist, which is reported as
+   * {@code found: false} like a single get. A multi get item only keeps the message of its failure,
+   * not the exception, so the message is matched: an unknown index is reported by the multi get
+   * action itself as {@code [index] missing}, other failures carry the exception's detailed
+   * message.
+   */
+  static boolean isIndexMissing(MultiGetResponse.Failure failure) {
+    String error = failure.getMessage();
+    return ("[" + failure.getIndex() + "] missing").equals(error) || isIndexMissing(error);
+  }
+
+  /**
+   * Returns whether {@code error}, built by {@link ExceptionsHelper#detailedMessage(Throwable)} for
+   * a failed multi get or multi search item, names an {@link IndexMissingException} as the failure
+   * or one of its causes. Only for failures whose exception is not at hand.
+   */
+  static boolean isIndexMissing(String error) {
+    return error != null
+        && (error.startsWith(INDEX_MISSING) || error.contains("; nested: " + INDEX_MISSING));
+  }
+
+  static void toXContent(MultiGetItemResponse item, XContentBuilder builder) throws IOException {
+    if (!item.isFailed()) {
+      item.getResponse().toXContent(builder, ToXContent.EMPTY_PARAMS);
+      return;
+    }
+    builder.field(ElasticSearchHandler.INDEX, item.getIndex()).field(ElasticSearchHandler.TYPE,
+        item.getType()).field(ElasticSearchHandler.ID, item.getId());
+    if (isIndexMissing(item.getFailure())) {
+      builder.field("found", false);
+    } else {
+      builder.field("error", item.getFailure().getMessage());
+    }
+  }
+
+  private final Logger logger;
+  @Inject private Provider<Client> client;
+  @Inject private RollingIndices rolling;
+
+  @Inject
+  MultiGetActioin(Container container) {
+    logger = container.logger();
+  }
+
+  @Override
+  public void handle(final Message<JsonObject> message) {
+    JsonObject body = message.body();
+    String defaultIndex = body.getString(ElasticSearchHandler.INDEX);
+    String defaultType = body.getString(ElasticSearchHandler.TYPE);
+    MultiGetRequest request = new MultiGetRequest();
+
+    JsonArray docs = body.getArray("docs");
+    if (docs != null) {
+      for (Object obj : docs) {
+        JsonObject doc = (JsonObject) obj;
+        String index = doc.getString(ElasticSearchHandler.INDEX, defaultIndex);
+        String type = doc.getString(ElasticSearchHandler.TYPE, defaultType);
+        String id = doc.getString(ElasticSearchHandler.ID);
+        if (index == null || type == null || id == null) {
+          ElasticSearchHandler.replyFail(logger, message, ElasticSearchHandler.INDEX + ", "
+              + ElasticSearchHandler.TYPE + " and " + ElasticSearchHandler.ID
+              + " are required for every doc", null);
+          return;
+        }
+        if (rolling.rejectLogicalName("mget", index, message)) {
+          return;
+        }
+        request.add(index, type, id);
+      }
+    }
+    JsonArray ids = body.getArray("ids");
+    if (ids != null) {
+      String index = ElasticSearchHandler.getRequiredIndex(logger, body, message);
+      if (index == null) {
+        return;
+      }
+      String type = ElasticSearchHandler.getRequiredType(logger, body, message);
+      if (type == null || rolling.rejectLogicalName("mget", index, message)) {
+        return;
+      }
+      for (Object id : ids) {
+        request.add(index, type, (String) id);
+      }
+    }
+    if (request.getItems().isEmpty()) {
+      ElasticSearchHandler.replyFail(logger, message, "docs or ids is required", null);
+      return;
+    }
+
+    client.get().multiGet(request, new ActionListener<MultiGetResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        ElasticSearchHandler.replyFail(logger, message, "Multi get error: " + e.getMessage(), e);
+      }
+
+      @Override
+      public void onResponse(final MultiGetResponse resp) {
+        ElasticSearchHandler.parseXContent(logger, new ToXContent() {
+          @Override
+          public XContentBuilder toXContent(XContentBuilder builder, Params params)
+              throws IOException {
+            builder.startArray("docs");
+            for (MultiGetItemResponse item : resp.getResponses()) {
+              builder.startObject();
+              MultiGetActioin.toXContent(item, builder);
+              builder.endObject();
+            }
+            return builder.endArray();
+          }
+        }, message);
+      }
+    });
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+
+public class MultiSearchActioin implements Handler<Message<JsonObject>> {
+  /**
+   * Returns whether the item failed because its indices don't exist. Like a multi get item, a
+   * multi search item only keeps the detailed message of its failure, so the message is matched.
+   */
+  static boolean isIndexMissing(MultiSearchResponse.Item item) {
+    return item.isFailure() && MultiGetActioin.isIndexMissing(item.getFailureMessage());
+  }
+
+  private final Logger logger;
+  @Inject private Provider<Client> client;
+  @Inject private SearchActioin search;
+
+  @Inject
+  MultiSearchActioin(Container container) {
+    logger = container.logger();
+  }
+
+  @Override
+  public void handle(final Message<JsonObject> message) {
+    final JsonArray searches = message.body().getArray("searches");
+    if (searches == null || searches.size() == 0) {
+      ElasticSearchHandler.replyFail(logger, message, "searches is required", null);
+      return;
+    }
+    MultiSearchRequest request = new MultiSearchRequest();
+    for (Object obj : searches) {
+      JsonObject body = (JsonObject) obj;
+      try {
+        request.add(search.prepareSearch(body, SearchActioin.getIndices(body)));
+      } catch (IllegalArgumentException e) {
+        ElasticSearchHandler.replyFail(logger, message, "Multi search error: " + e.getMessage(),
+            null);
+        return;
+      }
+    }
+
+    client.get().multiSearch(request, new ActionListener<MultiSearchResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        ElasticSearchHandler.replyFail(logger, message, "Multi search error: " + e.getMessage(),
+            e);
+      }
+
+      @Override
+      public void onResponse(final MultiSearchResponse resp) {
+        ElasticSearchHandler.parseXContent(logger, new ToXContent() {
+          @Override
+          public XContentBuilder toXContent(XContentBuilder builder, Params params)
+              throws IOException {
+            builder.startArray("responses");
+            MultiSearchResponse.Item[] items = resp.getResponses();
+            for (int i = 0; i < items.length; i++) {
+              MultiSearchResponse.Item item = items[i];
+              builder.startObject();
+              if (!item.isFailure()) {
+                Paging.view(searches.<JsonObject> get(i), item.getResponse()).toXContent(builder,
+                    params);
+              } else if (isIndexMissing(item)) {
+                builder.startObject("hits").field("total", 0).startArray("hits").endArray()
+                    .endObject();
+              } else {
+                builder.field("error", item.getFailureMessage());
+              }
+              builder.endObject();
+            }
+            return builder.endArray();
+          }
+        }, message);
+      }
+    });
+  }
+}
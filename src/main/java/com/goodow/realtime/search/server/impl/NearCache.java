@@ -0,0 +1,324 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.goodow.realtime.search.server.SearchVerticle;
+
+import com.google.inject.Singleton;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.inject.Inject;
+
+/**
+ * Bounded LRU cache of encoded get replies of the configured indices, keyed on
+ * {@code _index/_type/_id} and weighted by their size in bytes.
+ * <p>
+ * Acknowledged index requests replace the cached document, while any other write to it drops it.
+ * Every verticle instance has its own cache, so the invalidations are also published to
+ * {@code near_cache.invalidation_address} for the other instances, and entries expire after
+ * {@code near_cache.ttl} to bound the staleness caused by writers outside of this module.
+ * In {@code validate} mode a hit is only served after a get without source confirmed the cached
+ * {@code _version}.
+ */
+@Singleton
+public class NearCache {
+  static class Entry {
+    final long version;
+    final BytesReference bytes;
+    final long expiresAt;
+
+    Entry(long version, BytesReference bytes, long expiresAt) {
+      this.version = version;
+      this.bytes = bytes;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static final String INSTANCE = "instance";
+  private static final int MAX_TOMBSTONES = 10000;
+
+  static String key(String index, String type, String id) {
+    return index + '/' + type + '/' + id;
+  }
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  /**
+   * Sequence number of the latest invalidation of each key, or of each index under its
+   * {@code _index/} prefix, oldest first.
+   */
+  private final LinkedHashMap<String, Long> tombstones = new LinkedHashMap<>();
+  private final Vertx vertx;
+  private final String instance = UUID.randomUUID().toString();
+  private final String invalidationAddress;
+  private final long ttlMillis;
+  private final boolean enabled;
+  private final boolean validate;
+  private final String[] indices;
+  private final long maxWeight;
+  private long weight;
+  private long sequence;
+  // Greatest sequence number of the tombstones evicted
+  private long floor;
+  private long hits;
+  private long misses;
+  private long stale;
+  private long evictions;
+
+  @Inject
+  NearCache(Vertx vertx, Container container) {
+    this.vertx = vertx;
+    JsonObject config = container.config().getObject("near_cache", new JsonObject());
+    enabled = config.getBoolean("enabled", false);
+    String address = container.config().getString("address", SearchVerticle.DEFAULT_ADDRESS);
+    invalidationAddress =
+        config.getString("invalidation_address", address + "/near_cache/invalidate");
+    ttlMillis =
+        TimeValue.parseTimeValue(config.getString("ttl"), TimeValue.timeValueMinutes(1)).millis();
+    validate = config.getBoolean("validate", false);
+    maxWeight = config.getLong("max_size_in_bytes", 32 * 1024 * 1024);
+    JsonArray patterns = config.getArray("indices", new JsonArray());
+    indices = new String[patterns.size()];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = patterns.get(i);
+    }
+  }
+
+  /**
+   * Starts dropping the documents written through the other verticle instances.
+   */
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    vertx.eventBus().registerHandler(invalidationAddress, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> message) {
+        JsonObject body = message.body();
+        if (instance.equals(body.getString(INSTANCE))) {
+          return;
+        }
+        String index = body.getString(ElasticSearchHandler.INDEX);
+        String id = body.getString(ElasticSearchHandler.ID);
+        if (id == null) {
+          drop(index);
+        } else {
+          drop(index, body.getString(ElasticSearchHandler.TYPE), id);
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns whether the documents of {@code index} are cached.
+   */
+  boolean covers(String index) {
+    return enabled && SearchCache.covers(indices, index);
+  }
+
+  boolean isValidating() {
+    return validate;
+  }
+
+  synchronized Entry get(String key) {
+    Entry entry = entries.get(key);
+    if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+      remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+    } else if (!validate) {
+      hits++;
+    }
+    return entry;
+  }
+
+  /**
+   * Records the outcome of validating a hit of {@link #get}, dropping the entry if it is stale.
+   */
+  synchronized void validated(String key, Entry entry, boolean current) {
+    if (current) {
+      hits++;
+      return;
+    }
+    stale++;
+    if (entries.get(key) == entry) {
+      remove(key);
+    }
+  }
+
+  /**
+   * Returns the invalidation sequence number, which must be passed back to {@link #put} so that a
+   * get racing with a write to the same document is not cached.
+   */
+  synchronized long generation() {
+    return sequence;
+  }
+
+  /**
+   * Caches the reply of a get unless its document, or its whole index, was invalidated since
+   * {@code generation} was read.
+   */
+  synchronized void put(String key, long generation, long version, BytesReference bytes) {
+    if (generation < floor || invalidatedSince(key, generation)
+        || invalidatedSince(key.substring(0, key.indexOf('/') + 1), generation)) {
+      return;
+    }
+    doPut(key, version, bytes);
+  }
+
+  /**
+   * Caches the document of an acknowledged index request as a get would return it.
+   */
+  void indexed(IndexRequest request, IndexResponse resp) {
+    if (!covers(resp.getIndex()) || request.source() == null) {
+      return;
+    }
+    BytesReference bytes;
+    try {
+      XContentBuilder builder =
+          XContentFactory.jsonBuilder().startObject().field(ElasticSearchHandler.INDEX,
+              resp.getIndex()).field(ElasticSearchHandler.TYPE, resp.getType()).field(
+              ElasticSearchHandler.ID, resp.getId()).field(ElasticSearchHandler.VERSION,
+              resp.getVersion()).field("found", true);
+      if (XContentFactory.xContentType(request.source()) == XContentType.JSON) {
+        builder.rawField(ElasticSearchHandler.SOURCE, request.source());
+      } else {
+        builder.field(ElasticSearchHandler.SOURCE, request.sourceAsMap());
+      }
+      bytes = builder.endObject().bytes();
+    } catch (IOException e) {
+      return;
+    }
+    String key = key(resp.getIndex(), resp.getType(), resp.getId());
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry == null || entry.version < resp.getVersion()) {
+        doPut(key, resp.getVersion(), bytes);
+      }
+    }
+  }
+
+  /**
+   * Drops every cached document of {@code index}, here and in the other verticle instances.
+   */
+  void invalidate(String index) {
+    if (!covers(index)) {
+      return;
+    }
+    drop(index);
+    publish(new JsonObject().putString(ElasticSearchHandler.INDEX, index));
+  }
+
+  void invalidate(String index, String type, String id) {
+    if (!covers(index)) {
+      return;
+    }
+    drop(index, type, id);
+    publish(new JsonObject().putString(ElasticSearchHandler.INDEX, index).putString(
+        ElasticSearchHandler.TYPE, type).putString(ElasticSearchHandler.ID, id));
+  }
+
+  private void publish(JsonObject invalidation) {
+    vertx.eventBus().publish(invalidationAddress, invalidation.putString(INSTANCE, instance));
+  }
+
+  private synchronized void drop(String index) {
+    String prefix = index + '/';
+    tombstone(prefix);
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Entry> entry = iterator.next();
+      if (entry.getKey().startsWith(prefix)) {
+        weight -= entry.getValue().bytes.length() + entry.getKey().length() * 2;
+        iterator.remove();
+      }
+    }
+  }
+
+  private synchronized void drop(String index, String type, String id) {
+    String key = key(index, type, id);
+    tombstone(key);
+    remove(key);
+  }
+
+  /**
+   * Records an invalidation of {@code key}. Only the most recent tombstones are kept: a get which
+   * started before the eldest evicted one is not cached.
+   */
+  private void tombstone(String key) {
+    tombstones.remove(key);
+    tombstones.put(key, ++sequence);
+    if (tombstones.size() > MAX_TOMBSTONES) {
+      Iterator<Long> eldest = tombstones.values().iterator();
+      floor = eldest.next();
+      eldest.remove();
+    }
+  }
+
+  private boolean invalidatedSince(String key, long generation) {
+    Long invalidated = tombstones.get(key);
+    return invalidated != null && invalidated > generation;
+  }
+
+  synchronized JsonObject stats() {
+    return new JsonObject().putBoolean("enabled", enabled).putBoolean("validate", validate)
+        .putNumber("entries", entries.size()).putNumber("size_in_bytes", weight).putNumber("hits",
+            hits).putNumber("misses", misses).putNumber("stale", stale).putNumber("evictions",
+            evictions);
+  }
+
+  private void doPut(String key, long version, BytesReference bytes) {
+    long entryWeight = bytes.length() + key.length() * 2;
+    if (entryWeight > maxWeight || ttlMillis <= 0) {
+      return;
+    }
+    remove(key);
+    entries.put(key, new Entry(version, bytes, System.currentTimeMillis() + ttlMillis));
+    weight += entryWeight;
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (weight > maxWeight && iterator.hasNext()) {
+      Map.Entry<String, Entry> eldest = iterator.next();
+      weight -= eldest.getValue().bytes.length() + eldest.getKey().length() * 2;
+      iterator.remove();
+      evictions++;
+    }
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      weight -= entry.bytes.length() + key.length() * 2;
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cursor paging of a search, requested with {@code page: true} for the first page, and resumed
+ * with the {@code cursor} replied with each full page.
+ * <p>
+ * Elasticsearch 1.x has no {@code search_after}, so it is emulated: the sort of {@code source}
+ * gets {@code _uid} as tiebreaker, and the query is filtered to the hits sorting after the values
+ * held by the cursor, {@code (s1 > v1) or (s1 = v1 and s2 > v2) or ...}. Every shard then only
+ * collects {@code size} hits whatever the depth of the page, unlike {@code from}, and no search
+ * context is kept open between pages, unlike scroll. Pages sorted by {@code _score} can't be
+ * resumed this way, and the sort fields must be numbers, dates or not analyzed strings present in
+ * every document. A {@code source.from} other than 0 is rejected, since the cursor is the only
+ * position of a page.
+ */
+final class Paging {
+  static final String PAGE = "page";
+  static final String CURSOR = "cursor";
+  private static final String TIEBREAKER = "_uid";
+  private static final int DEFAULT_SIZE = 10;
+
+  /**
+   * Returns the paging requested by {@code body}, or {@code null} if it doesn't page.
+   *
+   * @throws IllegalArgumentException if the sort, the cursor or {@code source.from} can't be paged
+   */
+  static Paging of(JsonObject body) {
+    String cursor = body.getString(CURSOR);
+    if (cursor == null && !body.getBoolean(PAGE, false)) {
+      return null;
+    }
+    if (body.getString("scroll") != null) {
+      throw new IllegalArgumentException("page and cursor can't be combined with scroll");
+    }
+    JsonObject source = body.getObject("source", new JsonObject());
+    return new Paging(source, cursor == null ? null : decode(cursor));
+  }
+
+  /**
+   * Returns what to serialize as the reply of the search {@code body}: the {@link Projection} view,
+   * followed by the {@code cursor} of the next page if the page was full.
+   */
+  static ToXContent view(JsonObject body, SearchResponse resp) {
+    final ToXContent view = Projection.view(body, resp);
+    Paging paging = of(body);
+    SearchHit[] hits = resp.getHits().getHits();
+    // An empty page ends the paging, even with size: 0
+    if (paging == null || hits.length == 0 || hits.length < paging.size) {
+      return view;
+    }
+    final String cursor = encode(hits[hits.length - 1].sortValues());
+    return new ToXContent() {
+      @Override
+      public XContentBuilder toXContent(XContentBuilder builder, Params params)
+          throws IOException {
+        view.toXContent(builder, params);
+        return builder.field(CURSOR, cursor);
+      }
+    };
+  }
+
+  private final JsonArray sort = new JsonArray();
+  private final List<String> fields = new ArrayList<>();
+  private final List<Boolean> descending = new ArrayList<>();
+  private final JsonArray after;
+  private final JsonObject source;
+  private final int size;
+
+  private Paging(JsonObject source, JsonArray after) {
+    this.source = source;
+    this.after = after;
+    size = source.getInteger("size", DEFAULT_SIZE);
+    Object from = source.getValue("from");
+    if (from != null && !(from instanceof Number && ((Number) from).intValue() == 0)) {
+      throw new IllegalArgumentException("source.from can't be combined with page or cursor");
+    }
+    Object spec = source.getValue("sort");
+    if (spec instanceof JsonArray) {
+      for (Object element : (JsonArray) spec) {
+        addSort(element);
+      }
+    } else if (spec != null) {
+      addSort(spec);
+    }
+    if (!fields.contains(TIEBREAKER)) {
+      addSort(TIEBREAKER);
+    }
+    if (after != null && after.size() != fields.size()) {
+      throw new IllegalArgumentException("cursor doesn't match the sort of the search");
+    }
+  }
+
+  /**
+   * Returns {@code source} sorted with the tiebreaker, and filtered to the hits following the
+   * cursor if any.
+   */
+  JsonObject source() {
+    JsonObject paged = source.copy().putArray("sort", sort);
+    if (after == null) {
+      return paged;
+    }
+    JsonArray should = new JsonArray();
+    for (int i = 0; i < fields.size(); i++) {
+      JsonArray must = new JsonArray();
+      for (int j = 0; j < i; j++) {
+        must.addObject(new JsonObject().putObject("term", new JsonObject().putValue(
+            fields.get(j), after.get(j))));
+      }
+      must.addObject(new JsonObject().putObject("range", new JsonObject().putObject(fields.get(i),
+          new JsonObject().putValue(descending.get(i) ? "lt" : "gt", after.get(i)))));
+      should.addObject(new JsonObject().putObject("bool", new JsonObject().putArray("must", must)));
+    }
+    JsonObject query = source.getObject("query", new JsonObject().putObject("match_all",
+        new JsonObject()));
+    return paged.putObject("query", new JsonObject().putObject("filtered", new JsonObject()
+        .putObject("query", query).putObject("filter", new JsonObject().putObject("bool",
+            new JsonObject().putArray("should", should)))));
+  }
+
+  private void addSort(Object element) {
+    String field;
+    String order = "asc";
+    if (element instanceof String) {
+      field = (String) element;
+    } else if (element instanceof JsonObject && ((JsonObject) element).size() == 1) {
+      field = ((JsonObject) element).getFieldNames().iterator().next();
+      Object value = ((JsonObject) element).getValue(field);
+      if (value instanceof String) {
+        order = (String) value;
+      } else if (value instanceof JsonObject) {
+        order = ((JsonObject) value).getString("order", order);
+      }
+    } else {
+      throw new IllegalArgumentException("Unsupported sort " + element);
+    }
+    if ("_score".equals(field)) {
+      throw new IllegalArgumentException("Searches sorted by _score can't be paged");
+    }
+    fields.add(field);
+    descending.add("desc".equalsIgnoreCase(order));
+    sort.add(element);
+  }
+
+  private static String encode(Object[] sortValues) {
+    JsonArray values = new JsonArray();
+    for (Object value : sortValues) {
+      if (value instanceof Text) {
+        values.addString(((Text) value).string());
+      } else if (value instanceof BytesRef) {
+        values.addString(((BytesRef) value).utf8ToString());
+      } else if (value instanceof Number || value == null) {
+        values.add(value);
+      } else {
+        values.addString(value.toString());
+      }
+    }
+    return Base64.encodeBytes(values.encode().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static JsonArray decode(String cursor) {
+    try {
+      return new JsonArray(new String(Base64.decode(cursor), StandardCharsets.UTF_8));
+    } catch (IOException | DecodeException e) {
+      throw new IllegalArgumentException("Invalid cursor " + cursor);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A handle on a bounded set of clients shared by every verticle instance of this JVM which uses the
+ * same connection settings, so that deploying more instances adds event loops but no thread pools
+ * or sniffers. Requests go to the clients in turn, or to the one with the fewest outstanding
+ * requests. The clients are closed with the last handle.
+ */
+public class PooledClient extends FilterClient {
+  public static final String ROUND_ROBIN = "round_robin";
+  public static final String LEAST_OUTSTANDING = "least_outstanding";
+
+  /**
+   * Creates the clients of a pool.
+   */
+  public interface Factory {
+    Client create();
+  }
+
+  private static class Pool {
+    final String key;
+    final Client[] clients;
+    final AtomicIntegerArray outstanding;
+    final AtomicInteger next = new AtomicInteger();
+    final boolean leastOutstanding;
+    // Counted down once the clients are created, or failed to be
+    final CountDownLatch created = new CountDownLatch(1);
+    volatile boolean failed;
+    int handles;
+
+    Pool(String key, int size, boolean leastOutstanding) {
+      this.key = key;
+      this.leastOutstanding = leastOutstanding;
+      clients = new Client[size];
+      outstanding = new AtomicIntegerArray(size);
+    }
+
+    void create(Factory factory) {
+      int i = 0;
+      try {
+        for (; i < clients.length; i++) {
+          clients[i] = factory.create();
+        }
+      } finally {
+        if (i < clients.length) {
+          failed = true;
+          for (int j = 0; j < i; j++) {
+            clients[j].close();
+          }
+          synchronized (pools) {
+            pools.remove(key);
+          }
+        }
+        created.countDown();
+      }
+    }
+
+    void awaitCreated() {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          created.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (failed) {
+        throw new IllegalStateException("Failed to create the clients of " + key);
+      }
+    }
+
+    int select() {
+      if (clients.length == 1) {
+        return 0;
+      }
+      int start = (next.getAndIncrement() & Integer.MAX_VALUE) % clients.length;
+      if (!leastOutstanding) {
+        return start;
+      }
+      int best = start;
+      for (int i = 1; i < clients.length; i++) {
+        int candidate = (start + i) % clients.length;
+        if (outstanding.get(candidate) < outstanding.get(best)) {
+          best = candidate;
+        }
+      }
+      return best;
+    }
+  }
+
+  private static final Map<String, Pool> pools = new HashMap<>();
+
+  /**
+   * Returns a handle on the pool of {@code size} clients identified by {@code key}, creating the
+   * pool with {@code factory} if no handle on it is open. The size and selection of an existing
+   * pool are kept. The clients are created outside of the lock shared by all the pools, and the
+   * ones already created are closed if a later one fails; concurrent callers for the same key wait
+   * for the outcome.
+   */
+  public static PooledClient acquire(String key, int size, String selection, Factory factory) {
+    Pool pool;
+    boolean creator = false;
+    synchronized (pools) {
+      pool = pools.get(key);
+      if (pool == null) {
+        pool = new Pool(key, Math.max(1, size), LEAST_OUTSTANDING.equals(selection));
+        pools.put(key, pool);
+        creator = true;
+      }
+      pool.handles++;
+    }
+    if (creator) {
+      pool.create(factory);
+    } else {
+      pool.awaitCreated();
+    }
+    return new PooledClient(pool);
+  }
+
+  private final Pool pool;
+  private boolean closed;
+
+  private PooledClient(Pool pool) {
+    super(pool.clients[0]);
+    this.pool = pool;
+  }
+
+  @Override
+  protected Client in() {
+    return pool.clients[pool.select()];
+  }
+
+  @Override
+  public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void execute(
+      Action<Request, Response, RequestBuilder, Client> action, Request request,
+      final ActionListener<Response> listener) {
+    final int i = pool.select();
+    pool.outstanding.incrementAndGet(i);
+    pool.clients[i].execute(action, request, new ActionListener<Response>() {
+      @Override
+      public void onFailure(Throwable e) {
+        pool.outstanding.decrementAndGet(i);
+        listener.onFailure(e);
+      }
+
+      @Override
+      public void onResponse(Response response) {
+        pool.outstanding.decrementAndGet(i);
+        listener.onResponse(response);
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    synchronized (pools) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (--pool.handles > 0) {
+        return;
+      }
+      pools.remove(pool.key);
+    }
+    for (Client client : pool.clients) {
+      client.close();
+    }
+  }
+
+  public JsonObject stats() {
+    JsonArray outstanding = new JsonArray();
+    for (int i = 0; i < pool.clients.length; i++) {
+      outstanding.addNumber(pool.outstanding.get(i));
+    }
+    synchronized (pools) {
+      return new JsonObject().putNumber("size", pool.clients.length).putString("selection",
+          pool.leastOutstanding ? LEAST_OUTSTANDING : ROUND_ROBIN).putNumber("handles",
+          pool.handles).putArray("outstanding", outstanding);
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The parts of the documents a get or search replies, from the {@code fields},
+ * {@code _source_include} and {@code _source_exclude} fields of the request, each of which is an
+ * array or a comma separated string. They are pushed down to Elasticsearch, and only applied while
+ * serializing a document already held in memory.
+ */
+class Projection {
+  static final String FIELDS = "fields";
+  static final String SOURCE_INCLUDE = "_source_include";
+  static final String SOURCE_EXCLUDE = "_source_exclude";
+  /**
+   * Replies only the total and the hits of a search, each hit reduced to its {@code _index},
+   * {@code _type}, {@code _id}, {@code _source}, {@code fields} and {@code sort} values.
+   */
+  static final String HITS_ONLY = "hits_only";
+
+  /**
+   * Returns the projection requested by {@code body}, or {@code null} if it asks for whole
+   * documents.
+   */
+  static Projection of(JsonObject body) {
+    String[] fields = strings(body.getValue(FIELDS));
+    String[] includes = strings(body.getValue(SOURCE_INCLUDE));
+    String[] excludes = strings(body.getValue(SOURCE_EXCLUDE));
+    if (fields == null && includes == null && excludes == null) {
+      return null;
+    }
+    return new Projection(fields, includes, excludes);
+  }
+
+  /**
+   * Returns what to serialize as the reply of the search {@code body}: the compact hits if it sets
+   * {@link #HITS_ONLY}, the whole response otherwise.
+   */
+  static ToXContent view(JsonObject body, final SearchResponse resp) {
+    if (!body.getBoolean(HITS_ONLY, false)) {
+      return resp;
+    }
+    return new ToXContent() {
+      @Override
+      public XContentBuilder toXContent(XContentBuilder builder, Params params)
+          throws IOException {
+        builder.field("total", resp.getHits().getTotalHits());
+        builder.startArray("hits");
+        for (SearchHit hit : resp.getHits().getHits()) {
+          builder.startObject();
+          builder.field(ElasticSearchHandler.INDEX, hit.index()).field(ElasticSearchHandler.TYPE,
+              hit.type()).field(ElasticSearchHandler.ID, hit.getId());
+          if (hit.sourceRef() != null) {
+            builder.rawField(ElasticSearchHandler.SOURCE, hit.sourceRef());
+          }
+          if (hit.getFields() != null && !hit.getFields().isEmpty()) {
+            builder.startObject(FIELDS);
+            for (SearchHitField field : hit.getFields().values()) {
+              builder.field(field.getName(), field.getValues());
+            }
+            builder.endObject();
+          }
+          if (hit.sortValues() != null && hit.sortValues().length > 0) {
+            builder.array("sort", hit.sortValues());
+          }
+          builder.endObject();
+        }
+        return builder.endArray();
+      }
+    };
+  }
+
+  private static String[] strings(Object value) {
+    if (value instanceof String) {
+      return ((String) value).split("\\s*,\\s*");
+    } else if (value instanceof JsonArray) {
+      JsonArray array = (JsonArray) value;
+      String[] strings = new String[array.size()];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = array.get(i);
+      }
+      return strings;
+    }
+    return null;
+  }
+
+  final String[] fields;
+  final String[] includes;
+  final String[] excludes;
+
+  private Projection(String[] fields, String[] includes, String[] excludes) {
+    this.fields = fields;
+    this.includes = includes;
+    this.excludes = excludes;
+  }
+
+  /**
+   * Returns whether the projection can be computed from the {@code _source} of a document, which
+   * is not the case of stored fields.
+   */
+  boolean isSourceOnly() {
+    return fields == null;
+  }
+
+  void apply(GetRequestBuilder builder) {
+    if (fields != null) {
+      builder.setFields(fields);
+    }
+    if (includes != null || excludes != null) {
+      builder.setFetchSource(includes, excludes);
+    }
+  }
+
+  void apply(MultiGetRequest.Item item) {
+    if (fields != null) {
+      item.fields(fields);
+    }
+    if (includes != null || excludes != null) {
+      item.fetchSourceContext(new FetchSourceContext(includes, excludes));
+    }
+  }
+
+  void apply(SearchRequestBuilder builder) {
+    if (fields != null) {
+      builder.addFields(fields);
+    }
+    if (includes != null || excludes != null) {
+      builder.setFetchSource(includes, excludes);
+    }
+  }
+
+  /**
+   * Filters the {@code _source} of {@code reply}, the encoded reply of a get for the whole
+   * document.
+   */
+  @SuppressWarnings("unchecked")
+  BytesReference filter(BytesReference reply) throws IOException {
+    Map<String, Object> map = XContentHelper.convertToMap(reply, true).v2();
+    Object source = map.get(ElasticSearchHandler.SOURCE);
+    if (source instanceof Map) {
+      map.put(ElasticSearchHandler.SOURCE, XContentMapValues.filter((Map<String, Object>) source,
+          includes == null ? new String[0] : includes, excludes == null ? new String[0]
+              : excludes));
+    }
+    return XContentFactory.jsonBuilder().map(map).bytes();
+  }
+}
@@ -0,0 +1,915 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesResponse;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesResponse;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+
+/**
+ * Server-side reindex jobs, copying the documents of a {@code source} index into {@code dest},
+ * typically created by an updated index template, and then moving {@code alias} onto it.
+ * <p>
+ * The shards of the source are split into slices scanned in parallel, each shard being only read
+ * by one slice through the {@code _shards} preference. The next page of a slice is scrolled while
+ * the bulk request of the current one is in flight, and the pages are throttled to
+ * {@code requests_per_second} documents per job. Documents keep their version, written with
+ * {@code external_gte}, so copying one twice is harmless and never overwrites a newer write.
+ * <p>
+ * The state of every job is saved in {@code reindex.checkpoint} when a slice completes and every
+ * {@code heartbeat_ms}, with a version check so that a single instance runs a job. A job whose
+ * owner stopped saving it for {@code stale_after_ms}, after a restart or a crash, is taken over by
+ * the next instance to check, and its unfinished slices are scanned again from their start.
+ * <p>
+ * Documents which fail to be copied fail the job once every slice is done, leaving {@code alias}
+ * where it was, unless the job allows failures. Resuming it copies the slices holding them again.
+ */
+@Singleton
+public class Reindexer {
+  static final String JOB = "_job";
+  private static final String PENDING = "pending";
+  private static final String RUNNING = "running";
+  private static final String SWAPPING = "swapping";
+  private static final String DONE = "done";
+  private static final String FAILED = "failed";
+  private static final String CANCELLED = "cancelled";
+
+  private class Job {
+    final String id;
+    final String source;
+    final String dest;
+    final String alias;
+    final JsonObject query;
+    final int batchSize;
+    final double docsPerSecond;
+    final String index;
+    final int[][] shards;
+    final String[] states;
+    final long[] docs;
+    final long[] failed;
+    final long[] conflicts;
+    final long[] totals;
+    final boolean allowFailures;
+    String state = RUNNING;
+    String error;
+    long startedAt = System.currentTimeMillis();
+    long finishedAt = -1;
+    /**
+     * Version of the saved state, -1 until it is created.
+     */
+    long version = -1;
+    boolean saving;
+    boolean dirty;
+    volatile boolean stopped;
+
+    Job(String id, JsonObject body, String index, int slices, int numberOfShards) {
+      this.id = id;
+      source = body.getString("source");
+      dest = body.getString("dest");
+      alias = body.getString("alias");
+      query = body.getObject("query");
+      batchSize = body.getInteger("batch_size", defaultBatchSize);
+      Number rate = body.getNumber("requests_per_second");
+      docsPerSecond = rate == null ? defaultDocsPerSecond : rate.doubleValue();
+      allowFailures = body.getBoolean("allow_failures", false);
+      this.index = index;
+      shards = new int[slices][];
+      for (int slice = 0; slice < slices; slice++) {
+        shards[slice] = new int[(numberOfShards - slice + slices - 1) / slices];
+        for (int i = 0; i < shards[slice].length; i++) {
+          shards[slice][i] = slice + i * slices;
+        }
+      }
+      states = new String[slices];
+      docs = new long[slices];
+      failed = new long[slices];
+      conflicts = new long[slices];
+      totals = new long[slices];
+      for (int slice = 0; slice < slices; slice++) {
+        states[slice] = PENDING;
+        totals[slice] = -1;
+      }
+    }
+
+    /**
+     * Restores a saved job, whose unfinished slices, and those which failed to copy documents, are
+     * pending again.
+     */
+    Job(JsonObject saved, long version) {
+      this(saved.getString(JOB), restored(saved), saved.getString("index"), saved.getArray(
+          "slices").size(), 0);
+      this.version = version;
+      error = saved.getString("error");
+      startedAt = saved.getLong("started", startedAt);
+      JsonArray slices = saved.getArray("slices");
+      for (int slice = 0; slice < slices.size(); slice++) {
+        JsonObject json = slices.get(slice);
+        JsonArray array = json.getArray("shards");
+        shards[slice] = new int[array.size()];
+        for (int i = 0; i < array.size(); i++) {
+          shards[slice][i] = ((Number) array.get(i)).intValue();
+        }
+        if (DONE.equals(json.getString("state")) && json.getLong("failed", 0) == 0) {
+          states[slice] = DONE;
+          docs[slice] = json.getLong("docs", 0);
+          conflicts[slice] = json.getLong("conflicts", 0);
+          totals[slice] = json.getLong("total", -1);
+        }
+      }
+    }
+
+    synchronized JsonObject toJson() {
+      JsonArray slices = new JsonArray();
+      long copied = 0;
+      long failures = 0;
+      long conflicted = 0;
+      long total = 0;
+      for (int slice = 0; slice < states.length; slice++) {
+        JsonArray array = new JsonArray();
+        for (int shard : shards[slice]) {
+          array.addNumber(shard);
+        }
+        slices.addObject(new JsonObject().putArray("shards", array).putString("state",
+            states[slice]).putNumber("docs", docs[slice]).putNumber("failed", failed[slice])
+            .putNumber("conflicts", conflicts[slice]).putNumber("total", totals[slice]));
+        copied += docs[slice];
+        failures += failed[slice];
+        conflicted += conflicts[slice];
+        total = total < 0 || totals[slice] < 0 ? -1 : total + totals[slice];
+      }
+      JsonObject json =
+          new JsonObject().putString(JOB, id).putString("source", source).putString("dest", dest)
+              .putString("alias", alias).putString("index", index).putString("state", state)
+              .putString("error", error).putNumber("docs", copied).putNumber("total", total)
+              .putNumber("failed", failures).putNumber("conflicts", conflicted).putBoolean(
+                  "allow_failures", allowFailures).putNumber("batch_size", batchSize).putNumber(
+                  "requests_per_second", docsPerSecond).putNumber("started", startedAt)
+              .putNumber("finished", finishedAt).putArray("slices", slices);
+      if (query != null) {
+        json.putObject("query", query);
+      }
+      return json;
+    }
+
+    synchronized long failed() {
+      long sum = 0;
+      for (long sliceFailed : failed) {
+        sum += sliceFailed;
+      }
+      return sum;
+    }
+
+    String preference(int slice) {
+      StringBuilder preference = new StringBuilder("_shards:");
+      for (int i = 0; i < shards[slice].length; i++) {
+        preference.append(i == 0 ? "" : ",").append(shards[slice][i]);
+      }
+      return preference.toString();
+    }
+  }
+
+  private final Logger logger;
+  private final Vertx vertx;
+  private final String checkpointIndex;
+  private final String checkpointType;
+  private final int defaultBatchSize;
+  private final double defaultDocsPerSecond;
+  private final TimeValue scroll;
+  private final int maxRetries;
+  private final long heartbeatMs;
+  private final long staleAfterMs;
+  /**
+   * Identifies the instance owning a job in its saved state.
+   */
+  private final String owner = Strings.base64UUID();
+  private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+  @Inject private Provider<Client> client;
+
+  @Inject
+  Reindexer(Vertx vertx, Container container) {
+    this.vertx = vertx;
+    logger = container.logger();
+    JsonObject config = container.config().getObject("reindex", new JsonObject());
+    JsonObject location = config.getObject("checkpoint", new JsonObject());
+    checkpointIndex = location.getString(ElasticSearchHandler.INDEX, "realtime_reindex");
+    checkpointType = location.getString(ElasticSearchHandler.TYPE, "job");
+    defaultBatchSize = config.getInteger("batch_size", 500);
+    Number rate = config.getNumber("requests_per_second");
+    defaultDocsPerSecond = rate == null ? 0 : rate.doubleValue();
+    scroll = TimeValue.parseTimeValue(config.getString("scroll"), TimeValue.timeValueMinutes(5));
+    maxRetries = config.getInteger("max_retries", 5);
+    heartbeatMs = config.getLong("heartbeat_ms", 5000);
+    staleAfterMs = config.getLong("stale_after_ms", 60000);
+  }
+
+  /**
+   * Starts saving the running jobs, and taking over the stale ones.
+   */
+  public void start() {
+    vertx.setPeriodic(heartbeatMs, new Handler<Long>() {
+      @Override
+      public void handle(Long timerId) {
+        for (Job job : jobs.values()) {
+          if (!job.stopped) {
+            save(job);
+          }
+        }
+        takeOver();
+      }
+    });
+  }
+
+  /**
+   * Starts copying {@code source} into {@code dest} in {@code slices} parallel slices, or resumes
+   * the unfinished slices of the job {@code _job} if {@code source} is missing, and replies with
+   * the state of the job.
+   */
+  void reindex(final Message<JsonObject> message) {
+    final JsonObject body = message.body();
+    final String id = body.getString(JOB);
+    if (body.getString("source") == null) {
+      if (id == null) {
+        ElasticSearchHandler.replyFail(logger, message,
+            "source and dest, or _job must be specified", null);
+        return;
+      }
+      resume(id, message);
+      return;
+    }
+    String dest = body.getString("dest");
+    if (dest == null || dest.equals(body.getString("source"))) {
+      ElasticSearchHandler.replyFail(logger, message, "dest must be specified, and differ from "
+          + "source", null);
+      return;
+    }
+    client.get().admin().indices().prepareGetSettings(body.getString("source")).execute(
+        new ActionListener<GetSettingsResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            ElasticSearchHandler.replyFail(logger, message, "Reindex error: " + e.getMessage(), e);
+          }
+
+          @Override
+          public void onResponse(GetSettingsResponse resp) {
+            ImmutableOpenMap<String, Settings> settings = resp.getIndexToSettings();
+            if (settings.size() != 1) {
+              ElasticSearchHandler.replyFail(logger, message, "Reindex error: source must resolve "
+                  + "to exactly one index", null);
+              return;
+            }
+            String index = settings.keysIt().next();
+            int numberOfShards =
+                settings.get(index).getAsInt(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1);
+            int slices = Math.max(1, Math.min(numberOfShards, body.getInteger("slices",
+                numberOfShards)));
+            final Job job = new Job(id == null ? Strings.base64UUID() : id, body, index, slices,
+                numberOfShards);
+            claim(job, new Handler<Throwable>() {
+              @Override
+              public void handle(Throwable e) {
+                if (e != null) {
+                  ElasticSearchHandler.replyFail(logger, message, "Reindex error: "
+                      + e.getMessage(), e);
+                  return;
+                }
+                run(job);
+                message.reply(job.toJson());
+              }
+            });
+          }
+        });
+  }
+
+  /**
+   * Replies with the state of the job {@code _job}, or of the jobs run by this instance.
+   */
+  void status(final Message<JsonObject> message) {
+    String id = message.body().getString(JOB);
+    if (id == null) {
+      JsonArray array = new JsonArray();
+      for (Job job : jobs.values()) {
+        array.addObject(job.toJson());
+      }
+      message.reply(new JsonObject().putArray("jobs", array));
+      return;
+    }
+    Job job = jobs.get(id);
+    if (job != null) {
+      message.reply(job.toJson());
+      return;
+    }
+    client.get().prepareGet(checkpointIndex, checkpointType, id).execute(
+        new ActionListener<GetResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            ElasticSearchHandler.replyFail(logger, message, "Reindex status error: "
+                + e.getMessage(), e);
+          }
+
+          @Override
+          public void onResponse(GetResponse resp) {
+            if (!resp.isExists()) {
+              ElasticSearchHandler.replyFail(logger, message, "Reindex job not found", null);
+              return;
+            }
+            message.reply(new JsonObject(resp.getSourceAsMap()));
+          }
+        });
+  }
+
+  /**
+   * Stops the job {@code _job} run by this instance. It can be resumed later.
+   */
+  void cancel(Message<JsonObject> message) {
+    Job job = jobs.get(message.body().getString(JOB));
+    if (job == null) {
+      ElasticSearchHandler.replyFail(logger, message, "Reindex job not found", null);
+      return;
+    }
+    synchronized (job) {
+      if (RUNNING.equals(job.state)) {
+        job.state = CANCELLED;
+      }
+    }
+    job.stopped = true;
+    save(job);
+    message.reply(job.toJson());
+  }
+
+  JsonObject stats() {
+    long running = 0;
+    long docs = 0;
+    long failed = 0;
+    for (Job job : jobs.values()) {
+      synchronized (job) {
+        running += RUNNING.equals(job.state) ? 1 : 0;
+        for (long sliceDocs : job.docs) {
+          docs += sliceDocs;
+        }
+        failed += job.failed();
+      }
+    }
+    return new JsonObject().putNumber("jobs", jobs.size()).putNumber("running", running)
+        .putNumber("docs", docs).putNumber("failed", failed);
+  }
+
+  private void resume(final String id, final Message<JsonObject> message) {
+    Job local = jobs.get(id);
+    if (local != null && !local.stopped) {
+      message.reply(local.toJson());
+      return;
+    }
+    client.get().prepareGet(checkpointIndex, checkpointType, id).execute(
+        new ActionListener<GetResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            ElasticSearchHandler.replyFail(logger, message, "Reindex error: " + e.getMessage(), e);
+          }
+
+          @Override
+          public void onResponse(GetResponse resp) {
+            if (!resp.isExists()) {
+              ElasticSearchHandler.replyFail(logger, message, "Reindex job not found", null);
+              return;
+            }
+            JsonObject saved = new JsonObject(resp.getSourceAsMap());
+            if (DONE.equals(saved.getString("state"))) {
+              message.reply(saved);
+              return;
+            }
+            final Job job = new Job(saved, resp.getVersion());
+            claim(job, new Handler<Throwable>() {
+              @Override
+              public void handle(Throwable e) {
+                if (e != null) {
+                  ElasticSearchHandler.replyFail(logger, message, "Reindex error: "
+                      + e.getMessage(), e);
+                  return;
+                }
+                run(job);
+                message.reply(job.toJson());
+              }
+            });
+          }
+        });
+  }
+
+  /**
+   * Runs the saved jobs still running whose owner stopped saving them.
+   */
+  private void takeOver() {
+    client.get().prepareSearch(checkpointIndex).setTypes(checkpointType).setVersion(true).setSize(
+        100).setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(), FilterBuilders
+        .andFilter(FilterBuilders.termFilter("state", RUNNING), FilterBuilders.rangeFilter(
+            "heartbeat").lt(System.currentTimeMillis() - staleAfterMs)))).execute(
+        new ActionListener<SearchResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            if (!(e instanceof IndexMissingException)
+                && !(e.getCause() instanceof IndexMissingException)) {
+              logger.warn("Looking up stale reindex jobs failed: " + e.getMessage());
+            }
+          }
+
+          @Override
+          public void onResponse(SearchResponse resp) {
+            for (SearchHit hit : resp.getHits().getHits()) {
+              if (jobs.containsKey(hit.getId())) {
+                continue;
+              }
+              final Job job = new Job(new JsonObject(hit.getSource()), hit.getVersion());
+              claim(job, new Handler<Throwable>() {
+                @Override
+                public void handle(Throwable e) {
+                  if (e == null) {
+                    logger.info("Resuming reindex job " + job.id + " of " + job.source + " into "
+                        + job.dest);
+                    run(job);
+                  }
+                }
+              });
+            }
+          }
+        });
+  }
+
+  /**
+   * Saves {@code job} as owned by this instance, failing if another instance saved it since it was
+   * read.
+   */
+  private void claim(final Job job, final Handler<Throwable> done) {
+    IndexRequestBuilder builder =
+        client.get().prepareIndex(checkpointIndex, checkpointType, job.id).setSource(
+            checkpoint(job).encode());
+    if (job.version < 0) {
+      builder.setCreate(true);
+    } else {
+      builder.setVersion(job.version);
+    }
+    builder.execute(new ActionListener<IndexResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        done.handle(e);
+      }
+
+      @Override
+      public void onResponse(IndexResponse resp) {
+        synchronized (job) {
+          job.version = resp.getVersion();
+        }
+        jobs.put(job.id, job);
+        done.handle(null);
+      }
+    });
+  }
+
+  /**
+   * Returns the saved state of {@code job}, whose query is kept encoded so that the queries of
+   * different jobs don't clash in the mapping of the checkpoint index.
+   */
+  private JsonObject checkpoint(Job job) {
+    JsonObject json = job.toJson();
+    JsonObject query = (JsonObject) json.removeField("query");
+    if (query != null) {
+      json.putString("query_source", query.encode());
+    }
+    return json.putString("owner", owner).putNumber("heartbeat", System.currentTimeMillis());
+  }
+
+  private static JsonObject restored(JsonObject saved) {
+    String query = saved.getString("query_source");
+    return query == null ? saved : saved.copy().putObject("query", new JsonObject(query));
+  }
+
+  /**
+   * Saves the state of {@code job}, once at a time. A job saved by another instance meanwhile is
+   * stopped here.
+   */
+  private void save(final Job job) {
+    synchronized (job) {
+      if (job.saving) {
+        job.dirty = true;
+        return;
+      }
+      job.saving = true;
+      job.dirty = false;
+    }
+    client.get().prepareIndex(checkpointIndex, checkpointType, job.id).setSource(
+        checkpoint(job).encode()).setVersion(job.version).execute(
+        new ActionListener<IndexResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            if (e instanceof VersionConflictEngineException
+                || e.getCause() instanceof VersionConflictEngineException) {
+              logger.warn("Reindex job " + job.id + " was taken over by another instance");
+              job.stopped = true;
+              jobs.remove(job.id);
+            } else {
+              logger.error("Saving reindex job " + job.id + " failed", e);
+            }
+            saved(job);
+          }
+
+          @Override
+          public void onResponse(IndexResponse resp) {
+            synchronized (job) {
+              job.version = resp.getVersion();
+            }
+            saved(job);
+          }
+        });
+  }
+
+  private void saved(Job job) {
+    boolean again;
+    synchronized (job) {
+      job.saving = false;
+      again = job.dirty && jobs.containsKey(job.id);
+    }
+    if (again) {
+      save(job);
+    }
+  }
+
+  private void run(Job job) {
+    for (int slice = 0; slice < job.states.length; slice++) {
+      synchronized (job) {
+        if (DONE.equals(job.states[slice])) {
+          continue;
+        }
+        job.states[slice] = RUNNING;
+        job.docs[slice] = 0;
+        job.failed[slice] = 0;
+        job.conflicts[slice] = 0;
+      }
+      scan(job, slice);
+    }
+    finishIfDone(job);
+  }
+
+  private void scan(final Job job, final int slice) {
+    SearchRequestBuilder search =
+        client.get().prepareSearch(job.index).setSearchType(SearchType.SCAN).setScroll(scroll)
+            .setSize(job.batchSize).setPreference(job.preference(slice)).setVersion(true)
+            .addFields("_source", "_routing", "_parent");
+    if (job.query != null) {
+      search.setExtraSource(new JsonObject().putObject("query", job.query).encode());
+    }
+    search.execute(new ActionListener<SearchResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        failed(job, slice, e);
+      }
+
+      @Override
+      public void onResponse(SearchResponse resp) {
+        synchronized (job) {
+          job.totals[slice] = resp.getHits().getTotalHits();
+        }
+        scroll(job, slice, resp.getScrollId(), new Handler<SearchResponse>() {
+          @Override
+          public void handle(SearchResponse page) {
+            page(job, slice, page);
+          }
+        });
+      }
+    });
+  }
+
+  private void scroll(final Job job, final int slice, final String scrollId,
+      final Handler<SearchResponse> handler) {
+    client.get().prepareSearchScroll(scrollId).setScroll(scroll).execute(
+        new ActionListener<SearchResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            client.get().prepareClearScroll().addScrollId(scrollId).execute();
+            failed(job, slice, e);
+            handler.handle(null);
+          }
+
+          @Override
+          public void onResponse(SearchResponse resp) {
+            handler.handle(resp);
+          }
+        });
+  }
+
+  /**
+   * Writes the hits of {@code resp} while scrolling the next page, and goes on with it once both
+   * are done and the throttle allows.
+   */
+  private void page(final Job job, final int slice, SearchResponse resp) {
+    if (resp == null) {
+      return;
+    }
+    SearchHit[] hits = resp.getHits().getHits();
+    if (job.stopped || hits.length == 0) {
+      client.get().prepareClearScroll().addScrollId(resp.getScrollId()).execute();
+      if (!job.stopped) {
+        synchronized (job) {
+          job.states[slice] = DONE;
+        }
+        save(job);
+        finishIfDone(job);
+      }
+      return;
+    }
+    final long start = System.nanoTime();
+    final int count = hits.length;
+    final AtomicInteger pending = new AtomicInteger(2);
+    final AtomicReference<SearchResponse> next = new AtomicReference<>();
+    final Runnable proceed = new Runnable() {
+      @Override
+      public void run() {
+        if (pending.decrementAndGet() != 0) {
+          return;
+        }
+        long delay = throttle(job, count, System.nanoTime() - start);
+        if (delay <= 0) {
+          page(job, slice, next.get());
+          return;
+        }
+        client.get().threadPool().schedule(TimeValue.timeValueNanos(delay), ThreadPool.Names.SAME,
+            new Runnable() {
+              @Override
+              public void run() {
+                page(job, slice, next.get());
+              }
+            });
+      }
+    };
+    List<IndexRequest> requests = new ArrayList<>(hits.length);
+    for (SearchHit hit : hits) {
+      IndexRequest request =
+          new IndexRequest(job.dest, hit.getType(), hit.getId()).source(hit.sourceRef(), false);
+      if (hit.getVersion() >= 0) {
+        request.version(hit.getVersion()).versionType(VersionType.EXTERNAL_GTE);
+      }
+      SearchHitField routing = hit.field("_routing");
+      if (routing != null) {
+        request.routing(routing.<String> getValue());
+      }
+      SearchHitField parent = hit.field("_parent");
+      if (parent != null) {
+        request.parent(parent.<String> getValue());
+      }
+      requests.add(request);
+    }
+    write(job, slice, requests, 0, new Handler<Throwable>() {
+      @Override
+      public void handle(Throwable e) {
+        if (e != null) {
+          failed(job, slice, e);
+        }
+        proceed.run();
+      }
+    });
+    scroll(job, slice, resp.getScrollId(), new Handler<SearchResponse>() {
+      @Override
+      public void handle(SearchResponse page) {
+        next.set(page);
+        proceed.run();
+      }
+    });
+  }
+
+  /**
+   * Returns the nanoseconds to wait before the next page of a slice, which wrote {@code count}
+   * documents in {@code elapsed} nanoseconds.
+   */
+  private long throttle(Job job, int count, long elapsed) {
+    if (job.docsPerSecond <= 0) {
+      return 0;
+    }
+    double sliceDocsPerSecond = job.docsPerSecond / job.states.length;
+    return (long) (count / sliceDocsPerSecond * TimeUnit.SECONDS.toNanos(1)) - elapsed;
+  }
+
+  /**
+   * Writes {@code requests} in a bulk, retrying those rejected by a busy cluster with an
+   * exponential backoff.
+   */
+  private void write(final Job job, final int slice, final List<IndexRequest> requests,
+      final int attempt, final Handler<Throwable> done) {
+    BulkRequest bulk = new BulkRequest();
+    for (IndexRequest request : requests) {
+      bulk.add(request);
+    }
+    client.get().bulk(bulk, new ActionListener<BulkResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        if (ExceptionsHelper.unwrapCause(e) instanceof EsRejectedExecutionException
+            && attempt < maxRetries) {
+          retry(job, slice, requests, attempt, done);
+        } else {
+          done.handle(e);
+        }
+      }
+
+      @Override
+      public void onResponse(BulkResponse resp) {
+        List<IndexRequest> rejected = new ArrayList<>();
+        long written = 0;
+        long conflicts = 0;
+        long failed = 0;
+        String error = null;
+        for (BulkItemResponse item : resp.getItems()) {
+          if (!item.isFailed()) {
+            written++;
+            continue;
+          }
+          RestStatus status = item.getFailure().getStatus();
+          if (status == RestStatus.CONFLICT) {
+            // A newer version was written to dest meanwhile
+            conflicts++;
+          } else if ((status == RestStatus.TOO_MANY_REQUESTS
+              || status == RestStatus.SERVICE_UNAVAILABLE) && attempt < maxRetries) {
+            rejected.add(requests.get(item.getItemId()));
+          } else {
+            failed++;
+            error = item.getFailureMessage();
+          }
+        }
+        synchronized (job) {
+          job.docs[slice] += written;
+          job.conflicts[slice] += conflicts;
+          job.failed[slice] += failed;
+          if (error != null) {
+            job.error = error;
+          }
+        }
+        if (rejected.isEmpty()) {
+          done.handle(null);
+        } else {
+          retry(job, slice, rejected, attempt, done);
+        }
+      }
+    });
+  }
+
+  private void retry(final Job job, final int slice, final List<IndexRequest> requests,
+      final int attempt, final Handler<Throwable> done) {
+    client.get().threadPool().schedule(TimeValue.timeValueMillis(100L << attempt),
+        ThreadPool.Names.SAME, new Runnable() {
+          @Override
+          public void run() {
+            write(job, slice, requests, attempt + 1, done);
+          }
+        });
+  }
+
+  private void failed(Job job, int slice, Throwable e) {
+    logger.error("Reindex job " + job.id + " failed on slice " + slice, e);
+    synchronized (job) {
+      if (job.stopped) {
+        return;
+      }
+      job.states[slice] = FAILED;
+      job.state = FAILED;
+      job.error = e.getMessage();
+    }
+    job.stopped = true;
+    save(job);
+  }
+
+  /**
+   * Moves {@code alias} onto {@code dest} once every slice is done, and completes the job. A job
+   * which failed to copy documents fails instead, unless it allows failures.
+   */
+  private void finishIfDone(final Job job) {
+    String error = null;
+    synchronized (job) {
+      for (String state : job.states) {
+        if (!DONE.equals(state)) {
+          return;
+        }
+      }
+      if (!RUNNING.equals(job.state)) {
+        return;
+      }
+      long failed = job.failed();
+      if (failed > 0 && !job.allowFailures) {
+        error = failed + " documents failed to be copied, the last one with: " + job.error;
+      } else {
+        job.state = SWAPPING;
+      }
+    }
+    if (error != null) {
+      finished(job, error);
+      return;
+    }
+    if (job.alias == null) {
+      finished(job, null);
+      return;
+    }
+    client.get().admin().indices().prepareGetAliases(job.alias).execute(
+        new ActionListener<GetAliasesResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            finished(job, "Moving alias " + job.alias + " failed: " + e.getMessage());
+          }
+
+          @Override
+          public void onResponse(GetAliasesResponse resp) {
+            IndicesAliasesRequestBuilder aliases = client.get().admin().indices().prepareAliases();
+            for (ObjectCursor<String> index : resp.getAliases().keys()) {
+              for (AliasMetaData alias : resp.getAliases().get(index.value)) {
+                if (alias.alias().equals(job.alias) && !index.value.equals(job.dest)) {
+                  aliases.removeAlias(index.value, job.alias);
+                }
+              }
+            }
+            aliases.addAlias(job.dest, job.alias).execute(
+                new ActionListener<IndicesAliasesResponse>() {
+                  @Override
+                  public void onFailure(Throwable e) {
+                    finished(job, "Moving alias " + job.alias + " failed: " + e.getMessage());
+                  }
+
+                  @Override
+                  public void onResponse(IndicesAliasesResponse resp) {
+                    finished(job, null);
+                  }
+                });
+          }
+        });
+  }
+
+  private void finished(Job job, String error) {
+    synchronized (job) {
+      job.state = error == null ? DONE : FAILED;
+      job.finishedAt = System.currentTimeMillis();
+      if (error != null) {
+        job.error = error;
+      }
+    }
+    job.stopped = true;
+    JsonObject json = job.toJson();
+    logger.info("Reindex job " + job.id + " of " + job.source + " into " + job.dest + " "
+        + json.getString("state") + " after copying " + json.getLong("docs") + " documents in "
+        + (job.finishedAt - job.startedAt) + "ms");
+    save(job);
+  }
+}
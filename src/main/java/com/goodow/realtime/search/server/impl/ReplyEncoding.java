@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary and compressed encodings of large replies, which shrink what crosses the network when
+ * the event bus is clustered.
+ * <p>
+ * A get, search or scroll whose {@code format} is {@link #SMILE}, {@link #CBOR} or
+ * {@link #DEFLATE} is replied as a Buffer in that encoding when its JSON form is at least
+ * {@link #ENCODE_ABOVE} bytes long, and as a JsonObject otherwise. Callers turn either into a
+ * JsonObject with {@link #decode}.
+ */
+public final class ReplyEncoding {
+  /**
+   * Binary JSON as written by Elasticsearch's SMILE content type.
+   */
+  public static final String SMILE = "smile";
+  public static final String CBOR = "cbor";
+  /**
+   * JSON compressed with zlib.
+   */
+  public static final String DEFLATE = "deflate";
+  /**
+   * Request field: the size in bytes from which replies are encoded, 4096 by default.
+   */
+  public static final String ENCODE_ABOVE = "encode_above";
+  static final int DEFAULT_ENCODE_ABOVE = 4096;
+
+  /**
+   * Returns the body of a reply to a message sent with any {@code format} as a JsonObject.
+   */
+  public static JsonObject decode(Object body) throws IOException {
+    if (body == null || body instanceof JsonObject) {
+      return (JsonObject) body;
+    }
+    byte[] bytes = ((Buffer) body).getBytes();
+    // zlib streams start with 0x78, which neither JSON, SMILE nor CBOR objects do
+    if (bytes.length > 0 && bytes[0] == 0x78) {
+      InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(bytes));
+      BytesStreamOutput out = new BytesStreamOutput(bytes.length * 4);
+      Streams.copy(in, out);
+      return new JsonObject(XContentHelper.convertToMap(out.bytes(), false).v2());
+    }
+    return new JsonObject(XContentHelper.convertToMap(bytes, false).v2());
+  }
+
+  static boolean isEncoding(String format) {
+    return SMILE.equals(format) || CBOR.equals(format) || DEFLATE.equals(format);
+  }
+
+  /**
+   * Encodes {@code json} in {@code format}, one of {@link #isEncoding}.
+   */
+  static Buffer encode(BytesReference json, String format) throws IOException {
+    if (DEFLATE.equals(format)) {
+      BytesStreamOutput out = new BytesStreamOutput(Math.max(256, json.length() / 4));
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 8192);
+        json.writeTo(deflated);
+        deflated.finish();
+      } finally {
+        deflater.end();
+      }
+      return ElasticSearchHandler.toBuffer(out.bytes());
+    }
+    XContentParser parser = XContentFactory.xContent(XContentType.JSON).createParser(json);
+    try {
+      XContentBuilder builder =
+          XContentFactory.contentBuilder(SMILE.equals(format) ? XContentType.SMILE
+              : XContentType.CBOR);
+      parser.nextToken();
+      builder.copyCurrentStructure(parser);
+      return ElasticSearchHandler.toBuffer(builder.bytes());
+    } finally {
+      parser.close();
+    }
+  }
+
+  private ReplyEncoding() {
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Canonical form of a request body: object keys are sorted, {@code _indices} and {@code _types} are
+ * sorted, and fields which only affect how the reply is delivered are left out. Two messages with
+ * the same key produce the same Elasticsearch response.
+ */
+final class RequestKey {
+  private static final Set<String> REPLY_FIELDS = new HashSet<>(Arrays.asList(
+      ElasticSearchHandler.FORMAT, "no_cache", "cache_ttl"));
+  private static final Set<String> UNORDERED_FIELDS = new HashSet<>(Arrays.asList("_indices",
+      "_types"));
+
+  @SuppressWarnings("unchecked")
+  static String of(JsonObject body) {
+    Map<String, Object> canonical = new TreeMap<>();
+    for (Map.Entry<String, Object> entry : body.toMap().entrySet()) {
+      if (REPLY_FIELDS.contains(entry.getKey())) {
+        continue;
+      }
+      Object value = canonical(entry.getValue());
+      if (UNORDERED_FIELDS.contains(entry.getKey()) && value instanceof List) {
+        Collections.sort((List) value);
+      }
+      canonical.put(entry.getKey(), value);
+    }
+    try {
+      return XContentFactory.jsonBuilder().map(canonical).string();
+    } catch (IOException e) {
+      throw new IllegalStateException("Can't encode request key", e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object canonical(Object value) {
+    if (value instanceof Map) {
+      Map<String, Object> sorted = new TreeMap<>();
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+        sorted.put(entry.getKey(), canonical(entry.getValue()));
+      }
+      return sorted;
+    } else if (value instanceof List) {
+      List<Object> list = new ArrayList<>();
+      for (Object item : (List<Object>) value) {
+        list.add(canonical(item));
+      }
+      return list;
+    }
+    return value;
+  }
+
+  private RequestKey() {
+  }
+}
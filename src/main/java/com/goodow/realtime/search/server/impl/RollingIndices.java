@@ -0,0 +1,417 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.joda.time.DateTime;
+import org.elasticsearch.common.joda.time.DateTimeZone;
+import org.elasticsearch.common.joda.time.format.DateTimeFormat;
+import org.elasticsearch.common.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
+import org.elasticsearch.common.unit.TimeValue;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+/**
+ * Time-bucketed indices behind a logical index name, configured in {@code rolling.indices}.
+ * <p>
+ * Documents indexed into a logical name {@code events} are written to the index of the bucket
+ * holding their {@code timestamp_field} (or the current time), such as {@code events-2015.03.01}
+ * for a daily {@code interval}. With {@code max_docs}, a bucket which grew too big rolls over to
+ * {@code events-2015.03.01-1}, and so on. A template puts every bucket behind the alias
+ * {@code events}, so that reads of the logical name see all of them; a search with a
+ * {@code time_range} only targets the buckets overlapping it. Every {@code check_interval_ms},
+ * buckets which ended more than {@code retention} ago are deleted.
+ */
+@Singleton
+public class RollingIndices {
+  static final String TIME_RANGE = "time_range";
+  /**
+   * Beyond this number of buckets, a time range search goes through the alias instead.
+   */
+  private static final int MAX_BUCKETS = 1000;
+  private static final DateTimeFormatter TIMESTAMP_PARSER =
+      ISODateTimeFormat.dateOptionalTimeParser().withZoneUTC();
+
+  enum Interval {
+    HOUR("yyyy.MM.dd.HH"), DAY("yyyy.MM.dd"), MONTH("yyyy.MM");
+
+    final int length;
+    final DateTimeFormatter format;
+
+    Interval(String pattern) {
+      length = pattern.length();
+      format = DateTimeFormat.forPattern(pattern).withZoneUTC();
+    }
+
+    long floor(long millis) {
+      DateTime time = new DateTime(millis, DateTimeZone.UTC);
+      switch (this) {
+        case HOUR:
+          return time.hourOfDay().roundFloorCopy().getMillis();
+        case DAY:
+          return time.dayOfMonth().roundFloorCopy().getMillis();
+        default:
+          return time.monthOfYear().roundFloorCopy().getMillis();
+      }
+    }
+
+    long next(long start) {
+      DateTime time = new DateTime(start, DateTimeZone.UTC);
+      switch (this) {
+        case HOUR:
+          return time.plusHours(1).getMillis();
+        case DAY:
+          return time.plusDays(1).getMillis();
+        default:
+          return time.plusMonths(1).getMillis();
+      }
+    }
+  }
+
+  private static class Rolling {
+    final String name;
+    final Interval interval;
+    final String timestampField;
+    final long maxDocs;
+    final long retentionMillis;
+    final JsonObject config;
+    /**
+     * Current generation of each bucket which rolled over at least once.
+     */
+    final ConcurrentMap<String, Integer> generations = new ConcurrentHashMap<>();
+    final AtomicLong rolled = new AtomicLong();
+    final AtomicLong expired = new AtomicLong();
+    volatile int indices;
+
+    Rolling(String name, JsonObject config) {
+      this.name = name;
+      this.config = config;
+      interval = Interval.valueOf(config.getString("interval", "day").toUpperCase(Locale.ROOT));
+      timestampField = config.getString("timestamp_field");
+      maxDocs = config.getLong("max_docs", 0);
+      String retention = config.getString("retention");
+      retentionMillis =
+          retention == null ? -1 : TimeValue.parseTimeValue(retention, null).millis();
+    }
+
+    String bucket(long millis) {
+      return name + "-" + interval.format.print(millis);
+    }
+
+    String index(long millis) {
+      String bucket = bucket(millis);
+      Integer generation = generations.get(bucket);
+      return generation == null || generation == 0 ? bucket : bucket + "-" + generation;
+    }
+  }
+
+  /**
+   * Returns the epoch milliseconds of {@code value}, a number or an ISO 8601 date, or
+   * {@code defaultValue} if it is neither.
+   */
+  static long millis(Object value, long defaultValue) {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value instanceof String) {
+      try {
+        return TIMESTAMP_PARSER.parseMillis((String) value);
+      } catch (IllegalArgumentException e) {
+        return defaultValue;
+      }
+    }
+    return defaultValue;
+  }
+
+  private final Map<String, Rolling> rollings = new LinkedHashMap<>();
+  private final Logger logger;
+  private final long checkIntervalMs;
+  @Inject private Provider<Client> client;
+  @Inject private Vertx vertx;
+
+  @Inject
+  RollingIndices(Container container) {
+    logger = container.logger();
+    JsonObject config = container.config().getObject("rolling", new JsonObject());
+    checkIntervalMs = config.getLong("check_interval_ms", 60000);
+    if (config.getBoolean("enabled", false)) {
+      JsonObject indices = config.getObject("indices", new JsonObject());
+      for (String name : indices.getFieldNames()) {
+        rollings.put(name, new Rolling(name, indices.getObject(name)));
+      }
+    }
+  }
+
+  public boolean isEnabled() {
+    return !rollings.isEmpty();
+  }
+
+  /**
+   * Starts rolling over and expiring the buckets.
+   */
+  public void start() {
+    if (!isEnabled()) {
+      return;
+    }
+    check();
+    vertx.setPeriodic(checkIntervalMs, new Handler<Long>() {
+      @Override
+      public void handle(Long timerId) {
+        check();
+      }
+    });
+  }
+
+  /**
+   * Returns the index a document of {@code source} indexed into {@code index} is written to.
+   */
+  String route(String index, JsonObject source) {
+    Rolling rolling = rollings.get(index);
+    if (rolling == null) {
+      return index;
+    }
+    long now = System.currentTimeMillis();
+    return rolling.index(rolling.timestampField == null ? now : millis(source
+        .getValue(rolling.timestampField), now));
+  }
+
+  /**
+   * Fails {@code message} and returns true if {@code index} is a logical name. Getting, updating
+   * or deleting a document by id needs the bucket holding it, as replied in {@code _index} when it
+   * was indexed, since the alias of the logical name spans several buckets.
+   */
+  boolean rejectLogicalName(String operation, String index, Message<JsonObject> message) {
+    String error = logicalNameError(operation, index);
+    if (error == null) {
+      return false;
+    }
+    ElasticSearchHandler.replyFail(logger, message, error, null);
+    return true;
+  }
+
+  /**
+   * Returns why {@code operation} by id can't target {@code index} if it is a logical name, or
+   * null.
+   */
+  String logicalNameError(String operation, String index) {
+    return isLogicalName(index) ? operation + " by id needs the bucket index of the document, not "
+        + "the rolling index " + index : null;
+  }
+
+  /**
+   * Replaces the logical names of {@code indices} with the buckets overlapping the
+   * {@code time_range} of the search {@code body}, if any.
+   */
+  String[] expand(String[] indices, JsonObject body) {
+    JsonObject range = body.getObject(TIME_RANGE);
+    if (range == null || !isEnabled()) {
+      return indices;
+    }
+    List<String> expanded = new ArrayList<>();
+    for (String index : indices) {
+      Rolling rolling = rollings.get(index);
+      long from = millis(range.getValue("from"), -1);
+      if (rolling == null || from < 0) {
+        expanded.add(index);
+        continue;
+      }
+      long to = millis(range.getValue("to"), System.currentTimeMillis());
+      List<String> buckets = new ArrayList<>();
+      long start = rolling.interval.floor(from);
+      do {
+        // Also matches the generations of the bucket
+        buckets.add(rolling.bucket(start) + "*");
+        start = rolling.interval.next(start);
+      } while (start <= to && buckets.size() <= MAX_BUCKETS);
+      if (buckets.size() > MAX_BUCKETS) {
+        expanded.add(index);
+      } else {
+        expanded.addAll(buckets);
+      }
+    }
+    return expanded.toArray(new String[expanded.size()]);
+  }
+
+  boolean isLogicalName(String index) {
+    return rollings.containsKey(index);
+  }
+
+  /**
+   * Returns the {@code mappings} configured for the logical name {@code index}, or {@code null}.
+   */
+  JsonObject mappings(String index) {
+    Rolling rolling = rollings.get(index);
+    return rolling == null ? null : rolling.config.getObject("mappings");
+  }
+
+  /**
+   * Returns the logical name {@code index} is a bucket of, or {@code null}.
+   */
+  String logicalName(String index) {
+    for (String name : rollings.keySet()) {
+      if (index.startsWith(name + "-")) {
+        return name;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the index templates putting the buckets of each logical name behind its alias, with
+   * the {@code settings} and {@code mappings} of its configuration.
+   */
+  Map<String, JsonObject> templates() {
+    Map<String, JsonObject> templates = new HashMap<>();
+    for (Rolling rolling : rollings.values()) {
+      JsonObject template =
+          new JsonObject().putString("template", rolling.name + "-*").putNumber("order", 1)
+              .putObject("aliases", new JsonObject().putObject(rolling.name, new JsonObject()))
+              .putObject("settings", rolling.config.getObject("settings", new JsonObject())
+                  .copy());
+      if (rolling.config.containsField("mappings")) {
+        template.putObject("mappings", rolling.config.getObject("mappings").copy());
+      }
+      templates.put("rolling_" + rolling.name, template);
+    }
+    return templates;
+  }
+
+  JsonObject stats() {
+    JsonObject stats = new JsonObject().putBoolean("enabled", isEnabled());
+    long now = System.currentTimeMillis();
+    for (Rolling rolling : rollings.values()) {
+      stats.putObject(rolling.name, new JsonObject().putString("current", rolling.index(now))
+          .putNumber("indices", rolling.indices).putNumber("rolled", rolling.rolled.get())
+          .putNumber("expired", rolling.expired.get()));
+    }
+    return stats;
+  }
+
+  private void check() {
+    for (final Rolling rolling : rollings.values()) {
+      client.get().admin().indices().prepareStats(rolling.name + "-*").clear().setDocs(true)
+          .execute(new ActionListener<IndicesStatsResponse>() {
+            @Override
+            public void onFailure(Throwable e) {
+              logger.warn("Can't check the indices of " + rolling.name, e);
+            }
+
+            @Override
+            public void onResponse(IndicesStatsResponse response) {
+              check(rolling, response.getIndices());
+            }
+          });
+    }
+  }
+
+  private void check(final Rolling rolling, Map<String, IndexStats> indices) {
+    long now = System.currentTimeMillis();
+    String current = rolling.bucket(now);
+    Map<String, Integer> generations = new HashMap<>();
+    long currentDocs = 0;
+    final List<String> expired = new ArrayList<>();
+    final int prefix = rolling.name.length() + 1;
+    for (Map.Entry<String, IndexStats> entry : indices.entrySet()) {
+      String index = entry.getKey();
+      if (index.length() < prefix + rolling.interval.length) {
+        continue;
+      }
+      String bucket = index.substring(0, prefix + rolling.interval.length);
+      long start;
+      int generation = 0;
+      try {
+        start = rolling.interval.format.parseMillis(bucket.substring(prefix));
+        if (index.length() > bucket.length()) {
+          if (index.charAt(bucket.length()) != '-') {
+            continue;
+          }
+          generation = Integer.parseInt(index.substring(bucket.length() + 1));
+        }
+      } catch (IllegalArgumentException e) {
+        continue;
+      }
+      if (rolling.retentionMillis >= 0
+          && rolling.interval.next(start) <= now - rolling.retentionMillis) {
+        expired.add(index);
+        continue;
+      }
+      Integer latest = generations.get(bucket);
+      if (latest == null || generation > latest) {
+        generations.put(bucket, generation);
+        if (bucket.equals(current)) {
+          currentDocs = entry.getValue().getPrimaries().getDocs().getCount();
+        }
+      }
+    }
+    rolling.indices = indices.size() - expired.size();
+    Integer latest = generations.get(current);
+    Integer known = rolling.generations.get(current);
+    // Until a document created the next generation, the current one still is the latest index
+    if (rolling.maxDocs > 0 && latest != null && (known == null || known <= latest)
+        && currentDocs >= rolling.maxDocs) {
+      generations.put(current, latest + 1);
+      rolling.rolled.incrementAndGet();
+      logger.info("Rolling " + rolling.name + " over to generation " + (latest + 1) + " of "
+          + current);
+    }
+    for (Map.Entry<String, Integer> entry : generations.entrySet()) {
+      known = rolling.generations.get(entry.getKey());
+      if (known == null || entry.getValue() > known) {
+        rolling.generations.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (expired.isEmpty()) {
+      return;
+    }
+    client.get().admin().indices().prepareDelete(expired.toArray(new String[expired.size()]))
+        .execute(new ActionListener<DeleteIndexResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            logger.warn("Can't delete the expired indices " + expired, e);
+          }
+
+          @Override
+          public void onResponse(DeleteIndexResponse response) {
+            rolling.expired.addAndGet(expired.size());
+            for (String index : expired) {
+              rolling.generations.remove(index.substring(0, prefix + rolling.interval.length));
+            }
+            logger.info("Deleted the expired indices " + expired);
+          }
+        });
+  }
+}
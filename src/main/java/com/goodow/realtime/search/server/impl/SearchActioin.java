@@ -15,10 +15,15 @@ package com.goodow.realtime.search.server.impl;
 
 import com.google.inject.Provider;
 
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.ElasticsearchParseException;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.indices.IndexMissingException;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
@@ -27,6 +32,7 @@ import org.vertx.java.core.json.JsonObject;
 import org.vertx.java.core.logging.Logger;
 import org.vertx.java.platform.Container;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,16 +41,20 @@ import javax.inject.Inject;
 public class SearchActioin implements Handler<Message<JsonObject>> {
   private final Logger logger;
   @Inject private Provider<Client> client;
+  @Inject private SearchCache searchCache;
+  @Inject private InFlightRequests inFlight;
+  @Inject private SearchBatcher searchBatcher;
+  @Inject private RollingIndices rolling;
 
   @Inject
   SearchActioin(Container container) {
     logger = container.logger();
   }
 
-  @Override
-  public void handle(final Message<JsonObject> message) {
-    JsonObject body = message.body();
-    // Get indices to be searched
+  /**
+   * Returns the indices to be searched, from the {@code _index} and {@code _indices} fields.
+   */
+  static String[] getIndices(JsonObject body) {
     String index = body.getString(ElasticSearchHandler.INDEX);
     JsonArray indices = body.getArray("_indices");
     List<String> list = new ArrayList<>();
@@ -56,13 +66,16 @@ public class SearchActioin implements Handler<Message<JsonObject>> {
         list.add((String) idx);
       }
     }
-    SearchRequestBuilder builder =
-        client.get().prepareSearch(list.toArray(new String[list.size()]));
+    return list.toArray(new String[list.size()]);
+  }
 
-    // Get types to be searched
+  /**
+   * Returns the types to be searched, from the {@code _type} and {@code _types} fields.
+   */
+  static String[] getTypes(JsonObject body) {
     String type = body.getString(ElasticSearchHandler.TYPE);
     JsonArray types = body.getArray("_types");
-    list.clear();
+    List<String> list = new ArrayList<>();
     if (type != null) {
       list.add(type);
     }
@@ -71,8 +84,22 @@ public class SearchActioin implements Handler<Message<JsonObject>> {
         list.add((String) tp);
       }
     }
-    if (!list.isEmpty()) {
-      builder.setTypes(list.toArray(new String[list.size()]));
+    return list.toArray(new String[list.size()]);
+  }
+
+  /**
+   * Builds the search request described by the {@code _types}, {@code search_type},
+   * {@code scroll}, {@code source}, {@link Projection}, {@link Paging} and
+   * {@link RollingIndices#TIME_RANGE} fields of {@code body}.
+   *
+   * @throws IllegalArgumentException if {@code body} can't be paged
+   */
+  SearchRequestBuilder prepareSearch(JsonObject body, String[] indices) {
+    SearchRequestBuilder builder = client.get().prepareSearch(rolling.expand(indices, body));
+
+    String[] types = getTypes(body);
+    if (types.length > 0) {
+      builder.setTypes(types);
     }
 
     // Set search type
@@ -86,24 +113,130 @@ public class SearchActioin implements Handler<Message<JsonObject>> {
     if (scroll != null) {
       builder.setScroll(scroll);
     }
-    if (body.containsField("source")) {
+    Paging paging = Paging.of(body);
+    if (paging != null) {
+      builder.setExtraSource(paging.source().encode());
+    } else if (body.containsField("source")) {
       builder.setExtraSource(body.getObject("source").encode());
     }
+    Projection projection = Projection.of(body);
+    if (projection != null) {
+      projection.apply(builder);
+    }
+    return builder;
+  }
+
+  @Override
+  public void handle(final Message<JsonObject> message) {
+    JsonObject body = message.body();
+    final String[] indexNames = getIndices(body);
+    try {
+      Paging.of(body);
+    } catch (IllegalArgumentException e) {
+      ElasticSearchHandler.replyFail(logger, message, "Search error: " + e.getMessage(), null);
+      return;
+    }
+
+    // Serve repeated searches from the result cache
+    String scroll = body.getString("scroll");
+    final boolean cacheable =
+        searchCache.isEnabled() && scroll == null && !body.getBoolean("no_cache", false);
+    final TimeValue ttl;
+    try {
+      ttl = cacheable ? searchCache.ttl(body) : null;
+    } catch (ElasticsearchParseException e) {
+      ElasticSearchHandler.replyFail(logger, message, "Search error: invalid cache_ttl "
+          + body.getString("cache_ttl"), null);
+      return;
+    }
+    final boolean coalesce = inFlight.isEnabled() && scroll == null;
+    final String key = cacheable || coalesce ? RequestKey.of(body) : null;
+    if (cacheable) {
+      BytesReference cached = searchCache.get(key);
+      if (cached != null) {
+        ElasticSearchHandler.reply(logger, message, cached);
+        return;
+      }
+    }
+    final long generation = searchCache.generation();
+    InFlightRequests.Call call = inFlight.join(coalesce ? key : null, indexNames, message);
+    if (call == null) {
+      return;
+    }
+
+    final Pending pending =
+        new Pending(call, cacheable ? key : null, ttl, generation, indexNames);
+    SearchRequestBuilder builder = prepareSearch(body, indexNames);
+    if (searchBatcher.isEnabled() && scroll == null) {
+      searchBatcher.add(builder.request(), pending);
+      return;
+    }
     builder.execute(new ActionListener<SearchResponse>() {
       @Override
       public void onFailure(Throwable e) {
-        if (e.getCause() instanceof IndexMissingException) {
-          message.reply(new JsonObject().putObject("hits", new JsonObject().putNumber("total", 0)
-              .putArray("hits", new JsonArray())));
-          return;
-        }
-        ElasticSearchHandler.replyFail(logger, message, "Search error: " + e.getMessage(), e);
+        pending.fail(e.getMessage(), e,
+            ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException);
       }
 
       @Override
       public void onResponse(SearchResponse resp) {
-        ElasticSearchHandler.parseXContent(logger, resp, message);
+        pending.succeed(resp);
       }
     });
   }
+
+  /**
+   * A search waiting for its response, which is replied to every coalesced message and cached for
+   * {@code ttl} when {@code key} is set.
+   */
+  class Pending {
+    private final InFlightRequests.Call call;
+    private final String key;
+    private final TimeValue ttl;
+    private final long generation;
+    private final String[] indexNames;
+
+    Pending(InFlightRequests.Call call, String key, TimeValue ttl, long generation,
+        String[] indexNames) {
+      this.call = call;
+      this.key = key;
+      this.ttl = ttl;
+      this.generation = generation;
+      this.indexNames = indexNames;
+    }
+
+    void fail(String error, Throwable e, boolean indexMissing) {
+      for (Message<JsonObject> msg : inFlight.complete(call)) {
+        if (indexMissing) {
+          msg.reply(new JsonObject().putObject("hits", new JsonObject().putNumber("total", 0)
+              .putArray("hits", new JsonArray())));
+        } else {
+          ElasticSearchHandler.replyFail(logger, msg, "Search error: " + error, e);
+        }
+      }
+    }
+
+    void succeed(SearchResponse resp) {
+      List<Message<JsonObject>> messages = inFlight.complete(call);
+      ToXContent view = Paging.view(messages.get(0).body(), resp);
+      if (key == null) {
+        ElasticSearchHandler.replyAll(logger, view, messages);
+        return;
+      }
+      BytesReference bytes;
+      try {
+        bytes = ElasticSearchHandler.toBytes(view);
+      } catch (IOException e) {
+        for (Message<JsonObject> msg : messages) {
+          ElasticSearchHandler.replyFail(logger, msg, "Error reading search response: "
+              + e.getMessage(), e);
+        }
+        return;
+      }
+      searchCache.put(key, generation, indexNames, bytes, ttl);
+      for (Message<JsonObject> msg : messages) {
+        ElasticSearchHandler.reply(logger, msg, bytes);
+      }
+    }
+  }
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Client;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+
+import java.util.List;
+
+import javax.inject.Inject;
+
+/**
+ * Gathers concurrent single searches into {@link MultiSearchRequest}s when
+ * {@code search_batch.enabled} is set, and fans the responses back to each caller. A failed item
+ * only fails its own search.
+ */
+class SearchBatcher extends MicroBatcher<SearchBatcher.Entry> {
+  static class Entry {
+    final SearchRequest request;
+    final SearchActioin.Pending pending;
+
+    Entry(SearchRequest request, SearchActioin.Pending pending) {
+      this.request = request;
+      this.pending = pending;
+    }
+  }
+
+  @Inject private Provider<Client> client;
+  private final boolean enabled;
+
+  @Inject
+  SearchBatcher(Vertx vertx, Container container) {
+    this(vertx, container.config().getObject("search_batch", new JsonObject()));
+  }
+
+  private SearchBatcher(Vertx vertx, JsonObject config) {
+    super(vertx, config.getInteger("max_actions", 20), 0, config.getLong("linger_ms", 2));
+    enabled = config.getBoolean("enabled", false);
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  void add(SearchRequest request, SearchActioin.Pending pending) {
+    add(new Entry(request, pending), 0);
+  }
+
+  @Override
+  protected void doFlush(final List<Entry> batch) {
+    MultiSearchRequest request = new MultiSearchRequest();
+    for (Entry entry : batch) {
+      request.add(entry.request);
+    }
+    client.get().multiSearch(request, new ActionListener<MultiSearchResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        for (Entry entry : batch) {
+          entry.pending.fail(e.getMessage(), e, false);
+        }
+      }
+
+      @Override
+      public void onResponse(MultiSearchResponse resp) {
+        MultiSearchResponse.Item[] items = resp.getResponses();
+        for (int i = 0; i < items.length; i++) {
+          MultiSearchResponse.Item item = items[i];
+          SearchActioin.Pending pending = batch.get(i).pending;
+          if (item.isFailure()) {
+            pending.fail(item.getFailureMessage(), null, MultiSearchActioin.isIndexMissing(item));
+          } else {
+            pending.succeed(item.getResponse());
+          }
+        }
+      }
+    });
+  }
+}
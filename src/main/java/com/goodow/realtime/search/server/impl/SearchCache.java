@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Singleton;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.unit.TimeValue;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+/**
+ * Bounded LRU cache of encoded search responses, weighted by their size in bytes.
+ * <p>
+ * Entries are dropped when their TTL expires, or as soon as a write to one of the indices they
+ * cover is acknowledged. Searches over aliases are only expired by TTL, since the cache doesn't
+ * resolve aliases.
+ * <p>
+ * Each verticle instance has its own cache, bounded by {@code max_size_in_bytes}.
+ */
+@Singleton
+class SearchCache {
+  private static class Entry {
+    final String[] indices;
+    final BytesReference bytes;
+    final long expiresAt;
+    final long weight;
+
+    Entry(String[] indices, BytesReference bytes, long expiresAt, long weight) {
+      this.indices = indices;
+      this.bytes = bytes;
+      this.expiresAt = expiresAt;
+      this.weight = weight;
+    }
+
+  }
+
+  /**
+   * Returns whether a read over {@code indices}, as given in the request, may see documents written
+   * to {@code index}.
+   */
+  static boolean covers(String[] indices, String index) {
+    if (indices.length == 0) {
+      return true;
+    }
+    for (String idx : indices) {
+      if ("_all".equals(idx) || Regex.simpleMatch(idx, index)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final boolean enabled;
+  private final long maxWeight;
+  private final TimeValue defaultTtl;
+  private long weight;
+  private long generation;
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long invalidations;
+
+  @Inject
+  SearchCache(Container container) {
+    JsonObject config = container.config().getObject("search_cache", new JsonObject());
+    enabled = config.getBoolean("enabled", false);
+    maxWeight = config.getLong("max_size_in_bytes", 64 * 1024 * 1024);
+    defaultTtl = TimeValue.parseTimeValue(config.getString("ttl"), TimeValue.timeValueMinutes(1));
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  TimeValue ttl(JsonObject body) {
+    return TimeValue.parseTimeValue(body.getString("cache_ttl"), defaultTtl);
+  }
+
+  synchronized BytesReference get(String key) {
+    Entry entry = entries.get(key);
+    if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+      remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.bytes;
+  }
+
+  /**
+   * Returns the invalidation generation, which must be passed back to {@link #put} so that a
+   * response racing with a write is not cached.
+   */
+  synchronized long generation() {
+    return generation;
+  }
+
+  synchronized void put(String key, long generation, String[] indices, BytesReference bytes,
+      TimeValue ttl) {
+    if (generation != this.generation || ttl.millis() <= 0) {
+      return;
+    }
+    long entryWeight = bytes.length() + key.length() * 2;
+    if (entryWeight > maxWeight) {
+      return;
+    }
+    remove(key);
+    entries.put(key, new Entry(indices, bytes, System.currentTimeMillis() + ttl.millis(),
+        entryWeight));
+    weight += entryWeight;
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (weight > maxWeight && iterator.hasNext()) {
+      weight -= iterator.next().getValue().weight;
+      iterator.remove();
+      evictions++;
+    }
+  }
+
+  synchronized void invalidate(String index) {
+    if (!enabled) {
+      return;
+    }
+    generation++;
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (covers(entry.indices, index)) {
+        weight -= entry.weight;
+        iterator.remove();
+        invalidations++;
+      }
+    }
+  }
+
+  synchronized JsonObject stats() {
+    return new JsonObject().putBoolean("enabled", enabled).putNumber("entries", entries.size())
+        .putNumber("size_in_bytes", weight).putNumber("hits", hits).putNumber("misses", misses)
+        .putNumber("evictions", evictions).putNumber("invalidations", invalidations);
+  }
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      weight -= entry.weight;
+    }
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import javax.inject.Inject;
+
+/**
+ * Streams every hit of a search to a client supplied address, one scroll page per chunk.
+ * <p>
+ * At most {@code credits} chunks are unacknowledged at any time; the client returns credits by
+ * replying to a chunk, or cancels the stream by replying {@code cancel: true}. The next page is
+ * always fetched while the current one is being delivered, and the scroll context is cleared
+ * whenever the stream ends, including on cancel or timeout while a page is being fetched.
+ */
+public class StreamActioin implements Handler<Message<JsonObject>> {
+  private class Stream {
+    private final String id = UUID.randomUUID().toString();
+    private final String address;
+    private final String scroll;
+    private final long timeout;
+    private final Context context;
+    private String scrollId;
+    private int credits;
+    private int seq;
+    private boolean fetching;
+    private boolean ended;
+    private SearchResponse page;
+
+    Stream(JsonObject body, Context context) {
+      this.context = context;
+      address = body.getString("address");
+      scroll = body.getString("scroll", "1m");
+      timeout = body.getLong("timeout", 30000);
+      credits = body.getInteger("credits", 2);
+    }
+
+    void start(final Message<JsonObject> message) {
+      JsonObject body = message.body().copy();
+      if (!body.containsField("search_type")) {
+        body.putString("search_type", SearchType.SCAN.name().toLowerCase());
+      }
+      body.putString("scroll", scroll);
+      search.prepareSearch(body, SearchActioin.getIndices(body)).setSize(
+          body.getInteger("size", 100)).execute(new ActionListener<SearchResponse>() {
+        @Override
+        public void onFailure(Throwable e) {
+          ElasticSearchHandler.replyFail(logger, message, "Stream error: " + e.getMessage(), e);
+        }
+
+        @Override
+        public void onResponse(final SearchResponse resp) {
+          message.reply(new JsonObject().putString("_stream_id", id).putNumber("total",
+              resp.getHits().getTotalHits()));
+          context.runOnContext(new Handler<Void>() {
+            @Override
+            public void handle(Void event) {
+              scrollId = resp.getScrollId();
+              if (resp.getHits().getHits().length > 0) {
+                page = resp;
+              }
+              pump();
+            }
+          });
+        }
+      });
+    }
+
+    private void pump() {
+      if (ended) {
+        return;
+      }
+      if (page != null && page.getHits().getHits().length == 0) {
+        end(new JsonObject().putBoolean("done", true));
+        return;
+      }
+      if (page != null && credits > 0) {
+        SearchResponse current = page;
+        page = null;
+        credits--;
+        send(current);
+      }
+      if (page == null && !fetching) {
+        fetch();
+      }
+    }
+
+    private void fetch() {
+      fetching = true;
+      client.get().prepareSearchScroll(scrollId).setScroll(scroll).execute(
+          new ActionListener<SearchResponse>() {
+            @Override
+            public void onFailure(final Throwable e) {
+              logger.error("Stream " + id + " scroll error", e);
+              context.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                  fetching = false;
+                  if (ended) {
+                    clearScroll();
+                    return;
+                  }
+                  end(new JsonObject().putString("error", "Scroll error: " + e.getMessage()));
+                }
+              });
+            }
+
+            @Override
+            public void onResponse(final SearchResponse resp) {
+              context.runOnContext(new Handler<Void>() {
+                @Override
+                public void handle(Void event) {
+                  fetching = false;
+                  scrollId = resp.getScrollId();
+                  if (ended) {
+                    // Cancelled or timed out while fetching, the scroll id may have changed
+                    clearScroll();
+                    return;
+                  }
+                  page = resp;
+                  pump();
+                }
+              });
+            }
+          });
+    }
+
+    private void send(SearchResponse resp) {
+      JsonObject chunk;
+      try {
+        chunk = ElasticSearchHandler.toJsonObject(ElasticSearchHandler.toBytes(resp.getHits()));
+      } catch (IOException e) {
+        logger.error("Stream " + id + " serialization error", e);
+        end(new JsonObject().putString("error", "Error reading search response: "
+            + e.getMessage()));
+        return;
+      }
+      chunk.putString("_stream_id", id).putNumber("seq", seq++);
+      vertx.eventBus().sendWithTimeout(address, chunk, timeout,
+          new Handler<AsyncResult<Message<JsonObject>>>() {
+            @Override
+            public void handle(AsyncResult<Message<JsonObject>> ar) {
+              if (ar.failed()) {
+                logger.warn("Stream " + id + " aborted: " + ar.cause().getMessage());
+                end(null);
+                return;
+              }
+              JsonObject ack = ar.result().body();
+              if (ack != null && ack.getBoolean("cancel", false)) {
+                end(null);
+                return;
+              }
+              int returned = ack == null ? 1 : ack.getInteger("credits", 1);
+              if (returned <= 0) {
+                end(new JsonObject().putString("error", "credits must be positive"));
+                return;
+              }
+              credits += returned;
+              pump();
+            }
+          });
+    }
+
+    private void end(JsonObject last) {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      page = null;
+      if (last != null) {
+        vertx.eventBus().send(address, last.putString("_stream_id", id).putNumber("seq", seq++));
+      }
+      if (!fetching) {
+        clearScroll();
+      }
+    }
+
+    /**
+     * Clears the scroll context. While a page is being fetched the scroll id may still change, so
+     * this is deferred until the fetch completes.
+     */
+    private void clearScroll() {
+      if (scrollId != null) {
+        client.get().prepareClearScroll().addScrollId(scrollId).execute(
+            new ActionListener<ClearScrollResponse>() {
+              @Override
+              public void onFailure(Throwable e) {
+                logger.warn("Can't clear scroll of stream " + id, e);
+              }
+
+              @Override
+              public void onResponse(ClearScrollResponse response) {
+              }
+            });
+      }
+    }
+  }
+
+  private final Logger logger;
+  private final Vertx vertx;
+  @Inject private Provider<Client> client;
+  @Inject private SearchActioin search;
+
+  @Inject
+  StreamActioin(Vertx vertx, Container container) {
+    this.vertx = vertx;
+    logger = container.logger();
+  }
+
+  @Override
+  public void handle(Message<JsonObject> message) {
+    String address = message.body().getString("address");
+    if (address == null || address.isEmpty()) {
+      ElasticSearchHandler.replyFail(logger, message, "address is required", null);
+      return;
+    }
+    Number credits = message.body().getNumber("credits");
+    if (credits != null && credits.intValue() <= 0) {
+      ElasticSearchHandler.replyFail(logger, message, "credits must be positive", null);
+      return;
+    }
+    new Stream(message.body(), vertx.currentContext()).start(message);
+  }
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.percolate.MultiPercolateRequest;
+import org.elasticsearch.action.percolate.MultiPercolateResponse;
+import org.elasticsearch.action.percolate.PercolateRequestBuilder;
+import org.elasticsearch.action.percolate.PercolateResponse;
+import org.elasticsearch.action.percolate.PercolateSourceBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.hppc.cursors.ObjectObjectCursor;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.percolator.PercolatorService;
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+
+/**
+ * Live searches registered with the {@code subscribe} action as percolator queries, when
+ * {@code subscriptions.enabled} is set. Every acknowledged index or update of a document is
+ * percolated against the queries of its index, and each match is sent to the {@code address} of
+ * the subscription.
+ * <p>
+ * Writes to indices without subscriptions are not percolated at all: the indices holding a
+ * {@code .percolator} mapping are refreshed from the cluster every {@code refresh_interval_ms}.
+ * Within an index, only the queries registered for the type of the document, or for any type, are
+ * run. Percolations are sent in {@link MultiPercolateRequest}s of up to {@code max_actions}.
+ * <p>
+ * The subscriptions of a rolling logical name {@code events} are held by the index
+ * {@code events_subscriptions}, created with the {@code mappings} of its configuration, and the
+ * writes to each of its buckets are percolated against them.
+ */
+@Singleton
+public class Subscriptions {
+  static final String ADDRESS = "address";
+  static final String QUERY = "query";
+  static final String SUBSCRIPTION = "subscription";
+  private static final String SUBSCRIPTION_TYPE = SUBSCRIPTION + ".type";
+  private static final String SUBSCRIPTION_ADDRESS = SUBSCRIPTION + ".address";
+  private static final String ROLLING_SUFFIX = "_subscriptions";
+
+  private static class Percolation {
+    /**
+     * Index holding the subscriptions to percolate against.
+     */
+    final String queries;
+    final String index;
+    final String type;
+    final String id;
+    final long version;
+    final BytesReference source;
+
+    Percolation(String queries, String index, String type, String id, long version,
+        BytesReference source) {
+      this.queries = queries;
+      this.index = index;
+      this.type = type;
+      this.id = id;
+      this.version = version;
+      this.source = source;
+    }
+  }
+
+  private class Batcher extends MicroBatcher<Percolation> {
+    Batcher(Vertx vertx, int maxActions, long lingerMs) {
+      super(vertx, maxActions, 0, lingerMs);
+    }
+
+    @Override
+    protected void doFlush(List<Percolation> batch) {
+      percolate(batch);
+    }
+  }
+
+  private final Logger logger;
+  private final Vertx vertx;
+  private final boolean enabled;
+  private final long refreshIntervalMs;
+  private final int addressCacheSize;
+  private final Batcher batcher;
+  /**
+   * Indices which may hold subscriptions.
+   */
+  private final Set<String> indices =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  /**
+   * Indices whose {@code .percolator} mapping was put by this instance.
+   */
+  private final Set<String> mapped =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  /**
+   * Address of the recently matched subscriptions, by index and id.
+   */
+  private final Map<String, String> addresses;
+  @Inject private Provider<Client> client;
+  @Inject private RollingIndices rolling;
+  private volatile Context context;
+  private long percolated;
+  private long skipped;
+  private long matches;
+  private long failed;
+  private long subscribed;
+  private long unsubscribed;
+
+  @Inject
+  Subscriptions(Vertx vertx, Container container) {
+    this.vertx = vertx;
+    logger = container.logger();
+    JsonObject config = container.config().getObject("subscriptions", new JsonObject());
+    enabled = config.getBoolean("enabled", false);
+    refreshIntervalMs = config.getLong("refresh_interval_ms", 30000);
+    addressCacheSize = config.getInteger("address_cache_size", 100000);
+    batcher =
+        new Batcher(vertx, config.getInteger("max_actions", 100), config.getLong("linger_ms", 5));
+    addresses = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > addressCacheSize;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts percolating the writes, on the context of the caller.
+   */
+  public void start() {
+    if (!enabled) {
+      return;
+    }
+    context = vertx.currentContext();
+    refresh();
+    vertx.setPeriodic(refreshIntervalMs, new Handler<Long>() {
+      @Override
+      public void handle(Long timerId) {
+        refresh();
+      }
+    });
+  }
+
+  /**
+   * Registers the {@code query} of the message body, matching the documents of {@code _type} in
+   * {@code _index}, or of any type if {@code _type} is missing, and replies with the {@code _id} of
+   * the subscription.
+   */
+  void subscribe(final Message<JsonObject> message) {
+    final JsonObject body = message.body();
+    final String index = body.getString(ElasticSearchHandler.INDEX);
+    final String address = body.getString(ADDRESS);
+    final String queries = index == null ? null : queryIndex(index);
+    JsonObject query = body.getObject(QUERY);
+    if (!enabled || index == null || address == null || query == null) {
+      ElasticSearchHandler.replyFail(logger, message, enabled
+          ? "_index, address and query must be specified" : "subscriptions are not enabled",
+          null);
+      return;
+    }
+    JsonObject subscription = new JsonObject().putString("address", address);
+    if (body.getString(ElasticSearchHandler.TYPE) != null) {
+      subscription.putString("type", body.getString(ElasticSearchHandler.TYPE));
+    }
+    final String source =
+        new JsonObject().putObject(QUERY, query).putObject(SUBSCRIPTION, subscription).encode();
+    Handler<Throwable> register = new Handler<Throwable>() {
+      @Override
+      public void handle(Throwable e) {
+        if (e != null) {
+          ElasticSearchHandler.replyFail(logger, message, "Subscribe error: " + e.getMessage(), e);
+          return;
+        }
+        IndexRequestBuilder builder =
+            client.get().prepareIndex(queries, PercolatorService.TYPE_NAME).setSource(source);
+        if (body.getString(ElasticSearchHandler.ID) != null) {
+          builder.setId(body.getString(ElasticSearchHandler.ID));
+        }
+        builder.execute(new ActionListener<IndexResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            ElasticSearchHandler.replyFail(logger, message, "Subscribe error: " + e.getMessage(),
+                e);
+          }
+
+          @Override
+          public void onResponse(IndexResponse resp) {
+            indices.add(queries);
+            synchronized (Subscriptions.this) {
+              addresses.put(key(queries, resp.getId()), address);
+              subscribed++;
+            }
+            message.reply(new JsonObject().putString(ElasticSearchHandler.INDEX, index)
+                .putString(ElasticSearchHandler.ID, resp.getId()).putNumber(
+                    ElasticSearchHandler.VERSION, resp.getVersion()));
+          }
+        });
+      }
+    };
+    if (mapped.contains(queries)) {
+      register.handle(null);
+    } else {
+      putMapping(queries, rolling.mappings(index), register);
+    }
+  }
+
+  /**
+   * Removes the subscription {@code _id} of {@code _index}.
+   */
+  void unsubscribe(final Message<JsonObject> message) {
+    final String index = message.body().getString(ElasticSearchHandler.INDEX);
+    final String id = message.body().getString(ElasticSearchHandler.ID);
+    if (index == null || id == null) {
+      ElasticSearchHandler.replyFail(logger, message, "_index and _id must be specified", null);
+      return;
+    }
+    final String queries = queryIndex(index);
+    client.get().prepareDelete(queries, PercolatorService.TYPE_NAME, id).execute(
+        new ActionListener<DeleteResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            ElasticSearchHandler.replyFail(logger, message, "Unsubscribe error: "
+                + e.getMessage(), e);
+          }
+
+          @Override
+          public void onResponse(DeleteResponse resp) {
+            synchronized (Subscriptions.this) {
+              addresses.remove(key(queries, id));
+              unsubscribed++;
+            }
+            message.reply(new JsonObject().putString(ElasticSearchHandler.INDEX, index)
+                .putString(ElasticSearchHandler.ID, id).putBoolean("found", resp.isFound()));
+          }
+        });
+  }
+
+  /**
+   * Percolates a document acknowledged as indexed, with the source of its request.
+   */
+  void indexed(IndexRequest request, IndexResponse resp) {
+    percolate(resp.getIndex(), resp.getType(), resp.getId(), resp.getVersion(), request.source());
+  }
+
+  /**
+   * Percolates the current version of a document acknowledged as updated.
+   */
+  void updated(String index, String type, String id, long version) {
+    percolate(index, type, id, version, null);
+  }
+
+  synchronized JsonObject stats() {
+    return new JsonObject().putBoolean("enabled", enabled).putNumber("indices", indices.size())
+        .putNumber("subscribed", subscribed).putNumber("unsubscribed", unsubscribed).putNumber(
+            "percolated", percolated).putNumber("skipped", skipped).putNumber("matches", matches)
+        .putNumber("failed", failed).putNumber("cached_addresses", addresses.size());
+  }
+
+  /**
+   * Percolates a written document against the subscriptions of its index, and of the logical name
+   * it is a bucket of.
+   */
+  private void percolate(String index, String type, String id, long version,
+      BytesReference source) {
+    Context ctx = context;
+    if (ctx == null) {
+      return;
+    }
+    final List<Percolation> percolations = new ArrayList<>(2);
+    if (!PercolatorService.TYPE_NAME.equals(type)) {
+      String logicalName = rolling.logicalName(index);
+      for (String queries : logicalName == null ? new String[] {index} : new String[] {
+          index, queryIndex(logicalName)}) {
+        if (indices.contains(queries)) {
+          percolations.add(new Percolation(queries, index, type, id, version, source));
+        }
+      }
+    }
+    if (percolations.isEmpty()) {
+      synchronized (this) {
+        skipped++;
+      }
+      return;
+    }
+    // Acknowledgements arrive on the threads of the client
+    ctx.runOnContext(new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        for (Percolation percolation : percolations) {
+          batcher.add(percolation, 0);
+        }
+      }
+    });
+  }
+
+  private void percolate(final List<Percolation> batch) {
+    MultiPercolateRequest request = new MultiPercolateRequest();
+    for (Percolation percolation : batch) {
+      PercolateRequestBuilder builder =
+          client.get().preparePercolate().setIndices(percolation.queries).setDocumentType(
+              percolation.type).setPercolateFilter(
+              FilterBuilders.orFilter(FilterBuilders.termFilter(SUBSCRIPTION_TYPE,
+                  percolation.type), FilterBuilders.missingFilter(SUBSCRIPTION_TYPE)));
+      if (percolation.source == null) {
+        builder.setGetRequest(new GetRequest(percolation.index, percolation.type, percolation.id));
+      } else {
+        builder.setPercolateDoc(PercolateSourceBuilder.docBuilder().setDoc(percolation.source));
+      }
+      request.add(builder);
+    }
+    client.get().multiPercolate(request, new ActionListener<MultiPercolateResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        logger.warn("Percolation failed: " + e.getMessage());
+        synchronized (Subscriptions.this) {
+          failed += batch.size();
+        }
+      }
+
+      @Override
+      public void onResponse(MultiPercolateResponse resp) {
+        MultiPercolateResponse.Item[] items = resp.getItems();
+        Map<String, List<Percolation>> matched = new LinkedHashMap<>();
+        int failures = 0;
+        for (int i = 0; i < items.length; i++) {
+          if (items[i].isFailure()) {
+            failures++;
+            logger.debug("Percolation of " + batch.get(i).index + "/" + batch.get(i).type + "/"
+                + batch.get(i).id + " failed: " + items[i].getErrorMessage());
+            continue;
+          }
+          for (PercolateResponse.Match match : items[i].getResponse()) {
+            String key = key(match.getIndex().string(), match.getId().string());
+            List<Percolation> docs = matched.get(key);
+            if (docs == null) {
+              docs = new ArrayList<>();
+              matched.put(key, docs);
+            }
+            docs.add(batch.get(i));
+          }
+        }
+        synchronized (Subscriptions.this) {
+          percolated += items.length - failures;
+          failed += failures;
+        }
+        if (!matched.isEmpty()) {
+          resolve(matched);
+        }
+      }
+    });
+  }
+
+  /**
+   * Looks up the addresses of the {@code matched} subscriptions missing from the cache, and sends
+   * the matches to them.
+   */
+  private void resolve(final Map<String, List<Percolation>> matched) {
+    final Map<String, String> resolved = new HashMap<>();
+    MultiGetRequest missing = new MultiGetRequest();
+    synchronized (this) {
+      for (String key : matched.keySet()) {
+        String address = addresses.get(key);
+        if (address != null) {
+          resolved.put(key, address);
+        } else {
+          String[] indexAndId = key.split("/", 2);
+          missing.add(new MultiGetRequest.Item(indexAndId[0], PercolatorService.TYPE_NAME,
+              indexAndId[1]).fields(SUBSCRIPTION_ADDRESS));
+        }
+      }
+    }
+    if (missing.getItems().isEmpty()) {
+      push(matched, resolved);
+      return;
+    }
+    client.get().multiGet(missing, new ActionListener<MultiGetResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        logger.warn("Looking up subscriptions failed: " + e.getMessage());
+        push(matched, resolved);
+      }
+
+      @Override
+      public void onResponse(MultiGetResponse resp) {
+        for (MultiGetItemResponse item : resp.getResponses()) {
+          if (item.isFailed() || !item.getResponse().isExists()
+              || item.getResponse().getField(SUBSCRIPTION_ADDRESS) == null) {
+            continue;
+          }
+          String key = key(item.getIndex(), item.getId());
+          String address = (String) item.getResponse().getField(SUBSCRIPTION_ADDRESS).getValue();
+          resolved.put(key, address);
+          synchronized (Subscriptions.this) {
+            addresses.put(key, address);
+          }
+        }
+        push(matched, resolved);
+      }
+    });
+  }
+
+  private void push(final Map<String, List<Percolation>> matched,
+      final Map<String, String> resolved) {
+    context.runOnContext(new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        int count = 0;
+        for (Map.Entry<String, List<Percolation>> entry : matched.entrySet()) {
+          String address = resolved.get(entry.getKey());
+          if (address == null) {
+            continue;
+          }
+          String subscription = entry.getKey().substring(entry.getKey().indexOf('/') + 1);
+          for (Percolation percolation : entry.getValue()) {
+            JsonObject msg =
+                new JsonObject().putString("_subscription", subscription).putString(
+                    ElasticSearchHandler.INDEX, percolation.index).putString(
+                    ElasticSearchHandler.TYPE, percolation.type).putString(
+                    ElasticSearchHandler.ID, percolation.id).putNumber(
+                    ElasticSearchHandler.VERSION, percolation.version);
+            if (percolation.source != null) {
+              msg.putObject(ElasticSearchHandler.SOURCE, new JsonObject(XContentHelper
+                  .convertToMap(percolation.source, false).v2()));
+            }
+            vertx.eventBus().send(address, msg);
+            count++;
+          }
+        }
+        synchronized (Subscriptions.this) {
+          matches += count;
+        }
+      }
+    });
+  }
+
+  /**
+   * Puts the {@code .percolator} mapping of the subscriptions into {@code index}, creating it with
+   * {@code mappings}, if any, when needed.
+   */
+  private void putMapping(final String index, final JsonObject mappings,
+      final Handler<Throwable> done) {
+    final String mapping =
+        new JsonObject().putObject(PercolatorService.TYPE_NAME, new JsonObject().putObject(
+            "properties", new JsonObject().putObject(SUBSCRIPTION, new JsonObject().putObject(
+                "properties", new JsonObject().putObject("type",
+                    new JsonObject().putString("type", "string").putString("index",
+                        "not_analyzed")).putObject("address",
+                    new JsonObject().putString("type", "string").putString("index", "no"))))))
+            .encode();
+    client.get().admin().indices().preparePutMapping(index).setType(PercolatorService.TYPE_NAME)
+        .setSource(mapping).execute(new ActionListener<PutMappingResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            if (!(ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException)) {
+              done.handle(e);
+              return;
+            }
+            CreateIndexRequestBuilder create =
+                client.get().admin().indices().prepareCreate(index).addMapping(
+                    PercolatorService.TYPE_NAME, mapping);
+            if (mappings != null) {
+              for (String type : mappings.getFieldNames()) {
+                create.addMapping(type, new JsonObject().putObject(type,
+                    mappings.getObject(type)).encode());
+              }
+            }
+            create.execute(new ActionListener<CreateIndexResponse>() {
+              @Override
+              public void onFailure(Throwable e) {
+                if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException) {
+                  // Created concurrently: retry putting the mapping
+                  putMapping(index, mappings, done);
+                } else {
+                  done.handle(e);
+                }
+              }
+
+              @Override
+              public void onResponse(CreateIndexResponse resp) {
+                mapped.add(index);
+                done.handle(null);
+              }
+            });
+          }
+
+          @Override
+          public void onResponse(PutMappingResponse resp) {
+            mapped.add(index);
+            done.handle(null);
+          }
+        });
+  }
+
+  /**
+   * Reloads the indices holding a {@code .percolator} mapping from the cluster state.
+   */
+  private void refresh() {
+    client.get().admin().indices().prepareGetMappings().setTypes(PercolatorService.TYPE_NAME)
+        .execute(new ActionListener<GetMappingsResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            logger.warn("Refreshing the subscribed indices failed: " + e.getMessage());
+          }
+
+          @Override
+          public void onResponse(GetMappingsResponse resp) {
+            List<String> current = new ArrayList<>();
+            for (ObjectObjectCursor<String, ImmutableOpenMap<String, MappingMetaData>> cursor
+                : resp.mappings()) {
+              if (cursor.value.containsKey(PercolatorService.TYPE_NAME)) {
+                current.add(cursor.key);
+              }
+            }
+            indices.retainAll(current);
+            indices.addAll(current);
+          }
+        });
+  }
+
+  /**
+   * Returns the index holding the subscriptions to {@code index}.
+   */
+  private String queryIndex(String index) {
+    return rolling.isLogicalName(index) ? index + ROLLING_SUFFIX : index;
+  }
+
+  private static String key(String index, String id) {
+    return index + "/" + id;
+  }
+}
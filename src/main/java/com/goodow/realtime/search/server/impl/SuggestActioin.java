@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.suggest.SuggestResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.search.suggest.completion.CompletionSuggestion;
+import org.elasticsearch.search.suggest.completion.CompletionSuggestionBuilder;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+
+/**
+ * Completions of {@code text} by the completion suggester, on the {@code field} of the completion
+ * type mapped by an index template. Options are served from the {@link SuggestCache} when it can
+ * tell them, and up to {@code suggest.fetch_size} of them are fetched otherwise so that longer
+ * prefixes can be answered from the cache.
+ * <p>
+ * A message with the same {@code session} as a suggest still in flight supersedes it: the earlier
+ * message is replied to at once with {@code cancelled: true} and its response, which Elasticsearch
+ * can't abort, only feeds the cache.
+ */
+public class SuggestActioin implements Handler<Message<JsonObject>> {
+  static final String SESSION = "session";
+  private static final String NAME = "suggest";
+  private final Logger logger;
+  private final String defaultField;
+  private final int defaultSize;
+  private final int fetchSize;
+  @Inject private Provider<Client> client;
+  @Inject private SuggestCache cache;
+  /**
+   * Suggest in flight of each session.
+   */
+  private final ConcurrentMap<String, Pending> sessions = new ConcurrentHashMap<>();
+  private long requests;
+  private long cancelled;
+
+  @Inject
+  SuggestActioin(Container container) {
+    logger = container.logger();
+    JsonObject config = container.config().getObject("suggest", new JsonObject());
+    defaultField = config.getString("field", "suggest");
+    defaultSize = config.getInteger("size", 5);
+    fetchSize = config.getInteger("fetch_size", 20);
+  }
+
+  @Override
+  public void handle(Message<JsonObject> message) {
+    JsonObject body = message.body();
+    String text = body.getString("text");
+    String[] indices = SearchActioin.getIndices(body);
+    if (text == null || text.isEmpty() || indices.length == 0) {
+      ElasticSearchHandler.replyFail(logger, message, "_index and text must be specified", null);
+      return;
+    }
+    String field = body.getString("field", defaultField);
+    int size = body.getInteger("size", defaultSize);
+    JsonObject context = body.getObject("context");
+    synchronized (this) {
+      requests++;
+    }
+
+    String scope = null;
+    if (cache.isEnabled() && !body.getBoolean("no_cache", false)) {
+      JsonObject scopeBody =
+          new JsonObject().putArray("_indices", new JsonArray(indices)).putString("field", field);
+      if (context != null) {
+        scopeBody.putObject("context", context);
+      }
+      scope = RequestKey.of(scopeBody);
+      JsonArray options = cache.get(scope, text, size);
+      if (options != null) {
+        cancel(body.getString(SESSION), null);
+        message.reply(new JsonObject().putString("text", text).putArray("options", options));
+        return;
+      }
+    }
+
+    int fetch = scope == null ? size : Math.max(size, fetchSize);
+    CompletionSuggestionBuilder suggestion =
+        new CompletionSuggestionBuilder(NAME).field(field).text(text).size(fetch);
+    if (context != null) {
+      for (String name : context.getFieldNames()) {
+        Object value = context.getValue(name);
+        List<String> values = new ArrayList<>();
+        if (value instanceof JsonArray) {
+          for (Object v : (JsonArray) value) {
+            values.add(String.valueOf(v));
+          }
+        } else {
+          values.add(String.valueOf(value));
+        }
+        suggestion.addContextField(name, values);
+      }
+    }
+    final Pending pending = new Pending(message, body.getString(SESSION), scope, text, size, fetch);
+    cancel(pending.session, pending);
+    client.get().prepareSuggest(indices).addSuggestion(suggestion).execute(
+        new ActionListener<SuggestResponse>() {
+          @Override
+          public void onFailure(Throwable e) {
+            pending.fail(e);
+          }
+
+          @Override
+          public void onResponse(SuggestResponse resp) {
+            pending.succeed(resp);
+          }
+        });
+  }
+
+  synchronized JsonObject stats() {
+    return cache.stats().putNumber("requests", requests).putNumber("cancelled", cancelled)
+        .putNumber("sessions", sessions.size());
+  }
+
+  /**
+   * Replies {@code cancelled: true} to the suggest in flight of {@code session}, and replaces it
+   * with {@code next} if not null.
+   */
+  private void cancel(String session, Pending next) {
+    if (session == null) {
+      return;
+    }
+    Pending previous = next == null ? sessions.remove(session) : sessions.put(session, next);
+    if (previous != null && previous.done.compareAndSet(false, true)) {
+      synchronized (this) {
+        cancelled++;
+      }
+      previous.message.reply(new JsonObject().putString("text", previous.text).putBoolean(
+          "cancelled", true));
+    }
+  }
+
+  private static JsonArray options(SuggestResponse resp) {
+    JsonArray options = new JsonArray();
+    CompletionSuggestion suggestion = resp.getSuggest().getSuggestion(NAME);
+    if (suggestion == null) {
+      return options;
+    }
+    for (CompletionSuggestion.Entry entry : suggestion.getEntries()) {
+      for (CompletionSuggestion.Entry.Option option : entry.getOptions()) {
+        JsonObject json =
+            new JsonObject().putString("text", option.getText().string()).putNumber("score",
+                option.getScore());
+        BytesReference payload = option.getPayload();
+        if (payload != null && payload.length() > 0) {
+          try {
+            json.putObject("payload", new JsonObject(option.getPayloadAsMap()));
+          } catch (ElasticsearchParseException e) {
+            json.putString("payload", option.getPayloadAsString());
+          }
+        }
+        options.add(json);
+      }
+    }
+    return options;
+  }
+
+  private class Pending {
+    final Message<JsonObject> message;
+    final String session;
+    final String scope;
+    final String text;
+    final int size;
+    final int fetch;
+    final AtomicBoolean done = new AtomicBoolean();
+
+    Pending(Message<JsonObject> message, String session, String scope, String text, int size,
+        int fetch) {
+      this.message = message;
+      this.session = session;
+      this.scope = scope;
+      this.text = text;
+      this.size = size;
+      this.fetch = fetch;
+    }
+
+    void fail(Throwable e) {
+      if (session != null) {
+        sessions.remove(session, this);
+      }
+      if (!done.compareAndSet(false, true)) {
+        return;
+      }
+      if (e instanceof IndexMissingException || e.getCause() instanceof IndexMissingException) {
+        message.reply(new JsonObject().putString("text", text).putArray("options",
+            new JsonArray()));
+      } else {
+        ElasticSearchHandler.replyFail(logger, message, "Suggest error: " + e.getMessage(), e);
+      }
+    }
+
+    void succeed(SuggestResponse resp) {
+      if (session != null) {
+        sessions.remove(session, this);
+      }
+      JsonArray options = options(resp);
+      if (scope != null) {
+        cache.put(scope, text, options, fetch);
+      }
+      if (!done.compareAndSet(false, true)) {
+        return;
+      }
+      JsonArray reply = new JsonArray();
+      for (int i = 0; i < Math.min(size, options.size()); i++) {
+        reply.add(((JsonObject) options.get(i)).copy());
+      }
+      message.reply(new JsonObject().putString("text", text).putArray("options", reply));
+    }
+  }
+}
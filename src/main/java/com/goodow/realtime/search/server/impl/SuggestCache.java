@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Singleton;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.platform.Container;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.inject.Inject;
+
+/**
+ * Bounded LRU cache of the completion options of each prefix, when {@code suggest.cache.enabled} is
+ * set.
+ * <p>
+ * The completions of a prefix are a subset of those of any shorter prefix, and are returned in the
+ * same order. So the options of a shorter prefix starting with the longer one are the top options
+ * of the longer prefix too, and answer it as long as there are enough of them, or the shorter
+ * prefix returned all its completions. This only holds when the text of an option is also its
+ * input: prefixes with an option not starting with the prefix itself only answer exact lookups.
+ * Entries are only dropped by TTL, so new completions show up at most {@code suggest.cache.ttl}
+ * late.
+ */
+@Singleton
+class SuggestCache {
+  private static class Entry {
+    final JsonArray options;
+    /**
+     * Whether {@code options} holds every completion of the prefix.
+     */
+    final boolean complete;
+    /**
+     * Whether every option starts with the prefix, so that longer prefixes can be filtered from it.
+     */
+    final boolean filterable;
+    final long expiresAt;
+
+    Entry(JsonArray options, boolean complete, boolean filterable, long expiresAt) {
+      this.options = options;
+      this.complete = complete;
+      this.filterable = filterable;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  static String normalize(String prefix) {
+    return prefix.toLowerCase(Locale.ROOT);
+  }
+
+  private final boolean enabled;
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final Map<String, Entry> entries;
+  private long hits;
+  private long filtered;
+  private long misses;
+
+  @Inject
+  SuggestCache(Container container) {
+    JsonObject config =
+        container.config().getObject("suggest", new JsonObject()).getObject("cache",
+            new JsonObject());
+    enabled = config.getBoolean("enabled", false);
+    maxEntries = config.getInteger("max_entries", 10000);
+    ttlMillis =
+        TimeValue.parseTimeValue(config.getString("ttl"), TimeValue.timeValueSeconds(30)).millis();
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the first {@code size} options of {@code prefix} in {@code scope}, from its own entry
+   * or from the entry of a shorter prefix, or {@code null} if the cache can't tell them.
+   */
+  synchronized JsonArray get(String scope, String prefix, int size) {
+    String normalized = normalize(prefix);
+    long now = System.currentTimeMillis();
+    for (int length = normalized.length(); length > 0; length--) {
+      String key = scope + '\u0000' + normalized.substring(0, length);
+      Entry entry = entries.get(key);
+      if (entry != null && entry.expiresAt < now) {
+        entries.remove(key);
+        entry = null;
+      }
+      if (entry == null) {
+        continue;
+      }
+      if (length == normalized.length()) {
+        if (entry.complete || entry.options.size() >= size) {
+          hits++;
+          return first(entry.options, size, null);
+        }
+        break;
+      }
+      if (!entry.filterable) {
+        continue;
+      }
+      JsonArray options = first(entry.options, size, normalized);
+      if (entry.complete || options.size() >= size) {
+        filtered++;
+        return options;
+      }
+      // A shorter prefix returned even fewer of the completions of this one
+      break;
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Caches the {@code options} returned for {@code prefix}, when at most {@code requested} were
+   * asked for.
+   */
+  synchronized void put(String scope, String prefix, JsonArray options, int requested) {
+    if (!enabled || ttlMillis <= 0) {
+      return;
+    }
+    String normalized = normalize(prefix);
+    boolean filterable = true;
+    for (Object option : options) {
+      String text = ((JsonObject) option).getString("text");
+      if (text == null || !normalize(text).startsWith(normalized)) {
+        filterable = false;
+        break;
+      }
+    }
+    entries.put(scope + '\u0000' + normalized, new Entry(options, options.size() < requested,
+        filterable, System.currentTimeMillis() + ttlMillis));
+  }
+
+  synchronized JsonObject stats() {
+    return new JsonObject().putBoolean("enabled", enabled).putNumber("entries", entries.size())
+        .putNumber("hits", hits).putNumber("filtered", filtered).putNumber("misses", misses);
+  }
+
+  /**
+   * Returns the first {@code size} options, only those whose text starts with {@code prefix} if it
+   * is not null.
+   */
+  private static JsonArray first(JsonArray options, int size, String prefix) {
+    JsonArray result = new JsonArray();
+    for (Object option : options) {
+      if (result.size() >= size) {
+        break;
+      }
+      if (prefix == null || normalize(((JsonObject) option).getString("text")).startsWith(prefix)) {
+        result.add(((JsonObject) option).copy());
+      }
+    }
+    return result;
+  }
+}
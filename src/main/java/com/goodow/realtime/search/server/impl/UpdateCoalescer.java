@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Client;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+/**
+ * Merges partial updates of the same document received within {@code linger_ms} of each other
+ * into a single update request, when {@code update_coalesce.enabled} is set. Every message of a
+ * merged update receives its reply.
+ * <p>
+ * The updates of a document are sent one at a time and in the order received. Updates with a
+ * script or a version are never merged, but keep their place in that order, and so are updates
+ * whose other fields, such as {@code routing}, {@code parent}, {@code fields} or {@code timeout},
+ * differ from those of the previous one.
+ */
+class UpdateCoalescer {
+  /**
+   * The fields combined by {@link #mergeInto}, which may differ between merged updates.
+   */
+  private static final Set<String> MERGED_FIELDS = new HashSet<>(Arrays.asList("doc", "upsert",
+      "doc_as_upsert", "refresh", "retry_on_conflict"));
+
+  private static class Batch {
+    final JsonObject body;
+    final boolean mergeable;
+    final List<Message<JsonObject>> messages = new ArrayList<>(2);
+    boolean sent;
+
+    Batch(JsonObject body, Message<JsonObject> message) {
+      this.body = body.copy();
+      mergeable = isMergeable(body);
+      messages.add(message);
+    }
+  }
+
+  static boolean isMergeable(JsonObject body) {
+    return body.containsField("doc") && !body.containsField("script")
+        && !body.containsField("version") && !body.containsField("version_type");
+  }
+
+  /**
+   * Returns whether the update {@code body} may be merged into {@code target}: both are partial
+   * documents, and all their fields but the merged ones are equal.
+   */
+  static boolean canMerge(JsonObject target, JsonObject body) {
+    if (!isMergeable(target) || !isMergeable(body)) {
+      return false;
+    }
+    Set<String> fields = new HashSet<>(target.getFieldNames());
+    fields.addAll(body.getFieldNames());
+    fields.removeAll(MERGED_FIELDS);
+    for (String field : fields) {
+      Object value = target.getValue(field);
+      if (value == null ? body.getValue(field) != null : !value.equals(body.getValue(field))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Merges {@code source} into {@code target} the way Elasticsearch merges a partial document into
+   * the stored one: objects are merged recursively, any other value is replaced.
+   */
+  static void merge(JsonObject target, JsonObject source) {
+    for (String field : source.getFieldNames()) {
+      Object value = source.getValue(field);
+      Object existing = target.getValue(field);
+      if (value instanceof JsonObject && existing instanceof JsonObject) {
+        merge((JsonObject) existing, (JsonObject) value);
+      } else {
+        target.putValue(field, value instanceof JsonObject ? ((JsonObject) value).copy() : value);
+      }
+    }
+  }
+
+  @Inject private Provider<Client> client;
+  @Inject private WriteRequests writes;
+  @Inject private WriteTracker writeTracker;
+  @Inject private WriteAheadQueue writeQueue;
+  private final Vertx vertx;
+  private final Logger logger;
+  private final boolean enabled;
+  private final long lingerMs;
+  private final Map<String, Deque<Batch>> queues = new HashMap<>();
+  private long merged;
+
+  @Inject
+  UpdateCoalescer(Vertx vertx, Container container) {
+    this.vertx = vertx;
+    logger = container.logger();
+    JsonObject config = container.config().getObject("update_coalesce", new JsonObject());
+    enabled = config.getBoolean("enabled", false);
+    lingerMs = config.getLong("linger_ms", 5);
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Queues the update described by {@code message}, of which {@code request} was built.
+   */
+  synchronized void add(UpdateRequest request, Message<JsonObject> message) {
+    final String key = NearCache.key(request.index(), request.type(), request.id());
+    JsonObject body = message.body();
+    Deque<Batch> queue = queues.get(key);
+    if (queue == null) {
+      queue = new ArrayDeque<>();
+      queues.put(key, queue);
+      queue.add(new Batch(body, message));
+      vertx.setTimer(Math.max(1, lingerMs), new Handler<Long>() {
+        @Override
+        public void handle(Long event) {
+          send(key);
+        }
+      });
+      return;
+    }
+    Batch last = queue.peekLast();
+    if (!last.sent && last.mergeable && canMerge(last.body, body)) {
+      mergeInto(last.body, body);
+      last.messages.add(message);
+      merged++;
+      return;
+    }
+    queue.add(new Batch(body, message));
+  }
+
+  synchronized JsonObject stats() {
+    return new JsonObject().putBoolean("enabled", enabled).putNumber("pending", queues.size())
+        .putNumber("merged", merged);
+  }
+
+  private void mergeInto(JsonObject target, JsonObject body) {
+    merge(target.getObject("doc"), body.getObject("doc"));
+    JsonObject upsert = body.getObject("upsert");
+    if (upsert != null) {
+      if (target.getObject("upsert") == null) {
+        target.putObject("upsert", upsert.copy());
+      } else {
+        merge(target.getObject("upsert"), upsert);
+      }
+    }
+    for (String flag : new String[] {"doc_as_upsert", "refresh"}) {
+      if (body.getBoolean(flag, false)) {
+        target.putBoolean(flag, true);
+      }
+    }
+    if (body.containsField("retry_on_conflict")) {
+      target.putNumber("retry_on_conflict", Math.max(target.getInteger("retry_on_conflict", 0),
+          body.getInteger("retry_on_conflict")));
+    }
+  }
+
+  private void send(final String key) {
+    final Batch batch;
+    synchronized (this) {
+      batch = queues.get(key).peekFirst();
+      batch.sent = true;
+    }
+    final UpdateRequest request = writes.update(batch.body, batch.messages.get(0));
+    if (request == null) {
+      // Replies the same failure to the other messages merged into the batch
+      for (int i = 1; i < batch.messages.size(); i++) {
+        writes.update(batch.body, batch.messages.get(i));
+      }
+      completed(key);
+      return;
+    }
+    if (writeQueue.isQueuing()) {
+      writeQueue.append(batch.body, request, batch.messages);
+      completed(key);
+      return;
+    }
+    client.get().update(request, new ActionListener<UpdateResponse>() {
+      @Override
+      public void onFailure(Throwable e) {
+        if (writeQueue.accepts(e)) {
+          // Appended before the next update of the document is sent, which is then queued too
+          writeQueue.append(batch.body, request, batch.messages);
+          completed(key);
+          return;
+        }
+        for (Message<JsonObject> message : batch.messages) {
+          ElasticSearchHandler.replyFail(logger, message, "Update error: " + e.getMessage(), e);
+        }
+        completed(key);
+      }
+
+      @Override
+      public void onResponse(UpdateResponse resp) {
+        writeTracker.updated(resp);
+        JsonObject reply = WriteRequests.toReply(resp);
+        for (Message<JsonObject> message : batch.messages) {
+          message.reply(reply.copy());
+        }
+        completed(key);
+      }
+    });
+  }
+
+  private void completed(String key) {
+    synchronized (this) {
+      Deque<Batch> queue = queues.get(key);
+      queue.pollFirst();
+      if (queue.isEmpty()) {
+        queues.remove(key);
+        return;
+      }
+    }
+    send(key);
+  }
+}
@@ -0,0 +1,870 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.rest.RestStatus;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import javax.inject.Inject;
+
+/**
+ * Durable write-ahead queue of index, update and delete requests, enabled with
+ * {@code write_queue.enabled}.
+ * <p>
+ * Requests are appended to a log of memory-mapped segment files of
+ * {@code segment_size_in_bytes}, and their callers are acknowledged with the sequence number of
+ * the request once the segment has been forced to disk; appends made while a force is running are
+ * committed together by the next one. With {@code mode: always} every write goes through the
+ * queue, with {@code mode: on_failure} the writes which failed because the cluster was unavailable
+ * or overloaded do, and so does every write until they are all drained, so that none overtakes
+ * them. Appends and forces run on the thread of the queue, never on the event loop.
+ * <p>
+ * A single thread drains the log to Elasticsearch in bulk requests, in order, and persists the
+ * sequence number drained in a checkpoint file. The size of the batches grows additively while the
+ * cluster keeps up, and is halved with an exponential backoff when it rejects or fails them.
+ * Indices and auto-generated ids are resolved before a request is appended, so that a replay
+ * writes the same document. A replayed write rejected by a version conflict was already applied
+ * and counts as drained; requests without a version, such as scripted updates, are replayed at
+ * least once. Other rejected requests are dropped and logged.
+ * <p>
+ * Each verticle instance locks its own directory {@code path/<n>}, and on start adopts the writes
+ * left in the directories no instance locks, such as those of the instances removed by a restart
+ * with fewer of them.
+ */
+@Singleton
+public class WriteAheadQueue {
+  static final String ALWAYS = "always";
+  static final String ON_FAILURE = "on_failure";
+  /**
+   * Length, CRC32 and sequence number of a record.
+   */
+  private static final int HEADER = 16;
+  private static final String SUFFIX = ".log";
+  private static final int MAX_INSTANCES = 64;
+
+  /**
+   * A segment file, named after the sequence number of its first record.
+   */
+  private static class Segment {
+    final long firstSeq;
+    final File file;
+    final MappedByteBuffer buffer;
+    int end;
+    long lastSeq;
+
+    Segment(long firstSeq, File file, MappedByteBuffer buffer) {
+      this.firstSeq = firstSeq;
+      this.file = file;
+      this.buffer = buffer;
+      lastSeq = firstSeq - 1;
+    }
+  }
+
+  private static class Record {
+    final long seq;
+    final JsonObject body;
+
+    Record(long seq, JsonObject body) {
+      this.seq = seq;
+      this.body = body;
+    }
+  }
+
+  private static class Waiter {
+    final long seq;
+    final List<Message<JsonObject>> messages;
+    final JsonObject reply;
+
+    Waiter(long seq, List<Message<JsonObject>> messages, JsonObject reply) {
+      this.seq = seq;
+      this.messages = messages;
+      this.reply = reply;
+    }
+  }
+
+  /**
+   * Returns whether a write failed with {@code e} may succeed once the cluster recovers.
+   */
+  static boolean isRetriable(Throwable e) {
+    return isRetriable(ExceptionsHelper.status(e));
+  }
+
+  private static boolean isRetriable(RestStatus status) {
+    return status.getStatus() >= 500 || status == RestStatus.TOO_MANY_REQUESTS;
+  }
+
+  private static String segmentName(long firstSeq) {
+    return String.format("%020d", firstSeq) + SUFFIX;
+  }
+
+  private final Logger logger;
+  private final boolean enabled;
+  private final boolean always;
+  private final String path;
+  private final int segmentSize;
+  private final boolean fsync;
+  private final int maxBatchActions;
+  private final long maxBatchBytes;
+  private final long pollIntervalMs;
+  private final long maxBackoffMs;
+  @Inject private Provider<Client> client;
+  @Inject private WriteRequests writes;
+  @Inject private WriteTracker writeTracker;
+
+  // Guarded by this
+  private final List<Segment> segments = new ArrayList<>();
+  private final List<Waiter> waiting = new ArrayList<>();
+  private long lastSeq;
+  private long durableSeq;
+  private boolean flushScheduled;
+  private long appended;
+  /**
+   * Appends submitted to the queue thread but not written yet.
+   */
+  private final AtomicInteger submitted = new AtomicInteger();
+
+  // Confined to the queue thread, except for the counters read by stats
+  private volatile ScheduledExecutorService executor;
+  private File dir;
+  private FileLock lock;
+  private RandomAccessFile checkpointFile;
+  private volatile long checkpoint;
+  private Segment cursorSegment;
+  private int cursorPosition;
+  private List<Record> retry;
+  private volatile int batchActions;
+  private volatile long backoffMs;
+  private volatile long drained;
+  private volatile long conflicts;
+  private volatile long dropped;
+  private volatile double drainRate;
+  private long rateWindowStart = System.nanoTime();
+  private long rateWindowDrained;
+
+  @Inject
+  WriteAheadQueue(Container container) {
+    logger = container.logger();
+    JsonObject config = container.config().getObject("write_queue", new JsonObject());
+    enabled = config.getBoolean("enabled", false);
+    always = ALWAYS.equals(config.getString("mode", ON_FAILURE));
+    path = config.getString("path", "write_queue");
+    segmentSize = config.getInteger("segment_size_in_bytes", 64 * 1024 * 1024);
+    fsync = config.getBoolean("fsync", true);
+    maxBatchActions = Math.max(1, config.getInteger("max_batch_actions", 5000));
+    maxBatchBytes = config.getLong("max_batch_size_in_bytes", 10 * 1024 * 1024);
+    pollIntervalMs = config.getLong("poll_interval_ms", 100);
+    maxBackoffMs = config.getLong("max_backoff_ms", 30000);
+    batchActions = Math.min(100, maxBatchActions);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns whether a write should be appended instead of sent: always with {@code mode: always},
+   * and with {@code mode: on_failure} while queued writes are not all drained yet.
+   */
+  boolean isQueuing() {
+    if (!enabled) {
+      return false;
+    } else if (always) {
+      return true;
+    } else if (executor == null) {
+      return false;
+    } else if (submitted.get() > 0) {
+      return true;
+    }
+    synchronized (this) {
+      return lastSeq > checkpoint;
+    }
+  }
+
+  /**
+   * Returns whether a write failed with {@code e} should be queued instead.
+   */
+  boolean accepts(Throwable e) {
+    return enabled && !always && executor != null && isRetriable(e);
+  }
+
+  /**
+   * Returns whether a bulk item which failed with {@code status} should be queued instead.
+   */
+  boolean accepts(RestStatus status) {
+    return enabled && !always && executor != null && isRetriable(status);
+  }
+
+  /**
+   * Recovers the log of the first unlocked directory, adopts the writes left in the other unlocked
+   * ones, and starts draining. Blocks on disk I/O, so it must not run on an event loop.
+   */
+  public void start() throws IOException {
+    if (!enabled) {
+      return;
+    }
+    for (int i = 0; i < MAX_INSTANCES && lock == null; i++) {
+      dir = new File(path, String.valueOf(i));
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Can't create " + dir);
+      }
+      FileChannel channel = new RandomAccessFile(new File(dir, "lock"), "rw").getChannel();
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        lock = null;
+      }
+      if (lock == null) {
+        channel.close();
+      }
+    }
+    if (lock == null) {
+      throw new IOException("All the write queues of " + path + " are in use");
+    }
+    recover();
+    for (int i = 0; i < MAX_INSTANCES; i++) {
+      File other = new File(path, String.valueOf(i));
+      if (!other.equals(dir) && other.isDirectory()) {
+        adopt(other);
+      }
+    }
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "write-queue-" + dir.getName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // Pending drains are dropped on stop, the log keeps their records
+    executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    this.executor = executor;
+    logger.info("Write queue " + dir + " recovered, " + (lastSeq - checkpoint)
+        + " writes to drain");
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    });
+  }
+
+  public void stop() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+      lock.channel().close();
+      checkpointFile.close();
+    } catch (InterruptedException | IOException e) {
+      logger.warn("Can't close write queue " + dir, e);
+    }
+  }
+
+  /**
+   * Appends {@code request}, built from {@code body}, and replies to {@code message} once it is
+   * durable.
+   */
+  void append(JsonObject body, ActionRequest<?> request, Message<JsonObject> message) {
+    append(body, request, Collections.singletonList(message));
+  }
+
+  /**
+   * Appends {@code request}, built from {@code body}, and replies to each of {@code messages}, such
+   * as those of a coalesced update, once it is durable.
+   */
+  void append(JsonObject body, ActionRequest<?> request, List<Message<JsonObject>> messages) {
+    JsonObject record = record(body, request);
+    append(Arrays.asList(record), messages, new JsonObject().putString(
+        ElasticSearchHandler.INDEX, record.getString(ElasticSearchHandler.INDEX)).putString(
+        ElasticSearchHandler.TYPE, record.getString(ElasticSearchHandler.TYPE)).putString(
+        ElasticSearchHandler.ID, record.getString(ElasticSearchHandler.ID)));
+  }
+
+  /**
+   * Appends the requests of a bulk message, and replies to it once they are all durable.
+   */
+  void append(List<JsonObject> bodies, List<ActionRequest<?>> requests,
+      Message<JsonObject> message) {
+    List<JsonObject> records = new ArrayList<>();
+    for (int i = 0; i < bodies.size(); i++) {
+      records.add(record(bodies.get(i), requests.get(i)));
+    }
+    append(records, Collections.singletonList(message), new JsonObject().putNumber("items",
+        records.size()));
+  }
+
+  JsonObject stats() {
+    long depth;
+    long size = 0;
+    int count;
+    long appended;
+    synchronized (this) {
+      appended = this.appended;
+      depth = lastSeq - checkpoint;
+      for (Segment segment : segments) {
+        size += segment.end;
+      }
+      count = segments.size();
+    }
+    return new JsonObject().putBoolean("enabled", enabled).putString("mode",
+        always ? ALWAYS : ON_FAILURE).putNumber("depth", depth).putNumber("size_in_bytes", size)
+        .putNumber("segments", count).putNumber("appended", appended).putNumber("drained",
+            drained).putNumber("conflicts", conflicts).putNumber("dropped", dropped).putNumber(
+            "drain_rate", Math.round(drainRate * 10) / 10.0).putNumber("batch_actions",
+            batchActions).putNumber("backoff_ms", backoffMs);
+  }
+
+  /**
+   * Returns the JSON form of a request, with its resolved index and id so that a replay writes the
+   * same document.
+   */
+  private JsonObject record(JsonObject body, ActionRequest<?> request) {
+    JsonObject record = body.copy();
+    record.removeField("format");
+    String action;
+    if (request instanceof IndexRequest) {
+      IndexRequest index = (IndexRequest) request;
+      if (index.id() == null) {
+        index.id(Strings.base64UUID());
+      }
+      action = "index";
+      record.putString(ElasticSearchHandler.INDEX, index.index()).putString(
+          ElasticSearchHandler.ID, index.id());
+    } else if (request instanceof UpdateRequest) {
+      action = "update";
+    } else {
+      action = "delete";
+      record.putString(ElasticSearchHandler.INDEX, ((DeleteRequest) request).index());
+    }
+    return record.putString("action", action);
+  }
+
+  private void append(List<JsonObject> records, final List<Message<JsonObject>> messages,
+      final JsonObject reply) {
+    final List<byte[]> payloads = new ArrayList<>();
+    for (JsonObject record : records) {
+      byte[] payload = record.encode().getBytes(StandardCharsets.UTF_8);
+      if (HEADER + payload.length > segmentSize) {
+        fail(messages, "a request of " + payload.length + " bytes exceeds segment_size_in_bytes",
+            null);
+        return;
+      }
+      payloads.add(payload);
+    }
+    ScheduledExecutorService executor = this.executor;
+    if (executor == null) {
+      fail(messages, "not started", null);
+      return;
+    }
+    submitted.incrementAndGet();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            write(payloads, messages, reply);
+          } finally {
+            submitted.decrementAndGet();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      submitted.decrementAndGet();
+      fail(messages, "stopped", null);
+    }
+  }
+
+  private void write(List<byte[]> payloads, List<Message<JsonObject>> messages, JsonObject reply) {
+    boolean schedule;
+    try {
+      synchronized (this) {
+        for (byte[] payload : payloads) {
+          write(++lastSeq, payload);
+          appended++;
+        }
+        waiting.add(new Waiter(lastSeq, messages, reply.putBoolean("queued", true).putNumber(
+            "_seq", lastSeq)));
+        schedule = !flushScheduled;
+        flushScheduled = true;
+      }
+    } catch (IOException e) {
+      fail(messages, e.getMessage(), e);
+      return;
+    }
+    if (schedule) {
+      execute(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      });
+    }
+  }
+
+  private void fail(List<Message<JsonObject>> messages, String error, Throwable e) {
+    for (Message<JsonObject> message : messages) {
+      ElasticSearchHandler.replyFail(logger, message, "Write queue error: " + error, e);
+    }
+  }
+
+  private void write(long seq, byte[] payload) throws IOException {
+    Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (segment == null || segment.end + HEADER + payload.length > segmentSize) {
+      segment = createSegment(seq);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(segment.end + HEADER);
+    buffer.put(payload);
+    buffer.putLong(segment.end + 8, seq);
+    buffer.putInt(segment.end + 4, (int) crc.getValue());
+    // The length goes last, so that a torn record is never read
+    buffer.putInt(segment.end, payload.length);
+    segment.end += HEADER + payload.length;
+    segment.lastSeq = seq;
+  }
+
+  private Segment createSegment(long firstSeq) throws IOException {
+    File file = new File(dir, segmentName(firstSeq));
+    Segment segment = new Segment(firstSeq, file, map(file));
+    segments.add(segment);
+    return segment;
+  }
+
+  private MappedByteBuffer map(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      if (raf.length() < segmentSize) {
+        raf.setLength(segmentSize);
+      }
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+  }
+
+  private void recover() throws IOException {
+    checkpointFile = new RandomAccessFile(new File(dir, "checkpoint"), "rw");
+    checkpoint = checkpointFile.length() >= 8 ? checkpointFile.readLong() : 0;
+    String[] names = dir.list();
+    Arrays.sort(names);
+    long expected = -1;
+    for (String name : names) {
+      if (!name.endsWith(SUFFIX)) {
+        continue;
+      }
+      File file = new File(dir, name);
+      long firstSeq = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+      if (expected >= 0 && firstSeq != expected) {
+        logger.error("Write queue segment " + file + " doesn't follow the previous one, skipped");
+        continue;
+      }
+      Segment segment = new Segment(firstSeq, file, map(file));
+      scan(segment);
+      segments.add(segment);
+      expected = segment.lastSeq + 1;
+    }
+    lastSeq = segments.isEmpty() ? checkpoint : Math.max(checkpoint, expected - 1);
+    durableSeq = lastSeq;
+    if (!segments.isEmpty()) {
+      cursorSegment = segments.get(0);
+    }
+  }
+
+  /**
+   * Advances the end of {@code segment} past its complete records.
+   */
+  private void scan(Segment segment) {
+    ByteBuffer buffer = segment.buffer;
+    CRC32 crc = new CRC32();
+    while (segment.end + HEADER <= buffer.capacity()) {
+      int length = buffer.getInt(segment.end);
+      if (length <= 0 || segment.end + HEADER + length > buffer.capacity()
+          || buffer.getLong(segment.end + 8) != segment.lastSeq + 1) {
+        break;
+      }
+      crc.reset();
+      crc.update(payload(buffer, segment.end, length));
+      if ((int) crc.getValue() != buffer.getInt(segment.end + 4)) {
+        logger.warn("Write queue segment " + segment.file + " truncated at a torn record");
+        break;
+      }
+      segment.end += HEADER + length;
+      segment.lastSeq++;
+    }
+  }
+
+  private static byte[] payload(ByteBuffer buffer, int position, int length) {
+    byte[] payload = new byte[length];
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(position + HEADER);
+    slice.get(payload);
+    return payload;
+  }
+
+  /**
+   * Appends the writes not drained yet from the directory {@code other} if no instance locks it,
+   * makes them durable, and deletes its log.
+   */
+  private void adopt(File other) throws IOException {
+    FileLock otherLock;
+    FileChannel channel = new RandomAccessFile(new File(other, "lock"), "rw").getChannel();
+    try {
+      otherLock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      otherLock = null;
+    }
+    if (otherLock == null) {
+      channel.close();
+      return;
+    }
+    try {
+      File checkpointFile = new File(other, "checkpoint");
+      long otherCheckpoint = 0;
+      try (RandomAccessFile raf = new RandomAccessFile(checkpointFile, "rw")) {
+        if (raf.length() >= 8) {
+          otherCheckpoint = raf.readLong();
+        }
+      }
+      String[] names = other.list();
+      Arrays.sort(names);
+      List<File> files = new ArrayList<>();
+      long adopted = 0;
+      long expected = -1;
+      for (String name : names) {
+        if (!name.endsWith(SUFFIX)) {
+          continue;
+        }
+        File file = new File(other, name);
+        files.add(file);
+        long firstSeq = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        if (expected >= 0 && firstSeq != expected) {
+          logger.error("Write queue segment " + file + " doesn't follow the previous one, skipped");
+          continue;
+        }
+        Segment segment = new Segment(firstSeq, file, map(file));
+        scan(segment);
+        expected = segment.lastSeq + 1;
+        for (int position = 0; position < segment.end;) {
+          int length = segment.buffer.getInt(position);
+          if (segment.buffer.getLong(position + 8) > otherCheckpoint) {
+            write(++lastSeq, payload(segment.buffer, position, length));
+            adopted++;
+          }
+          position += HEADER + length;
+        }
+      }
+      if (adopted > 0) {
+        if (fsync) {
+          for (Segment segment : segments) {
+            if (segment.lastSeq > durableSeq) {
+              segment.buffer.force();
+            }
+          }
+        }
+        durableSeq = lastSeq;
+        logger.info("Write queue " + dir + " adopted " + adopted + " writes from " + other);
+      }
+      files.add(checkpointFile);
+      for (File file : files) {
+        if (!file.delete()) {
+          logger.warn("Can't delete write queue file " + file);
+        }
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void flush() {
+    List<Segment> dirty = new ArrayList<>();
+    long upTo;
+    synchronized (this) {
+      flushScheduled = false;
+      upTo = lastSeq;
+      for (Segment segment : segments) {
+        if (segment.lastSeq > durableSeq) {
+          dirty.add(segment);
+        }
+      }
+    }
+    if (fsync) {
+      for (Segment segment : dirty) {
+        segment.buffer.force();
+      }
+    }
+    List<Waiter> done = new ArrayList<>();
+    synchronized (this) {
+      durableSeq = Math.max(durableSeq, upTo);
+      for (Iterator<Waiter> it = waiting.iterator(); it.hasNext();) {
+        Waiter waiter = it.next();
+        if (waiter.seq <= upTo) {
+          done.add(waiter);
+          it.remove();
+        }
+      }
+    }
+    for (Waiter waiter : done) {
+      for (Message<JsonObject> message : waiter.messages) {
+        message.reply(waiter.messages.size() == 1 ? waiter.reply : waiter.reply.copy());
+      }
+    }
+  }
+
+  private void drain() {
+    final List<Record> batch = retry != null ? retry : read();
+    retry = null;
+    if (batch.isEmpty()) {
+      schedule(pollIntervalMs);
+      return;
+    }
+    BulkRequest bulk = new BulkRequest();
+    final List<Record> sent = new ArrayList<>();
+    final List<ActionRequest<?>> requests = new ArrayList<>();
+    for (final Record record : batch) {
+      // Validated before it was appended, so only a log from another version may be invalid
+      ActionRequest<?> request = writes.parse(record.body, new Handler<String>() {
+        @Override
+        public void handle(String error) {
+          dropped++;
+          logger.error("Write queue dropped invalid " + record.body.encode() + ": " + error);
+        }
+      });
+      if (request == null) {
+        continue;
+      }
+      bulk.add(request);
+      sent.add(record);
+      requests.add(request);
+    }
+    if (sent.isEmpty()) {
+      checkpoint(batch.get(batch.size() - 1).seq);
+      schedule(0);
+      return;
+    }
+    client.get().bulk(bulk, new ActionListener<BulkResponse>() {
+      @Override
+      public void onFailure(final Throwable e) {
+        execute(new Runnable() {
+          @Override
+          public void run() {
+            logger.warn("Write queue drain failed: " + e.getMessage());
+            backOff(sent);
+          }
+        });
+      }
+
+      @Override
+      public void onResponse(final BulkResponse resp) {
+        execute(new Runnable() {
+          @Override
+          public void run() {
+            drained(sent, requests, resp);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Reads the durable records following the cursor, up to the current batch size.
+   */
+  private List<Record> read() {
+    List<Record> records = new ArrayList<>();
+    long bytes = 0;
+    synchronized (this) {
+      if (cursorSegment == null) {
+        if (segments.isEmpty()) {
+          return records;
+        }
+        cursorSegment = segments.get(0);
+      }
+      while (records.size() < batchActions && bytes < maxBatchBytes) {
+        ByteBuffer buffer = cursorSegment.buffer;
+        int length = cursorPosition < cursorSegment.end ? buffer.getInt(cursorPosition) : 0;
+        if (length == 0) {
+          // Once a segment is followed by another one, it is complete
+          int next = segments.indexOf(cursorSegment) + 1;
+          if (next >= segments.size()) {
+            break;
+          }
+          cursorSegment = segments.get(next);
+          cursorPosition = 0;
+          continue;
+        }
+        long seq = buffer.getLong(cursorPosition + 8);
+        if (seq > durableSeq) {
+          break;
+        }
+        if (seq > checkpoint) {
+          records.add(new Record(seq, new JsonObject(new String(payload(buffer, cursorPosition,
+              length), StandardCharsets.UTF_8))));
+          bytes += length;
+        }
+        cursorPosition += HEADER + length;
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Completes the records of {@code batch} preceding the first one which failed retriably. That
+   * one and all the following ones, even those which succeeded, are sent again, so that a retried
+   * write never lands after a later write to the same document.
+   */
+  private void drained(List<Record> batch, List<ActionRequest<?>> requests, BulkResponse resp) {
+    BulkItemResponse[] items = resp.getItems();
+    int retryFrom = items.length;
+    for (int i = 0; i < items.length; i++) {
+      if (items[i].isFailed() && isRetriable(items[i].getFailure().getStatus())) {
+        retryFrom = i;
+        break;
+      }
+    }
+    for (int i = 0; i < items.length; i++) {
+      BulkItemResponse item = items[i];
+      if (!item.isFailed()) {
+        // Also for the records sent again, so that caches don't keep what they overwrote
+        writeTracker.written(requests.get(i), item);
+      } else if (i >= retryFrom) {
+        continue;
+      } else if (item.getFailure().getStatus() == RestStatus.CONFLICT) {
+        conflicts++;
+      } else {
+        dropped++;
+        logger.error("Write queue dropped " + batch.get(i).body.encode() + ": "
+            + item.getFailureMessage());
+      }
+    }
+    drained += retryFrom;
+    rate(retryFrom);
+    if (retryFrom < items.length) {
+      if (retryFrom > 0) {
+        checkpoint(batch.get(retryFrom - 1).seq);
+      }
+      backOff(new ArrayList<>(batch.subList(retryFrom, batch.size())));
+      return;
+    }
+    checkpoint(batch.get(batch.size() - 1).seq);
+    batchActions = Math.min(maxBatchActions, batchActions + Math.max(1, maxBatchActions / 20));
+    backoffMs = 0;
+    schedule(0);
+  }
+
+  private void backOff(List<Record> batch) {
+    retry = batch;
+    batchActions = Math.max(1, batchActions / 2);
+    backoffMs = Math.min(maxBackoffMs, Math.max(pollIntervalMs, backoffMs * 2));
+    schedule(backoffMs);
+  }
+
+  private void checkpoint(long seq) {
+    try {
+      checkpointFile.seek(0);
+      checkpointFile.writeLong(seq);
+      if (fsync) {
+        checkpointFile.getFD().sync();
+      }
+    } catch (IOException e) {
+      logger.error("Can't save write queue checkpoint", e);
+      return;
+    }
+    checkpoint = seq;
+    List<Segment> obsolete = new ArrayList<>();
+    synchronized (this) {
+      // Keeps the segment being written
+      while (segments.size() > 1 && segments.get(0).lastSeq <= seq
+          && segments.get(0) != cursorSegment) {
+        obsolete.add(segments.remove(0));
+      }
+    }
+    for (Segment segment : obsolete) {
+      if (!segment.file.delete()) {
+        logger.warn("Can't delete write queue segment " + segment.file);
+      }
+    }
+  }
+
+  private void rate(long count) {
+    rateWindowDrained += count;
+    long now = System.nanoTime();
+    long elapsed = now - rateWindowStart;
+    if (elapsed >= TimeUnit.SECONDS.toNanos(5)) {
+      drainRate = rateWindowDrained * 1e9 / elapsed;
+      rateWindowStart = now;
+      rateWindowDrained = 0;
+    }
+  }
+
+  private void execute(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      // Stopped
+    }
+  }
+
+  private void schedule(long delayMs) {
+    try {
+      executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      }, delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Stopped
+    }
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.script.ScriptService;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Container;
+
+import java.util.Locale;
+
+import javax.inject.Inject;
+
+/**
+ * Builds the write requests (index, update, delete) shared by the single-document actions and the
+ * bulk paths. Every method replies a failure to {@code message}, or passes it to {@code errors},
+ * and returns null when the body is invalid.
+ */
+class WriteRequests {
+  static JsonObject toReply(ActionResponse response) {
+    if (response instanceof IndexResponse) {
+      IndexResponse resp = (IndexResponse) response;
+      return key(resp.getIndex(), resp.getType(), resp.getId(), resp.getVersion()).putBoolean(
+          "created", resp.isCreated());
+    } else if (response instanceof UpdateResponse) {
+      UpdateResponse resp = (UpdateResponse) response;
+      return key(resp.getIndex(), resp.getType(), resp.getId(), resp.getVersion()).putBoolean(
+          "created", resp.isCreated());
+    } else if (response instanceof DeleteResponse) {
+      DeleteResponse resp = (DeleteResponse) response;
+      return key(resp.getIndex(), resp.getType(), resp.getId(), resp.getVersion()).putBoolean(
+          "found", resp.isFound());
+    }
+    throw new IllegalArgumentException("Unsupported write response " + response);
+  }
+
+  private static JsonObject key(String index, String type, String id, long version) {
+    return new JsonObject().putString(ElasticSearchHandler.INDEX, index).putString(
+        ElasticSearchHandler.TYPE, type).putString(ElasticSearchHandler.ID, id).putNumber(
+        ElasticSearchHandler.VERSION, version);
+  }
+
+  private final Logger logger;
+  @Inject private RollingIndices rolling;
+
+  @Inject
+  WriteRequests(Container container) {
+    logger = container.logger();
+  }
+
+  /**
+   * Builds the request described by the {@code action} field of {@code body}: index, update or
+   * delete.
+   */
+  ActionRequest<?> parse(JsonObject body, Message<JsonObject> message) {
+    return parse(body, fail(message));
+  }
+
+  /**
+   * Builds the request described by {@code body} when there is no message to fail, such as a
+   * queued write being replayed. Returns null, after passing the error to {@code errors}, if it
+   * is invalid.
+   */
+  ActionRequest<?> parse(JsonObject body, Handler<String> errors) {
+    String action = body.getString("action", "index");
+    switch (action) {
+      case "index":
+        return index(body, errors);
+      case "update":
+        return update(body, errors);
+      case "delete":
+        return delete(body, errors);
+      default:
+        errors.handle("Unsupported bulk action " + action);
+        return null;
+    }
+  }
+
+  IndexRequest index(JsonObject body, Message<JsonObject> message) {
+    return index(body, fail(message));
+  }
+
+  UpdateRequest update(JsonObject body, Message<JsonObject> message) {
+    return update(body, fail(message));
+  }
+
+  DeleteRequest delete(JsonObject body, Message<JsonObject> message) {
+    return delete(body, fail(message));
+  }
+
+  private IndexRequest index(JsonObject body, Handler<String> errors) {
+    String index = required(ElasticSearchHandler.INDEX, body, errors);
+    if (index == null) {
+      return null;
+    }
+    String type = required(ElasticSearchHandler.TYPE, body, errors);
+    if (type == null) {
+      return null;
+    }
+    JsonObject source = body.getObject("source");
+    if (source == null) {
+      errors.handle("source is required");
+      return null;
+    }
+
+    IndexRequest request =
+        new IndexRequest(rolling.route(index, source), type, body
+            .getString(ElasticSearchHandler.ID)).source(source.encode());
+    if (body.containsField("version")) {
+      request.version(body.getLong("version"));
+    }
+    if (body.containsField("version_type")) {
+      request.versionType(VersionType.fromString(body.getString("version_type")));
+    }
+    if (body.containsField("op_type")) {
+      request.opType(body.getString("op_type"));
+    }
+    if (body.containsField("refresh")) {
+      request.refresh(body.getBoolean("refresh"));
+    }
+    return request;
+  }
+
+  private UpdateRequest update(JsonObject body, Handler<String> errors) {
+    String index = required(ElasticSearchHandler.INDEX, body, errors);
+    if (index == null) {
+      return null;
+    }
+    String type = required(ElasticSearchHandler.TYPE, body, errors);
+    if (type == null) {
+      return null;
+    }
+    String id = required(ElasticSearchHandler.ID, body, errors);
+    if (id == null || rejectLogicalName("update", index, errors)) {
+      return null;
+    }
+    JsonObject doc = body.getObject("doc");
+    String script = body.getString("script");
+    if (doc == null && script == null) {
+      errors.handle("doc or script is required");
+      return null;
+    }
+
+    UpdateRequest request = new UpdateRequest(index, type, id);
+    if (doc != null) {
+      request.doc(doc.encode());
+    }
+    if (script != null) {
+      ScriptService.ScriptType scriptType;
+      try {
+        scriptType =
+            ScriptService.ScriptType.valueOf(body.getString("script_type", "inline").toUpperCase(
+                Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        errors.handle("Unsupported script_type " + body.getString("script_type"));
+        return null;
+      }
+      JsonObject params = body.getObject("params");
+      request.script(script, body.getString("lang"), scriptType, params == null ? null : params
+          .toMap());
+      if (body.containsField("scripted_upsert")) {
+        request.scriptedUpsert(body.getBoolean("scripted_upsert"));
+      }
+    }
+    if (body.containsField("upsert")) {
+      request.upsert(body.getObject("upsert").encode());
+    }
+    if (body.containsField("doc_as_upsert")) {
+      request.docAsUpsert(body.getBoolean("doc_as_upsert"));
+    }
+    if (body.containsField("retry_on_conflict")) {
+      request.retryOnConflict(body.getInteger("retry_on_conflict"));
+    }
+    if (body.containsField("version")) {
+      request.version(body.getLong("version"));
+    }
+    if (body.containsField("version_type")) {
+      request.versionType(VersionType.fromString(body.getString("version_type")));
+    }
+    if (body.containsField("refresh")) {
+      request.refresh(body.getBoolean("refresh"));
+    }
+    return request;
+  }
+
+  private DeleteRequest delete(JsonObject body, Handler<String> errors) {
+    String index = required(ElasticSearchHandler.INDEX, body, errors);
+    if (index == null) {
+      return null;
+    }
+    String type = required(ElasticSearchHandler.TYPE, body, errors);
+    if (type == null) {
+      return null;
+    }
+    String id = required(ElasticSearchHandler.ID, body, errors);
+    if (id == null || rejectLogicalName("delete", index, errors)) {
+      return null;
+    }
+
+    DeleteRequest request = new DeleteRequest(index, type, id);
+    if (body.containsField("version")) {
+      request.version(body.getLong("version"));
+    }
+    if (body.containsField("version_type")) {
+      request.versionType(VersionType.fromString(body.getString("version_type")));
+    }
+    if (body.containsField("refresh")) {
+      request.refresh(body.getBoolean("refresh"));
+    }
+    return request;
+  }
+
+  private boolean rejectLogicalName(String operation, String index, Handler<String> errors) {
+    String error = rolling.logicalNameError(operation, index);
+    if (error != null) {
+      errors.handle(error);
+    }
+    return error != null;
+  }
+
+  private Handler<String> fail(final Message<JsonObject> message) {
+    return new Handler<String>() {
+      @Override
+      public void handle(String error) {
+        ElasticSearchHandler.replyFail(logger, message, error, null);
+      }
+    };
+  }
+
+  private static String required(String field, JsonObject body, Handler<String> errors) {
+    String value = body.getString(field);
+    if (value == null || value.isEmpty()) {
+      errors.handle(field + " is required");
+      return null;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateResponse;
+
+import javax.inject.Inject;
+
+/**
+ * Notified of every acknowledged write, to keep the read-side optimizations consistent with it.
+ */
+class WriteTracker {
+  @Inject private SearchCache searchCache;
+  @Inject private InFlightRequests inFlight;
+  @Inject private NearCache nearCache;
+  @Inject private RollingIndices rolling;
+  @Inject private Subscriptions subscriptions;
+
+  /**
+   * Notified of a write which may have changed any document of {@code index}.
+   */
+  void written(String index) {
+    searched(index);
+    nearCache.invalidate(index);
+  }
+
+  void written(String index, String type, String id) {
+    searched(index);
+    nearCache.invalidate(index, type, id);
+  }
+
+  /**
+   * Drops the searches of {@code index}, and of the logical name it is a bucket of.
+   */
+  private void searched(String index) {
+    searchCache.invalidate(index);
+    inFlight.detach(index);
+    String logicalName = rolling.logicalName(index);
+    if (logicalName != null) {
+      searchCache.invalidate(logicalName);
+      inFlight.detach(logicalName);
+    }
+  }
+
+  void indexed(IndexRequest request, IndexResponse resp) {
+    written(resp.getIndex(), resp.getType(), resp.getId());
+    nearCache.indexed(request, resp);
+    subscriptions.indexed(request, resp);
+  }
+
+  void updated(UpdateResponse resp) {
+    written(resp.getIndex(), resp.getType(), resp.getId());
+    subscriptions.updated(resp.getIndex(), resp.getType(), resp.getId(), resp.getVersion());
+  }
+
+  /**
+   * Notified of a successful item of a bulk, sent for {@code request}.
+   */
+  void written(ActionRequest<?> request, BulkItemResponse item) {
+    if (item.getResponse() instanceof IndexResponse) {
+      indexed((IndexRequest) request, (IndexResponse) item.getResponse());
+    } else if (item.getResponse() instanceof UpdateResponse) {
+      updated((UpdateResponse) item.getResponse());
+    } else {
+      written(item.getIndex(), item.getType(), item.getId());
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.template.get.GetIndexTemplatesAction;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateAction;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateRequest;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateResponses;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.impl.CountingCompletionHandler;
+import org.vertx.java.core.impl.VertxInternal;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdminActioinTest {
+  private static final JsonObject CONFIG = new JsonObject().putObject("rolling", new JsonObject()
+      .putBoolean("enabled", true).putObject("indices", new JsonObject().putObject("logs",
+          new JsonObject())));
+  private static final Stubs.Responder HOLD = new Stubs.Responder() {
+    @Override
+    public ActionResponse respond(ActionRequest<?> request) {
+      return null;
+    }
+  };
+  private Vertx vertx;
+  private Stubs.StubClient client;
+
+  @Before
+  public void setUp() {
+    AdminActioin.PUTS.clear();
+    vertx = VertxFactory.newVertx();
+    client = new Stubs.StubClient();
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    vertx.stop();
+  }
+
+  @Test
+  public void testSkipsTemplatesAlreadyPutByThisJvm() throws Exception {
+    client.on(PutIndexTemplateAction.NAME, acknowledged(true));
+
+    assertNull(start(admin()).await());
+    assertNull(start(admin()).await());
+
+    assertEquals(1, client.requests(PutIndexTemplateRequest.class).size());
+  }
+
+  @Test
+  public void testPutsAgainAfterAFailure() throws Exception {
+    client.on(PutIndexTemplateAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        throw new ConnectTransportException(null, "unreachable");
+      }
+    });
+    assertTrue(start(admin()).await() instanceof ConnectTransportException);
+
+    client.on(PutIndexTemplateAction.NAME, acknowledged(true));
+    AdminActioin admin = admin();
+    assertNull(start(admin).await());
+
+    assertEquals(2, client.requests(PutIndexTemplateRequest.class).size());
+    assertEquals(1, admin.stats().getLong("applied").longValue());
+  }
+
+  @Test
+  public void testPutsAgainWhenNotAcknowledged() throws Exception {
+    client.on(PutIndexTemplateAction.NAME, acknowledged(false));
+    assertNull(start(admin()).await());
+    assertNull(start(admin()).await());
+
+    assertEquals(2, client.requests(PutIndexTemplateRequest.class).size());
+  }
+
+  @Test
+  public void testWaitsForAPutInProgress() throws Exception {
+    client.on(GetIndexTemplatesAction.NAME, HOLD).on(PutIndexTemplateAction.NAME, HOLD);
+    AdminActioin putting = admin();
+    AdminActioin waiting = admin();
+    Started first = start(putting);
+    Started second = start(waiting);
+    releaseGetTemplates();
+
+    assertEquals(1, client.requests(PutIndexTemplateRequest.class).size());
+    assertFalse(second.isDone());
+
+    assertEquals(1, client.release(PutIndexTemplateAction.NAME, PutIndexTemplateResponses
+        .of(true)));
+    assertNull(first.await());
+    assertNull(second.await());
+    assertEquals(1, client.requests(PutIndexTemplateRequest.class).size());
+    // Either instance may have claimed the put, depending on which read the templates first
+    assertEquals(1, putting.stats().getLong("applied") + waiting.stats().getLong("applied"));
+    assertEquals(1, putting.stats().getLong("skipped") + waiting.stats().getLong("skipped"));
+  }
+
+  @Test
+  public void testTakesOverAFailedPutInProgress() throws Exception {
+    client.on(GetIndexTemplatesAction.NAME, HOLD).on(PutIndexTemplateAction.NAME, HOLD);
+    Started first = start(admin());
+    Started second = start(admin());
+    releaseGetTemplates();
+
+    client.on(PutIndexTemplateAction.NAME, acknowledged(true));
+    assertEquals(1, client.release(PutIndexTemplateAction.NAME, new ConnectTransportException(
+        null, "unreachable")));
+    Throwable firstFailure = first.await();
+    Throwable secondFailure = second.await();
+    assertTrue(firstFailure == null ^ secondFailure == null);
+    assertTrue(firstFailure instanceof ConnectTransportException
+        || secondFailure instanceof ConnectTransportException);
+    assertEquals(2, client.requests(PutIndexTemplateRequest.class).size());
+  }
+
+  /**
+   * Lets both instances past reading the cluster templates, so that they claim their puts in
+   * order.
+   */
+  private void releaseGetTemplates() throws InterruptedException {
+    client.awaitHeld(GetIndexTemplatesAction.NAME, 2);
+    assertEquals(2, client.release(GetIndexTemplatesAction.NAME,
+        new ConnectTransportException(null, "unreachable")));
+  }
+
+  private AdminActioin admin() {
+    return Stubs.injector(vertx, CONFIG, client).getInstance(AdminActioin.class);
+  }
+
+  private static Stubs.Responder acknowledged(final boolean acknowledged) {
+    return new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        return PutIndexTemplateResponses.of(acknowledged);
+      }
+    };
+  }
+
+  private Started start(AdminActioin admin) {
+    Started started = new Started();
+    CountingCompletionHandler<Void> completion =
+        new CountingCompletionHandler<>((VertxInternal) vertx, 1);
+    completion.setHandler(started);
+    admin.start(completion);
+    completion.complete();
+    return started;
+  }
+
+  private static class Started implements Handler<AsyncResult<Void>> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    @Override
+    public void handle(AsyncResult<Void> ar) {
+      failure.set(ar.cause());
+      done.countDown();
+    }
+
+    boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the start, and returns its failure or null.
+     */
+    Throwable await() throws InterruptedException {
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      return failure.get();
+    }
+  }
+}
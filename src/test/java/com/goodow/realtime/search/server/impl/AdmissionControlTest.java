@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetAction;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.get.GetResult;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControlTest {
+  private final List<String> events = new ArrayList<>();
+
+  @Test
+  public void testClassifiesActions() {
+    assertEquals(AdmissionControl.GET, AdmissionControl.classify(GetAction.NAME));
+    assertEquals(AdmissionControl.GET, AdmissionControl.classify(MultiGetAction.NAME));
+    assertEquals(AdmissionControl.WRITE, AdmissionControl.classify(BulkAction.NAME));
+    assertEquals(AdmissionControl.SEARCH, AdmissionControl.classify(SearchAction.NAME));
+  }
+
+  @Test
+  public void testQueuesRequestsBeyondTheLimitOfTheirClass() {
+    AdmissionControl admission = admission(new JsonObject());
+
+    assertFalse(admission.submit(GetAction.NAME, task("get1")));
+    assertTrue(admission.submit(GetAction.NAME, task("get2")));
+    // Other classes have their own limit
+    assertFalse(admission.submit(SearchAction.NAME, task("search1")));
+    assertEquals(Arrays.asList("run get1", "run search1"), events);
+
+    admission.release(GetAction.NAME);
+    assertEquals(Arrays.asList("run get1", "run search1", "run get2"), events);
+    JsonObject get = admission.stats().getObject(AdmissionControl.GET);
+    assertEquals(1, get.getInteger("active").intValue());
+    assertEquals(0, get.getInteger("queued").intValue());
+    assertEquals(2, get.getLong("admitted").longValue());
+    admission.release(GetAction.NAME);
+    assertEquals(0, admission.stats().getObject(AdmissionControl.GET).getInteger("active")
+        .intValue());
+  }
+
+  @Test
+  public void testEvictsLowerPriorityRequestsWhenTheQueueIsFull() {
+    AdmissionControl admission = admission(new JsonObject().putNumber("max_queue", 1));
+    admission.submit(GetAction.NAME, task("get1"));
+    admission.submit(SearchAction.NAME, task("search1"));
+    assertTrue(admission.submit(SearchAction.NAME, task("search2")));
+
+    assertTrue(admission.submit(GetAction.NAME, task("get2")));
+    assertFalse(admission.submit(SearchAction.NAME, task("search3")));
+
+    assertEquals(Arrays.asList("run get1", "run search1",
+        "reject search2: Evicted by a higher priority request",
+        "reject search3: Too many pending search requests"), events);
+    JsonObject stats = admission.stats();
+    assertEquals(1, stats.getInteger("queued").intValue());
+    assertEquals(2, stats.getObject(AdmissionControl.SEARCH).getLong("rejected").longValue());
+  }
+
+  @Test
+  public void testRejectsRequestsQueuedForTooLong() throws InterruptedException {
+    AdmissionControl admission = admission(new JsonObject().putNumber("queue_timeout_ms", 50));
+    Stubs.StubClient client = new Stubs.StubClient().on(GetAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        return null;
+      }
+    });
+    AdmissionControlClient admissionClient = new AdmissionControlClient(client, admission);
+    try {
+      Outcome first = new Outcome();
+      Outcome second = new Outcome();
+      admissionClient.get(new GetRequest("twitter", "tweet", "1"), first);
+      admissionClient.get(new GetRequest("twitter", "tweet", "2"), second);
+
+      assertTrue(second.await() instanceof EsRejectedExecutionException);
+      assertEquals(1, admission.stats().getObject(AdmissionControl.GET).getLong("expired")
+          .longValue());
+      client.release(GetAction.NAME, new GetResponse(new GetResult("twitter", "tweet", "1", 1,
+          false, null, null)));
+      assertNull(first.await());
+      assertEquals(1, client.requests(GetRequest.class).size());
+      assertEquals(0, admission.stats().getObject(AdmissionControl.GET).getInteger("active")
+          .intValue());
+    } finally {
+      client.close();
+    }
+  }
+
+  /**
+   * Returns an admission control running one request of each class at a time.
+   */
+  private static AdmissionControl admission(JsonObject config) {
+    config.putBoolean("enabled", true).putObject("max_concurrent", new JsonObject().putNumber(
+        AdmissionControl.GET, 1).putNumber(AdmissionControl.WRITE, 1).putNumber(
+        AdmissionControl.SEARCH, 1));
+    return new AdmissionControl(Stubs.container(new JsonObject().putObject("admission", config)));
+  }
+
+  private AdmissionControl.Task task(final String name) {
+    return new AdmissionControl.Task() {
+      @Override
+      public void run() {
+        events.add("run " + name);
+      }
+
+      @Override
+      public void reject(EsRejectedExecutionException e) {
+        events.add("reject " + name + ": " + e.getMessage());
+      }
+    };
+  }
+
+  private static class Outcome implements ActionListener<GetResponse> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    @Override
+    public void onResponse(GetResponse response) {
+      done.countDown();
+    }
+
+    @Override
+    public void onFailure(Throwable e) {
+      failure.set(e);
+      done.countDown();
+    }
+
+    /**
+     * Waits for the outcome, and returns the failure or null.
+     */
+    Throwable await() throws InterruptedException {
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      return failure.get();
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.index.get.GetResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.impl.CountingCompletionHandler;
+import org.vertx.java.core.impl.VertxInternal;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeFeedIndexerTest {
+  private Vertx vertx;
+  private Stubs.StubClient client;
+  private final List<String> failing = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    vertx = VertxFactory.newVertx();
+    client =
+        new Stubs.StubClient().on(BulkAction.NAME, Stubs.bulk(failing, "MapperParsingException"))
+            .on(IndexAction.NAME, new Stubs.Responder() {
+              @Override
+              public ActionResponse respond(ActionRequest<?> request) {
+                return new IndexResponse("realtime_indexer", "checkpoint", "changes", 1, true);
+              }
+            }).on(GetAction.NAME, new Stubs.Responder() {
+              @Override
+              public ActionResponse respond(ActionRequest<?> request) {
+                GetRequest get = (GetRequest) request;
+                return new GetResponse(new GetResult(get.index(), get.type(), get.id(), -1,
+                    false, null, null));
+              }
+            });
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    vertx.stop();
+  }
+
+  @Test
+  public void testMergesTheChangesOfADocument() {
+    ChangeFeedIndexer.Change change = new ChangeFeedIndexer.Change("twitter", "tweet", "1");
+    change.merge(event("1", 1).putObject("doc", new JsonObject().putString("user", "larry")));
+    change.merge(event("1", 2).putObject("doc", new JsonObject().putString("message", "hi")));
+    UpdateRequest update = (UpdateRequest) change.toRequest();
+    assertEquals("larry", update.doc().sourceAsMap().get("user"));
+    assertEquals("hi", update.doc().sourceAsMap().get("message"));
+    assertTrue(update.docAsUpsert());
+
+    change.merge(event("1", 3).putBoolean("delete", true));
+    assertTrue(change.toRequest() instanceof DeleteRequest);
+
+    // A partial document recreates a deleted one
+    change.merge(event("1", 4).putObject("doc", new JsonObject().putString("user", "kimchy")));
+    IndexRequest index = (IndexRequest) change.toRequest();
+    assertEquals(Collections.singletonMap("user", "kimchy"), index.sourceAsMap());
+  }
+
+  @Test
+  public void testRequeuedChangesKeepTheirEarliestSeq() {
+    ChangeFeedIndexer.Change older = new ChangeFeedIndexer.Change("twitter", "tweet", "1");
+    older.seq = 3;
+    older.merge(event("1", 3).putObject("source", new JsonObject().putString("user", "larry")));
+    ChangeFeedIndexer.Change newer = new ChangeFeedIndexer.Change("twitter", "tweet", "1");
+    newer.seq = 7;
+    newer.merge(event("1", 7).putObject("doc", new JsonObject().putString("message", "hi")));
+
+    older.merge(newer);
+
+    assertEquals(3, older.seq);
+    IndexRequest index = (IndexRequest) older.toRequest();
+    assertEquals("larry", index.sourceAsMap().get("user"));
+    assertEquals("hi", index.sourceAsMap().get("message"));
+  }
+
+  @Test
+  public void testRetriesFailedItemsAndHoldsTheCheckpoint() {
+    ChangeFeedIndexer indexer = indexer(new JsonObject());
+    indexer.add(event("1", 1).putObject("doc", new JsonObject().putString("user", "larry")));
+    indexer.add(event("2", 2).putObject("doc", new JsonObject().putString("user", "kimchy")));
+    failing.add("1");
+
+    indexer.flush();
+
+    JsonObject stats = indexer.stats();
+    assertEquals(1, stats.getInteger("pending").intValue());
+    assertEquals(1, stats.getInteger("errors").intValue());
+    // Held right before the event of the failed document
+    assertEquals(0, stats.getLong("checkpoint").longValue());
+    assertEquals(Arrays.asList(0L), savedCheckpoints());
+
+    failing.clear();
+    indexer.add(event("3", 3).putBoolean("delete", true));
+    indexer.flush();
+
+    stats = indexer.stats();
+    assertEquals(0, stats.getInteger("pending").intValue());
+    assertEquals(3, stats.getLong("checkpoint").longValue());
+    BulkRequest retry = client.requests(BulkRequest.class).get(1);
+    assertEquals(2, retry.requests().size());
+    assertEquals("1", ((UpdateRequest) retry.requests().get(0)).id());
+  }
+
+  @Test
+  public void testDropsChangesAfterMaxRetries() {
+    ChangeFeedIndexer indexer = indexer(new JsonObject().putNumber("max_retries", 1));
+    indexer.add(event("1", 5).putObject("doc", new JsonObject().putString("user", "larry")));
+    failing.add("1");
+
+    indexer.flush();
+    assertEquals(1, indexer.stats().getInteger("pending").intValue());
+    assertEquals(Arrays.asList(4L), savedCheckpoints());
+    indexer.flush();
+
+    JsonObject stats = indexer.stats();
+    assertEquals(0, stats.getInteger("pending").intValue());
+    assertEquals(1, stats.getInteger("dropped").intValue());
+    assertEquals(5, stats.getLong("checkpoint").longValue());
+  }
+
+  @Test
+  public void testOnlyOneInstanceConsumesTheFeed() throws Exception {
+    ChangeFeedIndexer first = indexer(new JsonObject());
+    ChangeFeedIndexer second = indexer(new JsonObject());
+
+    start(first);
+    start(second);
+    assertTrue(first.stats().getBoolean("consuming"));
+    assertFalse(second.stats().getBoolean("consuming"));
+    assertEquals(1, client.requests(GetRequest.class).size());
+
+    first.stop();
+    ChangeFeedIndexer third = indexer(new JsonObject());
+    start(third);
+    assertTrue(third.stats().getBoolean("consuming"));
+  }
+
+  private ChangeFeedIndexer indexer(JsonObject config) {
+    config.putBoolean("enabled", true).putNumber("interval_ms", 60000);
+    return Stubs.injector(vertx, new JsonObject().putObject("indexer", config), client)
+        .getInstance(ChangeFeedIndexer.class);
+  }
+
+  private void start(ChangeFeedIndexer indexer) throws InterruptedException {
+    final CountDownLatch started = new CountDownLatch(1);
+    final Throwable[] failure = new Throwable[1];
+    CountingCompletionHandler<Void> completion =
+        new CountingCompletionHandler<>((VertxInternal) vertx, 1);
+    completion.setHandler(new Handler<AsyncResult<Void>>() {
+      @Override
+      public void handle(AsyncResult<Void> ar) {
+        failure[0] = ar.cause();
+        started.countDown();
+      }
+    });
+    indexer.start(completion);
+    completion.complete();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertNull(failure[0]);
+  }
+
+  private List<Long> savedCheckpoints() {
+    List<Long> seqs = new ArrayList<>();
+    for (IndexRequest request : client.requests(IndexRequest.class)) {
+      seqs.add(((Number) request.sourceAsMap().get("seq")).longValue());
+    }
+    return seqs;
+  }
+
+  private static JsonObject event(String id, long seq) {
+    return new JsonObject().putString(ElasticSearchHandler.INDEX, "twitter").putString(
+        ElasticSearchHandler.TYPE, "tweet").putString(ElasticSearchHandler.ID, id).putNumber(
+        "seq", seq);
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.junit.After;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+  private static final String ACTION = GetAction.NAME;
+  private static final long SLOW = TimeUnit.SECONDS.toNanos(10);
+  private static final Throwable SERVER_ERROR = new ConnectTransportException(null, "unreachable");
+  private final Stubs.StubClient client = new Stubs.StubClient();
+
+  @After
+  public void tearDown() {
+    client.close();
+  }
+
+  @Test
+  public void testOpensOnErrors() {
+    CircuitBreaker breaker = breaker(new JsonObject());
+    for (int i = 0; i < 3; i++) {
+      breaker.record(allow(breaker), 0, null);
+    }
+    assertEquals("closed", state(breaker));
+    for (int i = 0; i < 3; i++) {
+      breaker.record(allow(breaker), 0, SERVER_ERROR);
+    }
+
+    assertEquals("open", state(breaker));
+    assertNull(breaker.allow(ACTION));
+    assertEquals(1, circuit(breaker).getLong("rejected").longValue());
+  }
+
+  @Test
+  public void testIgnoresClientErrors() {
+    CircuitBreaker breaker = breaker(new JsonObject());
+    for (int i = 0; i < 10; i++) {
+      breaker.record(allow(breaker), 0, new ElasticsearchIllegalArgumentException("bad request"));
+    }
+    assertEquals("closed", state(breaker));
+  }
+
+  @Test
+  public void testOpensOnSlowCalls() {
+    CircuitBreaker breaker = breaker(new JsonObject());
+    for (int i = 0; i < 3; i++) {
+      breaker.record(allow(breaker), i % 2 == 0 ? SLOW : 0, null);
+    }
+    assertEquals("closed", state(breaker));
+    breaker.record(allow(breaker), 0, null);
+
+    assertEquals("open", state(breaker));
+  }
+
+  @Test
+  public void testClosesAfterSuccessfulProbes() throws InterruptedException {
+    CircuitBreaker breaker = open(breaker(new JsonObject()));
+    Thread.sleep(60);
+
+    CircuitBreaker.Call first = allow(breaker);
+    CircuitBreaker.Call second = allow(breaker);
+    assertEquals("half_open", state(breaker));
+    assertNull(breaker.allow(ACTION));
+    breaker.record(first, 0, null);
+    assertEquals("half_open", state(breaker));
+    breaker.record(second, 0, null);
+
+    assertEquals("closed", state(breaker));
+    assertEquals(0, circuit(breaker).getInteger("calls").intValue());
+    allow(breaker);
+  }
+
+  @Test
+  public void testReopensWhenAProbeFails() throws InterruptedException {
+    CircuitBreaker breaker = open(breaker(new JsonObject()));
+    Thread.sleep(60);
+
+    breaker.record(allow(breaker), 0, SERVER_ERROR);
+
+    assertEquals("open", state(breaker));
+    assertEquals(2, circuit(breaker).getLong("opened").longValue());
+    assertNull(breaker.allow(ACTION));
+  }
+
+  @Test
+  public void testOnlyProbesCountWhileHalfOpen() throws InterruptedException {
+    CircuitBreaker breaker = breaker(new JsonObject());
+    CircuitBreaker.Call closed = allow(breaker);
+    open(breaker);
+    Thread.sleep(60);
+    CircuitBreaker.Call probe = allow(breaker);
+    assertEquals("half_open", state(breaker));
+
+    // Calls let through before the circuit opened neither close nor reopen it
+    breaker.record(closed, 0, null);
+    assertEquals("half_open", state(breaker));
+    breaker.record(probe, 0, null);
+    assertEquals("half_open", state(breaker));
+    breaker.record(allow(breaker), 0, null);
+    assertEquals("closed", state(breaker));
+  }
+
+  @Test
+  public void testIgnoresProbesOfAnEarlierHalfOpenPeriod() throws InterruptedException {
+    CircuitBreaker breaker = open(breaker(new JsonObject()));
+    Thread.sleep(60);
+    CircuitBreaker.Call late = allow(breaker);
+    breaker.record(allow(breaker), 0, SERVER_ERROR);
+    assertEquals("open", state(breaker));
+    Thread.sleep(60);
+    breaker.record(allow(breaker), 0, null);
+
+    breaker.record(late, 0, null);
+    assertEquals("half_open", state(breaker));
+    assertEquals(0, circuit(breaker).getInteger("in_flight").intValue());
+  }
+
+  @Test
+  public void testStalledCallsTripTheCircuit() throws InterruptedException {
+    CircuitBreaker breaker = breaker(new JsonObject().putNumber("slow_call_ms", 50));
+    CircuitBreakerClient breakerClient = new CircuitBreakerClient(client, breaker);
+    client.on(ACTION, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        return null;
+      }
+    });
+    for (int i = 0; i < 4; i++) {
+      get(breakerClient);
+    }
+    assertEquals(4, circuit(breaker).getInteger("in_flight").intValue());
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!"open".equals(state(breaker)) && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals("open", state(breaker));
+    JsonObject circuit = circuit(breaker);
+    assertEquals(0, circuit.getInteger("in_flight").intValue());
+    assertEquals(4, circuit.getLong("stalled").longValue());
+    assertTrue(get(breakerClient).await() instanceof CircuitBreaker.OpenException);
+
+    // The late responses are not counted twice
+    client.release(ACTION, new GetResponse(new GetResult("twitter", "tweet", "1", -1, false, null,
+        null)));
+    assertEquals(4, circuit(breaker).getInteger("calls").intValue());
+    assertEquals(0, circuit(breaker).getInteger("in_flight").intValue());
+  }
+
+  @Test
+  public void testRecordsTheOutcomeOfCallsInTime() throws InterruptedException {
+    CircuitBreaker breaker = breaker(new JsonObject());
+    CircuitBreakerClient breakerClient = new CircuitBreakerClient(client, breaker);
+    client.on(ACTION, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        GetRequest get = (GetRequest) request;
+        return new GetResponse(new GetResult(get.index(), get.type(), get.id(), -1, false, null,
+            null));
+      }
+    });
+
+    assertNull(get(breakerClient).await());
+    JsonObject circuit = circuit(breaker);
+    assertEquals(1, circuit.getInteger("calls").intValue());
+    assertEquals(0, circuit.getInteger("in_flight").intValue());
+    assertEquals(0, circuit.getLong("stalled").longValue());
+  }
+
+  /**
+   * Returns a breaker opening after 4 calls, for 50ms, and closing after 2 probes.
+   */
+  private static CircuitBreaker breaker(JsonObject config) {
+    config.putBoolean("enabled", true).putNumber("window", 10).putNumber("min_calls", 4)
+        .putNumber("open_ms", 50).putNumber("half_open_calls", 2);
+    return new CircuitBreaker(Stubs.container(new JsonObject().putObject("circuit_breaker",
+        config)));
+  }
+
+  private static CircuitBreaker.Call allow(CircuitBreaker breaker) {
+    CircuitBreaker.Call call = breaker.allow(ACTION);
+    assertNotNull(call);
+    return call;
+  }
+
+  private static CircuitBreaker open(CircuitBreaker breaker) {
+    for (int i = 0; i < 4; i++) {
+      breaker.record(allow(breaker), 0, SERVER_ERROR);
+    }
+    assertEquals("open", state(breaker));
+    return breaker;
+  }
+
+  private static JsonObject circuit(CircuitBreaker breaker) {
+    return breaker.stats().getObject(ACTION);
+  }
+
+  private static String state(CircuitBreaker breaker) {
+    return circuit(breaker).getString("state");
+  }
+
+  private static Outcome get(CircuitBreakerClient client) {
+    Outcome outcome = new Outcome();
+    client.get(new GetRequest("twitter", "tweet", "1"), outcome);
+    return outcome;
+  }
+
+  private static class Outcome implements ActionListener<GetResponse> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    @Override
+    public void onResponse(GetResponse response) {
+      done.countDown();
+    }
+
+    @Override
+    public void onFailure(Throwable e) {
+      failure.set(e);
+      done.countDown();
+    }
+
+    /**
+     * Waits for the outcome, and returns the failure or null.
+     */
+    Throwable await() throws InterruptedException {
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      return failure.get();
+    }
+  }
+}
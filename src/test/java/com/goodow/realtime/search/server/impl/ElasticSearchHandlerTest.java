@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.delete.DeleteAction;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryAction;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryRequest;
+import org.elasticsearch.action.deletebyquery.DeleteByQueryResponses;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticSearchHandlerTest {
+  private Vertx vertx;
+  private Stubs.StubClient client;
+  private ElasticSearchHandler handler;
+
+  @Before
+  public void setUp() {
+    vertx = VertxFactory.newVertx();
+    client = new Stubs.StubClient();
+    handler = Stubs.injector(vertx, new JsonObject(), client).getInstance(
+        ElasticSearchHandler.class);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    vertx.stop();
+  }
+
+  @Test
+  public void testDelete() throws Exception {
+    client.on(DeleteAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        DeleteRequest delete = (DeleteRequest) request;
+        return new DeleteResponse(delete.index(), delete.type(), delete.id(), 4, true);
+      }
+    });
+
+    JsonObject reply =
+        (JsonObject) handle(
+            new JsonObject().putString("action", "delete").putString(ElasticSearchHandler.INDEX,
+                "twitter").putString(ElasticSearchHandler.TYPE, "tweet").putString(
+                ElasticSearchHandler.ID, "1").putNumber("version", 3)).reply();
+
+    assertEquals("1", reply.getString(ElasticSearchHandler.ID));
+    assertEquals(4, reply.getLong(ElasticSearchHandler.VERSION).longValue());
+    assertTrue(reply.getBoolean("found"));
+    DeleteRequest sent = client.requests(DeleteRequest.class).get(0);
+    assertEquals("twitter", sent.index());
+    assertEquals(3, sent.version());
+  }
+
+  @Test
+  public void testDeleteRequiresId() throws Exception {
+    Stubs.CapturedMessage message =
+        handle(new JsonObject().putString("action", "delete").putString(
+            ElasticSearchHandler.INDEX, "twitter").putString(ElasticSearchHandler.TYPE, "tweet"));
+
+    assertEquals(ElasticSearchHandler.ID + " is required", message.failure());
+    assertTrue(client.requests.isEmpty());
+  }
+
+  @Test
+  public void testDeleteByQuery() throws Exception {
+    client.on(DeleteByQueryAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        return DeleteByQueryResponses.of("twitter", 5, 0);
+      }
+    });
+    JsonObject query =
+        new JsonObject().putObject("term", new JsonObject().putString("user", "larry"));
+
+    JsonObject reply =
+        (JsonObject) handle(
+            new JsonObject().putString("action", "deleteByQuery").putArray("_indices",
+                new JsonArray().addString("twitter")).putArray("_types",
+                new JsonArray().addString("tweet")).putObject("source",
+                new JsonObject().putObject("query", query))).reply();
+
+    assertEquals(5, reply.getObject("_indices").getObject("twitter").getObject("_shards")
+        .getInteger("successful").intValue());
+    List<DeleteByQueryRequest> sent = client.requests(DeleteByQueryRequest.class);
+    assertEquals(1, sent.size());
+    assertArrayEquals(new String[] {"twitter"}, sent.get(0).indices());
+    assertArrayEquals(new String[] {"tweet"}, DeleteByQueryResponses.types(sent.get(0)));
+    assertEquals(query, new JsonObject(DeleteByQueryResponses.source(sent.get(0))).getObject(
+        "query"));
+  }
+
+  @Test
+  public void testDeleteByQueryRequiresQuery() throws Exception {
+    Stubs.CapturedMessage message =
+        handle(new JsonObject().putString("action", "deleteByQuery").putString(
+            ElasticSearchHandler.INDEX, "twitter").putObject("source", new JsonObject()));
+
+    assertEquals("source.query is required", message.failure());
+    assertTrue(client.requests.isEmpty());
+  }
+
+  @Test
+  public void testDeleteByQueryFailure() throws Exception {
+    Stubs.CapturedMessage message =
+        handle(new JsonObject().putString("action", "deleteByQuery").putString(
+            ElasticSearchHandler.INDEX, "twitter").putObject("source",
+            new JsonObject().putObject("query", new JsonObject().putObject("match_all",
+                new JsonObject()))));
+
+    String failure = message.failure();
+    assertNotNull(failure);
+    assertTrue(failure, failure.startsWith("Delete by query error: "));
+    assertFalse(client.requests.isEmpty());
+  }
+
+  private Stubs.CapturedMessage handle(JsonObject body) {
+    Stubs.CapturedMessage message = new Stubs.CapturedMessage(body);
+    handler.handle(message.message);
+    return message;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetAction;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.transport.RemoteTransportException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GetBatcherTest {
+  private Vertx vertx;
+  private Stubs.StubClient client;
+  private ElasticSearchHandler handler;
+
+  @Before
+  public void setUp() {
+    vertx = VertxFactory.newVertx();
+    client = new Stubs.StubClient().on(MultiGetAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        List<MultiGetRequest.Item> items = ((MultiGetRequest) request).getItems();
+        MultiGetItemResponse[] responses = new MultiGetItemResponse[items.size()];
+        for (int i = 0; i < responses.length; i++) {
+          MultiGetRequest.Item item = items.get(i);
+          switch (item.index()) {
+            case "gone":
+              responses[i] = failure(item, "[gone] missing");
+              break;
+            case "closed":
+              responses[i] =
+                  failure(item, "EngineClosedException[[closed][0] CurrentState[CLOSED]]");
+              break;
+            default:
+              responses[i] =
+                  new MultiGetItemResponse(new GetResponse(new GetResult(item.index(), item.type(),
+                      item.id(), 1, true, new BytesArray("{\"user\":\"kimchy\"}"), null)), null);
+          }
+        }
+        return new MultiGetResponse(responses);
+      }
+    });
+    handler =
+        Stubs.injector(vertx, new JsonObject().putObject("get_batch", new JsonObject().putBoolean(
+            "enabled", true).putNumber("linger_ms", 50)), client).getInstance(
+            ElasticSearchHandler.class);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    vertx.stop();
+  }
+
+  @Test
+  public void testFansTheDocumentsOfOneMultiGetBackToEachCaller() throws Exception {
+    Stubs.CapturedMessage found = get("twitter", "1");
+    Stubs.CapturedMessage missing = get("gone", "2");
+    Stubs.CapturedMessage failed = get("closed", "3");
+
+    JsonObject doc = (JsonObject) found.reply();
+    assertEquals("1", doc.getString(ElasticSearchHandler.ID));
+    assertEquals("kimchy", doc.getObject(ElasticSearchHandler.SOURCE).getString("user"));
+    // Same reply as a single get on a missing index
+    assertFalse(((JsonObject) missing.reply()).getBoolean("found"));
+    assertTrue(failed.failure(), failed.failure().startsWith("Get error: EngineClosedException"));
+    assertEquals(1, client.requests(MultiGetRequest.class).size());
+    assertEquals(3, client.requests(MultiGetRequest.class).get(0).getItems().size());
+  }
+
+  @Test
+  public void testRecognizesMissingIndicesByTheirException() throws Exception {
+    handler =
+        Stubs.injector(vertx, new JsonObject(), client).getInstance(ElasticSearchHandler.class);
+    client.on(GetAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        throw new RemoteTransportException("[node][inet[/10.0.0.1:9300]]",
+            new IndexMissingException(new Index("gone")));
+      }
+    });
+
+    Stubs.CapturedMessage missing = get("gone", "1");
+
+    assertNull(missing.failure());
+    assertFalse(((JsonObject) missing.reply()).getBoolean("found"));
+  }
+
+  @Test
+  public void testRecognizesMissingIndicesOfMultiSearchItems() {
+    assertTrue(MultiSearchActioin.isIndexMissing(new MultiSearchResponse.Item(null,
+        "RemoteTransportException[[node][inet[/10.0.0.1:9300]]]; nested: "
+            + "IndexMissingException[[gone] missing]; ")));
+    assertTrue(MultiSearchActioin.isIndexMissing(new MultiSearchResponse.Item(null,
+        "IndexMissingException[[gone] missing]")));
+    assertFalse(MultiSearchActioin.isIndexMissing(new MultiSearchResponse.Item(null,
+        "SearchPhaseExecutionException[Failed to execute phase [query], all shards failed]")));
+  }
+
+  private Stubs.CapturedMessage get(String index, String id) {
+    Stubs.CapturedMessage message =
+        new Stubs.CapturedMessage(new JsonObject().putString("action", "get").putString(
+            ElasticSearchHandler.INDEX, index).putString(ElasticSearchHandler.TYPE, "tweet")
+            .putString(ElasticSearchHandler.ID, id));
+    handler.handle(message.message);
+    return message;
+  }
+
+  private static MultiGetItemResponse failure(MultiGetRequest.Item item, String message) {
+    return new MultiGetItemResponse(null, new MultiGetResponse.Failure(item.index(), item.type(),
+        item.id(), message));
+  }
+}
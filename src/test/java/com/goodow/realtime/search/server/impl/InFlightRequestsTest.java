@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.index.get.GetResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightRequestsTest {
+  private static final String[] TWITTER = {"twitter"};
+  private Vertx vertx;
+  private Stubs.StubClient client;
+
+  @Before
+  public void setUp() {
+    vertx = VertxFactory.newVertx();
+    client = new Stubs.StubClient().on(GetAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        return null;
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    vertx.stop();
+  }
+
+  @Test
+  public void testAttachesIdenticalRequestsToThePendingCall() {
+    InFlightRequests inFlight = inFlight(true);
+    Stubs.CapturedMessage first = message();
+    Stubs.CapturedMessage second = message();
+    Stubs.CapturedMessage other = message();
+
+    InFlightRequests.Call call = inFlight.join("a", TWITTER, first.message);
+    assertNotNull(call);
+    assertNull(inFlight.join("a", TWITTER, second.message));
+    assertNotNull(inFlight.join("b", TWITTER, other.message));
+
+    assertEquals(Arrays.asList(first.message, second.message), inFlight.complete(call));
+    // A later request starts a new call
+    assertNotNull(inFlight.join("a", TWITTER, message().message));
+    assertEquals(1, inFlight.stats().getLong("coalesced").longValue());
+  }
+
+  @Test
+  public void testWritesDetachThePendingCallsOfTheirIndex() {
+    InFlightRequests inFlight = inFlight(true);
+    InFlightRequests.Call twitter = inFlight.join("a", TWITTER, message().message);
+    inFlight.join("b", new String[] {"logs"}, message().message);
+
+    inFlight.detach("twitter");
+
+    // Reads sent after the write don't share the response fetched before it
+    assertNotNull(inFlight.join("a", TWITTER, message().message));
+    assertNull(inFlight.join("b", new String[] {"logs"}, message().message));
+    // The detached call still replies to its own messages
+    assertEquals(1, inFlight.complete(twitter).size());
+    assertEquals(2, inFlight.stats().getInteger("pending").intValue());
+  }
+
+  @Test
+  public void testNeverCoalescesWhenDisabled() {
+    InFlightRequests inFlight = inFlight(false);
+    assertNotNull(inFlight.join("a", TWITTER, message().message));
+    assertNotNull(inFlight.join("a", TWITTER, message().message));
+    assertEquals(0, inFlight.stats().getInteger("pending").intValue());
+  }
+
+  @Test
+  public void testRepliesToEveryCoalescedGet() throws Exception {
+    ElasticSearchHandler handler =
+        Stubs.injector(vertx, new JsonObject().putBoolean("coalesce_reads", true), client)
+            .getInstance(ElasticSearchHandler.class);
+    Stubs.CapturedMessage first = get(handler);
+    Stubs.CapturedMessage second = get(handler);
+    client.awaitHeld(GetAction.NAME, 1);
+
+    assertEquals(1, client.release(GetAction.NAME, new GetResponse(new GetResult("twitter",
+        "tweet", "1", 1, true, new BytesArray("{\"user\":\"kimchy\"}"), null))));
+    for (Stubs.CapturedMessage message : Arrays.asList(first, second)) {
+      JsonObject reply = (JsonObject) message.reply();
+      assertTrue(reply.getBoolean("found"));
+    }
+    assertEquals(1, client.requests(GetRequest.class).size());
+  }
+
+  private static InFlightRequests inFlight(boolean enabled) {
+    return new InFlightRequests(Stubs.container(new JsonObject().putBoolean("coalesce_reads",
+        enabled)));
+  }
+
+  private static Stubs.CapturedMessage message() {
+    return new Stubs.CapturedMessage(new JsonObject());
+  }
+
+  private static Stubs.CapturedMessage get(ElasticSearchHandler handler) {
+    Stubs.CapturedMessage message =
+        new Stubs.CapturedMessage(new JsonObject().putString("action", "get").putString(
+            ElasticSearchHandler.INDEX, "twitter").putString(ElasticSearchHandler.TYPE, "tweet")
+            .putString(ElasticSearchHandler.ID, "1"));
+    handler.handle(message.message);
+    return message;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.junit.After;
+import org.junit.Test;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+  private final Stubs.StubClient client = new Stubs.StubClient();
+  private final Metrics metrics = new Metrics(null, Stubs.container(new JsonObject().putObject(
+      "metrics", new JsonObject().putBoolean("enabled", true))));
+
+  @After
+  public void tearDown() {
+    client.close();
+  }
+
+  @Test
+  public void testMetersEachMessageOnce() throws InterruptedException {
+    Stubs.CapturedMessage first = search();
+    Stubs.CapturedMessage second = search();
+    Message<JsonObject> meteredFirst = metrics.meter(first.message);
+    Message<JsonObject> meteredSecond = metrics.meter(second.message);
+    MeteredMessage.serialized(meteredFirst, 1000, 100);
+
+    meteredFirst.reply(new JsonObject());
+    // Replying again is passed on but not recorded again
+    meteredFirst.reply(new JsonObject());
+    meteredSecond.fail(-1, "failed");
+
+    assertTrue(first.reply() instanceof JsonObject);
+    assertEquals("failed", second.failure());
+    JsonObject action = metrics.toJson().getObject("actions").getObject("search");
+    assertEquals(2, action.getLong("count").longValue());
+    assertEquals(1, action.getLong("errors").longValue());
+    assertEquals(100, action.getObject("reply_bytes").getLong("total").longValue());
+    assertEquals(2, metrics.toJson().getObject("indices").getObject("twitter").getLong("count")
+        .longValue());
+  }
+
+  @Test
+  public void testTimesConcurrentRequests() throws InterruptedException {
+    client.on(GetAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        return null;
+      }
+    });
+    MetricsClient metricsClient = new MetricsClient(client, metrics);
+    Counter first = new Counter();
+    Counter second = new Counter();
+    metricsClient.get(new GetRequest("twitter", "tweet", "1"), first);
+    metricsClient.get(new GetRequest("twitter", "tweet", "2"), second);
+    client.awaitHeld(GetAction.NAME, 2);
+
+    assertEquals(2, client.release(GetAction.NAME, new ConnectTransportException(null, "down")));
+    assertEquals(1, first.failures.get());
+    assertEquals(1, second.failures.get());
+    JsonObject request = metrics.toJson().getObject("elasticsearch").getObject(GetAction.NAME);
+    assertEquals(2, request.getLong("count").longValue());
+    assertEquals(2, request.getLong("errors").longValue());
+  }
+
+  private static Stubs.CapturedMessage search() {
+    return new Stubs.CapturedMessage(new JsonObject().putString("action", "search").putString(
+        ElasticSearchHandler.INDEX, "twitter"));
+  }
+
+  private static class Counter implements ActionListener<GetResponse> {
+    final AtomicInteger responses = new AtomicInteger();
+    final AtomicInteger failures = new AtomicInteger();
+
+    @Override
+    public void onResponse(GetResponse response) {
+      responses.incrementAndGet();
+    }
+
+    @Override
+    public void onFailure(Throwable e) {
+      failures.incrementAndGet();
+    }
+  }
+}
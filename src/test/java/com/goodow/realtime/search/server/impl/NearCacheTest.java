@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class NearCacheTest {
+  private static final String KEY = NearCache.key("twitter", "tweet", "1");
+  private static final String OTHER = NearCache.key("twitter", "tweet", "2");
+  private Vertx vertx;
+
+  @Before
+  public void setUp() {
+    vertx = VertxFactory.newVertx();
+  }
+
+  @After
+  public void tearDown() {
+    vertx.stop();
+  }
+
+  @Test
+  public void testDoesNotCacheAGetRacingWithAWriteToItsDocument() {
+    NearCache cache = cache(new JsonObject());
+    long generation = cache.generation();
+    cache.invalidate("twitter", "tweet", "1");
+    cache.put(KEY, generation, 1, doc(1));
+
+    assertNull(cache.get(KEY));
+    cache.put(KEY, cache.generation(), 1, doc(1));
+    assertNotNull(cache.get(KEY));
+  }
+
+  @Test
+  public void testCachesAGetRacingWithAWriteToAnotherDocument() {
+    NearCache cache = cache(new JsonObject());
+    long generation = cache.generation();
+    cache.invalidate("twitter", "tweet", "2");
+    cache.invalidate("other", "tweet", "1");
+    cache.put(KEY, generation, 1, doc(1));
+
+    assertEquals(1, cache.get(KEY).version);
+  }
+
+  @Test
+  public void testDropsTheDocumentsOfAnInvalidatedIndex() {
+    NearCache cache = cache(new JsonObject());
+    cache.put(KEY, cache.generation(), 1, doc(1));
+    String other = NearCache.key("other", "tweet", "1");
+    cache.put(other, cache.generation(), 1, doc(1));
+    long generation = cache.generation();
+    cache.invalidate("twitter");
+    cache.put(OTHER, generation, 1, doc(1));
+
+    assertNull(cache.get(KEY));
+    assertNull(cache.get(OTHER));
+    assertNotNull(cache.get(other));
+  }
+
+  @Test
+  public void testDoesNotCacheGetsOlderThanTheEvictedTombstones() {
+    NearCache cache = cache(new JsonObject());
+    long generation = cache.generation();
+    for (int i = 0; i <= 10000; i++) {
+      cache.invalidate("other", "tweet", Integer.toString(i));
+    }
+    cache.put(KEY, generation, 1, doc(1));
+
+    assertNull(cache.get(KEY));
+  }
+
+  @Test
+  public void testEvictsTheLeastRecentlyUsedBeyondTheMaximumSize() {
+    int weight = doc(1).length() + KEY.length() * 2;
+    NearCache cache = cache(new JsonObject().putNumber("max_size_in_bytes", weight * 2));
+    String third = NearCache.key("twitter", "tweet", "3");
+    cache.put(KEY, cache.generation(), 1, doc(1));
+    cache.put(OTHER, cache.generation(), 1, doc(1));
+    cache.get(KEY);
+    cache.put(third, cache.generation(), 1, doc(1));
+
+    assertNotNull(cache.get(KEY));
+    assertNull(cache.get(OTHER));
+    assertNotNull(cache.get(third));
+    JsonObject stats = cache.stats();
+    assertEquals(1, stats.getLong("evictions").longValue());
+    assertEquals(weight * 2, stats.getLong("size_in_bytes").longValue());
+  }
+
+  @Test
+  public void testExpiresEntries() throws InterruptedException {
+    NearCache cache = cache(new JsonObject().putString("ttl", "20ms"));
+    cache.put(KEY, cache.generation(), 1, doc(1));
+    assertNotNull(cache.get(KEY));
+    Thread.sleep(40);
+
+    assertNull(cache.get(KEY));
+    assertEquals(0, cache.stats().getInteger("entries").intValue());
+  }
+
+  @Test
+  public void testKeepsTheNewestIndexedVersion() {
+    NearCache cache = cache(new JsonObject());
+    cache.put(KEY, cache.generation(), 3, doc(3));
+    cache.indexed(new IndexRequest("twitter", "tweet", "1").source("{\"user\":\"kimchy\"}"),
+        new IndexResponse("twitter", "tweet", "1", 2, false));
+    assertEquals(3, cache.get(KEY).version);
+
+    cache.indexed(new IndexRequest("twitter", "tweet", "1").source("{\"user\":\"kimchy\"}"),
+        new IndexResponse("twitter", "tweet", "1", 4, false));
+    NearCache.Entry entry = cache.get(KEY);
+    assertEquals(4, entry.version);
+    assertEquals("kimchy", new JsonObject(entry.bytes.toUtf8()).getObject("_source").getString(
+        "user"));
+  }
+
+  private NearCache cache(JsonObject config) {
+    return new NearCache(vertx, Stubs.container(new JsonObject().putObject("near_cache", config
+        .putBoolean("enabled", true))));
+  }
+
+  private static BytesArray doc(long version) {
+    return new BytesArray("{\"_index\":\"twitter\",\"_type\":\"tweet\",\"_id\":\"1\",\"_version\":"
+        + version + ",\"found\":true,\"_source\":{}}");
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class PagingTest {
+  @Test
+  public void testRepliesACursorWithFullPages() throws Exception {
+    JsonObject body = page(new JsonObject().putNumber("size", 2).putString("sort", "user"));
+
+    JsonObject reply = reply(body, hit("1", "kimchy"), hit("2", "larry"));
+
+    assertEquals(new JsonArray().addString("larry").addString("tweet#2"), new JsonArray(
+        new String(Base64.decode(reply.getString(Paging.CURSOR)), StandardCharsets.UTF_8)));
+    assertNull(reply(body, hit("3", "shay")).getString(Paging.CURSOR));
+  }
+
+  @Test
+  public void testEndsWithAnEmptyPage() throws Exception {
+    JsonObject reply = reply(page(new JsonObject().putNumber("size", 0)));
+
+    assertFalse(reply.containsField(Paging.CURSOR));
+    assertEquals(0, reply.getObject("hits").getArray("hits").size());
+  }
+
+  @Test
+  public void testRejectsFrom() {
+    assertEquals(0, Paging.of(page(new JsonObject().putNumber("from", 0))).source().getInteger(
+        "from").intValue());
+    try {
+      Paging.of(page(new JsonObject().putNumber("from", 20)));
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("source.from can't be combined with page or cursor", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testFiltersToTheHitsAfterTheCursor() {
+    JsonObject body =
+        new JsonObject().putString(Paging.CURSOR, Base64.encodeBytes("[3,\"tweet#2\"]"
+            .getBytes(StandardCharsets.UTF_8))).putObject("source", new JsonObject().putObject(
+            "sort", new JsonObject().putString("retweets", "desc")));
+
+    JsonObject source = Paging.of(body).source();
+
+    assertEquals(new JsonArray().addObject(new JsonObject().putString("retweets", "desc"))
+        .addString("_uid"), source.getArray("sort"));
+    JsonArray should =
+        source.getObject("query").getObject("filtered").getObject("filter").getObject("bool")
+            .getArray("should");
+    assertEquals(2, should.size());
+    assertEquals(new JsonObject().putObject("range", new JsonObject().putObject("retweets",
+        new JsonObject().putNumber("lt", 3))), ((JsonObject) should.get(0)).getObject("bool")
+        .getArray("must").get(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsACursorOfAnotherSort() {
+    Paging.of(new JsonObject().putString(Paging.CURSOR, Base64.encodeBytes("[3,\"tweet#2\"]".getBytes(
+        StandardCharsets.UTF_8))));
+  }
+
+  private static JsonObject page(JsonObject source) {
+    return new JsonObject().putBoolean(Paging.PAGE, true).putObject("source", source);
+  }
+
+  private static InternalSearchHit hit(String id, String user) {
+    InternalSearchHit hit =
+        new InternalSearchHit(0, id, new StringText("tweet"), Collections
+            .<String, SearchHitField> emptyMap());
+    hit.shard(new SearchShardTarget("node", "twitter", 0));
+    hit.sortValues(new Object[] {new StringText(user), new StringText("tweet#" + id)});
+    return hit;
+  }
+
+  private static JsonObject reply(JsonObject body, InternalSearchHit... hits) throws Exception {
+    SearchResponse resp =
+        new SearchResponse(new InternalSearchResponse(new InternalSearchHits(hits, hits.length,
+            1), null, null, null, false, null), null, 1, 1, 1, ShardSearchFailure.EMPTY_ARRAY);
+    XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+    Paging.view(body, resp).toXContent(builder, ToXContent.EMPTY_PARAMS);
+    return new JsonObject(builder.endObject().string());
+  }
+}
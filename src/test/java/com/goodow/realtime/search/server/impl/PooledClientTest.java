@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.client.Client;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledClientTest {
+  private final AtomicInteger created = new AtomicInteger();
+  private final AtomicInteger closed = new AtomicInteger();
+
+  @Test
+  public void testCreatesClientsOutsideOfTheSharedLock() throws Exception {
+    final CountDownLatch creating = new CountDownLatch(1);
+    final CountDownLatch proceed = new CountDownLatch(1);
+    final AtomicReference<PooledClient> slow = new AtomicReference<>();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        slow.set(PooledClient.acquire("slow", 1, PooledClient.ROUND_ROBIN,
+            new PooledClient.Factory() {
+              @Override
+              public Client create() {
+                creating.countDown();
+                try {
+                  proceed.await();
+                } catch (InterruptedException e) {
+                  throw new IllegalStateException(e);
+                }
+                return client();
+              }
+            }));
+      }
+    };
+    thread.start();
+    assertTrue(creating.await(5, TimeUnit.SECONDS));
+
+    // Another pool is not held up by the one being created
+    PooledClient other = PooledClient.acquire("other", 2, PooledClient.ROUND_ROBIN, factory(0));
+    assertEquals(2, other.stats().getInteger("size").intValue());
+    proceed.countDown();
+    thread.join(5000);
+    assertEquals(1, slow.get().stats().getInteger("size").intValue());
+
+    other.close();
+    slow.get().close();
+    assertEquals(3, closed.get());
+  }
+
+  @Test
+  public void testClosesTheCreatedClientsOnFailure() {
+    try {
+      PooledClient.acquire("failing", 3, PooledClient.ROUND_ROBIN, factory(2));
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("unreachable", e.getMessage());
+    }
+    assertEquals(2, created.get());
+    assertEquals(2, closed.get());
+
+    // The failed pool is not kept
+    PooledClient pooled =
+        PooledClient.acquire("failing", 1, PooledClient.ROUND_ROBIN, factory(Integer.MAX_VALUE));
+    assertEquals(1, pooled.stats().getInteger("handles").intValue());
+    pooled.close();
+  }
+
+  @Test
+  public void testSharesThePoolBetweenHandles() {
+    PooledClient first = PooledClient.acquire("shared", 2, PooledClient.ROUND_ROBIN, factory(0));
+    PooledClient second = PooledClient.acquire("shared", 4, PooledClient.ROUND_ROBIN, factory(0));
+    assertEquals(2, created.get());
+    assertEquals(2, second.stats().getInteger("handles").intValue());
+
+    first.close();
+    assertEquals(0, closed.get());
+    second.close();
+    assertEquals(2, closed.get());
+  }
+
+  /**
+   * Returns a factory which fails after creating {@code failAfter} clients, or never if zero.
+   */
+  private PooledClient.Factory factory(final int failAfter) {
+    return new PooledClient.Factory() {
+      private int calls;
+
+      @Override
+      public Client create() {
+        if (failAfter > 0 && calls++ == failAfter) {
+          throw new IllegalStateException("unreachable");
+        }
+        return client();
+      }
+    };
+  }
+
+  private Client client() {
+    created.incrementAndGet();
+    return new Stubs.StubClient() {
+      @Override
+      public void close() {
+        closed.incrementAndGet();
+        super.close();
+      }
+    };
+  }
+}
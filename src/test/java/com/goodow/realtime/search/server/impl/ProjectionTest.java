@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProjectionTest {
+  @Test
+  public void testParsesArraysAndCommaSeparatedStrings() {
+    assertNull(Projection.of(new JsonObject().putString("_id", "1")));
+
+    Projection projection =
+        Projection.of(new JsonObject().putString(Projection.SOURCE_INCLUDE, "user, message")
+            .putArray(Projection.SOURCE_EXCLUDE, new JsonArray().add("message.raw")));
+    assertArrayEquals(new String[] {"user", "message"}, projection.includes);
+    assertArrayEquals(new String[] {"message.raw"}, projection.excludes);
+    assertNull(projection.fields);
+    assertTrue(projection.isSourceOnly());
+
+    projection = Projection.of(new JsonObject().putString(Projection.FIELDS, "user"));
+    assertArrayEquals(new String[] {"user"}, projection.fields);
+    assertFalse(projection.isSourceOnly());
+  }
+
+  @Test
+  public void testPushesTheProjectionDownToElasticsearch() {
+    Client client = Stubs.offlineClient();
+    try {
+      pushDown(client);
+    } finally {
+      client.close();
+    }
+  }
+
+  private static void pushDown(Client client) {
+    Projection projection =
+        Projection.of(new JsonObject().putString(Projection.FIELDS, "user,date").putString(
+            Projection.SOURCE_INCLUDE, "message"));
+
+    GetRequestBuilder get = new GetRequestBuilder(client, "twitter");
+    projection.apply(get);
+    GetRequest request = get.request();
+    assertArrayEquals(new String[] {"user", "date"}, request.fields());
+    assertArrayEquals(new String[] {"message"}, request.fetchSourceContext().includes());
+
+    MultiGetRequest.Item item = new MultiGetRequest.Item("twitter", "tweet", "1");
+    projection.apply(item);
+    assertArrayEquals(new String[] {"user", "date"}, item.fields());
+    assertArrayEquals(new String[] {"message"}, item.fetchSourceContext().includes());
+
+    SearchRequestBuilder search = new SearchRequestBuilder(client);
+    projection.apply(search);
+    JsonObject source = new JsonObject(search.toString());
+    assertEquals(new JsonArray().add("user").add("date"), source.getArray("fields"));
+    assertEquals("message", source.getObject("_source").getArray("includes").get(0));
+  }
+
+  @Test
+  public void testFiltersTheSourceOfAnEncodedGet() throws Exception {
+    Projection projection =
+        Projection.of(new JsonObject().putString(Projection.SOURCE_INCLUDE, "user.*").putString(
+            Projection.SOURCE_EXCLUDE, "user.password"));
+    JsonObject reply =
+        new JsonObject(projection.filter(
+            new BytesArray("{\"_index\":\"twitter\",\"_id\":\"1\",\"found\":true,\"_source\":"
+                + "{\"user\":{\"name\":\"kimchy\",\"password\":\"secret\"},\"message\":\"hi\"}}"))
+            .toUtf8());
+
+    assertEquals("twitter", reply.getString("_index"));
+    assertEquals("1", reply.getString("_id"));
+    assertTrue(reply.getBoolean("found"));
+    assertEquals(new JsonObject().putObject("user", new JsonObject().putString("name", "kimchy")),
+        reply.getObject("_source"));
+  }
+
+  @Test
+  public void testRepliesOnlyTheHits() throws Exception {
+    InternalSearchHit hit =
+        new InternalSearchHit(0, "1", new StringText("tweet"), Collections
+            .<String, SearchHitField> emptyMap());
+    hit.sourceRef(new BytesArray("{\"user\":\"kimchy\"}"));
+    hit.shard(new SearchShardTarget("node", "twitter", 0));
+    hit.score(1);
+    SearchResponse resp =
+        new SearchResponse(new InternalSearchResponse(new InternalSearchHits(
+            new InternalSearchHit[] {hit}, 7, 1), null, null, null, false, null), null, 1, 1, 3,
+            ShardSearchFailure.EMPTY_ARRAY);
+
+    assertSame(resp, Projection.view(new JsonObject(), resp));
+
+    JsonObject reply =
+        encode(Projection.view(new JsonObject().putBoolean(Projection.HITS_ONLY, true), resp));
+    assertEquals(2, reply.size());
+    assertEquals(7, reply.getLong("total").longValue());
+    assertEquals(new JsonObject().putString("_index", "twitter").putString("_type", "tweet")
+        .putString("_id", "1").putObject("_source", new JsonObject().putString("user", "kimchy")),
+        reply.getArray("hits").get(0));
+  }
+
+  private static JsonObject encode(ToXContent view) throws Exception {
+    XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+    view.toXContent(builder, ToXContent.EMPTY_PARAMS);
+    return new JsonObject(builder.endObject().string());
+  }
+}
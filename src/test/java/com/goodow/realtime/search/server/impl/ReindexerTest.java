@@ -0,0 +1,317 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsAction;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.elasticsearch.transport.RemoteTransportException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReindexerTest {
+  /**
+   * Documents of the source index, by shard.
+   */
+  private static final String[][] SHARDS = { {"a1", "a2"}, {"b1", "b2", "b3"}};
+  private Vertx vertx;
+  private Stubs.StubClient client;
+  private Reindexer reindexer;
+  private final AtomicLong versions = new AtomicLong();
+  /**
+   * Scroll ids which already returned their page.
+   */
+  private final Map<String, Boolean> scrolled = new ConcurrentHashMap<>();
+
+  @Before
+  public void setUp() {
+    vertx = VertxFactory.newVertx();
+    client = new Stubs.StubClient().on(GetSettingsAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        Settings settings =
+            ImmutableSettings.settingsBuilder().put(IndexMetaData.SETTING_NUMBER_OF_SHARDS,
+                SHARDS.length).build();
+        return new GetSettingsResponse(ImmutableOpenMap.<String, Settings> builder().fPut(
+            "twitter_v1", settings).build());
+      }
+    }).on(IndexAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        IndexRequest index = (IndexRequest) request;
+        return new IndexResponse(index.index(), index.type(), index.id(), versions
+            .incrementAndGet(), true);
+      }
+    }).on(SearchAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        String shard = ((SearchRequest) request).preference().substring("_shards:".length());
+        return page(shard, SHARDS[Integer.parseInt(shard)].length);
+      }
+    }).on(SearchScrollAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        String shard = ((SearchScrollRequest) request).scrollId();
+        if (scrolled.put(shard, true) != null) {
+          return page(shard, SHARDS[Integer.parseInt(shard)].length);
+        }
+        return page(shard, SHARDS[Integer.parseInt(shard)].length, SHARDS[Integer
+            .parseInt(shard)]);
+      }
+    }).on(BulkAction.NAME, Stubs.bulk(Collections.<String> emptyList(), null));
+    reindexer = Stubs.injector(vertx, new JsonObject(), client).getInstance(Reindexer.class);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    vertx.stop();
+  }
+
+  @Test
+  public void testCountsEachCopiedDocumentOnce() throws Exception {
+    client.on(BulkAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) throws Exception {
+        BulkResponse resp =
+            (BulkResponse) Stubs.bulk(Collections.<String> emptyList(), null).respond(request);
+        BulkItemResponse[] items = resp.getItems();
+        for (int i = 0; i < items.length; i++) {
+          if ("a2".equals(items[i].getId())) {
+            items[i] = new BulkItemResponse(i, "index", new BulkItemResponse.Failure(
+                "twitter_v2", "tweet", "a2", "VersionConflictEngineException", RestStatus
+                    .CONFLICT));
+          }
+        }
+        return resp;
+      }
+    });
+
+    JsonObject job = await(reindex(new JsonObject()));
+
+    assertEquals("done", job.getString("state"));
+    assertEquals(4, job.getLong("docs").longValue());
+    assertEquals(1, job.getLong("conflicts").longValue());
+    assertEquals(0, job.getLong("failed").longValue());
+    assertEquals(5, job.getLong("total").longValue());
+  }
+
+  @Test
+  public void testFailsWithoutMovingTheAliasWhenDocumentsFailToBeCopied() throws Exception {
+    client.on(BulkAction.NAME, Stubs.bulk(Arrays.asList("b3"), "MapperParsingException[failed]"));
+
+    JsonObject job = await(reindex(new JsonObject().putString("alias", "twitter")));
+
+    assertEquals("failed", job.getString("state"));
+    assertEquals("1 documents failed to be copied, the last one with: "
+        + "MapperParsingException[failed]", job.getString("error"));
+    assertEquals(4, job.getLong("docs").longValue());
+    assertEquals(1, job.getLong("failed").longValue());
+    assertTrue(client.requests(GetAliasesRequest.class).isEmpty());
+  }
+
+  @Test
+  public void testMovesTheAliasDespiteFailuresWhenAllowed() throws Exception {
+    client.on(BulkAction.NAME, Stubs.bulk(Arrays.asList("b3"), "MapperParsingException[failed]"));
+
+    JsonObject job =
+        await(reindex(new JsonObject().putString("alias", "twitter").putBoolean(
+            "allow_failures", true)));
+
+    // The stub client has no aliases to move
+    assertTrue(job.getString("error").startsWith("Moving alias twitter failed"));
+    assertEquals(1, client.requests(GetAliasesRequest.class).size());
+  }
+
+  @Test
+  public void testRetriesBulksRejectedByARemoteNode() throws Exception {
+    final AtomicInteger bulks = new AtomicInteger();
+    client.on(BulkAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) throws Exception {
+        if (bulks.incrementAndGet() == 1) {
+          throw new RemoteTransportException("[node][inet[/10.0.0.1:9300]]",
+              new EsRejectedExecutionException("rejected execution"));
+        }
+        return Stubs.bulk(Collections.<String> emptyList(), null).respond(request);
+      }
+    });
+
+    JsonObject job = await(reindex(new JsonObject()));
+
+    assertEquals("done", job.getString("state"));
+    assertEquals(5, job.getLong("docs").longValue());
+    assertEquals(SHARDS.length + 1, client.requests(BulkRequest.class).size());
+  }
+
+  @Test
+  public void testResumesTheSlicesWhichFailedToCopyDocuments() throws Exception {
+    final JsonObject saved =
+        new JsonObject().putString(Reindexer.JOB, "twitter_v2").putString("source", "twitter_v1")
+            .putString("dest", "twitter_v2").putString("index", "twitter_v1").putString("state",
+                "failed").putString("error", "1 documents failed to be copied").putNumber(
+                "failed", 1).putArray("slices", new JsonArray().addObject(
+                slice(0, 2, 0)).addObject(slice(1, 2, 1)));
+    client.on(GetAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        return new GetResponse(new GetResult("realtime_reindex", "job", "twitter_v2", 3, true,
+            new BytesArray(saved.encode()), null));
+      }
+    });
+
+    JsonObject job = await(reindex(new JsonObject().putString(Reindexer.JOB, "twitter_v2")));
+
+    assertEquals("done", job.getString("state"));
+    assertEquals(5, job.getLong("docs").longValue());
+    assertEquals(0, job.getLong("failed").longValue());
+    List<String> scanned = new ArrayList<>();
+    for (SearchRequest search : client.requests(SearchRequest.class)) {
+      scanned.add(search.preference());
+    }
+    assertEquals(Arrays.asList("_shards:1"), scanned);
+  }
+
+  @Test
+  public void testClearsTheScrollOfAFailedSlice() throws Exception {
+    client.on(SearchScrollAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        String shard = ((SearchScrollRequest) request).scrollId();
+        if ("1".equals(shard)) {
+          throw new ConnectTransportException(null, "unreachable");
+        }
+        boolean first = scrolled.put(shard, true) == null;
+        return first ? page(shard, 2, SHARDS[0]) : page(shard, 2);
+      }
+    });
+
+    JsonObject reply = reindex(new JsonObject());
+
+    // A failed job is left unfinished so that it can be resumed
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!"failed".equals(status(reply).getString("state"))) {
+      assertTrue(System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+    List<String> cleared = new ArrayList<>();
+    for (ClearScrollRequest clear : client.requests(ClearScrollRequest.class)) {
+      cleared.addAll(clear.getScrollIds());
+    }
+    assertTrue(cleared.contains("1"));
+  }
+
+  private JsonObject reindex(JsonObject body) throws InterruptedException {
+    if (!body.containsField(Reindexer.JOB)) {
+      body.putString("source", "twitter_v1").putString("dest", "twitter_v2");
+    }
+    Stubs.CapturedMessage message = new Stubs.CapturedMessage(body);
+    reindexer.reindex(message.message);
+    JsonObject reply = (JsonObject) message.reply();
+    assertEquals(null, message.failure());
+    return reply;
+  }
+
+  /**
+   * Waits for the job replied by {@code reply} to finish, and returns its state.
+   */
+  private JsonObject await(JsonObject reply) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (true) {
+      JsonObject job = status(reply);
+      if (job.getLong("finished") >= 0) {
+        return job;
+      }
+      assertTrue("job still " + job.getString("state"), System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private JsonObject status(JsonObject reply) throws InterruptedException {
+    Stubs.CapturedMessage message =
+        new Stubs.CapturedMessage(new JsonObject().putString(Reindexer.JOB, reply
+            .getString(Reindexer.JOB)));
+    reindexer.status(message.message);
+    return (JsonObject) message.reply();
+  }
+
+  private static JsonObject slice(int shard, long docs, long failed) {
+    return new JsonObject().putArray("shards", new JsonArray().addNumber(shard)).putString(
+        "state", "done").putNumber("docs", docs).putNumber("failed", failed).putNumber("total",
+        docs + failed);
+  }
+
+  private static SearchResponse page(String scrollId, long total, String... ids) {
+    InternalSearchHit[] hits = new InternalSearchHit[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      hits[i] =
+          new InternalSearchHit(i, ids[i], new StringText("tweet"), Collections
+              .<String, SearchHitField> emptyMap());
+      hits[i].sourceRef(new BytesArray("{\"user\":\"" + ids[i] + "\"}"));
+      hits[i].version(1);
+    }
+    return new SearchResponse(new InternalSearchResponse(new InternalSearchHits(hits, total, 1),
+        null, null, null, false, null), scrollId, 1, 1, 1, ShardSearchFailure.EMPTY_ARRAY);
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.junit.Test;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReplyEncodingTest {
+  private static final JsonObject DOC = new JsonObject().putString("_index", "twitter").putNumber(
+      "_version", 3).putBoolean("found", true).putObject("_source",
+      new JsonObject().putString("user", "kimchy").putNumber("retweets", 1.5).putArray("tags",
+          new JsonArray().add("elasticsearch").add("vert.x")).putObject("place",
+          new JsonObject().putString("city", "Amsterdam")));
+
+  @Test
+  public void testRoundTripsEachEncoding() throws Exception {
+    BytesReference json = new BytesArray(DOC.encode());
+    for (String format : new String[] {
+        ReplyEncoding.SMILE, ReplyEncoding.CBOR, ReplyEncoding.DEFLATE}) {
+      assertTrue(format, ReplyEncoding.isEncoding(format));
+      Buffer encoded = ReplyEncoding.encode(json, format);
+      assertEquals(format, ReplyEncoding.DEFLATE.equals(format), encoded.getByte(0) == 0x78);
+      assertEquals(format, DOC, ReplyEncoding.decode(encoded));
+    }
+    assertFalse(ReplyEncoding.isEncoding(ElasticSearchHandler.FORMAT_RAW));
+  }
+
+  @Test
+  public void testDecodesJsonObjectsAsIs() throws Exception {
+    assertNull(ReplyEncoding.decode(null));
+    assertSame(DOC, ReplyEncoding.decode(DOC));
+  }
+
+  @Test
+  public void testEncodesOnlyRepliesAboveTheThreshold() throws Exception {
+    Logger logger = Stubs.container(new JsonObject()).logger();
+    BytesReference json = new BytesArray(DOC.encode());
+
+    Stubs.CapturedMessage small =
+        new Stubs.CapturedMessage(new JsonObject().putString(ElasticSearchHandler.FORMAT,
+            ReplyEncoding.DEFLATE));
+    ElasticSearchHandler.reply(logger, small.message, json);
+    assertEquals(DOC.toMap(), ((JsonObject) small.reply()).toMap());
+
+    Stubs.CapturedMessage large =
+        new Stubs.CapturedMessage(new JsonObject().putString(ElasticSearchHandler.FORMAT,
+            ReplyEncoding.SMILE).putNumber(ReplyEncoding.ENCODE_ABOVE, json.length()));
+    ElasticSearchHandler.reply(logger, large.message, json);
+    Object reply = large.reply();
+    assertTrue(reply instanceof Buffer);
+    assertEquals(DOC, ReplyEncoding.decode(reply));
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RollingIndicesTest {
+  private static final long MARCH_1 = RollingIndices.millis("2015-03-01T13:45:10Z", -1);
+  private final RollingIndices rolling = new RollingIndices(Stubs.container(new JsonObject()
+      .putObject("rolling", new JsonObject().putBoolean("enabled", true).putObject("indices",
+          new JsonObject().putObject("events", new JsonObject().putString("interval", "day")
+              .putString("timestamp_field", "post_date")).putObject("metrics",
+              new JsonObject().putString("interval", "Hour").putObject("mappings",
+                  new JsonObject()))))));
+
+  @Test
+  public void testParsesTimestamps() {
+    assertEquals(1425217510000L, MARCH_1);
+    assertEquals(MARCH_1, RollingIndices.millis(MARCH_1, -1));
+    assertEquals(RollingIndices.millis("2015-03-01T00:00:00Z", -1), RollingIndices.millis(
+        "2015-03-01", -1));
+    assertEquals(-1, RollingIndices.millis("yesterday", -1));
+    assertEquals(-1, RollingIndices.millis(null, -1));
+  }
+
+  @Test
+  public void testFloorsAndAdvancesBuckets() {
+    long day = RollingIndices.Interval.DAY.floor(MARCH_1);
+    assertEquals(RollingIndices.millis("2015-03-01", -1), day);
+    assertEquals(RollingIndices.millis("2015-03-02", -1), RollingIndices.Interval.DAY.next(day));
+    long hour = RollingIndices.Interval.HOUR.floor(MARCH_1);
+    assertEquals(RollingIndices.millis("2015-03-01T13:00:00Z", -1), hour);
+    assertEquals(RollingIndices.millis("2015-03-01T14:00:00Z", -1), RollingIndices.Interval.HOUR
+        .next(hour));
+    long month = RollingIndices.Interval.MONTH.floor(MARCH_1);
+    assertEquals(RollingIndices.millis("2015-03-01", -1), month);
+    assertEquals(RollingIndices.millis("2015-04-01", -1), RollingIndices.Interval.MONTH
+        .next(month));
+  }
+
+  @Test
+  public void testRoutesDocumentsToTheBucketOfTheirTimestamp() {
+    assertEquals("events-2015.03.01", rolling.route("events", new JsonObject().putString(
+        "post_date", "2015-03-01T23:59:59Z")));
+    assertEquals("events-2015.03.02", rolling.route("events", new JsonObject().putNumber(
+        "post_date", RollingIndices.millis("2015-03-02T00:00:00Z", -1))));
+    assertEquals("twitter", rolling.route("twitter", new JsonObject()));
+  }
+
+  @Test
+  public void testRoutesDocumentsWithoutTimestampToTheCurrentBucket() {
+    String current = rolling.stats().getObject("metrics").getString("current");
+    assertEquals(current, rolling.route("metrics", new JsonObject().putString("post_date",
+        "2015-03-01")));
+    assertTrue(current.matches("metrics-\\d{4}\\.\\d{2}\\.\\d{2}\\.\\d{2}"));
+  }
+
+  @Test
+  public void testExpandsTimeRangesToBuckets() {
+    JsonObject body =
+        new JsonObject().putObject(RollingIndices.TIME_RANGE, new JsonObject().putString("from",
+            "2015-02-27T08:00:00Z").putString("to", "2015-03-01T00:00:00Z"));
+    assertArrayEquals(new String[] {
+        "events-2015.02.27*", "events-2015.02.28*", "events-2015.03.01*", "twitter"},
+        rolling.expand(new String[] {"events", "twitter"}, body));
+  }
+
+  @Test
+  public void testSearchesTheAliasWithoutTimeRange() {
+    String[] indices = {"events"};
+    assertArrayEquals(indices, rolling.expand(indices, new JsonObject()));
+    assertArrayEquals(indices, rolling.expand(indices, new JsonObject().putObject(
+        RollingIndices.TIME_RANGE, new JsonObject().putString("to", "2015-03-01"))));
+    // Too many buckets
+    assertArrayEquals(indices, rolling.expand(indices, new JsonObject().putObject(
+        RollingIndices.TIME_RANGE, new JsonObject().putString("from", "2010-01-01").putString(
+            "to", "2015-03-01"))));
+  }
+
+  @Test
+  public void testFindsTheLogicalNameOfBuckets() {
+    assertEquals("events", rolling.logicalName("events-2015.03.01"));
+    assertEquals("events", rolling.logicalName("events-2015.03.01-2"));
+    assertNull(rolling.logicalName("events"));
+    assertNull(rolling.logicalName("twitter"));
+  }
+
+  @Test
+  public void testRejectsReadsAndWritesByIdOfALogicalName() throws InterruptedException {
+    Stubs.CapturedMessage message = new Stubs.CapturedMessage(new JsonObject());
+    assertTrue(rolling.rejectLogicalName("get", "events", message.message));
+    assertTrue(message.failure().contains("rolling index events"));
+
+    Stubs.CapturedMessage bucket = new Stubs.CapturedMessage(new JsonObject());
+    assertFalse(rolling.rejectLogicalName("get", "events-2015.03.01", bucket.message));
+    assertFalse(rolling.rejectLogicalName("update", "twitter", bucket.message));
+    assertFalse(bucket.isDone());
+  }
+
+  @Test
+  public void testPutsBucketsBehindTheAlias() {
+    Map<String, JsonObject> templates = rolling.templates();
+    assertEquals(new HashSet<>(Arrays.asList("rolling_events", "rolling_metrics")), templates
+        .keySet());
+    JsonObject events = templates.get("rolling_events");
+    assertEquals("events-*", events.getString("template"));
+    assertTrue(events.getObject("aliases").containsField("events"));
+    assertFalse(events.containsField("mappings"));
+    assertTrue(templates.get("rolling_metrics").containsField("mappings"));
+  }
+}
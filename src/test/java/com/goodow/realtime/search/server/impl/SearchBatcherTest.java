@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.MultiSearchAction;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SearchBatcherTest {
+  private Vertx vertx;
+  private Stubs.StubClient client;
+  private SearchActioin search;
+
+  @Before
+  public void setUp() {
+    vertx = VertxFactory.newVertx();
+    client = new Stubs.StubClient().on(MultiSearchAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        List<SearchRequest> searches = ((MultiSearchRequest) request).requests();
+        MultiSearchResponse.Item[] items = new MultiSearchResponse.Item[searches.size()];
+        for (int i = 0; i < items.length; i++) {
+          String index = searches.get(i).indices()[0];
+          switch (index) {
+            case "gone":
+              items[i] =
+                  new MultiSearchResponse.Item(null, "RemoteTransportException[[node]"
+                      + "[inet[/10.0.0.1:9300]][indices:data/read/search]]; nested: "
+                      + "IndexMissingException[[gone] missing]; ");
+              break;
+            case "closed":
+              items[i] = new MultiSearchResponse.Item(null, "ClusterBlockException[closed]");
+              break;
+            default:
+              // The total tells the searches apart
+              items[i] = new MultiSearchResponse.Item(response(index.length()), null);
+          }
+        }
+        return new MultiSearchResponse(items);
+      }
+    });
+    JsonObject config =
+        new JsonObject().putObject("search_batch", new JsonObject().putBoolean("enabled", true)
+            .putNumber("linger_ms", 50));
+    search = Stubs.injector(vertx, config, client).getInstance(SearchActioin.class);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    vertx.stop();
+  }
+
+  @Test
+  public void testFansTheItemsOfOneMultiSearchBackToEachCaller() throws Exception {
+    Stubs.CapturedMessage twitter = search("twitter");
+    Stubs.CapturedMessage logs = search("logs");
+    Stubs.CapturedMessage gone = search("gone");
+    Stubs.CapturedMessage closed = search("closed");
+
+    assertEquals(7, total(twitter));
+    assertEquals(4, total(logs));
+    // Same reply as a single search on a missing index
+    assertNull(gone.failure());
+    assertEquals(0, total(gone));
+    assertTrue(closed.failure(), closed.failure().startsWith("Search error: ClusterBlock"));
+    List<MultiSearchRequest> sent = client.requests(MultiSearchRequest.class);
+    assertEquals(1, sent.size());
+    assertEquals(4, sent.get(0).requests().size());
+  }
+
+  @Test
+  public void testFailsEverySearchOfAFailedMultiSearch() throws Exception {
+    client.on(MultiSearchAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        throw new IllegalStateException("unreachable");
+      }
+    });
+
+    Stubs.CapturedMessage twitter = search("twitter");
+    Stubs.CapturedMessage logs = search("logs");
+
+    assertTrue(twitter.failure(), twitter.failure().contains("unreachable"));
+    assertTrue(logs.failure(), logs.failure().contains("unreachable"));
+  }
+
+  private Stubs.CapturedMessage search(String index) {
+    Stubs.CapturedMessage message =
+        new Stubs.CapturedMessage(new JsonObject().putString("action", "search").putString(
+            ElasticSearchHandler.INDEX, index));
+    search.handle(message.message);
+    return message;
+  }
+
+  private static long total(Stubs.CapturedMessage message) throws InterruptedException {
+    return ((JsonObject) message.reply()).getObject("hits").getLong("total");
+  }
+
+  private static SearchResponse response(long total) {
+    return new SearchResponse(new InternalSearchResponse(new InternalSearchHits(
+        new InternalSearchHit[0], total, 0), null, null, null, false, null), null, 1, 1, 1,
+        ShardSearchFailure.EMPTY_ARRAY);
+  }
+}
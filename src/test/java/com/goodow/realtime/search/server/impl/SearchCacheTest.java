@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SearchCacheTest {
+  private static final String[] TWITTER = {"twitter"};
+  private static final TimeValue TTL = TimeValue.timeValueMinutes(1);
+  private static final BytesArray HITS = new BytesArray("{\"hits\":{\"total\":0,\"hits\":[]}}");
+
+  @Test
+  public void testCovers() {
+    assertTrue(SearchCache.covers(new String[0], "twitter"));
+    assertTrue(SearchCache.covers(new String[] {"_all"}, "twitter"));
+    assertTrue(SearchCache.covers(new String[] {"logs", "twit*"}, "twitter"));
+    assertFalse(SearchCache.covers(new String[] {"logs"}, "twitter"));
+  }
+
+  @Test
+  public void testExpiresEntriesAfterTheirTtl() throws InterruptedException {
+    SearchCache cache = cache(new JsonObject().putString("ttl", "20ms"));
+    cache.put("short", cache.generation(), TWITTER, HITS, cache.ttl(new JsonObject()));
+    cache.put("long", cache.generation(), TWITTER, HITS, cache.ttl(new JsonObject().putString(
+        "cache_ttl", "1m")));
+    cache.put("none", cache.generation(), TWITTER, HITS, cache.ttl(new JsonObject().putString(
+        "cache_ttl", "0s")));
+    assertNotNull(cache.get("short"));
+    Thread.sleep(40);
+
+    assertNull(cache.get("short"));
+    assertNotNull(cache.get("long"));
+    assertNull(cache.get("none"));
+    JsonObject stats = cache.stats();
+    assertEquals(1, stats.getInteger("entries").intValue());
+    assertEquals(2, stats.getLong("hits").longValue());
+    assertEquals(2, stats.getLong("misses").longValue());
+  }
+
+  @Test
+  public void testEvictsTheLeastRecentlyUsedBeyondTheMaximumSize() {
+    long weight = HITS.length() + "a".length() * 2;
+    SearchCache cache = cache(new JsonObject().putNumber("max_size_in_bytes", weight * 2));
+    cache.put("a", cache.generation(), TWITTER, HITS, TTL);
+    cache.put("b", cache.generation(), TWITTER, HITS, TTL);
+    cache.get("a");
+    cache.put("c", cache.generation(), TWITTER, HITS, TTL);
+
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    JsonObject stats = cache.stats();
+    assertEquals(1, stats.getLong("evictions").longValue());
+    assertEquals(weight * 2, stats.getLong("size_in_bytes").longValue());
+
+    // Larger than the whole cache
+    cache.put("d", cache.generation(), TWITTER, new BytesArray(new byte[(int) weight * 2]), TTL);
+    assertNull(cache.get("d"));
+    assertNotNull(cache.get("a"));
+  }
+
+  @Test
+  public void testWritesDropTheEntriesCoveringTheirIndex() {
+    SearchCache cache = cache(new JsonObject());
+    cache.put("twitter", cache.generation(), TWITTER, HITS, TTL);
+    cache.put("all", cache.generation(), new String[0], HITS, TTL);
+    cache.put("logs", cache.generation(), new String[] {"logs"}, HITS, TTL);
+
+    cache.invalidate("twitter");
+
+    assertNull(cache.get("twitter"));
+    assertNull(cache.get("all"));
+    assertNotNull(cache.get("logs"));
+    assertEquals(2, cache.stats().getLong("invalidations").longValue());
+  }
+
+  @Test
+  public void testDoesNotCacheAResponseRacingWithAWrite() {
+    SearchCache cache = cache(new JsonObject());
+    long generation = cache.generation();
+    cache.invalidate("twitter");
+    cache.put("twitter", generation, TWITTER, HITS, TTL);
+
+    assertNull(cache.get("twitter"));
+    cache.put("twitter", cache.generation(), TWITTER, HITS, TTL);
+    assertNotNull(cache.get("twitter"));
+  }
+
+  private static SearchCache cache(JsonObject config) {
+    return new SearchCache(Stubs.container(new JsonObject().putObject("search_cache", config
+        .putBoolean("enabled", true))));
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamActioinTest {
+  private static final String ADDRESS = "test/stream";
+  private static final int PAGES = 3;
+  private Vertx vertx;
+  private Stubs.StubClient client;
+  private StreamActioin stream;
+  private final BlockingQueue<Message<JsonObject>> chunks = new LinkedBlockingQueue<>();
+
+  @Before
+  public void setUp() {
+    vertx = VertxFactory.newVertx();
+    client = new Stubs.StubClient().on(SearchAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        // A scan search returns no hits, only the scroll id of the first page
+        return page(0);
+      }
+    }).on(SearchScrollAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        int next = Integer.parseInt(((SearchScrollRequest) request).scrollId()) + 1;
+        return page(next);
+      }
+    }).on(ClearScrollAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        return new ClearScrollResponse(true, 1);
+      }
+    });
+    stream = Stubs.injector(vertx, new JsonObject(), client).getInstance(StreamActioin.class);
+    vertx.eventBus().registerHandler(ADDRESS, new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> message) {
+        chunks.add(message);
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    vertx.stop();
+  }
+
+  @Test
+  public void testSendsNoMoreChunksThanCredits() throws Exception {
+    Stubs.CapturedMessage started = start(new JsonObject().putNumber("credits", 1));
+    assertEquals(PAGES, ((JsonObject) started.reply()).getLong("total").longValue());
+
+    List<String> users = new ArrayList<>();
+    for (int i = 0; i < PAGES; i++) {
+      Message<JsonObject> chunk = chunks.poll(5, TimeUnit.SECONDS);
+      assertNotNull(chunk);
+      assertEquals(i, chunk.body().getInteger("seq").intValue());
+      users.add(chunk.body().getObject("hits").getArray("hits").<JsonObject> get(0).getObject(
+          "_source").getString("user"));
+      if (i < PAGES - 1) {
+        // Waits for the chunk to be acknowledged
+        assertNull(chunks.poll(100, TimeUnit.MILLISECONDS));
+        chunk.reply(new JsonObject());
+      }
+    }
+    // The end of the stream needs no credit
+    Message<JsonObject> done = chunks.poll(5, TimeUnit.SECONDS);
+    assertTrue(done.body().getBoolean("done"));
+    assertEquals(PAGES, done.body().getInteger("seq").intValue());
+    assertEquals(Arrays.asList("user1", "user2", "user3"), users);
+    awaitCleared(Integer.toString(PAGES + 1));
+  }
+
+  @Test
+  public void testStopsWhenCancelled() throws Exception {
+    start(new JsonObject().putNumber("credits", 1));
+    Message<JsonObject> chunk = chunks.poll(5, TimeUnit.SECONDS);
+    assertNotNull(chunk);
+
+    chunk.reply(new JsonObject().putBoolean("cancel", true));
+
+    // The next page was already fetched, its scroll is cleared
+    awaitCleared("2");
+    assertNull(chunks.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testStopsWhenAChunkIsNotAcknowledgedInTime() throws Exception {
+    start(new JsonObject().putNumber("credits", 1).putNumber("timeout", 50));
+    assertNotNull(chunks.poll(5, TimeUnit.SECONDS));
+
+    awaitCleared("2");
+    assertNull(chunks.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testRequiresPositiveCredits() throws Exception {
+    assertEquals("credits must be positive", start(new JsonObject().putNumber("credits", 0))
+        .failure());
+    assertTrue(client.requests.isEmpty());
+  }
+
+  private Stubs.CapturedMessage start(JsonObject body) {
+    final Stubs.CapturedMessage message =
+        new Stubs.CapturedMessage(body.putString("action", "stream").putString("address", ADDRESS)
+            .putString(ElasticSearchHandler.INDEX, "twitter"));
+    // Streams run on the context of the verticle which received the message
+    vertx.runOnContext(new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        stream.handle(message.message);
+      }
+    });
+    return message;
+  }
+
+  private void awaitCleared(String scrollId) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (true) {
+      for (ClearScrollRequest clear : client.requests(ClearScrollRequest.class)) {
+        if (clear.getScrollIds().contains(scrollId)) {
+          assertEquals(1, client.requests(ClearScrollRequest.class).size());
+          return;
+        }
+      }
+      assertTrue("scroll " + scrollId + " not cleared", System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Returns the page {@code n} of the stream, whose scroll id is {@code n}, with one hit per page
+   * up to {@link #PAGES}.
+   */
+  private static SearchResponse page(int n) {
+    InternalSearchHit[] hits = new InternalSearchHit[n == 0 || n > PAGES ? 0 : 1];
+    if (hits.length > 0) {
+      hits[0] =
+          new InternalSearchHit(n, Integer.toString(n), new StringText("tweet"), Collections
+              .<String, SearchHitField> emptyMap());
+      hits[0].sourceRef(new BytesArray("{\"user\":\"user" + n + "\"}"));
+      hits[0].shard(new SearchShardTarget("node", "twitter", 0));
+    }
+    return new SearchResponse(new InternalSearchResponse(new InternalSearchHits(hits, PAGES, 1),
+        null, null, null, false, null), Integer.toString(n), 1, 1, 1,
+        ShardSearchFailure.EMPTY_ARRAY);
+  }
+}
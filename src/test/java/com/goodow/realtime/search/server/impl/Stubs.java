@@ -0,0 +1,367 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.core.logging.impl.LoggerFactory;
+import org.vertx.java.platform.Container;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Minimal vert.x and Elasticsearch stand-ins, so that the unit tests run without a cluster or a
+ * vert.x platform.
+ */
+final class Stubs {
+  /**
+   * Answers the requests of an action, or throws to fail them. Returning null holds the request
+   * until {@link StubClient#release} answers it.
+   */
+  interface Responder {
+    ActionResponse respond(ActionRequest<?> request) throws Exception;
+  }
+
+  /**
+   * Records every request and completes it synchronously with the {@link Responder} registered for
+   * its action, or fails it when there is none.
+   */
+  static class StubClient extends FilterClient {
+    final List<ActionRequest<?>> requests = new CopyOnWriteArrayList<>();
+    private final Map<String, Responder> responders = new ConcurrentHashMap<>();
+    private final Queue<Held> held = new ConcurrentLinkedQueue<>();
+
+    StubClient() {
+      super(offlineClient());
+    }
+
+    StubClient on(String actionName, Responder responder) {
+      responders.put(actionName, responder);
+      return this;
+    }
+
+    /**
+     * Answers the held requests of an action with {@code response}, or fails them if it is a
+     * Throwable. Returns the number of requests answered.
+     */
+    int release(String actionName, Object response) {
+      int released = 0;
+      for (Held request : held) {
+        if (!request.actionName.equals(actionName) || !held.remove(request)) {
+          continue;
+        }
+        released++;
+        if (response instanceof Throwable) {
+          request.listener.onFailure((Throwable) response);
+        } else {
+          request.listener.onResponse((ActionResponse) response);
+        }
+      }
+      return released;
+    }
+
+    /**
+     * Waits until {@code count} requests of an action are held.
+     */
+    void awaitHeld(String actionName, int count) throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (true) {
+        int n = 0;
+        for (Held request : held) {
+          n += request.actionName.equals(actionName) ? 1 : 0;
+        }
+        if (n >= count) {
+          return;
+        }
+        assertTrue(count + " " + actionName + " requests not held", System.nanoTime() < deadline);
+        Thread.sleep(10);
+      }
+    }
+
+    /**
+     * Returns the recorded requests of class {@code type}.
+     */
+    <T extends ActionRequest<?>> List<T> requests(Class<T> type) {
+      List<T> matching = new ArrayList<>();
+      for (ActionRequest<?> request : requests) {
+        if (type.isInstance(request)) {
+          matching.add(type.cast(request));
+        }
+      }
+      return matching;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void execute(
+        Action<Request, Response, RequestBuilder, Client> action, Request request,
+        ActionListener<Response> listener) {
+      respond(action.name(), request, listener);
+    }
+
+    @Override
+    public IndicesAdminClient indices() {
+      return new FilterClient.IndicesAdmin(null) {
+        @Override
+        public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, IndicesAdminClient>> void execute(
+            Action<Request, Response, RequestBuilder, IndicesAdminClient> action,
+            Request request, ActionListener<Response> listener) {
+          respond(action.name(), request, listener);
+        }
+
+        @Override
+        public ThreadPool threadPool() {
+          return StubClient.this.threadPool();
+        }
+      };
+    }
+
+    @SuppressWarnings("unchecked")
+    private <Response extends ActionResponse> void respond(String actionName,
+        ActionRequest<?> request, ActionListener<Response> listener) {
+      requests.add(request);
+      Responder responder = responders.get(actionName);
+      if (responder == null) {
+        listener.onFailure(new UnsupportedOperationException(actionName));
+        return;
+      }
+      ActionResponse response;
+      try {
+        response = responder.respond(request);
+      } catch (Exception e) {
+        listener.onFailure(e);
+        return;
+      }
+      if (response == null) {
+        held.add(new Held(actionName, (ActionListener<ActionResponse>) listener));
+        return;
+      }
+      listener.onResponse((Response) response);
+    }
+  }
+
+  private static class Held {
+    final String actionName;
+    final ActionListener<ActionResponse> listener;
+
+    Held(String actionName, ActionListener<ActionResponse> listener) {
+      this.actionName = actionName;
+      this.listener = listener;
+    }
+  }
+
+  /**
+   * A message which records its reply or failure.
+   */
+  static class CapturedMessage implements InvocationHandler {
+    final Message<JsonObject> message;
+    final JsonObject body;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Object reply;
+    private volatile String failure;
+
+    @SuppressWarnings("unchecked")
+    CapturedMessage(JsonObject body) {
+      this.body = body;
+      message =
+          (Message<JsonObject>) Proxy.newProxyInstance(Message.class.getClassLoader(),
+              new Class<?>[] {Message.class}, this);
+    }
+
+    /**
+     * Waits for the reply, and returns it or null if the message was failed.
+     */
+    Object reply() throws InterruptedException {
+      assertTrue("no reply to " + body, done.await(5, TimeUnit.SECONDS));
+      return reply;
+    }
+
+    /**
+     * Waits for the reply, and returns the failure message or null if the message was replied to.
+     */
+    String failure() throws InterruptedException {
+      reply();
+      return failure;
+    }
+
+    boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "body":
+          return body;
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "toString":
+          return "CapturedMessage" + body;
+        case "fail":
+          failure = (String) args[1];
+          done.countDown();
+          return null;
+        default:
+          if (method.getName().startsWith("reply")) {
+            reply = args == null ? null : args[0];
+            done.countDown();
+          }
+          return null;
+      }
+    }
+  }
+
+  /**
+   * Acknowledges every item of a bulk request, except the documents whose id is in
+   * {@code failedIds}, which fail with {@code failure}.
+   */
+  static Responder bulk(final Collection<String> failedIds, final String failure) {
+    return new Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        List<ActionRequest> requests = ((BulkRequest) request).requests();
+        BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+        for (int i = 0; i < items.length; i++) {
+          items[i] = item(i, requests.get(i), failedIds, failure);
+        }
+        return new BulkResponse(items, 1);
+      }
+    };
+  }
+
+  private static BulkItemResponse item(int itemId, ActionRequest<?> request,
+      Collection<String> failedIds, String failure) {
+    DocumentRequest<?> doc = (DocumentRequest<?>) request;
+    String opType =
+        request instanceof IndexRequest ? "index" : request instanceof UpdateRequest ? "update"
+            : "delete";
+    if (failedIds.contains(doc.id())) {
+      return new BulkItemResponse(itemId, opType, new BulkItemResponse.Failure(doc.index(), doc
+          .type(), doc.id(), failure, RestStatus.BAD_REQUEST));
+    }
+    ActionResponse response =
+        request instanceof IndexRequest ? new IndexResponse(doc.index(), doc.type(), doc.id(), 1,
+            true) : request instanceof UpdateRequest ? new UpdateResponse(doc.index(),
+            doc.type(), doc.id(), 1, true) : new DeleteResponse(doc.index(), doc.type(), doc
+            .id(), 1, true);
+    return new BulkItemResponse(itemId, opType, response);
+  }
+
+  static Container container(final JsonObject config) {
+    final Logger logger = LoggerFactory.getLogger(Stubs.class);
+    return (Container) Proxy.newProxyInstance(Container.class.getClassLoader(),
+        new Class<?>[] {Container.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+              case "config":
+                return config;
+              case "logger":
+                return logger;
+              default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+          }
+        });
+  }
+
+  /**
+   * Returns a client without any connection, used for its settings and thread pool only.
+   */
+  static Client offlineClient() {
+    final ThreadPool threadPool = new ThreadPool("tests");
+    return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(),
+        new Class<?>[] {Client.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+              case "threadPool":
+                return threadPool;
+              case "settings":
+                return ImmutableSettings.EMPTY;
+              case "close":
+                threadPool.shutdownNow();
+                return null;
+              default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+          }
+        });
+  }
+
+  static Injector injector(final Vertx vertx, JsonObject config, final Client client) {
+    final Container container = container(config);
+    final PooledClient pooled =
+        PooledClient.acquire("tests-" + System.identityHashCode(client), 1,
+            PooledClient.ROUND_ROBIN, new PooledClient.Factory() {
+              @Override
+              public Client create() {
+                return client;
+              }
+            });
+    return Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(Vertx.class).toInstance(vertx);
+        bind(Container.class).toInstance(container);
+        bind(Client.class).toInstance(pooled);
+        bind(PooledClient.class).toInstance(pooled);
+      }
+    });
+  }
+
+  private Stubs() {
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Injector;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.create.CreateIndexAction;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponses;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingAction;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingRequest;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponses;
+import org.elasticsearch.action.delete.DeleteAction;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.percolate.MultiPercolateAction;
+import org.elasticsearch.action.percolate.MultiPercolateRequest;
+import org.elasticsearch.action.percolate.MultiPercolateResponse;
+import org.elasticsearch.action.percolate.PercolateRequest;
+import org.elasticsearch.action.percolate.PercolateResponse;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.percolator.PercolatorService;
+import org.elasticsearch.transport.RemoteTransportException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionsTest {
+  private static final JsonObject CONFIG = new JsonObject().putObject("subscriptions",
+      new JsonObject().putBoolean("enabled", true).putNumber("linger_ms", 1)).putObject(
+      "rolling", new JsonObject().putBoolean("enabled", true).putObject("indices",
+          new JsonObject().putObject("logs", new JsonObject().putObject("mappings",
+              new JsonObject().putObject("event", new JsonObject().putObject("properties",
+                  new JsonObject().putObject("level", new JsonObject().putString("type",
+                      "string"))))))));
+  private static final Stubs.Responder INDEXED = new Stubs.Responder() {
+    @Override
+    public ActionResponse respond(ActionRequest<?> request) {
+      IndexRequest index = (IndexRequest) request;
+      return new IndexResponse(index.index(), index.type(), index.id() == null ? "s1" : index
+          .id(), 1, true);
+    }
+  };
+  private Vertx vertx;
+  private Stubs.StubClient client;
+  private Subscriptions subscriptions;
+
+  @Before
+  public void setUp() throws InterruptedException {
+    vertx = VertxFactory.newVertx();
+    client = new Stubs.StubClient().on(IndexAction.NAME, INDEXED);
+    Injector injector = Stubs.injector(vertx, CONFIG, client);
+    subscriptions = injector.getInstance(Subscriptions.class);
+    final CountDownLatch started = new CountDownLatch(1);
+    vertx.runOnContext(new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        subscriptions.start();
+        started.countDown();
+      }
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    vertx.stop();
+  }
+
+  @Test
+  public void testCreatesTheIndexWhenMissingOnARemoteNode() throws Exception {
+    client.on(PutMappingAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        throw remote(new IndexMissingException(new Index("twitter")));
+      }
+    }).on(CreateIndexAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        return CreateIndexResponses.of(true);
+      }
+    });
+
+    JsonObject reply = subscribe("twitter");
+
+    assertEquals("twitter", reply.getString(ElasticSearchHandler.INDEX));
+    assertEquals("s1", reply.getString(ElasticSearchHandler.ID));
+    CreateIndexRequest create = client.requests(CreateIndexRequest.class).get(0);
+    assertEquals("twitter", CreateIndexResponses.index(create));
+    assertEquals(Arrays.asList(PercolatorService.TYPE_NAME), Arrays.asList(CreateIndexResponses
+        .mappings(create).keySet().toArray()));
+  }
+
+  @Test
+  public void testPutsTheMappingAgainWhenCreatedConcurrently() throws Exception {
+    final AtomicInteger puts = new AtomicInteger();
+    client.on(PutMappingAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        if (puts.incrementAndGet() == 1) {
+          throw remote(new IndexMissingException(new Index("twitter")));
+        }
+        return PutMappingResponses.of(true);
+      }
+    }).on(CreateIndexAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        throw remote(new IndexAlreadyExistsException(new Index("twitter")));
+      }
+    });
+
+    assertEquals("s1", subscribe("twitter").getString(ElasticSearchHandler.ID));
+    assertEquals(2, client.requests(PutMappingRequest.class).size());
+    assertEquals(1, client.requests(IndexRequest.class).size());
+  }
+
+  @Test
+  public void testPercolatesBucketsAgainstTheSubscriptionsOfTheirRollingIndex() throws Exception {
+    client.on(PutMappingAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        throw remote(new IndexMissingException(new Index("logs_subscriptions")));
+      }
+    }).on(CreateIndexAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        return CreateIndexResponses.of(true);
+      }
+    }).on(MultiPercolateAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        return new MultiPercolateResponse(new MultiPercolateResponse.Item[] {
+            new MultiPercolateResponse.Item(new PercolateResponse(new PercolateResponse.Match[] {
+                new PercolateResponse.Match(new StringText("logs_subscriptions"), new StringText(
+                    "s1"), 1)}))});
+      }
+    });
+    final BlockingQueue<JsonObject> pushed = new LinkedBlockingQueue<>();
+    vertx.eventBus().registerHandler("errors", new Handler<Message<JsonObject>>() {
+      @Override
+      public void handle(Message<JsonObject> message) {
+        pushed.add(message.body());
+      }
+    });
+
+    JsonObject reply = subscribe("logs");
+    assertEquals("logs", reply.getString(ElasticSearchHandler.INDEX));
+    assertEquals("logs_subscriptions", client.requests(IndexRequest.class).get(0).index());
+    CreateIndexRequest create = client.requests(CreateIndexRequest.class).get(0);
+    assertEquals("logs_subscriptions", CreateIndexResponses.index(create));
+    assertNotNull("mappings of the rolling index", CreateIndexResponses.mappings(create).get(
+        "event"));
+
+    IndexRequest write =
+        new IndexRequest("logs-2015.03.01", "event", "e1").source("{\"level\":\"error\"}");
+    subscriptions.indexed(write, new IndexResponse("logs-2015.03.01", "event", "e1", 1, true));
+    JsonObject match = pushed.poll(5, TimeUnit.SECONDS);
+
+    assertNotNull("no match pushed", match);
+    assertEquals("s1", match.getString("_subscription"));
+    assertEquals("logs-2015.03.01", match.getString(ElasticSearchHandler.INDEX));
+    assertEquals("error", match.getObject(ElasticSearchHandler.SOURCE).getString("level"));
+    PercolateRequest percolate =
+        client.requests(MultiPercolateRequest.class).get(0).requests().get(0);
+    assertEquals(Arrays.asList("logs_subscriptions"), Arrays.asList(percolate.indices()));
+  }
+
+  @Test
+  public void testSkipsWritesToIndicesWithoutSubscriptions() throws Exception {
+    subscriptions.indexed(new IndexRequest("logs-2015.03.01", "event", "e1").source("{}"),
+        new IndexResponse("logs-2015.03.01", "event", "e1", 1, true));
+    subscriptions.updated("twitter", "tweet", "1", 2);
+
+    assertEquals(2, subscriptions.stats().getLong("skipped").longValue());
+    assertTrue(client.requests(MultiPercolateRequest.class).isEmpty());
+  }
+
+  @Test
+  public void testUnsubscribesFromTheIndexOfARollingIndex() throws Exception {
+    client.on(DeleteAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        DeleteRequest delete = (DeleteRequest) request;
+        return new DeleteResponse(delete.index(), delete.type(), delete.id(), 2, true);
+      }
+    });
+    Stubs.CapturedMessage message =
+        new Stubs.CapturedMessage(new JsonObject().putString(ElasticSearchHandler.INDEX, "logs")
+            .putString(ElasticSearchHandler.ID, "s1"));
+    subscriptions.unsubscribe(message.message);
+
+    JsonObject reply = (JsonObject) message.reply();
+    assertEquals("logs", reply.getString(ElasticSearchHandler.INDEX));
+    assertTrue(reply.getBoolean("found"));
+    assertEquals("logs_subscriptions", client.requests(DeleteRequest.class).get(0).index());
+  }
+
+  private JsonObject subscribe(String index) throws InterruptedException {
+    Stubs.CapturedMessage message =
+        new Stubs.CapturedMessage(new JsonObject().putString(ElasticSearchHandler.INDEX, index)
+            .putString(Subscriptions.ADDRESS, "errors").putObject(Subscriptions.QUERY,
+                new JsonObject().putObject("match_all", new JsonObject())));
+    subscriptions.subscribe(message.message);
+    JsonObject reply = (JsonObject) message.reply();
+    assertNull(message.failure());
+    return reply;
+  }
+
+  private static RemoteTransportException remote(Throwable cause) {
+    return new RemoteTransportException("[node][inet[/10.0.0.1:9300]]", cause);
+  }
+}
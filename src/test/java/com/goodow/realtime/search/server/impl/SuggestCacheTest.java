@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SuggestCacheTest {
+  private static final String SCOPE = "twitter";
+
+  @Test
+  public void testFiltersLongerPrefixesFromACompleteEntry() {
+    SuggestCache cache = cache(new JsonObject());
+    cache.put(SCOPE, "Ki", options("kimchy", "Kibana", "kiwi"), 20);
+
+    assertEquals(options("kimchy"), cache.get(SCOPE, "kim", 5));
+    assertEquals(options("Kibana"), cache.get(SCOPE, "KIB", 5));
+    assertEquals(options(), cache.get(SCOPE, "kix", 5));
+    assertEquals(options("kimchy", "Kibana"), cache.get(SCOPE, "ki", 2));
+    assertNull(cache.get("logs", "kim", 5));
+    JsonObject stats = cache.stats();
+    assertEquals(1, stats.getLong("hits").longValue());
+    assertEquals(3, stats.getLong("filtered").longValue());
+    assertEquals(1, stats.getLong("misses").longValue());
+  }
+
+  @Test
+  public void testAnswersFromATruncatedEntryOnlyWhenItHoldsEnoughOptions() {
+    SuggestCache cache = cache(new JsonObject());
+    cache.put(SCOPE, "k", options("kimchy", "kibana", "kiwi"), 3);
+
+    assertEquals(options("kimchy", "kibana"), cache.get(SCOPE, "k", 2));
+    assertNull(cache.get(SCOPE, "k", 5));
+    assertEquals(options("kimchy", "kibana"), cache.get(SCOPE, "ki", 2));
+    // kimchy may be followed by completions of "kim" the truncated entry dropped
+    assertNull(cache.get(SCOPE, "kim", 2));
+
+    // The longer prefix's own entry is preferred over the shorter one
+    cache.put(SCOPE, "kim", options("kimchy", "kimono"), 20);
+    assertEquals(options("kimchy", "kimono"), cache.get(SCOPE, "kim", 2));
+  }
+
+  @Test
+  public void testAnswersOnlyExactLookupsWhenAnOptionDoesNotStartWithThePrefix() {
+    SuggestCache cache = cache(new JsonObject());
+    // A fuzzy completion
+    cache.put(SCOPE, "elastci", options("elasticsearch", "elastic"), 20);
+
+    assertEquals(options("elasticsearch", "elastic"), cache.get(SCOPE, "Elastci", 5));
+    assertNull(cache.get(SCOPE, "elastcis", 5));
+  }
+
+  @Test
+  public void testExpiresEntriesAfterTheirTtl() throws InterruptedException {
+    SuggestCache cache = cache(new JsonObject().putString("ttl", "20ms"));
+    cache.put(SCOPE, "ki", options("kimchy"), 20);
+    assertEquals(options("kimchy"), cache.get(SCOPE, "kim", 5));
+    Thread.sleep(40);
+
+    assertNull(cache.get(SCOPE, "kim", 5));
+    assertEquals(0, cache.stats().getInteger("entries").intValue());
+  }
+
+  @Test
+  public void testEvictsTheLeastRecentlyUsedBeyondTheMaximumEntries() {
+    SuggestCache cache = cache(new JsonObject().putNumber("max_entries", 2));
+    cache.put(SCOPE, "a", options("apple"), 20);
+    cache.put(SCOPE, "b", options("banana"), 20);
+    cache.get(SCOPE, "a", 5);
+    cache.put(SCOPE, "c", options("cherry"), 20);
+
+    assertEquals(options("apple"), cache.get(SCOPE, "a", 5));
+    assertNull(cache.get(SCOPE, "b", 5));
+    assertEquals(options("cherry"), cache.get(SCOPE, "c", 5));
+  }
+
+  private static JsonArray options(String... texts) {
+    JsonArray options = new JsonArray();
+    for (String text : texts) {
+      options.add(new JsonObject().putString("text", text).putNumber("score", 1));
+    }
+    return options;
+  }
+
+  private static SuggestCache cache(JsonObject config) {
+    return new SuggestCache(Stubs.container(new JsonObject().putObject("suggest",
+        new JsonObject().putObject("cache", config.putBoolean("enabled", true)))));
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.update.UpdateAction;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UpdateCoalescerTest {
+  private Vertx vertx;
+  private Stubs.StubClient client;
+  private UpdateCoalescer coalescer;
+
+  @Before
+  public void setUp() {
+    vertx = VertxFactory.newVertx();
+    client = new Stubs.StubClient().on(UpdateAction.NAME, new Stubs.Responder() {
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) {
+        UpdateRequest update = (UpdateRequest) request;
+        return new UpdateResponse(update.index(), update.type(), update.id(), 2, false);
+      }
+    });
+    JsonObject config =
+        new JsonObject().putObject("update_coalesce", new JsonObject().putBoolean("enabled", true)
+            .putNumber("linger_ms", 50));
+    coalescer = Stubs.injector(vertx, config, client).getInstance(UpdateCoalescer.class);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    vertx.stop();
+  }
+
+  @Test
+  public void testMergeReplacesValuesAndMergesObjects() {
+    JsonObject target =
+        new JsonObject().putObject("user", new JsonObject().putString("name", "larry").putNumber(
+            "age", 30)).putString("message", "hello").putNumber("likes", 1);
+    JsonObject location = new JsonObject().putNumber("lat", 31.2);
+    JsonObject source =
+        new JsonObject().putObject("user", new JsonObject().putNumber("age", 31)).putObject(
+            "likes", new JsonObject().putNumber("count", 2)).putObject("location", location);
+
+    UpdateCoalescer.merge(target, source);
+    location.putNumber("lat", 0);
+
+    assertEquals(new JsonObject().putString("name", "larry").putNumber("age", 31), target
+        .getObject("user"));
+    assertEquals("hello", target.getString("message"));
+    assertEquals(new JsonObject().putNumber("count", 2), target.getObject("likes"));
+    assertEquals(31.2, target.getObject("location").getNumber("lat"));
+  }
+
+  @Test
+  public void testOnlyPartialDocumentsAreMergeable() {
+    assertTrue(UpdateCoalescer.isMergeable(update("1").putObject("doc", new JsonObject())));
+    assertFalse(UpdateCoalescer.isMergeable(update("1").putString("script", "ctx._source.n++")));
+    assertFalse(UpdateCoalescer.isMergeable(update("1").putObject("doc", new JsonObject())
+        .putNumber("version", 3)));
+  }
+
+  @Test
+  public void testOnlyUpdatesWithTheSameOptionsAreMerged() {
+    JsonObject doc = update("1").putObject("doc", new JsonObject().putString("user", "larry"));
+    JsonObject other =
+        update("1").putObject("doc", new JsonObject().putString("message", "hi")).putBoolean(
+            "refresh", true).putNumber("retry_on_conflict", 3);
+    assertTrue(UpdateCoalescer.canMerge(doc, other));
+    assertFalse(UpdateCoalescer.canMerge(doc, other.copy().putString("routing", "kimchy")));
+    assertFalse(UpdateCoalescer.canMerge(doc.copy().putString("parent", "1"), other));
+    assertFalse(UpdateCoalescer.canMerge(doc, other.copy().putArray("fields", new JsonArray()
+        .addString("_source"))));
+    assertTrue(UpdateCoalescer.canMerge(doc.copy().putString("timeout", "1s"), other.copy()
+        .putString("timeout", "1s")));
+  }
+
+  @Test
+  public void testSendsUpdatesWithOtherRoutingSeparatelyInOrder() throws Exception {
+    Stubs.CapturedMessage first =
+        add(update("1").putObject("doc", new JsonObject().putString("user", "larry")));
+    Stubs.CapturedMessage second =
+        add(update("1").putObject("doc", new JsonObject().putString("message", "hi")).putString(
+            "routing", "kimchy"));
+
+    assertNull(first.failure());
+    assertNull(second.failure());
+    List<UpdateRequest> sent = client.requests(UpdateRequest.class);
+    assertEquals(2, sent.size());
+    assertEquals("larry", sent.get(0).doc().sourceAsMap().get("user"));
+    assertEquals("hi", sent.get(1).doc().sourceAsMap().get("message"));
+  }
+
+  @Test
+  public void testMergesUpdatesOfTheSameDocument() throws Exception {
+    Stubs.CapturedMessage first =
+        add(update("1").putObject("doc", new JsonObject().putString("user", "larry")));
+    Stubs.CapturedMessage second =
+        add(update("1").putObject("doc", new JsonObject().putString("message", "hi")).putNumber(
+            "retry_on_conflict", 3));
+
+    for (Stubs.CapturedMessage message : new Stubs.CapturedMessage[] {first, second}) {
+      JsonObject reply = (JsonObject) message.reply();
+      assertEquals(2, reply.getLong(ElasticSearchHandler.VERSION).longValue());
+    }
+    List<UpdateRequest> sent = client.requests(UpdateRequest.class);
+    assertEquals(1, sent.size());
+    Map<String, Object> doc = sent.get(0).doc().sourceAsMap();
+    assertEquals("larry", doc.get("user"));
+    assertEquals("hi", doc.get("message"));
+    assertEquals(3, sent.get(0).retryOnConflict());
+  }
+
+  @Test
+  public void testSendsScriptsSeparatelyInOrder() throws Exception {
+    Stubs.CapturedMessage doc =
+        add(update("1").putObject("doc", new JsonObject().putString("user", "larry")));
+    Stubs.CapturedMessage script = add(update("1").putString("script", "ctx._source.n = 1"));
+
+    assertNull(doc.failure());
+    assertNull(script.failure());
+    List<UpdateRequest> sent = client.requests(UpdateRequest.class);
+    assertEquals(2, sent.size());
+    assertNull(sent.get(0).script());
+    assertEquals("ctx._source.n = 1", sent.get(1).script());
+  }
+
+  @Test
+  public void testFailsEveryMessageOfAnInvalidBatch() throws Exception {
+    // Queued for twitter/tweet/1, but the merged body has no _type
+    UpdateRequest request = new UpdateRequest("twitter", "tweet", "1");
+    JsonObject body = update("1");
+    body.removeField(ElasticSearchHandler.TYPE);
+    Stubs.CapturedMessage first =
+        add(body.copy().putObject("doc", new JsonObject().putString("user", "larry")), request);
+    Stubs.CapturedMessage second =
+        add(body.copy().putObject("doc", new JsonObject().putString("message", "hi")), request);
+
+    assertEquals(ElasticSearchHandler.TYPE + " is required", first.failure());
+    assertEquals(ElasticSearchHandler.TYPE + " is required", second.failure());
+    assertTrue(client.requests.isEmpty());
+  }
+
+  private JsonObject update(String id) {
+    return new JsonObject().putString("action", "update").putString(ElasticSearchHandler.INDEX,
+        "twitter").putString(ElasticSearchHandler.TYPE, "tweet").putString(
+        ElasticSearchHandler.ID, id);
+  }
+
+  private Stubs.CapturedMessage add(JsonObject body) {
+    return add(body, new UpdateRequest(body.getString(ElasticSearchHandler.INDEX), body
+        .getString(ElasticSearchHandler.TYPE), body.getString(ElasticSearchHandler.ID)));
+  }
+
+  private Stubs.CapturedMessage add(JsonObject body, UpdateRequest request) {
+    Stubs.CapturedMessage message = new Stubs.CapturedMessage(body);
+    coalescer.add(request, message.message);
+    return message;
+  }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.impl;
+
+import com.google.inject.Injector;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateAction;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.VertxFactory;
+import org.vertx.java.core.json.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteAheadQueueTest {
+  private static final Stubs.Responder UNAVAILABLE = new Stubs.Responder() {
+    @Override
+    public ActionResponse respond(ActionRequest<?> request) {
+      throw new ConnectTransportException(null, "unreachable");
+    }
+  };
+  private final List<String> drained = Collections.synchronizedList(new ArrayList<String>());
+  private final Stubs.Responder acknowledge = new Stubs.Responder() {
+    @Override
+    public ActionResponse respond(ActionRequest<?> request) throws Exception {
+      for (ActionRequest<?> item : ((BulkRequest) request).requests()) {
+        drained.add(item instanceof IndexRequest ? ((IndexRequest) item).id()
+            : ((DeleteRequest) item).id());
+      }
+      return Stubs.bulk(Collections.<String> emptyList(), null).respond(request);
+    }
+  };
+  private Vertx vertx;
+  private Stubs.StubClient client;
+  private File path;
+  private final List<WriteAheadQueue> queues = new ArrayList<>();
+
+  @Before
+  public void setUp() throws IOException {
+    vertx = VertxFactory.newVertx();
+    client = new Stubs.StubClient().on(BulkAction.NAME, UNAVAILABLE);
+    path = Files.createTempDirectory("write_queue").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    for (WriteAheadQueue queue : queues) {
+      queue.stop();
+    }
+    client.close();
+    vertx.stop();
+    delete(path);
+  }
+
+  @Test
+  public void testAcknowledgesAppendsOnceDurable() throws Exception {
+    Injector injector = injector(WriteAheadQueue.ALWAYS, new JsonObject());
+    WriteAheadQueue queue = start(injector);
+
+    JsonObject first = (JsonObject) index(injector, queue, null, "larry").reply();
+    JsonObject second = (JsonObject) index(injector, queue, "2", "kimchy").reply();
+
+    assertTrue(first.getBoolean("queued"));
+    assertEquals(1, first.getLong("_seq").longValue());
+    assertNotNull("auto-generated id", first.getString(ElasticSearchHandler.ID));
+    assertEquals("twitter", first.getString(ElasticSearchHandler.INDEX));
+    assertEquals(2, second.getLong("_seq").longValue());
+    assertEquals("2", second.getString(ElasticSearchHandler.ID));
+    JsonObject stats = queue.stats();
+    assertEquals(2, stats.getLong("appended").longValue());
+    assertEquals(2, stats.getLong("depth").longValue());
+    assertTrue(queue.isQueuing());
+  }
+
+  @Test
+  public void testRecoversAfterACrash() throws Exception {
+    Injector injector = injector(WriteAheadQueue.ALWAYS, new JsonObject());
+    WriteAheadQueue queue = start(injector);
+    for (int i = 1; i <= 3; i++) {
+      index(injector, queue, String.valueOf(i), "user" + i).reply();
+    }
+    queue.stop();
+    queues.remove(queue);
+    // A record torn by the crash: a length without its payload
+    File segment = new File(new File(path, "0"), String.format("%020d", 1) + ".log");
+    try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      long end = 0;
+      for (int i = 0; i < 3; i++) {
+        raf.seek(end);
+        end += 16 + raf.readInt();
+      }
+      raf.seek(end);
+      raf.writeInt(100);
+      raf.writeInt(42);
+      raf.writeLong(4);
+    }
+
+    client.on(BulkAction.NAME, acknowledge);
+    WriteAheadQueue recovered = start(injector(WriteAheadQueue.ALWAYS, new JsonObject()));
+    awaitDepth(recovered, 0);
+
+    assertEquals(Arrays.asList("1", "2", "3"), drained);
+    assertEquals(3, recovered.stats().getLong("drained").longValue());
+    // Appends continue after the last complete record
+    assertEquals(4, ((JsonObject) index(injector, recovered, "4", "user4").reply()).getLong(
+        "_seq").longValue());
+  }
+
+  @Test
+  public void testDrainsInOrderAcrossSegments() throws Exception {
+    client.on(BulkAction.NAME, acknowledge);
+    Injector injector =
+        injector(WriteAheadQueue.ALWAYS, new JsonObject().putNumber("segment_size_in_bytes", 512)
+            .putNumber("max_batch_actions", 3));
+    WriteAheadQueue queue = start(injector);
+    List<String> expected = new ArrayList<>();
+    List<Stubs.CapturedMessage> messages = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      String id = String.valueOf(i % 7);
+      expected.add(id);
+      if (i % 3 == 2) {
+        JsonObject body = key(id);
+        Stubs.CapturedMessage message = new Stubs.CapturedMessage(body);
+        queue.append(body, injector.getInstance(WriteRequests.class).delete(body,
+            message.message), message.message);
+        messages.add(message);
+      } else {
+        messages.add(index(injector, queue, id, "user" + i));
+      }
+    }
+    for (Stubs.CapturedMessage message : messages) {
+      message.reply();
+    }
+    awaitDepth(queue, 0);
+
+    assertEquals(expected, drained);
+    for (BulkRequest bulk : client.requests(BulkRequest.class)) {
+      assertTrue(bulk.requests().size() <= 3);
+    }
+    assertTrue(new File(path, "0").list().length < 20);
+  }
+
+  @Test
+  public void testResendsTheRecordsFollowingARetriableFailure() throws Exception {
+    // Users written to the document 1, in order
+    final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+    client.on(BulkAction.NAME, new Stubs.Responder() {
+      private boolean failed;
+
+      @Override
+      public ActionResponse respond(ActionRequest<?> request) throws Exception {
+        BulkResponse resp =
+            (BulkResponse) Stubs.bulk(Collections.<String> emptyList(), null).respond(request);
+        List<ActionRequest> items = ((BulkRequest) request).requests();
+        for (int i = 0; i < items.size(); i++) {
+          IndexRequest item = (IndexRequest) items.get(i);
+          String user = item.sourceAsMap().get("user").toString();
+          if (!failed && "larry".equals(user)) {
+            failed = true;
+            resp.getItems()[i] =
+                new BulkItemResponse(i, "index", new BulkItemResponse.Failure("twitter", "tweet",
+                    "1", "EsRejectedExecutionException", RestStatus.SERVICE_UNAVAILABLE));
+          } else if ("1".equals(item.id())) {
+            written.add(user);
+          }
+        }
+        return resp;
+      }
+    });
+    Injector injector = injector(WriteAheadQueue.ALWAYS, new JsonObject());
+    WriteAheadQueue queue = start(injector);
+    List<Stubs.CapturedMessage> messages =
+        Arrays.asList(index(injector, queue, "1", "larry"), index(injector, queue, "2",
+            "shay"), index(injector, queue, "1", "kimchy"));
+    for (Stubs.CapturedMessage message : messages) {
+      message.reply();
+    }
+    awaitDepth(queue, 0);
+
+    assertEquals("kimchy", written.get(written.size() - 1));
+    assertTrue(written.indexOf("larry") < written.lastIndexOf("kimchy"));
+    assertEquals(3, queue.stats().getLong("drained").longValue());
+  }
+
+  @Test
+  public void testDropsRecordsWhichNoLongerParse() throws Exception {
+    client.on(BulkAction.NAME, acknowledge);
+    File dir = new File(path, "0");
+    assertTrue(dir.mkdirs());
+    try (RandomAccessFile raf =
+        new RandomAccessFile(new File(dir, String.format("%020d", 1) + ".log"), "rw")) {
+      writeRecord(raf, 1, key("1").putString("action", "upsert"));
+      writeRecord(raf, 2, key("2").putString("action", "index").putObject("source",
+          new JsonObject().putString("user", "larry")));
+    }
+
+    WriteAheadQueue queue = start(injector(WriteAheadQueue.ALWAYS, new JsonObject()));
+    awaitDepth(queue, 0);
+
+    assertEquals(Arrays.asList("2"), drained);
+    assertEquals(1, queue.stats().getLong("dropped").longValue());
+  }
+
+  @Test
+  public void testAdoptsTheLogsOfRemovedInstances() throws Exception {
+    Injector injector = injector(WriteAheadQueue.ALWAYS, new JsonObject());
+    WriteAheadQueue queue = start(injector);
+    index(injector, queue, "1", "larry").reply();
+    index(injector, queue, "2", "kimchy").reply();
+    queue.stop();
+    queues.remove(queue);
+    // As if it belonged to a fourth instance, which the restart no longer has
+    assertTrue(new File(path, "0").renameTo(new File(path, "3")));
+
+    client.on(BulkAction.NAME, acknowledge);
+    WriteAheadQueue adopting = start(injector(WriteAheadQueue.ALWAYS, new JsonObject()));
+    awaitDepth(adopting, 0);
+
+    assertEquals(Arrays.asList("1", "2"), drained);
+    assertEquals(Arrays.asList("lock"), Arrays.asList(new File(path, "3").list()));
+  }
+
+  @Test
+  public void testQueuesEveryWriteUntilDrained() throws Exception {
+    Injector injector = injector(WriteAheadQueue.ON_FAILURE, new JsonObject());
+    WriteAheadQueue queue = start(injector);
+    assertFalse(queue.isQueuing());
+    assertTrue(queue.accepts(new ConnectTransportException(null, "unreachable")));
+    assertFalse(queue.accepts(new ElasticsearchIllegalArgumentException()));
+
+    index(injector, queue, "1", "larry").reply();
+    assertTrue(queue.isQueuing());
+
+    client.on(BulkAction.NAME, acknowledge);
+    awaitDepth(queue, 0);
+    assertFalse(queue.isQueuing());
+  }
+
+  @Test
+  public void testQueuesCoalescedUpdatesOnFailure() throws Exception {
+    client.on(UpdateAction.NAME, UNAVAILABLE);
+    Injector injector = injector(WriteAheadQueue.ON_FAILURE, new JsonObject());
+    WriteAheadQueue queue = start(injector);
+    UpdateCoalescer coalescer = injector.getInstance(UpdateCoalescer.class);
+    WriteRequests writes = injector.getInstance(WriteRequests.class);
+    List<Stubs.CapturedMessage> messages = new ArrayList<>();
+    for (String user : new String[] {"larry", "kimchy"}) {
+      JsonObject body = key("1").putObject("doc", new JsonObject().putString("user", user));
+      Stubs.CapturedMessage message = new Stubs.CapturedMessage(body);
+      coalescer.add(writes.update(body, message.message), message.message);
+      messages.add(message);
+    }
+
+    JsonObject first = (JsonObject) messages.get(0).reply();
+    JsonObject second = (JsonObject) messages.get(1).reply();
+    assertTrue(first.getBoolean("queued"));
+    assertEquals(first, second);
+    assertEquals(1, queue.stats().getLong("appended").longValue());
+  }
+
+  private Injector injector(String mode, JsonObject config) {
+    config.putBoolean("enabled", true).putString("mode", mode).putString("path", path.getPath())
+        .putNumber("poll_interval_ms", 10).putNumber("max_backoff_ms", 20);
+    if (!config.containsField("segment_size_in_bytes")) {
+      config.putNumber("segment_size_in_bytes", 64 * 1024);
+    }
+    return Stubs.injector(vertx, new JsonObject().putObject("write_queue", config).putObject(
+        "update_coalesce", new JsonObject().putBoolean("enabled", true).putNumber("linger_ms",
+            50)), client);
+  }
+
+  private WriteAheadQueue start(Injector injector) throws IOException {
+    WriteAheadQueue queue = injector.getInstance(WriteAheadQueue.class);
+    queue.start();
+    queues.add(queue);
+    return queue;
+  }
+
+  private static Stubs.CapturedMessage index(Injector injector, WriteAheadQueue queue, String id,
+      String user) {
+    JsonObject body =
+        new JsonObject().putString(ElasticSearchHandler.INDEX, "twitter").putString(
+            ElasticSearchHandler.TYPE, "tweet").putObject("source", new JsonObject().putString(
+            "user", user));
+    if (id != null) {
+      body.putString(ElasticSearchHandler.ID, id);
+    }
+    Stubs.CapturedMessage message = new Stubs.CapturedMessage(body);
+    IndexRequest request = injector.getInstance(WriteRequests.class).index(body, message.message);
+    queue.append(body, request, message.message);
+    return message;
+  }
+
+  private static JsonObject key(String id) {
+    return new JsonObject().putString(ElasticSearchHandler.INDEX, "twitter").putString(
+        ElasticSearchHandler.TYPE, "tweet").putString(ElasticSearchHandler.ID, id);
+  }
+
+  /**
+   * Writes a record in the format of the log: length, CRC32 and sequence number of the payload.
+   */
+  private static void writeRecord(RandomAccessFile raf, long seq, JsonObject body)
+      throws IOException {
+    byte[] payload = body.encode().getBytes(StandardCharsets.UTF_8);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    raf.writeInt(payload.length);
+    raf.writeInt((int) crc.getValue());
+    raf.writeLong(seq);
+    raf.write(payload);
+  }
+
+  private static void awaitDepth(WriteAheadQueue queue, long depth) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (queue.stats().getLong("depth") != depth) {
+      assertTrue("depth " + queue.stats().getLong("depth"), System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -17,6 +17,7 @@ import org.junit.Test;
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.testtools.TestVerticle;
 import org.vertx.testtools.VertxAssert;
@@ -64,4 +65,79 @@ public class SearchIntegrationTest extends TestVerticle {
         });
 
   }
+
+  @Test
+  public void testBulk() throws Exception {
+    JsonObject indexRequest =
+        new JsonObject().putString("action", "index").putString("_index", index).putString("_type",
+            type).putString("_id", id + "_bulk").putObject("source",
+            new JsonObject().putString("user", source_user));
+    JsonObject deleteRequest =
+        new JsonObject().putString("action", "delete").putString("_index", index).putString(
+            "_type", type).putString("_id", id + "_bulk");
+    JsonObject message =
+        new JsonObject().putString("action", "bulk").putArray("requests",
+            new JsonArray().addObject(indexRequest).addObject(deleteRequest));
+
+    vertx.eventBus().sendWithTimeout("realtime/search", message, 5000,
+        new AsyncResultHandler<Message<JsonObject>>() {
+          @Override
+          public void handle(AsyncResult<Message<JsonObject>> ar) {
+            VertxAssert.assertTrue(ar.succeeded());
+            JsonArray items = ar.result().body().getArray("items");
+            VertxAssert.assertEquals(2, items.size());
+            JsonObject indexed = ((JsonObject) items.get(0)).getObject("index");
+            VertxAssert.assertTrue(indexed.getLong("_version") > 0);
+            JsonObject deleted = ((JsonObject) items.get(1)).getObject("delete");
+            VertxAssert.assertTrue(deleted.getBoolean("found"));
+            VertxAssert.testComplete();
+          }
+        });
+  }
+
+  @Test
+  public void testUpdate() throws Exception {
+    JsonObject message =
+        new JsonObject().putString("action", "update").putString("_index", index).putString(
+            "_type", type).putString("_id", id + "_update").putObject("doc",
+            new JsonObject().putString("message", source_message)).putObject("upsert",
+            new JsonObject().putString("user", source_user));
+
+    vertx.eventBus().sendWithTimeout("realtime/search", message, 5000,
+        new AsyncResultHandler<Message<JsonObject>>() {
+          @Override
+          public void handle(AsyncResult<Message<JsonObject>> ar) {
+            VertxAssert.assertTrue(ar.succeeded());
+            JsonObject body = ar.result().body();
+            VertxAssert.assertEquals(id + "_update", body.getString("_id"));
+            VertxAssert.assertTrue(body.getLong("_version") > 0);
+            VertxAssert.testComplete();
+          }
+        });
+  }
+
+  @Test
+  public void testSearchHitsOnly() throws Exception {
+    JsonObject message =
+        new JsonObject().putString("action", "search").putString("_index", index).putString(
+            "_type", type).putBoolean("hits_only", true).putArray("_source_include",
+            new JsonArray().addString("user"));
+
+    vertx.eventBus().sendWithTimeout("realtime/search", message, 5000,
+        new AsyncResultHandler<Message<JsonObject>>() {
+          @Override
+          public void handle(AsyncResult<Message<JsonObject>> ar) {
+            VertxAssert.assertTrue(ar.succeeded());
+            JsonObject body = ar.result().body();
+            VertxAssert.assertNotNull(body.getLong("total"));
+            VertxAssert.assertNotNull(body.getArray("hits"));
+            VertxAssert.assertFalse(body.containsField("took"));
+            for (Object hit : body.getArray("hits")) {
+              JsonObject source = ((JsonObject) hit).getObject("_source");
+              VertxAssert.assertFalse(source.containsField("message"));
+            }
+            VertxAssert.testComplete();
+          }
+        });
+  }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.search.server.integration;
+
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.testtools.TestVerticle;
+import org.vertx.testtools.VertxAssert;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Drives a mix of index, get and search messages through the event bus against an embedded node,
+ * and reports throughput and tail latency. The load is tuned with the system properties
+ * {@code load.requests}, {@code load.concurrency} and {@code load.mix} (index:get:search weights).
+ */
+public class SearchLoadTest extends TestVerticle {
+  private static final String ADDRESS = "realtime/search";
+  private final String index = "load_index";
+  private final String type = "load_type";
+  private final int requests = Integer.getInteger("load.requests", 10000);
+  private final int concurrency = Integer.getInteger("load.concurrency", 64);
+  private final int[] mix = parseMix(System.getProperty("load.mix", "30:50:20"));
+  private final int ids = 1000;
+
+  private final Random random = new Random(42);
+  private long[] latencies;
+  private int sent;
+  private int done;
+  private int failures;
+  private long start;
+
+  private static int[] parseMix(String mix) {
+    String[] weights = mix.split(":");
+    int[] cumulative = new int[3];
+    int total = 0;
+    for (int i = 0; i < cumulative.length; i++) {
+      total += Integer.parseInt(weights[i].trim());
+      cumulative[i] = total;
+    }
+    return cumulative;
+  }
+
+  @Override
+  public void start() {
+    initialize();
+    container.deployModule(System.getProperty("vertx.modulename"), new JsonObject().putObject(
+        "embedded", new JsonObject().putBoolean("enabled", true)).putString("cluster_name",
+        "realtime-search-load"), new AsyncResultHandler<String>() {
+      @Override
+      public void handle(AsyncResult<String> asyncResult) {
+        VertxAssert.assertTrue(asyncResult.succeeded());
+        startTests();
+      }
+    });
+  }
+
+  @Test
+  public void testLoad() throws Exception {
+    // Creates the index first, searching a missing index would fail
+    JsonObject seed =
+        new JsonObject().putString("action", "index").putString("_index", index).putString(
+            "_type", type).putString("_id", "0").putBoolean("refresh", true).putObject("source",
+            new JsonObject().putString("user", "user0"));
+    vertx.eventBus().sendWithTimeout(ADDRESS, seed, 30000,
+        new AsyncResultHandler<Message<JsonObject>>() {
+          @Override
+          public void handle(AsyncResult<Message<JsonObject>> ar) {
+            VertxAssert.assertTrue(ar.succeeded());
+            latencies = new long[requests];
+            start = System.nanoTime();
+            for (int i = 0; i < Math.min(concurrency, requests); i++) {
+              sendNext();
+            }
+          }
+        });
+  }
+
+  private JsonObject nextRequest() {
+    String id = String.valueOf(random.nextInt(ids));
+    int n = random.nextInt(mix[2]);
+    if (n < mix[0]) {
+      return new JsonObject().putString("action", "index").putString("_index", index).putString(
+          "_type", type).putString("_id", id).putObject("source",
+          new JsonObject().putString("user", "user" + random.nextInt(10)).putString("message",
+              "message " + id));
+    } else if (n < mix[1]) {
+      return new JsonObject().putString("action", "get").putString("_index", index).putString(
+          "_type", type).putString("_id", id);
+    }
+    return new JsonObject().putString("action", "search").putString("_index", index).putObject(
+        "source", new JsonObject().putNumber("size", 10).putObject("query",
+            new JsonObject().putObject("term", new JsonObject().putString("user",
+                "user" + random.nextInt(10)))));
+  }
+
+  private void sendNext() {
+    final int i = sent++;
+    final long sentAt = System.nanoTime();
+    vertx.eventBus().sendWithTimeout(ADDRESS, nextRequest(), 30000,
+        new AsyncResultHandler<Message<JsonObject>>() {
+          @Override
+          public void handle(AsyncResult<Message<JsonObject>> ar) {
+            latencies[i] = (System.nanoTime() - sentAt) / 1000;
+            if (ar.failed()) {
+              failures++;
+            }
+            done++;
+            if (sent < requests) {
+              sendNext();
+            } else if (done == requests) {
+              report();
+            }
+          }
+        });
+  }
+
+  private void report() {
+    long elapsed = System.nanoTime() - start;
+    Arrays.sort(latencies);
+    container.logger().info(
+        String.format("%d requests, concurrency %d, mix %s: %.1f req/s, "
+            + "latency us p50 %d, p99 %d, p999 %d, max %d, %d failures", requests, concurrency,
+            System.getProperty("load.mix", "30:50:20"), requests * 1e9 / elapsed,
+            percentile(0.5), percentile(0.99), percentile(0.999), latencies[requests - 1],
+            failures));
+    VertxAssert.assertEquals(0, failures);
+    VertxAssert.testComplete();
+  }
+
+  private long percentile(double p) {
+    return latencies[(int) Math.min(requests - 1, Math.ceil(p * requests) - 1)];
+  }
+}
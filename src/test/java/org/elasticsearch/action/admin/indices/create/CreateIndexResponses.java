@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.elasticsearch.action.admin.indices.create;
+
+import java.util.Map;
+
+/**
+ * Builds the create index responses, and reads the requests, whose members are package-private.
+ */
+public final class CreateIndexResponses {
+  public static CreateIndexResponse of(boolean acknowledged) {
+    return new CreateIndexResponse(acknowledged);
+  }
+
+  public static String index(CreateIndexRequest request) {
+    return request.index();
+  }
+
+  public static Map<String, String> mappings(CreateIndexRequest request) {
+    return request.mappings();
+  }
+
+  private CreateIndexResponses() {
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.elasticsearch.action.deletebyquery;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+
+import java.util.Collections;
+
+/**
+ * Builds the delete by query responses, and reads the request fields, that are package-private.
+ */
+public final class DeleteByQueryResponses {
+  public static DeleteByQueryResponse of(String index, int successfulShards, int failedShards) {
+    DeleteByQueryResponse response = new DeleteByQueryResponse();
+    response.getIndices().put(index, new IndexDeleteByQueryResponse(index, successfulShards,
+        failedShards, Collections.<ShardOperationFailedException> emptyList()));
+    return response;
+  }
+
+  public static String[] types(DeleteByQueryRequest request) {
+    return request.types();
+  }
+
+  public static String source(DeleteByQueryRequest request) {
+    return request.source().toUtf8();
+  }
+
+  private DeleteByQueryResponses() {
+  }
+}